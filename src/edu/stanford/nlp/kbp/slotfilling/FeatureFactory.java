@@ -1,5 +1,7 @@
 package edu.stanford.nlp.kbp.slotfilling;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
@@ -21,6 +23,7 @@ import edu.stanford.nlp.ie.machinereading.structure.MachineReadingAnnotations.Tr
 import edu.stanford.nlp.kbp.slotfilling.common.Constants;
 import edu.stanford.nlp.kbp.slotfilling.common.EntityType;
 import edu.stanford.nlp.kbp.slotfilling.common.Log;
+import edu.stanford.nlp.kbp.slotfilling.common.Metrics;
 import edu.stanford.nlp.kbp.slotfilling.common.Utils;
 import edu.stanford.nlp.kbp.slotfilling.common.KBPAnnotations.SourceIndexAnnotation;
 import edu.stanford.nlp.kbp.slotfilling.index.CoreMapCombiner;
@@ -29,13 +32,10 @@ import edu.stanford.nlp.ling.CoreLabel;
 import edu.stanford.nlp.ling.Datum;
 import edu.stanford.nlp.ling.IndexedWord;
 import edu.stanford.nlp.ling.CoreAnnotations.TokensAnnotation;
-import edu.stanford.nlp.process.Morphology;
-import edu.stanford.nlp.stats.ClassicCounter;
 import edu.stanford.nlp.stats.Counter;
 import edu.stanford.nlp.trees.EnglishGrammaticalRelations;
 import edu.stanford.nlp.trees.GrammaticalRelation;
 import edu.stanford.nlp.trees.Tree;
-import edu.stanford.nlp.trees.TreeCoreAnnotations.TreeAnnotation;
 import edu.stanford.nlp.trees.semgraph.SemanticGraph;
 import edu.stanford.nlp.trees.semgraph.SemanticGraphCoreAnnotations;
 import edu.stanford.nlp.trees.semgraph.SemanticGraphEdge;
@@ -71,31 +71,130 @@ public class FeatureFactory implements Serializable {
       "different_sentences",
       }));
 
+  /**
+   * All feature types known to addFeaturesRaw
+   * A list of feature types is compiled into a bit mask of these, one bit per ordinal (so there can be at most 64)
+   */
+  static enum FeatureType {
+    ARG_TYPE("arg_type"),
+    ARG_SUBTYPE("arg_subtype"),
+    ARG_ORDER("arg_order"),
+    SAME_HEAD("same_head"),
+    FULL_TREE_PATH("full_tree_path"),
+    PATH_LENGTH("path_length"),
+    PATH_LENGTH_BINARY("path_length_binary"),
+    ENTITY_ORDER("entity_order"),
+    SURFACE_DISTANCE("surface_distance"),
+    SURFACE_DISTANCE_BINARY("surface_distance_binary"),
+    SURFACE_DISTANCE_BINS("surface_distance_bins"),
+    SEPARATE_SURFACE_WINDOWS("separate_surface_windows"),
+    SEPARATE_SURFACE_WINDOWS_POS("separate_surface_windows_POS"),
+    CONJUNCTION_SURFACE_WINDOWS("conjunction_surface_windows"),
+    CONJUNCTION_SURFACE_WINDOWS_POS("conjunction_surface_windows_POS"),
+    ARG_WORDS("arg_words"),
+    ARG_POS("arg_POS"),
+    ADJACENT_WORDS("adjacent_words"),
+    ENTITIES_BETWEEN_ARGS("entities_between_args"),
+    ENTITY_COUNTS("entity_counts"),
+    ENTITY_COUNTS_BINS("entity_counts_bins"),
+    ENTITY_COUNTS_BINARY("entity_counts_binary"),
+    SURFACE_PATH("surface_path"),
+    SURFACE_PATH_POS("surface_path_POS"),
+    SURFACE_PATH_SELECTIVE("surface_path_selective"),
+    SPAN_WORDS_UNIGRAMS("span_words_unigrams"),
+    SPAN_WORDS_BIGRAMS("span_words_bigrams"),
+    SPAN_WORDS_TRIGGER("span_words_trigger"),
+    ARG2_NUMBER("arg2_number"),
+    ARG2_DATE("arg2_date"),
+    ARG_GENDER("arg_gender"),
+    DEPENDENCY_PATH("dependency_path"),
+    DEPENDENCY_PATH_LOWLEVEL("dependency_path_lowlevel"),
+    DIFFERENT_SENTENCES("different_sentences"),
+    DEPENDENCY_PATHS_TO_VERB("dependency_paths_to_verb"),
+    DEPENDENCY_PATH_STUBS_TO_VERB("dependency_path_stubs_to_verb"),
+    VERB_IN_DEPENDENCY_PATH("verb_in_dependency_path"),
+    DEPENDENCY_PATH_WORDS("dependency_path_words"),
+    DEPENDENCY_PATH_POS_UNIGRAMS("dependency_path_POS_unigrams"),
+    DEPENDENCY_PATH_WORD_N_GRAMS("dependency_path_word_n_grams"),
+    DEPENDENCY_PATH_POS_N_GRAMS("dependency_path_POS_n_grams"),
+    DEPENDENCY_PATH_EDGE_N_GRAMS("dependency_path_edge_n_grams"),
+    DEPENDENCY_PATH_EDGE_LOWLEVEL_N_GRAMS("dependency_path_edge_lowlevel_n_grams"),
+    DEPENDENCY_PATH_NODE_EDGE_NODE_GRAMS("dependency_path_node-edge-node-grams"),
+    DEPENDENCY_PATH_NODE_EDGE_NODE_GRAMS_LOWLEVEL("dependency_path_node-edge-node-grams_lowlevel"),
+    DEPENDENCY_PATH_EDGE_NODE_EDGE_GRAMS("dependency_path_edge-node-edge-grams"),
+    DEPENDENCY_PATH_EDGE_NODE_EDGE_GRAMS_LOWLEVEL("dependency_path_edge-node-edge-grams_lowlevel"),
+    DEPENDENCY_PATH_DIRECTED_BIGRAMS("dependency_path_directed_bigrams"),
+    DEPENDENCY_PATH_EDGE_UNIGRAMS("dependency_path_edge_unigrams"),
+    DEPENDENCY_PATH_LENGTH("dependency_path_length"),
+    DEPENDENCY_PATH_LENGTH_BINARY("dependency_path_length_binary"),
+    DEPENDENCY_PATH_TRIGGER("dependency_path_trigger");
+
+    final String name;
+
+    FeatureType(String name) { this.name = name; }
+
+    long bit() { return 1L << ordinal(); }
+  }
+
+  /** Bit mask with the dependency features */
+  private static final long DEPENDENCY_FEATURES_MASK;
+
+  static {
+    assert(FeatureType.values().length <= 64);
+    long mask = 0;
+    for(String name: dependencyFeatures) {
+      for(FeatureType type: FeatureType.values()) {
+        if(type.name.equals(name)) mask |= type.bit();
+      }
+    }
+    DEPENDENCY_FEATURES_MASK = mask;
+  }
+
   /** Which dependencies to use for feature extraction */
   protected DEPENDENCY_TYPE dependencyType;
 
   protected List<String> featureList;
 
+  /**
+   * featureList compiled into a bit mask of FeatureType; computed in the constructor, and again after deserialization.
+   * Volatile, so the threads that share this factory never see it unset.
+   */
+  private transient volatile long featureListMask;
+
   /** If true, it does not create any lexicalized features from the first argument (needed for KBP) */
   protected boolean doNotLexicalizeFirstArg;
 
   public FeatureFactory(String... featureList) {
     this.doNotLexicalizeFirstArg = false;
     this.featureList = Collections.unmodifiableList(Arrays.asList(featureList));
+    this.featureListMask = compileFeatureTypes(this.featureList);
     this.dependencyType = DEPENDENCY_TYPE.COLLAPSED_CCPROCESSED;
   }
 
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    featureListMask = compileFeatureTypes(featureList);
+  }
+
   public void setDoNotLexicalizeFirstArgument(boolean doNotLexicalizeFirstArg) {
     this.doNotLexicalizeFirstArg = doNotLexicalizeFirstArg;
   }
 
   public Datum<String,String> createDatum(RelationMention rel) {
+    return createDatum(rel, (SentenceFeatureContext) null);
+  }
+
+  /**
+   * Same as above, sharing the syntactic information of the sentence with the other mentions in it
+   * @param context Created by createContext for the sentence of rel; if null, or for another sentence, a new one is built
+   */
+  public Datum<String,String> createDatum(RelationMention rel, SentenceFeatureContext context) {
     if (rel.getArgs().size() != 2) {
       return null;
     }
 
     Collection<String> features = new ArrayList<String>();
-    addFeatures(features, rel, featureList);
+    addFeatures(features, rel, featureList, context);
     String labelString = rel.getType();
     return new BasicDatum<String, String>(features, labelString);
   }
@@ -114,9 +213,15 @@ public class FeatureFactory implements Serializable {
 
   // BEGIN GRAFT
   public boolean addFeatures(Collection<String> features, RelationMention rel, List<String> types) {
+    return addFeatures(features, rel, types, null);
+  }
+
+  public boolean addFeatures(Collection<String> features, RelationMention rel, List<String> types, SentenceFeatureContext context) {
+    long start = Metrics.start();
     Collection<String> rawFeatures = new ArrayList<String>();
-    boolean retCode = addFeaturesRaw(rawFeatures, rel, types);
+    boolean retCode = addFeaturesRaw(rawFeatures, rel, types, context);
     postProcessFeatures(rawFeatures, features);
+    Metrics.stop("features.extraction", start);
     return retCode;
   }
 
@@ -141,8 +246,9 @@ public class FeatureFactory implements Serializable {
    * @param features Stores all features
    * @param rel The mention
    * @param types Comma separated list of feature classes to use
+   * @param context The context of the sentence of rel; null to build one here
    */
-  private boolean addFeaturesRaw(Collection<String> features, RelationMention rel, List<String> types) {
+  private boolean addFeaturesRaw(Collection<String> features, RelationMention rel, List<String> types, SentenceFeatureContext context) {
     // sanity checks: must have two arguments, and each must be an entity mention
     if(rel.getArgs().size() != 2) return false;
     if(! (rel.getArg(0) instanceof EntityMention)) return false;
@@ -152,74 +258,56 @@ public class FeatureFactory implements Serializable {
     EntityMention arg1 = (EntityMention) rel.getArg(1);
     String arg0Type = findTrueEntityType(arg0.getType(), rel.getType());
 
-  	Tree tree = rel.getSentence().get(TreeAnnotation.class);
-  	if(tree == null){
-  	  throw new RuntimeException("ERROR: Relation extraction requires full syntactic analysis!");
-  	}
-  	List<Tree> leaves = tree.getLeaves();
-  	List<CoreLabel> tokens = rel.getSentence().get(TokensAnnotation.class);
+  	// the feature types are compiled into a bit mask; unknown types are reported here
+  	long mask = featureMask(types);
 
-  	// Checklist keeps track of which features have been handled by an if clause
-  	// Should be empty after all the clauses have been gone through.
-  	List<String> checklist = new ArrayList<String>(types);
+  	// leaves, POS tags, tree paths, etc. are shared by all mentions in this sentence
+  	if (context == null || ! context.matches(rel.getSentence(), dependencyType))
+  	  context = createContext(rel.getSentence());
+  	List<Tree> leaves = context.leaves;
+  	List<CoreLabel> tokens = context.tokens;
 
   	// arg_type: concatenation of the entity types of the args, e.g.
   	// "arg1type=Loc_and_arg2type=Org"
   	// arg_subtype: similar, for entity subtypes
-  	if (usingFeature(types, checklist, "arg_type")) {
+  	if (usingFeature(mask, FeatureType.ARG_TYPE)) {
   		features.add("arg1type=" + arg0Type + "_and_arg2type=" + arg1.getType());
   	}
-  	if (usingFeature(types,checklist,"arg_subtype")) {
+  	if (usingFeature(mask, FeatureType.ARG_SUBTYPE)) {
   		features.add("arg1subtype="+arg0.getSubType()+"_and_arg2subtype="+arg1.getSubType());
   	}
 
   	// arg_order: which arg comes first in the sentence
-  	if (usingFeature(types, checklist, "arg_order")) {
+  	if (usingFeature(mask, FeatureType.ARG_ORDER)) {
   		if (arg0.getSyntacticHeadTokenPosition() < arg1.getSyntacticHeadTokenPosition())
   			features.add("arg1BeforeArg2");
   	}
   	// same_head: whether the two args share the same syntactic head token
-  	if (usingFeature(types, checklist, "same_head")) {
+  	if (usingFeature(mask, FeatureType.SAME_HEAD)) {
   	  if (arg0.getSyntacticHeadTokenPosition() == arg1.getSyntacticHeadTokenPosition())
   	    features.add("arguments_have_same_head");
   	}
 
   	// full_tree_path: Path from one arg to the other in the phrase structure tree,
   	// e.g., NNP -> PP -> NN <- NNP
-  	if (usingFeature(types, checklist, "full_tree_path")) {
+  	if (usingFeature(mask, FeatureType.FULL_TREE_PATH)) {
   	  //System.err.println("ARG0: " + arg0);
   	  //System.err.println("ARG0 HEAD: " + arg0.getSyntacticHeadTokenPosition());
   	  //System.err.println("TREE: " + tree);
   	  //System.err.println("SENTENCE: " + sentToString(arg0.getSentence()));
-  		Tree arg0preterm = tree.getLeaves().get(arg0.getSyntacticHeadTokenPosition()).parent(tree);
-  		Tree arg1preterm = tree.getLeaves().get(arg1.getSyntacticHeadTokenPosition()).parent(tree);
-  		Tree join = tree.joinNode(arg0preterm, arg1preterm);
-  		StringBuilder pathStringBuilder = new StringBuilder();
-  		List<Tree> pathUp = join.dominationPath(arg0preterm);
-  		Collections.reverse(pathUp);
-  		for (Tree node : pathUp) {
-  			if (node != join) {
-  				pathStringBuilder.append(node.label().value() + " <- ");
-  			}
-  		}
-
-  		for (Tree node : join.dominationPath(arg1preterm)) {
-  			pathStringBuilder.append(((node == join) ? "" : " -> ") + node.label().value());
-  		}
-  		String pathString = pathStringBuilder.toString();
+  		String pathString = context.treePath(arg0.getSyntacticHeadTokenPosition(), arg1.getSyntacticHeadTokenPosition());
   		features.add(pathString);
 
   	}
 
-  	int pathLength = tree.pathNodeToNode(tree.getLeaves().get(arg0.getSyntacticHeadTokenPosition()),
-  			tree.getLeaves().get(arg1.getSyntacticHeadTokenPosition())).size();
   	// path_length: Length of the path in the phrase structure parse tree, integer-valued feature
-  	if (usingFeature(types, checklist, "path_length")) {
+  	if (usingFeature(mask, FeatureType.PATH_LENGTH)) {
   		// features.setCount("path_length", pathLength);
   	  throw new RuntimeException("ERROR: The path_length feature is not supported!");
   	}
   	// path_length_binary: Length of the path in the phrase structure parse tree, binary features
-  	if (usingFeature(types, checklist, "path_length_binary")) {
+  	if (usingFeature(mask, FeatureType.PATH_LENGTH_BINARY)) {
+  	  int pathLength = context.treePathLength(arg0.getSyntacticHeadTokenPosition(), arg1.getSyntacticHeadTokenPosition());
   		features.add("path_length_" + pathLength);
   	}
 
@@ -231,7 +319,7 @@ public class FeatureFactory implements Serializable {
   	 * TODO: restrict this feature so that it only looks for
   	 * entities of the same type?
   	 * */
-  	if (usingFeature(types, checklist, "entity_order")) {
+  	if (usingFeature(mask, FeatureType.ENTITY_ORDER)) {
   		String feature;
   		for (int i = 0; i < rel.getArgs().size(); i++) {
   		  // We already checked the class of the args at the beginning of the method
@@ -251,16 +339,16 @@ public class FeatureFactory implements Serializable {
 
   	// surface_distance: Number of tokens in the sentence between the two words, integer-valued feature
   	int surfaceDistance = Math.abs(arg0.getSyntacticHeadTokenPosition() - arg1.getSyntacticHeadTokenPosition());
-  	if (usingFeature(types, checklist, "surface_distance")) {
+  	if (usingFeature(mask, FeatureType.SURFACE_DISTANCE)) {
   	  // features.setCount("surface_distance", surfaceDistance);
   	  throw new RuntimeException("ERROR: The feature surface_distance is not supported!");
   	}
   	// surface_distance_binary: Number of tokens in the sentence between the two words, binary features
-  	if (usingFeature(types, checklist, "surface_distance_binary")) {
+  	if (usingFeature(mask, FeatureType.SURFACE_DISTANCE_BINARY)) {
   		features.add("surface_distance_" + surfaceDistance);
   	}
   	// surface_distance_bins: number of tokens between the two args, binned to several intervals
-  	if(usingFeature(types, checklist, "surface_distance_bins")) {
+  	if(usingFeature(mask, FeatureType.SURFACE_DISTANCE_BINS)) {
   	  if(surfaceDistance < 4){
   	    features.add("surface_distance_bin" + surfaceDistance);
   	  } else if(surfaceDistance < 6){
@@ -297,45 +385,45 @@ public class FeatureFactory implements Serializable {
   			for (int winnum = 1; winnum <= windowSize; winnum++) {
   				int windex = ind - winnum;
   				if (windex > 0) {
-  					leftWindow[argn] = leaves.get(windex).label().value() + "_" + leftWindow[argn];
-  					leftWindowPOS[argn] = leaves.get(windex).parent(tree).label().value() + "_" + leftWindowPOS[argn];
+  					leftWindow[argn] = context.words[windex] + "_" + leftWindow[argn];
+  					leftWindowPOS[argn] = context.posTags[windex] + "_" + leftWindowPOS[argn];
   				} else {
   					leftWindow[argn] = "NULL_" + leftWindow[argn];
   					leftWindowPOS[argn] = "NULL_" + leftWindowPOS[argn];
   				}
   				windex = ind + winnum;
   				if (windex < leaves.size()) {
-  					rightWindow[argn] = rightWindow[argn] + "_" + leaves.get(windex).label().value();
-  					rightWindowPOS[argn] = rightWindowPOS[argn] + "_" + leaves.get(windex).parent(tree).label().value();
+  					rightWindow[argn] = rightWindow[argn] + "_" + context.words[windex];
+  					rightWindowPOS[argn] = rightWindowPOS[argn] + "_" + context.posTags[windex];
   				} else {
   					rightWindow[argn] = rightWindow[argn] + "_NULL";
   					rightWindowPOS[argn] = rightWindowPOS[argn] + "_NULL";
   				}
   			}
-  			if (usingFeature(types, checklist, "separate_surface_windows")) {
+  			if (usingFeature(mask, FeatureType.SEPARATE_SURFACE_WINDOWS)) {
   				features.add("left_window_"+windowSize+"_arg_" + argn + ": " + leftWindow[argn]);
   				features.add("left_window_"+windowSize+"_POS_arg_" + argn + ": " + leftWindowPOS[argn]);
   			}
-  			if (usingFeature(types, checklist, "separate_surface_windows_POS")) {
+  			if (usingFeature(mask, FeatureType.SEPARATE_SURFACE_WINDOWS_POS)) {
   				features.add("right_window_"+windowSize+"_arg_" + argn + ": " + rightWindow[argn]);
   				features.add("right_window_"+windowSize+"_POS_arg_" + argn + ": " + rightWindowPOS[argn]);
   			}
 
   		}
-  		if (usingFeature(types, checklist, "conjunction_surface_windows")) {
+  		if (usingFeature(mask, FeatureType.CONJUNCTION_SURFACE_WINDOWS)) {
   			features.add("left_windows_"+windowSize+": " + leftWindow[0] + "__" + leftWindow[1]);
   			features.add("right_windows_"+windowSize+": " + rightWindow[0] + "__" + rightWindow[1]);
   		}
-  		if (usingFeature(types, checklist, "conjunction_surface_windows_POS")) {
+  		if (usingFeature(mask, FeatureType.CONJUNCTION_SURFACE_WINDOWS_POS)) {
   			features.add("left_windows_"+windowSize+"_POS: " + leftWindowPOS[0] + "__" + leftWindowPOS[1]);
   			features.add("right_windows_"+windowSize+"_POS: " + rightWindowPOS[0] + "__" + rightWindowPOS[1]);
   		}
   	}
 
   	// arg_words:  The actual arg tokens as separate features, and concatenated
-  	String word0 = leaves.get(arg0.getSyntacticHeadTokenPosition()).label().value();
-  	String word1 = leaves.get(arg1.getSyntacticHeadTokenPosition()).label().value();
-  	if (usingFeature(types, checklist, "arg_words")) {
+  	String word0 = context.words[arg0.getSyntacticHeadTokenPosition()];
+  	String word1 = context.words[arg1.getSyntacticHeadTokenPosition()];
+  	if (usingFeature(mask, FeatureType.ARG_WORDS)) {
   	  if(doNotLexicalizeFirstArg == false)
   	    features.add("word_arg0: " + word0);
   		features.add("word_arg1: " + word1);
@@ -344,16 +432,16 @@ public class FeatureFactory implements Serializable {
   	}
 
   	// arg_POS:  POS tags of the args, as separate features and concatenated
-  	String pos0 = leaves.get(arg0.getSyntacticHeadTokenPosition()).parent(tree).label().value();
-  	String pos1 = leaves.get(arg1.getSyntacticHeadTokenPosition()).parent(tree).label().value();
-  	if (usingFeature(types, checklist, "arg_POS")) {
+  	String pos0 = context.posTags[arg0.getSyntacticHeadTokenPosition()];
+  	String pos1 = context.posTags[arg1.getSyntacticHeadTokenPosition()];
+  	if (usingFeature(mask, FeatureType.ARG_POS)) {
   		features.add("POS_arg0: " + pos0);
   		features.add("POS_arg1: " + pos1);
   		features.add("POSs: " + pos0 + "__" + pos1);
   	}
 
   	// adjacent_words: words immediately to the left and right of the args
-  	if(usingFeature(types, checklist, "adjacent_words")){
+  	if(usingFeature(mask, FeatureType.ADJACENT_WORDS)){
   	  for(int i = 0; i < rel.getArgs().size(); i ++){
   	    Span s = ((EntityMention) rel.getArg(i)).getHead();
   	    if(s.start() > 0){
@@ -370,7 +458,7 @@ public class FeatureFactory implements Serializable {
   	// entities_between_args:  binary feature for each type specifying whether there is an entity of that type in the sentence
   	// between the two args.
   	// e.g. "entity_between_args: Loc" means there is at least one entity of type Loc between the two args
-  	if (usingFeature(types, checklist, "entities_between_args")) {
+  	if (usingFeature(mask, FeatureType.ENTITIES_BETWEEN_ARGS)) {
   		for (EntityMention arg : rel.getSentence().get(MachineReadingAnnotations.EntityMentionsAnnotation.class)) {
   			if ((arg.getSyntacticHeadTokenPosition() > arg0.getSyntacticHeadTokenPosition() && arg.getSyntacticHeadTokenPosition() < arg1.getSyntacticHeadTokenPosition())
   					|| (arg.getSyntacticHeadTokenPosition() > arg1.getSyntacticHeadTokenPosition() && arg.getSyntacticHeadTokenPosition() < arg0.getSyntacticHeadTokenPosition())) {
@@ -381,15 +469,13 @@ public class FeatureFactory implements Serializable {
 
   	// entity_counts: For each type, the total number of entities of that type in the sentence (integer-valued feature)
   	// entity_counts_binary: Counts of entity types as binary features.
-  	Counter<String> typeCounts = new ClassicCounter<String>();
-  	for (EntityMention arg : rel.getSentence().get(MachineReadingAnnotations.EntityMentionsAnnotation.class))
-  	  typeCounts.incrementCount(arg.getType());
+  	Counter<String> typeCounts = context.entityTypeCounts;
   	for (String type : typeCounts.keySet()) {
-  	  if (usingFeature(types,checklist,"entity_counts")) {
+  	  if (usingFeature(mask, FeatureType.ENTITY_COUNTS)) {
   	    // features.add("entity_counts_"+type,typeCounts.getCount(type));
   	    throw new RuntimeException("ERROR: The feature entity_counts is not supported!");
   	  }
-  	  if(usingFeature(types, checklist, "entity_counts_bins")){
+  	  if(usingFeature(mask, FeatureType.ENTITY_COUNTS_BINS)){
   	    double typeCount = typeCounts.getCount(type);
   	    if(typeCount < 4){
           features.add("entity_counts_bin" + (int) typeCount);
@@ -401,7 +487,7 @@ public class FeatureFactory implements Serializable {
           features.add("entity_counts_bin_ge10");
         }
   	  }
-  	  if (usingFeature(types,checklist,"entity_counts_binary"))
+  	  if (usingFeature(mask, FeatureType.ENTITY_COUNTS_BINARY))
   	    features.add("entity_counts_"+type+": "+typeCounts.getCount(type));
   	}
 
@@ -412,22 +498,22 @@ public class FeatureFactory implements Serializable {
   	StringBuilder sbPOS = new StringBuilder();
   	StringBuilder sbSelective = new StringBuilder();
   	for (int i = Math.min(arg0.getSyntacticHeadTokenPosition(), arg1.getSyntacticHeadTokenPosition()) + 1; i < Math.max(arg0.getSyntacticHeadTokenPosition(), arg1.getSyntacticHeadTokenPosition()); i++) {
-  		String word = leaves.get(i).label().value();
+  		String word = context.words[i];
   		sb.append(word + "_");
-  		String pos = leaves.get(i).parent(tree).label().value();
+  		String pos = context.posTags[i];
   		sbPOS.append(pos + "_");
   		if (pos.equals("NN") || pos.equals("NNS") || pos.equals("NNP") || pos.equals("NNPS") || pos.equals("VB")
   				|| pos.equals("VBN") || pos.equals("VBD") || pos.equals("VBG") || pos.equals("VBP") || pos.equals("VBZ")) {
   			sbSelective.append(word + "_");
   		}
   	}
-  	if (usingFeature(types, checklist, "surface_path")) {
+  	if (usingFeature(mask, FeatureType.SURFACE_PATH)) {
   		features.add("surface_path: " + sb);
   	}
-  	if (usingFeature(types, checklist, "surface_path_POS")) {
+  	if (usingFeature(mask, FeatureType.SURFACE_PATH_POS)) {
   		features.add("surface_path_POS: " + sbPOS);
   	}
-  	if (usingFeature(types, checklist, "surface_path_selective")) {
+  	if (usingFeature(mask, FeatureType.SURFACE_PATH_SELECTIVE)) {
   		features.add("surface_path_selective: " + sbSelective);
   	}
 
@@ -441,20 +527,20 @@ public class FeatureFactory implements Serializable {
     }
 
   	// span_words_unigrams: words that appear in between the two arguments
-    if (usingFeature(types, checklist, "span_words_unigrams")) {
+    if (usingFeature(mask, FeatureType.SPAN_WORDS_UNIGRAMS)) {
       for(int i = swStart; i < swEnd; i ++){
         features.add("span_word:" + tokens.get(i).word());
       }
   	}
 
     // span_words_bigrams: bigrams of words that appear in between the two arguments
-    if (usingFeature(types, checklist, "span_words_bigrams")) {
+    if (usingFeature(mask, FeatureType.SPAN_WORDS_BIGRAMS)) {
       for(int i = swStart; i < swEnd - 1; i ++){
         features.add("span_bigram:" + tokens.get(i).word() + "-" + tokens.get(i + 1).word());
       }
     }
 
-  	if (usingFeature(types, checklist, "span_words_trigger")) {
+  	if (usingFeature(mask, FeatureType.SPAN_WORDS_TRIGGER)) {
   	  for (int i = swStart; i < swEnd; i++) {
   	    String trigger = tokens.get(i).get(TriggerAnnotation.class);
   	    if (trigger != null && trigger.startsWith("B-"))
@@ -462,7 +548,7 @@ public class FeatureFactory implements Serializable {
   	  }
   	}
 
-    if (usingFeature(types, checklist, "arg2_number")) {
+    if (usingFeature(mask, FeatureType.ARG2_NUMBER)) {
       if (arg1.getType().equals("NUMBER")){
         try {
           int value = Integer.parseInt(arg1.getValue());
@@ -481,7 +567,7 @@ public class FeatureFactory implements Serializable {
       }
     }
 
-    if (usingFeature(types, checklist, "arg2_date")) {
+    if (usingFeature(mask, FeatureType.ARG2_DATE)) {
       if (arg1.getType().equals("DATE")){
         try {
           int value = Integer.parseInt(arg1.getValue());
@@ -504,7 +590,7 @@ public class FeatureFactory implements Serializable {
       }
     }
 
-    if (usingFeature(types, checklist, "arg_gender")) {
+    if (usingFeature(mask, FeatureType.ARG_GENDER)) {
       boolean arg0Male = false, arg0Female = false;
       boolean arg1Male = false, arg1Female = false;
       System.out.println("Adding gender annotations!");
@@ -535,14 +621,10 @@ public class FeatureFactory implements Serializable {
         features.add("arg_different_gender");
     }
 
-    List<String> tempDepFeatures = new ArrayList<String>(dependencyFeatures);
-    if (tempDepFeatures.removeAll(types) || types.contains("all")) { // dependencyFeatures contains at least one of the features listed in types
-      addDependencyPathFeatures(features, rel, arg0, arg1, types, checklist);
+    if ((mask & DEPENDENCY_FEATURES_MASK) != 0) { // at least one of the dependency features is used
+      addDependencyPathFeatures(features, rel, arg0, arg1, mask, context);
     }
 
-  	if (!checklist.isEmpty() && !checklist.contains("all"))
-  	  throw new AssertionError("FeatureFactory: features not handled: "+checklist);
-
     return true;
   }
 
@@ -584,9 +666,9 @@ public class FeatureFactory implements Serializable {
     return os.toString();
   }
 
+  /** Fetches the dependency graph of type dependencyType from the sentence of this mention */
   @SuppressWarnings("deprecation") // needed for MachineReadingAnnotations.DependencyAnnotation
-  protected void addDependencyPathFeatures(
-      Collection<String> features, RelationMention rel, EntityMention arg0, EntityMention arg1, List<String> types, List<String> checklist) {
+  private SemanticGraph findDependencyGraph(RelationMention rel) {
     SemanticGraph graph = null;
     if(Constants.USE_OLD_CACHING) {
       // this works just for the cached sentences of KBP 2010 that do not come from the web
@@ -602,6 +684,13 @@ public class FeatureFactory implements Serializable {
       else
         throw new RuntimeException("ERROR: unknown dependency type: " + dependencyType);
     }
+    return graph;
+  }
+
+  protected void addDependencyPathFeatures(
+      Collection<String> features, RelationMention rel, EntityMention arg0, EntityMention arg1, long mask, SentenceFeatureContext context) {
+    if(! context.hasDependencyGraph()) context.setDependencyGraph(findDependencyGraph(rel));
+    SemanticGraph graph = context.dependencyGraph();
   	if (graph == null){
   	  logger.severe("Cannot find dependency graph for dependencyType " + dependencyType + " in the sentence below.");
       logger.severe("Current sentence from index " + rel.getSentence().get(SourceIndexAnnotation.class) + " is: " + Utils.sentenceToString(rel.getSentence(), true, true, true, true, true, true, false));
@@ -613,24 +702,20 @@ public class FeatureFactory implements Serializable {
   	IndexedWord node0 = graph.getNodeByIndexSafe(arg0.getSyntacticHeadTokenPosition() + 1);
   	IndexedWord node1 = graph.getNodeByIndexSafe(arg1.getSyntacticHeadTokenPosition() + 1);
   	if (node0 == null) {
-  	  checklist.removeAll(dependencyFeatures);
   		return;
   	}
   	if (node1 == null) {
-  	  checklist.removeAll(dependencyFeatures);
   		return;
   	}
 
-  	List<SemanticGraphEdge> edgePath = graph.getShortestUndirectedPathEdges(node0, node1);
-  	List<IndexedWord> pathNodes = graph.getShortestUndirectedPathNodes(node0, node1);
+  	List<SemanticGraphEdge> edgePath = context.shortestPathEdges(node0, node1);
+  	List<IndexedWord> pathNodes = context.shortestPathNodes(node0, node1);
 
   	if (edgePath == null) {
-  	  checklist.removeAll(dependencyFeatures);
   		return;
   	}
 
   	if (pathNodes == null || pathNodes.size() <= 1) { // arguments have the same head.
-  	  checklist.removeAll(dependencyFeatures);
   		return;
   	}
 
@@ -638,15 +723,15 @@ public class FeatureFactory implements Serializable {
   	// e.g. "subj->  <-prep_in  <-mod"
   	// dependency_path_lowlevel: Same but with finer-grained syntactic relations
   	// e.g. "nsubj->  <-prep_in  <-nn"
-  	if (usingFeature(types, checklist, "dependency_path")) {
+  	if (usingFeature(mask, FeatureType.DEPENDENCY_PATH)) {
   		features.add(generalizedDependencyPath(edgePath, node0));
   	}
   	String pathDescription = dependencyPath(edgePath, node0);
-    if (usingFeature(types, checklist, "dependency_path_lowlevel")) {
+    if (usingFeature(mask, FeatureType.DEPENDENCY_PATH_LOWLEVEL)) {
   		features.add(pathDescription);
   	}
 
-  	if (usingFeature(types, checklist, "different_sentences") && pathDescription.contains(CoreMapCombiner.FAKE_ROOT_NAME)) {
+  	if (usingFeature(mask, FeatureType.DIFFERENT_SENTENCES) && pathDescription.contains(CoreMapCombiner.FAKE_ROOT_NAME)) {
       features.add("different_sentences");
     }
 
@@ -657,9 +742,9 @@ public class FeatureFactory implements Serializable {
   	for(int i = arg0.getExtentTokenStart(); i < arg0.getExtentTokenEnd(); i ++) indecesToSkip.add(i + 1);
     for(int i = arg1.getExtentTokenStart(); i < arg1.getExtentTokenEnd(); i ++) indecesToSkip.add(i + 1);
   	for (IndexedWord node : pathNodes){
-      pathLemmas.add(Morphology.lemmaStatic(node.value(), node.tag(), true));
+      pathLemmas.add(context.lemma(node));
   	  if(! indecesToSkip.contains(node.index()))
-  	    noArgPathLemmas.add(Morphology.lemmaStatic(node.value(), node.tag(), true));
+  	    noArgPathLemmas.add(context.lemma(node));
   	}
 
 
@@ -674,15 +759,15 @@ public class FeatureFactory implements Serializable {
   	// "be  <-prep_in  <-mod"
   	// "subj->  be  <-prep_in  <-mod"
   	// (Higher level relations used as opposed to "lowlevel" finer grained relations)
-  	if (usingFeature(types, checklist, "dependency_paths_to_verb")) {
+  	if (usingFeature(mask, FeatureType.DEPENDENCY_PATHS_TO_VERB)) {
   		for (IndexedWord node : pathNodes) {
   			if (node.tag().contains("VB")) {
   				if (node.equals(node0) || node.equals(node1)) {
   					continue;
   				}
-  				String lemma = Morphology.lemmaStatic(node.value(), node.tag(), true);
-  				String node1Path = generalizedDependencyPath(graph.getShortestUndirectedPathEdges(node, node1), node);
-  				String node0Path = generalizedDependencyPath(graph.getShortestUndirectedPathEdges(node0, node), node0);
+  				String lemma = context.lemma(node);
+  				String node1Path = generalizedDependencyPath(context.shortestPathEdges(node, node1), node);
+  				String node0Path = generalizedDependencyPath(context.shortestPathEdges(node0, node), node0);
   				features.add(node0Path + " " + lemma);
   				features.add(lemma + " " + node1Path);
   				features.add(node0Path + " " + lemma + " " + node1Path);
@@ -697,7 +782,7 @@ public class FeatureFactory implements Serializable {
   	// "stub: subj->  be"
   	// "stub: be  <-mod"
   	// "stub: subj->  be  <-mod"
-  	if (usingFeature(types, checklist, "dependency_path_stubs_to_verb")) {
+  	if (usingFeature(mask, FeatureType.DEPENDENCY_PATH_STUBS_TO_VERB)) {
   		for (IndexedWord node : pathNodes) {
   			SemanticGraphEdge edge0 = edgePath.get(0);
   			SemanticGraphEdge edge1 = edgePath.get(edgePath.size() - 1);
@@ -705,7 +790,7 @@ public class FeatureFactory implements Serializable {
   				if (node.equals(node0) || node.equals(node1)) {
   					continue;
   				}
-  				String lemma = Morphology.lemmaStatic(node.value(), node.tag(), true);
+  				String lemma = context.lemma(node);
   				String edge0str, edge1str;
   				if (node0.equals(edge0.getGovernor())) {
   					edge0str = "<-" + generalizeRelation(edge0.getRelation());
@@ -724,14 +809,14 @@ public class FeatureFactory implements Serializable {
   		}
   	}
 
-  	if (usingFeature(types, checklist, "verb_in_dependency_path")) {
+  	if (usingFeature(mask, FeatureType.VERB_IN_DEPENDENCY_PATH)) {
   		for (IndexedWord node : pathNodes) {
   			if (node.tag().contains("VB")) {
   				if (node.equals(node0) || node.equals(node1)) {
   					continue;
   				}
-  				SemanticGraphEdge rightEdge = graph.getShortestUndirectedPathEdges(node, node1).get(0);
-  				SemanticGraphEdge leftEdge = graph.getShortestUndirectedPathEdges(node, node0).get(0);
+  				SemanticGraphEdge rightEdge = context.shortestPathEdges(node, node1).get(0);
+  				SemanticGraphEdge leftEdge = context.shortestPathEdges(node, node0).get(0);
   				String rightRelation, leftRelation;
   				boolean governsLeft = false, governsRight = false;
   				if (node.equals(rightEdge.getGovernor())) {
@@ -746,7 +831,7 @@ public class FeatureFactory implements Serializable {
   				} else {
   					leftRelation = " <-" + generalizeRelation(leftEdge.getRelation());
   				}
-  				String lemma = Morphology.lemmaStatic(node.value(), node.tag(), true);
+  				String lemma = context.lemma(node);
 
   				if (governsLeft || governsRight) {
   				}
@@ -767,11 +852,11 @@ public class FeatureFactory implements Serializable {
   	// FEATURES FROM BJORNE ET AL., BIONLP'09
   	// dependency_path_words: generates a feature for each word in the dependency path (lemmatized)
   	// dependency_path_POS_unigrams: generates a feature for the POS tag of each word in the dependency path
-  	if (usingFeature(types, checklist, "dependency_path_words")) {
+  	if (usingFeature(mask, FeatureType.DEPENDENCY_PATH_WORDS)) {
   	  for (String lemma : noArgPathLemmas)
   	    features.add("word_in_dependency_path:" + lemma);
   	}
-  	if (usingFeature(types, checklist, "dependency_path_POS_unigrams")) {
+  	if (usingFeature(mask, FeatureType.DEPENDENCY_PATH_POS_UNIGRAMS)) {
   	  for (IndexedWord node : pathNodes)
   	    if (!node.equals(node0) && !node.equals(node1))
   	      features.add("POS_in_dependency_path: "+node.tag());
@@ -792,9 +877,9 @@ public class FeatureFactory implements Serializable {
   	      sbPOS.append(pathNodes.get(elt).tag());
   	      sbPOS.append("_");
   	    }
-  	    if (usingFeature(types, checklist, "dependency_path_word_n_grams"))
+  	    if (usingFeature(mask, FeatureType.DEPENDENCY_PATH_WORD_N_GRAMS))
           features.add("dependency_path_"+n+"-gram: "+sb);
-        if (usingFeature(types,checklist, "dependency_path_POS_n_grams"))
+        if (usingFeature(mask, FeatureType.DEPENDENCY_PATH_POS_N_GRAMS))
           features.add("dependency_path_POS_"+n+"-gram: "+sbPOS);
   	  }
   	}
@@ -819,8 +904,8 @@ public class FeatureFactory implements Serializable {
   	// with its direction in the path and whether it's at the left end, right end, or interior of the path.
   	// e.g. "prep_at ->  - leftmost"
   	for (int edge = 0; edge < edgePath.size(); edge++) {
-  	  if (usingFeature(types, checklist, "dependency_path_edge_n_grams") ||
-  	      usingFeature(types, checklist, "dependency_path_edge_lowlevel_n_grams")) {
+  	  if (usingFeature(mask, FeatureType.DEPENDENCY_PATH_EDGE_N_GRAMS) ||
+  	      usingFeature(mask, FeatureType.DEPENDENCY_PATH_EDGE_LOWLEVEL_N_GRAMS)) {
   	    for (int n = 2; n <= 4; n++) {
   	      if (edge+n > edgePath.size())
   	        break;
@@ -833,44 +918,44 @@ public class FeatureFactory implements Serializable {
   	        sbRelsLo.append(gr);
   	        sbRelsLo.append("_");
   	      }
-  	      if (usingFeature(types, checklist, "dependency_path_edge_n_grams"))
+  	      if (usingFeature(mask, FeatureType.DEPENDENCY_PATH_EDGE_N_GRAMS))
   	        features.add("dependency_path_edge_"+n+"-gram: "+sbRelsHi);
-  	      if (usingFeature(types, checklist, "dependency_path_edge_lowlevel_n_grams"))
+  	      if (usingFeature(mask, FeatureType.DEPENDENCY_PATH_EDGE_LOWLEVEL_N_GRAMS))
   	        features.add("dependency_path_edge_lowlevel_"+n+"-gram: "+sbRelsLo);
   	    }
   	  }
-  	  if (usingFeature(types, checklist, "dependency_path_node-edge-node-grams"))
+  	  if (usingFeature(mask, FeatureType.DEPENDENCY_PATH_NODE_EDGE_NODE_GRAMS))
   	    features.add(
   	        "dependency_path_node-edge-node-gram: "+
   	        pathLemmas.get(edge)+" -- "+
   	        generalizeRelation(edgePath.get(edge).getRelation())+" -- "+
   	        pathLemmas.get(edge+1));
-  	  if (usingFeature(types, checklist, "dependency_path_node-edge-node-grams_lowlevel"))
+  	  if (usingFeature(mask, FeatureType.DEPENDENCY_PATH_NODE_EDGE_NODE_GRAMS_LOWLEVEL))
   	    features.add(
   	        "dependency_path_node-edge-node-gram_lowlevel: "+
   	        pathLemmas.get(edge)+" -- "+
   	        edgePath.get(edge).getRelation()+" -- "+
   	        pathLemmas.get(edge+1));
-  	  if (usingFeature(types,checklist, "dependency_path_edge-node-edge-grams") && edge > 0)
+  	  if (usingFeature(mask, FeatureType.DEPENDENCY_PATH_EDGE_NODE_EDGE_GRAMS) && edge > 0)
   	    features.add(
   	        "dependency_path_edge-node-edge-gram: "+
             generalizeRelation(edgePath.get(edge-1).getRelation())+" -- "+
             pathLemmas.get(edge)+" -- "+
             generalizeRelation(edgePath.get(edge).getRelation()));
-  	  if (usingFeature(types,checklist,"dependency_path_edge-node-edge-grams_lowlevel") && edge > 0)
+  	  if (usingFeature(mask, FeatureType.DEPENDENCY_PATH_EDGE_NODE_EDGE_GRAMS_LOWLEVEL) && edge > 0)
   	    features.add(
   	        "dependency_path_edge-node-edge-gram_lowlevel: "+
             edgePath.get(edge-1).getRelation()+" -- "+
             pathLemmas.get(edge)+" -- "+
             edgePath.get(edge).getRelation());
   	  String dir = pathNodes.get(edge).equals(edgePath.get(edge).getDependent()) ? " -> " : " <- ";
-  	  if (usingFeature(types, checklist, "dependency_path_directed_bigrams"))
+  	  if (usingFeature(mask, FeatureType.DEPENDENCY_PATH_DIRECTED_BIGRAMS))
   	    features.add(
   	        "dependency_path_directed_bigram: "+
   	        pathLemmas.get(edge)+
   	        dir+
   	        pathLemmas.get(edge+1));
-  	  if (usingFeature(types, checklist, "dependency_path_edge_unigrams"))
+  	  if (usingFeature(mask, FeatureType.DEPENDENCY_PATH_EDGE_UNIGRAMS))
   	    features.add(
   	        "dependency_path_edge_unigram: "+
   	        edgePath.get(edge).getRelation() +
@@ -880,16 +965,16 @@ public class FeatureFactory implements Serializable {
 
   	// dependency_path_length: number of edges in the path between args in the dependency graph, integer-valued
   	// dependency_path_length_binary: same, as binary features
-  	if (usingFeature(types, checklist, "dependency_path_length")) {
+  	if (usingFeature(mask, FeatureType.DEPENDENCY_PATH_LENGTH)) {
   		// features.add("dependency_path_length", edgePath.size());
   	  throw new RuntimeException("ERROR: The feature dependency_path_length is not supported!");
   	}
-  	if (usingFeature(types, checklist, "dependency_path_length_binary")) {
+  	if (usingFeature(mask, FeatureType.DEPENDENCY_PATH_LENGTH_BINARY)) {
   		features.add("dependency_path_length_" + new DecimalFormat("00").format(edgePath.size()));
   	}
 
-  	 if (usingFeature(types, checklist, "dependency_path_trigger")) {
-  	   List<CoreLabel> tokens = rel.getSentence().get(TokensAnnotation.class);
+  	 if (usingFeature(mask, FeatureType.DEPENDENCY_PATH_TRIGGER)) {
+  	   List<CoreLabel> tokens = context.tokens;
 
        for (IndexedWord node : pathNodes) {
          int index = node.index();
@@ -903,16 +988,51 @@ public class FeatureFactory implements Serializable {
   }
 
   /**
-   * Helper method that checks if a feature type "type" is present in the list of features "types"
-   * and removes it from "checklist"
-   * @param types
-   * @param checklist
-   * @param type
-   * @return true if types contains type
+   * Compiles a list of feature types into a bit mask of FeatureType
+   * "all" turns on all bits
+   */
+  static long compileFeatureTypes(List<String> types) {
+    long mask = 0;
+    List<String> unknown = new ArrayList<String>();
+    for(String name: types) {
+      if(name.equals("all")) {
+        mask = -1L;
+        continue;
+      }
+      boolean found = false;
+      for(FeatureType type: FeatureType.values()) {
+        if(type.name.equals(name)) {
+          mask |= type.bit();
+          found = true;
+          break;
+        }
+      }
+      if(! found) unknown.add(name);
+    }
+    if(! unknown.isEmpty())
+      throw new AssertionError("FeatureFactory: features not handled: " + unknown);
+    return mask;
+  }
+
+  private long featureMask(List<String> types) {
+    if(types == featureList) return featureListMask;
+    return compileFeatureTypes(types);
+  }
+
+  /**
+   * Helper method that checks if a feature type is present in the compiled feature mask
+   * @return true if the mask contains type
+   */
+  private static boolean usingFeature(long mask, FeatureType type) {
+    return (mask & type.bit()) != 0;
+  }
+
+  /**
+   * Computes the syntactic information shared by all relation mentions in this sentence.
+   * Entity type counts are taken from the current entity mentions, so create it after they are final.
    */
-  private boolean usingFeature(final List<String> types, List<String> checklist, String type) {
-    checklist.remove(type);
-    return types.contains(type) || types.contains("all");
+  public SentenceFeatureContext createContext(CoreMap sentence) {
+    return new SentenceFeatureContext(sentence, dependencyType);
   }
 
   private static GrammaticalRelation generalizeRelation(GrammaticalRelation gr) {
@@ -6,9 +6,14 @@ import java.io.FileReader;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Computes average results given 10 slot-filling folds
+ * Several run ids may be given; the score files of all their folds are read in parallel
  * @author Mihai
  *
  */
@@ -56,23 +61,46 @@ public class FoldAggregator {
     }
   }
   
+  static final int FOLDS = 10;
+  
   public static void main(String[] args) throws Exception {
-    if(args.length != 2) {
-      System.err.println("Usage: java edu.stanford.nlp.kbp.slotfilling.FoldAggregator <TOP DIR> <ID>");
+    if(args.length < 2) {
+      System.err.println("Usage: java edu.stanford.nlp.kbp.slotfilling.FoldAggregator <TOP DIR> <ID> [<ID> ...]");
       System.exit(1);
     }
-    String topDir = args[0];
-    String id = args[1];
+    final String topDir = args[0];
     
-    List<Score> scores = new ArrayList<Score>();
-    for(int fold = 0; fold < 10; fold ++) {
-      Score s = fetchScore(topDir + File.separator + Integer.toString(fold), id);
-      scores.add(s);
-      System.out.println("Fold " + fold + ": " + s);
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(Runtime.getRuntime().availableProcessors(), (args.length - 1) * FOLDS));
+    List<List<Future<Score>>> futures = new ArrayList<List<Future<Score>>>();
+    for(int i = 1; i < args.length; i ++) {
+      final String id = args[i];
+      List<Future<Score>> idFutures = new ArrayList<Future<Score>>();
+      for(int fold = 0; fold < FOLDS; fold ++) {
+        final String dir = topDir + File.separator + Integer.toString(fold);
+        idFutures.add(executor.submit(new Callable<Score>() {
+          @Override
+          public Score call() throws Exception {
+            return fetchScore(dir, id);
+          }
+        }));
+      }
+      futures.add(idFutures);
     }
+    executor.shutdown();
     
-    Score avg = average(scores);
-    System.out.println(id + "\t" + avg);
+    // report in the order of the ids and folds, as if they were read sequentially
+    for(int i = 1; i < args.length; i ++) {
+      String id = args[i];
+      List<Score> scores = new ArrayList<Score>();
+      for(int fold = 0; fold < FOLDS; fold ++) {
+        Score s = futures.get(i - 1).get(fold).get();
+        scores.add(s);
+        System.out.println("Fold " + fold + ": " + s);
+      }
+      
+      Score avg = average(scores);
+      System.out.println(id + "\t" + avg);
+    }
   }
   
   static Score average(List<Score> scores) {
@@ -0,0 +1,261 @@
+package edu.stanford.nlp.kbp.slotfilling;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import com.sri.faust.gazetteer.Gazetteer;
+import com.sri.faust.gazetteer.GazetteerCity;
+import com.sri.faust.gazetteer.GazetteerCountry;
+import com.sri.faust.gazetteer.GazetteerRegion;
+
+/**
+ * Memoized view of the SRI gazetteer, for the city/state/country consistency checks of KBPInference
+ * The gazetteer can only be queried by name, so each name is looked up once, the first time it is needed, and its
+ *   results are kept for the lifetime of this index (KBPEvaluator keeps one for all queries):
+ *   a city name maps to immutable city records, sorted by population (KBPInference.CitiesByPopulation);
+ *   a state name maps to the countries of its regions.
+ * Region and country names are interned to int ids. A slot value is mapped once to the ids of all the names it
+ *   matches (itself, plus the regions it abbreviates, or the country it is a synonym of), so each compatibility
+ *   check is an int comparison, with the same outcome as comparing the normalized strings.
+ * Finally, the consistency of each (city, state, country) triple of slot values is memoized.
+ * Thread safe.
+ */
+public class GeoIndex {
+  static final String NIL = "NIL";
+
+  /** Region id of cities without region info, e.g., Canada's provinces, which are marked as Canada-01, etc.; compatible with any region */
+  static final int UNKNOWN_REGION = -1;
+  /** Country id of cities without a country; compatible with no country */
+  static final int UNKNOWN_COUNTRY = -2;
+
+  private static final Pattern UNKNOWN_REGION_ENDING = Pattern.compile("\\-[0-9]+$");
+  private static final Pattern OTHER_COUNTRY = Pattern.compile("(U\\.?\\s*S\\.?\\s*A\\.?)|(United\\s*States\\s*of\\s*America)|(UK)|(Great\\s*Britain)|(Wales)|(Scotland)", Pattern.CASE_INSENSITIVE);
+  private static final Set<String> US_NAMES = new HashSet<String>(Arrays.asList(
+      "us", "u.s.", "usa", "u.s.a.", "united states of america"));
+  private static final Set<String> UK_NAMES = new HashSet<String>(Arrays.asList(
+      "uk", "great britain", "wales", "scotland"));
+
+  /** A gazetteer city, with its region and country interned */
+  public static class City {
+    public final GazetteerCity city;
+    final int region;
+    final int country;
+
+    City(GazetteerCity city, int region, int country) {
+      this.city = city;
+      this.region = region;
+      this.country = country;
+    }
+  }
+
+  private final Gazetteer gazetteer;
+  private final Map<String, String> stateAbbrevToFull;
+  /** Abbreviation -> (lower case) names of the regions it abbreviates; the inverse of the state abbreviations */
+  private final Map<String, Set<String>> abbrevToRegions;
+
+  /** Lower case region and country names -> ids */
+  private final Map<String, Integer> ids = new HashMap<String, Integer>();
+
+  private final Map<String, List<City>> citiesByName = new ConcurrentHashMap<String, List<City>>();
+  /** State slot value -> ids of the countries of its regions; empty for unknown states */
+  private final Map<String, int []> stateCountries = new ConcurrentHashMap<String, int []>();
+  private final Map<String, Boolean> knownCountries = new ConcurrentHashMap<String, Boolean>();
+  /** Region slot value -> ids of the regions it matches */
+  private final Map<String, int []> regionValueIds = new ConcurrentHashMap<String, int []>();
+  /** Country slot value -> ids of the countries it matches */
+  private final Map<String, int []> countryValueIds = new ConcurrentHashMap<String, int []>();
+  private final Map<String, Boolean> consistentTriples = new ConcurrentHashMap<String, Boolean>();
+
+  public GeoIndex(Gazetteer gazetteer, Map<String, Set<String>> stateAbbreviations, Map<String, String> stateAbbrevToFull) {
+    this.gazetteer = gazetteer;
+    this.stateAbbrevToFull = stateAbbrevToFull;
+    abbrevToRegions = new HashMap<String, Set<String>>();
+    for (Map.Entry<String, Set<String>> e : stateAbbreviations.entrySet()) {
+      for (String abbrev : e.getValue()) {
+        Set<String> regions = abbrevToRegions.get(abbrev);
+        if (regions == null) {
+          regions = new HashSet<String>();
+          abbrevToRegions.put(abbrev, regions);
+        }
+        regions.add(e.getKey());
+      }
+    }
+  }
+
+  public Gazetteer gazetteer() { return gazetteer; }
+
+  private synchronized int intern(String name) {
+    Integer id = ids.get(name);
+    if (id == null) {
+      id = ids.size();
+      ids.put(name, id);
+    }
+    return id;
+  }
+
+  private static boolean contains(int [] ids, int id) {
+    for (int i : ids) if (i == id) return true;
+    return false;
+  }
+
+  public String fullRegionName(String s) {
+    String sl = s.toLowerCase();
+    if (stateAbbrevToFull.containsKey(sl)) {
+      return stateAbbrevToFull.get(sl);
+    }
+    return s;
+  }
+
+  /**
+   * Gazetteer cities with this name (or without its " city" suffix, if there are none), sorted by population
+   * @return An immutable list, empty for unknown cities
+   */
+  public List<City> cities(String name) {
+    List<City> cities = citiesByName.get(name);
+    if (cities != null) return cities;
+
+    List<GazetteerCity> found = gazetteer.getCitiesWithName(name);
+    if ((found == null || found.size() == 0) && name.toLowerCase().endsWith("city")) {
+      // try again after remove " city" suffix
+      found = gazetteer.getCitiesWithName(name.substring(0, name.length() - 4).trim());
+    }
+    if (found == null || found.size() == 0) {
+      cities = Collections.emptyList();
+    } else {
+      // a copy, so the gazetteer's own list is not reordered
+      List<GazetteerCity> sorted = new ArrayList<GazetteerCity>(found);
+      Collections.sort(sorted, new KBPInference.CitiesByPopulation());
+      List<City> records = new ArrayList<City>(sorted.size());
+      for (GazetteerCity c : sorted) {
+        String region = c.getRegionName();
+        int regionId = (region == null || UNKNOWN_REGION_ENDING.matcher(region.toLowerCase()).find() ?
+            UNKNOWN_REGION : intern(region.toLowerCase()));
+        GazetteerCountry country = c.getCountry();
+        int countryId = (country == null || country.getName() == null ? UNKNOWN_COUNTRY : intern(country.getName().toLowerCase()));
+        records.add(new City(c, regionId, countryId));
+      }
+      cities = Collections.unmodifiableList(records);
+    }
+    citiesByName.put(name, cities);
+    return cities;
+  }
+
+  private int [] regionIds(String regionValue) {
+    int [] regions = regionValueIds.get(regionValue);
+    if (regions == null) {
+      String value = regionValue.toLowerCase();
+      Set<String> names = new HashSet<String>();
+      names.add(value);
+      if (abbrevToRegions.containsKey(value)) names.addAll(abbrevToRegions.get(value));
+      regions = new int[names.size()];
+      int i = 0;
+      for (String name : names) regions[i ++] = intern(name);
+      regionValueIds.put(regionValue, regions);
+    }
+    return regions;
+  }
+
+  private int [] countryIds(String countryValue) {
+    int [] countries = countryValueIds.get(countryValue);
+    if (countries == null) {
+      String value = countryValue.toLowerCase();
+      Set<String> names = new HashSet<String>();
+      names.add(value);
+      if (US_NAMES.contains(value)) names.add("united states");
+      if (UK_NAMES.contains(value)) names.add("united kingdom");
+      countries = new int[names.size()];
+      int i = 0;
+      for (String name : names) countries[i ++] = intern(name);
+      countryValueIds.put(countryValue, countries);
+    }
+    return countries;
+  }
+
+  public boolean compatibleCityState(City city, String regionValue) {
+    if (regionValue.equals(NIL)) return true;
+    if (city.region == UNKNOWN_REGION) return true;
+    return contains(regionIds(regionValue), city.region);
+  }
+
+  public boolean compatibleCityCountry(City city, String countryValue) {
+    if (countryValue.equals(NIL)) return true;
+    return contains(countryIds(countryValue), city.country);
+  }
+
+  /** Ids of the countries of the gazetteer regions with this name; empty for unknown states */
+  private int [] stateCountries(String stateValue) {
+    int [] countries = stateCountries.get(stateValue);
+    if (countries == null) {
+      List<GazetteerRegion> regions = gazetteer.getRegionFromRegion(fullRegionName(stateValue));
+      countries = new int[regions == null ? 0 : regions.size()];
+      for (int i = 0; i < countries.length; i ++) {
+        GazetteerCountry country = regions.get(i).getCountry();
+        countries[i] = (country == null || country.getName() == null ? UNKNOWN_COUNTRY : intern(country.getName().toLowerCase()));
+      }
+      stateCountries.put(stateValue, countries);
+    }
+    return countries;
+  }
+
+  private boolean knownCountry(String countryValue) {
+    Boolean known = knownCountries.get(countryValue);
+    if (known == null) {
+      known = (gazetteer.getCountryFromName(countryValue) != null || OTHER_COUNTRY.matcher(countryValue).matches());
+      knownCountries.put(countryValue, known);
+    }
+    return known;
+  }
+
+  /**
+   * True if these slot values (NIL for missing) are consistent with the gazetteer:
+   *   a city must be known, and compatible with the state and the country;
+   *   otherwise a state must be known, and compatible with the country;
+   *   otherwise a country must be known
+   */
+  public boolean consistent(String city, String state, String country) {
+    String key = city + "\t" + state + "\t" + country;
+    Boolean consistent = consistentTriples.get(key);
+    if (consistent == null) {
+      consistent = checkConsistent(city, state, country);
+      consistentTriples.put(key, consistent);
+    }
+    return consistent;
+  }
+
+  private boolean checkConsistent(String city, String state, String country) {
+    if (! city.equals(NIL)) {
+      // unknown cities are not accepted
+      for (City c : cities(city)) {
+        if (compatibleCityState(c, state) && compatibleCityCountry(c, country)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    if (! state.equals(NIL)) {
+      // unknown states are not accepted
+      if (country.equals(NIL)) return stateCountries(state).length > 0;
+      int [] compatible = countryIds(country);
+      for (int c : stateCountries(state)) {
+        if (contains(compatible, c)) return true;
+      }
+      return false;
+    }
+
+    if (! country.equals(NIL)) {
+      // accept only known countries
+      return knownCountry(country);
+    }
+
+    return true;
+  }
+}
@@ -42,6 +42,7 @@ import edu.stanford.nlp.kbp.slotfilling.common.KBPSlot;
 import edu.stanford.nlp.kbp.slotfilling.common.KBPTuple;
 import edu.stanford.nlp.kbp.slotfilling.common.ListOutput;
 import edu.stanford.nlp.kbp.slotfilling.common.Log;
+import edu.stanford.nlp.kbp.slotfilling.common.Metrics;
 import edu.stanford.nlp.kbp.slotfilling.common.Nationalities;
 import edu.stanford.nlp.kbp.slotfilling.common.NormalizedRelationMention;
 import edu.stanford.nlp.kbp.slotfilling.common.Props;
@@ -91,6 +92,8 @@ public class KBPEvaluator {
    */
   private final String officialIndex;
   private final DocidFinder docidFinder;
+  /** If false, the docid cache is saved only by saveDocidCache, e.g., once when the server stops */
+  private volatile boolean saveDocidCacheAfterAnnotate = true;
 
   /**
    * Map from nationalities to country names The keys are nationalities in lower
@@ -100,6 +103,8 @@ public class KBPEvaluator {
 
   /** Needed for location inference in KBPInference */
   private final Gazetteer gazetteer;
+  /** Memoized gazetteer lookups for the location inference, shared by all queries */
+  private final GeoIndex geoIndex;
   private final Map<String, Set<String>> stateAbbreviations;
   private final Map<String, String> stateAbbreviationsToFullName;
   
@@ -140,6 +145,7 @@ public class KBPEvaluator {
     gazetteer = new MaxmindGazetteer(); 
     //Log.severe("AJAY: NOT CALLING MaxmindGazeteer ... NEED TO ENABLE LATER");
     Log.severe("Loaded Maxmind Gaz .. !!");
+    geoIndex = new GeoIndex(gazetteer, stateAbbreviations, stateAbbreviationsToFullName);
     
     kbEntities = reader.parseKnowledgeBase(props.getProperty(Props.INPUT_KB));
 
@@ -178,7 +184,7 @@ public class KBPEvaluator {
             caches.length > 0) {
       docidFinder = null;
     } else {
-      docidFinder = new DocidFinder(officialIndex);
+      docidFinder = new DocidFinder(officialIndex, props);
     }
 
     mentionCompatibility = new MentionCompatibility(nationalities, slotsToNamedEntities);
@@ -218,12 +224,10 @@ public class KBPEvaluator {
       String[] bits = line.split("\t");
       if (bits.length != 2) throw new RuntimeException("ERROR: invalid line in overlapping relations file: " + line);
       String n1 = bits[0];
-      SlotToNamedEntities s1 = slotsToNamedEntities.getSlotInfo(n1);
-      assert (s1 != null);
+      assert (slotsToNamedEntities.slotId(n1) >= 0);
       String n2 = bits[1];
-      SlotToNamedEntities s2 = slotsToNamedEntities.getSlotInfo(n2);
-      assert (s2 != null);
-      if (intersection(s1.validNamedEntityLabels(), s2.validNamedEntityLabels()).size() > 0) {
+      assert (slotsToNamedEntities.slotId(n2) >= 0);
+      if (slotsToNamedEntities.shareNamedEntities(n1, n2)) {
         String v = (n1.compareTo(n2) < 0 ? n1 + "\t" + n2 : n2 + "\t" + n1);
         overlapping.add(v);
       }
@@ -236,25 +240,23 @@ public class KBPEvaluator {
 
   }
 
-  private static <E> Collection<E> intersection(Collection<E> s1, Collection<E> s2) {
-    Collection<E> inters = new HashSet<E>();
-    for (E e1 : s1) {
-      if (s2.contains(e1)) {
-        inters.add(e1);
-      }
-    }
-    return inters;
-  }
-
   private boolean overlappingSlot(String s1, String s2) {
     String v = (s1.compareTo(s2) < 0 ? s1 + "\t" + s2 : s2 + "\t" + s1);
     return overlappingRelations.contains(v);
   }
 
-  private SlotsToNamedEntities getSlotsToNamedEntities() {
+  SlotsToNamedEntities getSlotsToNamedEntities() {
     return slotsToNamedEntities;
   }
 
+  void setSaveDocidCacheAfterAnnotate(boolean save) {
+    saveDocidCacheAfterAnnotate = save;
+  }
+
+  void saveDocidCache() {
+    if (docidFinder != null) docidFinder.saveCache();
+  }
+
   static void cleanOutputFile(String goldFile, String outputFile, String runId) throws IOException {
     Map<String, ThreeDimensionalMap<String, String, String, Boolean>> map = new HashMap<String, ThreeDimensionalMap<String, String, String, Boolean>>();
 
@@ -489,7 +491,7 @@ public class KBPEvaluator {
         if (validSlot(rel)) {
           newRels.add(rel);
         } else {
-          Log.info("Discarding junk slot: " + rel);
+          Log.info("Discarding junk slot: {}", rel);
         }
       }
 
@@ -721,8 +723,7 @@ public class KBPEvaluator {
         + inModelCombination);
 
     // performs the actual inference
-    KBPInference inference = new KBPInference(getSlotsToNamedEntities(), listOutput, gazetteer, stateAbbreviations,
-        stateAbbreviationsToFullName, inferenceEnabled);
+    KBPInference inference = new KBPInference(getSlotsToNamedEntities(), listOutput, geoIndex, inferenceEnabled);
 
     for (KBPEntity entity : relations.keySet()) {
       //
@@ -914,8 +915,9 @@ public class KBPEvaluator {
     //
 	  // Extract all sentences that contain mentions of the entities in the test queries
 	  //
+	  long parseStart = Metrics.start();
 	  Annotation testSentences = reader.parse(queryFile);
-	  Log.severe("TIMER: KBPReader.parse complete.");
+	  Metrics.stop("evaluator.parse", parseStart);
 
 	  //
     // Convert RelationMentions to datums
@@ -923,7 +925,9 @@ public class KBPEvaluator {
     // mentions are merged into a single datum)
     //
     Counter<String> localDomainStats = new ClassicCounter<String>();
+    long datumStart = Metrics.start();
     List<DatumAndMention> dms = reader.generateDatums(testSentences, rff, null, localDomainStats);
+    Metrics.stop("evaluator.datums", datumStart);
     Log.severe("Constructed " + dms.size() + " datums for the given queries.");
     Log.severe("DOMAIN STATS for query file " + queryFile + ": " + localDomainStats);
     domainStats.addAll(localDomainStats);
@@ -950,6 +954,7 @@ public class KBPEvaluator {
     //
     // Build the tuple objects
     //
+    prefetchDocids(relations, originalTask);
     tuples = new ArrayList<KBPTuple>();
     for(List<DatumAndMention> relation: relations) {
       tuples.add(new KBPTuple(relation, originalTask, docidFinder));
@@ -960,6 +965,31 @@ public class KBPEvaluator {
     return tuples;
   }
 
+  /**
+   * Searches the official index, in one concurrent batch per entity, for the docids that the KBPTuple
+   * constructor will need. These are the tuples without any mention in the official index.
+   * The results are stored in the docid cache, so the KBPTuple constructor does not query the index again.
+   */
+  private void prefetchDocids(List<List<DatumAndMention>> relations, Map<String, KBPEntity> originalTask) {
+    // without a cache, the prefetched docids would be thrown away and searched again
+    if(docidFinder == null || ! docidFinder.isCaching()) return;
+    Map<String, Set<String>> slotValuesByName = new HashMap<String, Set<String>>();
+    for(List<DatumAndMention> relation: relations) {
+      if(KBPTuple.hasMentionInIndex(relation, docidFinder.getSource())) continue;
+      EntityMention em = (EntityMention) relation.get(0).mention().getArg(0);
+      String name = originalTask.get(KBPTuple.getKbpId(em)).name;
+      Set<String> slotValues = slotValuesByName.get(name);
+      if(slotValues == null) {
+        slotValues = new HashSet<String>();
+        slotValuesByName.put(name, slotValues);
+      }
+      slotValues.add(KBPTuple.chooseSlotValue(relation));
+    }
+    for(String name: slotValuesByName.keySet()) {
+      docidFinder.findBestDocids(name, slotValuesByName.get(name));
+    }
+  }
+
   /**
    * Finds raw instances of slots for the entities of interest in all our indices
    * 
@@ -997,22 +1027,29 @@ public class KBPEvaluator {
       }
     } else {
       // not diagnostic mode, doing actual classification
-      // call the distant-supervision classifier
-      for (KBPTuple tuple: tuples) {
+      // call the distant-supervision classifier, on all tuples of this entity at once
+      long classifyStart = Metrics.start();
+      List<Counter<String>> allLabels = relationExtractor.classifyRelations(tuples);
+      Metrics.stop("classification.batch", classifyStart);
+      Metrics.add("classification.tuples", tuples.size());
+      for (int t = 0; t < tuples.size(); t ++) {
+        KBPTuple tuple = tuples.get(t);
         // raw labels assigned by the classifier
         // note: the NIL MUST not be included in this set
         // note: the labels MUST be sorted in descending order of probability
-        Counter<String> labels = relationExtractor.classifyRelation(tuple);
+        Counter<String> labels = allLabels.get(t);
         List<Pair<String, Double>> sortedLabels = Counters.toDescendingMagnitudeSortedListWithCounts(labels);
 
         // keep only the labels that are valid according to the domain definition
         Counter<String> filteredLabels = new ClassicCounter<String>();
 
         Set<String> usedLabels = new HashSet<String>();
+        int entityClass = slotsToNamedEntities.entityClass(tuple.entityType());
+        int slotNE = slotsToNamedEntities.namedEntityId(tuple.slotType());
         for (Pair<String, Double> labelProb : sortedLabels) {
           if (overlappingPossible(labelProb.first(), usedLabels) &&
-              SlotValidity.validCandidateForLabel(slotsToNamedEntities, 
-                  labelProb.first(), tuple.entityType(), tuple.slotType())) {
+              SlotValidity.validCandidateForLabel(slotsToNamedEntities,
+                  labelProb.first(), entityClass, slotNE)) {
             filteredLabels.setCount(labelProb.first(), labelProb.second());
             usedLabels.add(labelProb.first());
           }
@@ -1161,40 +1198,45 @@ public class KBPEvaluator {
       Set<String> candidates) throws IOException, SAXException, ParserConfigurationException {
     
     // These are the raw relations, obtained simply by running the classifier over the whole data
+    long start = Metrics.start();
     Map<KBPEntity, Collection<KBPSlot>> relations = annotateRaw(queryFile, candidates);
-    Log.severe("TIMER: annotateRaw complete.");
+    Metrics.stop("evaluator.annotateRaw", start);
     prettyPrint(System.err, "Raw relations:", relations);
 
     // remove slots that are obviously incorrect, e.g., dates wo any digits and _NR
+    start = Metrics.start();
     removeJunk(relations);
-    Log.severe("TIMER: removeJunk complete.");
+    Metrics.stop("inference.removeJunk", start);
 
     if (fillWithFakeDocids) {
-      Log.severe("TIMER: not calling removeRedundancies.");
+      Log.severe("Not calling removeRedundancies.");
     } else {
       // Remove slots that are marked as ignored in the query file
+      start = Metrics.start();
       relations = removeRedundancies(relations, kbEntities);
+      Metrics.stop("inference.removeRedundancies", start);
       prettyPrint(System.err, "Relations after removing slots redundant with the KB", relations);
-      Log.severe("TIMER: removeRedundancies complete.");
     }
 
     // Pick the best candidates for each slot
+    start = Metrics.start();
     relations = chooseBest(relations, listOutput, slotNameToThresholds, inTuning, props);
+    Metrics.stop("inference.chooseBest", start);
     prettyPrint(System.err, "Relations after picking best per slot", relations);
-    Log.severe("TIMER: chooseBest complete.");
 
     // For list slots, keep only the longest value found for embedded slots
     // relations = chooseLongest(relations);
     // prettyPrint(System.err, "Relations after picking longest value per overlapping slots", relations);
-    // Log.severe("TIMER: chooseLongest complete.");
 
     // Keep LOC_of_death only of date_of_death exists
     // This is needed because the noise level on LOC_of_death is very high, and
     // the one on date_of_death is low
+    start = Metrics.start();
     relations = handleLocOfDeath(relations);
+    Metrics.stop("inference.handleLocOfDeath", start);
     prettyPrint(System.err, "Relations after cleaning per:*_of_death slots", relations);
-    Log.severe("TIMER: handleLocOfDeath complete.");
 
+    start = Metrics.start();
     if (fillWithFakeDocids) {
       Log.severe("Filling with fake docids");
       fillWithFakeDocid(relations);
@@ -1203,8 +1245,8 @@ public class KBPEvaluator {
       fillDocidsAndFilter(relations);
     }
 
+    Metrics.stop("docid.fillDocidsAndFilter", start);
     prettyPrint(System.err, "Relations after doc finding:", relations);
-    Log.severe("TIMER: fillDocidsAndFilter complete.");
 
     return relations;
   }
@@ -1255,6 +1297,7 @@ public class KBPEvaluator {
     }
 
     Log.severe("OVERALL DOMAIN STATS: " + domainStats);
+    if (saveDocidCacheAfterAnnotate) saveDocidCache();
     return allSlots;
   }
 
@@ -1385,6 +1428,7 @@ public class KBPEvaluator {
     Properties props = StringUtils.argsToProperties(args);
     Log.setLevel(Log.stringToLevel(props.getProperty(Props.LOG_LEVEL, "INFO")));
     Log.severe("Using properties: " + props);
+    Metrics.configure(props);
 
     // enable coref during testing!
     props.setProperty(Props.INDEX_PIPELINE_METHOD, "FULL");
@@ -1416,10 +1460,11 @@ public class KBPEvaluator {
       props.setProperty(Props.MODEL_COMBINATION_ENABLED, "true");
       extractAndScore(props, true);
     }
+
+    Metrics.report(props);
   }
 
-  public static List<Double> extractAndScore(Properties props, boolean modelCombinationMode) throws Exception,
-      IOException, SAXException, ParserConfigurationException, FileNotFoundException {
+  static ListOutput listOutput(Properties props) {
     String listOutputProp = props.getProperty(Props.LIST_OUTPUT, "all");
     ListOutput listOutput = null;
     if (listOutputProp.equalsIgnoreCase("all"))
@@ -1429,15 +1474,19 @@ public class KBPEvaluator {
     else
       throw new RuntimeException("Unknown value for the kbp.list.output property: " + listOutputProp);
     Log.info("Strategy for list slots is: " + listOutput);
+    return listOutput;
+  }
 
+  /**
+   * The threshold of each slot name: loaded from props if slot.threshold is set, tuned on the dev queries otherwise
+   */
+  static Map<String, Double> slotThresholds(Properties props, ListOutput listOutput) throws Exception {
     List<String> allSlotNames = new ArrayList<String>(SFScore.allSlots);
     Collections.sort(allSlotNames);
 
     Map<String, Double> slotNameToThresholds = new HashMap<String, Double>();
     double singleThreshold = -1;
     boolean slotThresholdPerRelation = PropertiesUtils.getBool(props, Props.SLOT_THRESHOLD_PER_RELATION);
-    boolean anydoc = PropertiesUtils.getBool(props, Props.ANYDOC, Constants.DEFAULT_ANYDOC);
-    Log.info("When scoring, accept any doc: " + anydoc);
 
     if (slotThresholdPerRelation) {
       if (props.containsKey(Props.SLOT_THRESHOLD)) {
@@ -1472,6 +1521,23 @@ public class KBPEvaluator {
         slotNameToThresholds.put(slotName, singleThreshold);
       }
     }
+    return slotNameToThresholds;
+  }
+
+  public static List<Double> extractAndScore(Properties props, boolean modelCombinationMode) throws Exception,
+      IOException, SAXException, ParserConfigurationException, FileNotFoundException {
+    ListOutput listOutput = listOutput(props);
+
+    List<String> allSlotNames = new ArrayList<String>(SFScore.allSlots);
+    Collections.sort(allSlotNames);
+
+    boolean anydoc = PropertiesUtils.getBool(props, Props.ANYDOC, Constants.DEFAULT_ANYDOC);
+    Log.info("When scoring, accept any doc: " + anydoc);
+
+    Map<String, Double> slotNameToThresholds = slotThresholds(props, listOutput);
+    double singleThreshold = -1;
+    if (!PropertiesUtils.getBool(props, Props.SLOT_THRESHOLD_PER_RELATION))
+      singleThreshold = slotNameToThresholds.get(allSlotNames.get(0));
 
     KBPEvaluator tester = new KBPEvaluator(props);
     String queryFile = props.getProperty(Props.TEST_QUERIES);
@@ -28,10 +28,8 @@ public class KBPInference {
   
   private final ListOutput listOutput;
   
-  private final Gazetteer gazetteer;
-  
-  private final Map<String, Set<String>> stateAbbreviations;
-  private final Map<String, String> stateAbbrevToFull;
+  /** Shared by all inferences that use the same gazetteer, so its lookups are memoized across queries */
+  private final GeoIndex geoIndex;
   
   private final boolean doDomainSpecificInference;
   
@@ -41,11 +39,16 @@ public class KBPInference {
       Map<String, Set<String>> abbrevs,
       Map<String, String> abbrevToFull,
       boolean doDomainSpec) {
+    this(s, listOutput, new GeoIndex(gaz, abbrevs, abbrevToFull), doDomainSpec);
+  }
+  
+  public KBPInference(SlotsToNamedEntities s, 
+      ListOutput listOutput, 
+      GeoIndex geoIndex, 
+      boolean doDomainSpec) {
     this.slotsToNamesEntities = s;
     this.listOutput = listOutput;
-    this.gazetteer = gaz;
-    this.stateAbbreviations = abbrevs;
-    this.stateAbbrevToFull = abbrevToFull;
+    this.geoIndex = geoIndex;
     this.doDomainSpecificInference = doDomainSpec;
   }
   
@@ -123,7 +126,7 @@ public class KBPInference {
       //
       // run the special, domain-specific inference
       //
-      CityStateCountryInference csci = new CityStateCountryInference(gazetteer, stateAbbreviations, stateAbbrevToFull);
+      CityStateCountryInference csci = new CityStateCountryInference(geoIndex);
       results.addAll(csci.choose(slotBuckets,
           "per:city_of_birth",
           "per:stateorprovince_of_birth",
@@ -251,14 +254,10 @@ public class KBPInference {
   }
   
   private static class CityStateCountryInference {
-    private final Gazetteer gazetteer;
-    private final Map<String, Set<String>> stateAbbreviations;
-    private final Map<String, String> stateAbbrevToFull;
+    private final GeoIndex geo;
     
-    public CityStateCountryInference(Gazetteer gaz, Map<String, Set<String>> abbrevs, Map<String, String> stateAbbrevToFull) {
-      this.gazetteer = gaz;
-      this.stateAbbreviations = abbrevs;
-      this.stateAbbrevToFull = stateAbbrevToFull;
+    public CityStateCountryInference(GeoIndex geo) {
+      this.geo = geo;
     }
     
     @SuppressWarnings("unchecked")
@@ -303,19 +302,14 @@ public class KBPInference {
 
       // fill in state from city and country
       if (!haveState && haveCity && haveCountry) {
-        List<GazetteerCity> cities = findCities(city.slotValue);
-
-        if (cities.size() > 0) {
-          Collections.sort(cities, new CitiesByPopulation());
-          
-          for (GazetteerCity c : cities) {
-            if (compatibleCityCountry(c, country.slotValue)) {
-              String regionName = fullRegionName(c.getRegionName());
-              KBPSlot regionSlot = new KBPSlot(city.entityName, city.entityId, regionName, stateSlotName);
-              cand.solution.set(1, regionSlot);
-              Log.severe("LOCATION INFERENCE: detected region " + regionName + " from city " + city.slotValue + " / country " + country.slotValue);
-              break;
-            }
+        // already sorted by population
+        for (GeoIndex.City c : geo.cities(city.slotValue)) {
+          if (geo.compatibleCityCountry(c, country.slotValue)) {
+            String regionName = geo.fullRegionName(c.city.getRegionName());
+            KBPSlot regionSlot = new KBPSlot(city.entityName, city.entityId, regionName, stateSlotName);
+            cand.solution.set(1, regionSlot);
+            Log.severe("LOCATION INFERENCE: detected region " + regionName + " from city " + city.slotValue + " / country " + country.slotValue);
+            break;
           }
         }
       }
@@ -324,28 +318,23 @@ public class KBPInference {
       if (!haveCountry) {
         if (haveCity && haveState) {
           // fill in country from city and state
-          List<GazetteerCity> cities = findCities(city.slotValue);
-
-          if (cities.size() > 0) {
-            Collections.sort(cities, new CitiesByPopulation());
-
-            for (GazetteerCity c : cities) {
-              if (compatibleCityState(c, state.slotValue)) {
-                String countryName = c.getCountry().getName();
-                KBPSlot newCountrySlot = new KBPSlot(state.entityName, state.entityId, countryName, countrySlotName);
-                cand.solution.set(2, newCountrySlot);
-                Log.severe("LOCATION INFERENCE: detected country " + countryName + " from city " + city.slotValue + " / state " + state.slotValue);
-                break;
-              }
+          for (GeoIndex.City c : geo.cities(city.slotValue)) {
+            if (geo.compatibleCityState(c, state.slotValue)) {
+              String countryName = c.city.getCountry().getName();
+              KBPSlot newCountrySlot = new KBPSlot(state.entityName, state.entityId, countryName, countrySlotName);
+              cand.solution.set(2, newCountrySlot);
+              Log.severe("LOCATION INFERENCE: detected country " + countryName + " from city " + city.slotValue + " / state " + state.slotValue);
+              break;
             }
           }
         } else if (haveState) {
           // fill in country just from state
-          List<GazetteerRegion> regions = gazetteer.getRegionFromRegion(fullRegionName(state.slotValue));
+          List<GazetteerRegion> regions = geo.gazetteer().getRegionFromRegion(geo.fullRegionName(state.slotValue));
           
           if (regions.size() > 0) {
             // TODO should sort regions by frequency or something, but don't have that data currently
             // for now, we arbitrarily pick the first one after sorting by name
+            regions = new ArrayList<GazetteerRegion>(regions);
             Collections.sort(regions, new RegionsByName());
             GazetteerRegion region = regions.get(0);
             String countryName = region.getCountry().getName();
@@ -355,175 +344,31 @@ public class KBPInference {
           }
         } else if (haveCity) {
           // fill in country (and optionally region) just from city
-          List<GazetteerCity> cities = findCities(city.slotValue);
-
-          if (cities.size() > 0) {
-            Collections.sort(cities, new CitiesByPopulation());
-
-            for (GazetteerCity c : cities) {
-              String countryName = c.getCountry().getName();
-              KBPSlot newCountrySlot = new KBPSlot(city.entityName, city.entityId, countryName, countrySlotName);
-              cand.solution.set(2, newCountrySlot);
-              Log.severe("LOCATION INFERENCE: detected country " + countryName + " from city " + city.slotValue);
-              
-              if (!haveState) {
-                String regionName = fullRegionName(c.getRegionName());
-                KBPSlot newRegionSlot = new KBPSlot(city.entityName, city.entityId, regionName, stateSlotName);
-                cand.solution.set(1, newRegionSlot);
-                Log.severe("LOCATION INFERENCE: detected region " + regionName + " from city " + city.slotValue);
-              }
-              
-              break;
+          for (GeoIndex.City c : geo.cities(city.slotValue)) {
+            String countryName = c.city.getCountry().getName();
+            KBPSlot newCountrySlot = new KBPSlot(city.entityName, city.entityId, countryName, countrySlotName);
+            cand.solution.set(2, newCountrySlot);
+            Log.severe("LOCATION INFERENCE: detected country " + countryName + " from city " + city.slotValue);
+            
+            if (!haveState) {
+              String regionName = geo.fullRegionName(c.city.getRegionName());
+              KBPSlot newRegionSlot = new KBPSlot(city.entityName, city.entityId, regionName, stateSlotName);
+              cand.solution.set(1, newRegionSlot);
+              Log.severe("LOCATION INFERENCE: detected region " + regionName + " from city " + city.slotValue);
             }
+            
+            break;
           }
         }
       }
     }
 
-    private String fullRegionName(String s) {
-      String sl = s.toLowerCase();
-      if(stateAbbrevToFull.containsKey(sl)){
-        return stateAbbrevToFull.get(sl);
-      }
-      return s;
-    }
-    
-    private List<GazetteerCity> findCities(String name) {
-      List<GazetteerCity> cities = gazetteer.getCitiesWithName(name);
-      if (cities != null && cities.size() > 0) {
-        return cities;
-      }
-      
-      // try again after remove " city" suffix
-      if (name.toLowerCase().endsWith("city")) {
-        name = name.substring(0, name.length() - 4).trim();
-        return gazetteer.getCitiesWithName(name);
-      }
-      
-      return new ArrayList<GazetteerCity>();
-    }
-    
     public boolean consistent(Candidate cand) {
-      KBPSlot city = cand.solution.get(0);
-      KBPSlot state = cand.solution.get(1);
-      KBPSlot country = cand.solution.get(2);
-      
-      if(city != null && ! city.slotValue.equals(NIL)) {
-        List<GazetteerCity> cities = findCities(city.slotValue);
-        if(cities.size() > 0){
-          // known city; check its state/country
-          for(GazetteerCity c: cities){
-            if(compatibleCityState(c, state.slotValue) && compatibleCityCountry(c, country.slotValue)){
-              return true;
-            }
-          }
-          return false;
-        } else {
-          // unknown city; do not accept these
-          return false;
-        }
-      }
-      
-      if(state != null && ! state.slotValue.equals(NIL)){
-        List<GazetteerRegion> regions = gazetteer.getRegionFromRegion(fullRegionName(state.slotValue));
-        if(regions.size() > 0){
-          // known state; check its country
-          for(GazetteerRegion r: regions) {
-            if(compatibleStateCountry(r, country.slotValue)){
-              return true;
-            }
-          }
-          return false;
-        } else {
-          // unknown state; do not accept these
-          return false;
-        }
-      }
-      
-      if(country != null && ! country.slotValue.equals(NIL)){
-        if(gazetteer.getCountryFromName(country.slotValue) != null || otherCountry(country.slotValue)){
-          return true;
-        } else {
-          // accept only known countries
-          return false;
-        }
-      }
-      
-      return true;
+      return geo.consistent(valueOf(cand.solution.get(0)), valueOf(cand.solution.get(1)), valueOf(cand.solution.get(2)));
     }
     
-    private Set<String> normalizeRegion(String r) {
-      Set<String> normed = new HashSet<String>();
-      normed.add(r);
-      Set<String> abbrevs = stateAbbreviations.get(r);
-      if(abbrevs != null){
-        for(String abbrev: abbrevs){
-          normed.add(abbrev);
-        }
-      }
-      return normed;
-    }
-    
-    private static final Pattern OTHER_COUNTRY = Pattern.compile("(U\\.?\\s*S\\.?\\s*A\\.?)|(United\\s*States\\s*of\\s*America)|(UK)|(Great\\s*Britain)|(Wales)|(Scotland)", Pattern.CASE_INSENSITIVE);
-    
-    private static boolean otherCountry(String s) {
-      if(OTHER_COUNTRY.matcher(s).matches()) return true;
-      return false;
-    }
-        
-    private Set<String> normalizeCountry(String c) {
-      Set<String> normed = new HashSet<String>();
-      normed.add(c.toLowerCase());
-      if(c.equalsIgnoreCase("United States")){
-        normed.add("US".toLowerCase());
-        normed.add("U.S.".toLowerCase());
-        normed.add("USA".toLowerCase());
-        normed.add("U.S.A.".toLowerCase());
-        normed.add("United States of America".toLowerCase());
-      } else if(c.equalsIgnoreCase("United Kingdom")) {
-        normed.add("UK".toLowerCase());
-        normed.add("Great Britain".toLowerCase());
-        normed.add("Wales".toLowerCase());
-        normed.add("Scotland".toLowerCase());
-      }
-      return normed;
-    }
-    
-    private static final Pattern UNKNOWN_REGION_ENDING = Pattern.compile("\\-[0-9]+$");
-    
-    private boolean compatibleCityState(GazetteerCity city, String regionValue) {
-      if(regionValue.equals(NIL)) return true;
-      String region = city.getRegionName().toLowerCase();      
-      regionValue = regionValue.toLowerCase();
-
-      if(region == null || UNKNOWN_REGION_ENDING.matcher(region).find()){
-        // no info on this region; e.g., we do not have info on Canada's provinces - these are marked as Canada-01, etc.
-        return true;
-      }
-      
-      Set<String> normRegions = normalizeRegion(region);
-      if(normRegions.contains(regionValue)){
-        return true;
-      }
-      return false;
-    }
-    
-    private boolean compatibleCityCountry(GazetteerCity city, String countryValue) {
-      if(countryValue.equals(NIL)) return true;
-      Set<String> normCountries = normalizeCountry(city.getCountry().getName());
-      if(normCountries.contains(countryValue.toLowerCase())){
-        return true;
-      }
-      return false;
-    }
-    
-    private boolean compatibleStateCountry(GazetteerRegion region, String countryValue) {
-      if(countryValue.equals(NIL)) return true;
-      Set<String> normCountries = normalizeCountry(region.getCountry().getName());
-      if(normCountries.contains(countryValue.toLowerCase())){
-        return true;
-      }
-      return false;
+    private static String valueOf(KBPSlot slot) {
+      return (slot == null ? NIL : slot.slotValue);
     }
   }
   
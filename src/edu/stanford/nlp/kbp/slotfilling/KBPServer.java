@@ -0,0 +1,241 @@
+package edu.stanford.nlp.kbp.slotfilling;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.stanford.nlp.kbp.slotfilling.common.EntityType;
+import edu.stanford.nlp.kbp.slotfilling.common.KBPEntity;
+import edu.stanford.nlp.kbp.slotfilling.common.KBPSlot;
+import edu.stanford.nlp.kbp.slotfilling.common.ListOutput;
+import edu.stanford.nlp.kbp.slotfilling.common.Log;
+import edu.stanford.nlp.kbp.slotfilling.common.Metrics;
+import edu.stanford.nlp.kbp.slotfilling.common.Props;
+import edu.stanford.nlp.util.PropertiesUtils;
+import edu.stanford.nlp.util.StringUtils;
+
+/**
+ * Long-running slot filling server: loads the relation model, the indices, the NLP pipeline, the gazetteer, etc.
+ *   (everything in KBPEvaluator) once, and answers requests through a socket bound to localhost (kbp.server.port).
+ * Each request is one line. The answer uses the output format of KBPEvaluator, and is followed by a line with END:
+ *   QUERY /path/to/queries.xml  - answers all queries in this query file
+ *   ENTITY PER|ORG docid name   - answers one entity; the name may contain spaces
+ *   METRICS                     - the current metrics (see Metrics)
+ *   SHUTDOWN                    - stops the server after the running requests, and closes the idle connections
+ * A failed request is answered with a line starting with ERROR, and does not affect the other requests.
+ * Connections are served by kbp.server.threads threads. Each request uses one of kbp.server.evaluators
+ *   warm KBPEvaluators (each holds its own model and indices) and its own copy of the properties;
+ *   requests wait for a free evaluator.
+ * The slot thresholds are computed once, at startup, as in KBPEvaluator. The docid cache is saved once, when the server stops.
+ * For example: echo "ENTITY PER eng-NG-31-100578-11879229 Ian Paisley" | nc localhost 9020
+ */
+public class KBPServer {
+  static final String END = "END";
+  static final String ERROR = "ERROR";
+
+  private final Properties props;
+  private final ListOutput listOutput;
+  private final Map<String, Double> slotNameToThresholds;
+  private final BlockingQueue<KBPEvaluator> evaluators;
+  private final int port;
+  private final int threads;
+  /** Generates query ids for ENTITY requests */
+  private final AtomicInteger entityCount = new AtomicInteger();
+
+  private ServerSocket serverSocket;
+  private volatile boolean running;
+  /** Connections waiting for their next request; closed by SHUTDOWN to unblock their threads */
+  private final Set<Socket> idleConnections = new HashSet<Socket>();
+
+  public KBPServer(Properties props) throws Exception {
+    this.props = props;
+    // enable coref during testing!
+    props.setProperty(Props.INDEX_PIPELINE_METHOD, "FULL");
+    // model combination needs a second pass over all queries
+    props.setProperty(Props.MODEL_COMBINATION_ENABLED, "false");
+
+    port = PropertiesUtils.getInt(props, Props.KBP_SERVER_PORT, 9020);
+    threads = PropertiesUtils.getInt(props, Props.KBP_SERVER_THREADS, 4);
+    int evaluatorCount = PropertiesUtils.getInt(props, Props.KBP_SERVER_EVALUATORS, 1);
+
+    listOutput = KBPEvaluator.listOutput(props);
+    slotNameToThresholds = KBPEvaluator.slotThresholds(props, listOutput);
+    evaluators = new ArrayBlockingQueue<KBPEvaluator>(evaluatorCount);
+    for(int i = 0; i < evaluatorCount; i ++) {
+      long start = Metrics.start();
+      KBPEvaluator evaluator = new KBPEvaluator(props);
+      // the evaluators share the docid cache of their index; saving it after every request would rewrite the file concurrently
+      evaluator.setSaveDocidCacheAfterAnnotate(false);
+      evaluators.add(evaluator);
+      Metrics.stop("server.load", start);
+    }
+    Log.severe("Loaded " + evaluatorCount + " evaluators.");
+  }
+
+  public void run() throws IOException, InterruptedException {
+    serverSocket = new ServerSocket(port, 50, InetAddress.getByName(null));
+    running = true;
+    Log.severe("KBPServer listening on localhost:" + port);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    while(running) {
+      final Socket socket;
+      try {
+        socket = serverSocket.accept();
+      } catch(SocketException e) {
+        // the socket is closed by SHUTDOWN
+        if(! running) break;
+        throw e;
+      }
+      executor.submit(new Runnable() {
+        @Override
+        public void run() {
+          serve(socket);
+        }
+      });
+    }
+    executor.shutdown();
+    executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    // all requests are done, so this is the only writer
+    for(KBPEvaluator evaluator: evaluators) evaluator.saveDocidCache();
+    Log.severe("KBPServer stopped.");
+  }
+
+  /** Answers the requests of one connection, in order, until the client closes it or the server stops */
+  private void serve(Socket socket) {
+    try {
+      BufferedReader is = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+      PrintStream os = new PrintStream(socket.getOutputStream(), false, "UTF-8");
+      while(setIdle(socket, true)) {
+        String request = is.readLine();
+        if(request == null || ! setIdle(socket, false)) break;
+        request = request.trim();
+        if(request.length() == 0) continue;
+        // the answer is buffered, so a failed request does not send partial output
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try {
+          PrintStream bos = new PrintStream(buffer, false, "UTF-8");
+          answer(request, bos);
+          bos.close();
+          os.write(buffer.toByteArray());
+        } catch(Exception e) {
+          Log.severe("ERROR: request \"" + request + "\" failed: " + e);
+          e.printStackTrace();
+          os.println(ERROR + " " + e);
+        }
+        os.println(END);
+        os.flush();
+      }
+    } catch(IOException e) {
+      // SHUTDOWN closes idle connections while they wait in readLine
+      if(running) Log.severe("ERROR: connection failed: " + e);
+    } finally {
+      setIdle(socket, false);
+      try {
+        socket.close();
+      } catch(IOException e) {
+        Log.severe("ERROR: cannot close connection: " + e);
+      }
+    }
+  }
+
+  /**
+   * Marks the connection as waiting for a request, or as busy
+   * @return false if the server is stopping, so the connection should not wait for another request
+   */
+  private synchronized boolean setIdle(Socket socket, boolean idle) {
+    if(idle && running) idleConnections.add(socket);
+    else idleConnections.remove(socket);
+    return running;
+  }
+
+  /** Stops accepting connections, and closes those waiting for a request; busy connections close after their request */
+  private synchronized void shutdown() throws IOException {
+    running = false;
+    for(Socket socket: idleConnections) {
+      try {
+        socket.close();
+      } catch(IOException e) {
+        Log.severe("ERROR: cannot close connection: " + e);
+      }
+    }
+    idleConnections.clear();
+    serverSocket.close();
+  }
+
+  void answer(String request, PrintStream os) throws Exception {
+    String [] bits = request.split("\\s+", 2);
+    String command = bits[0].toUpperCase();
+    if(command.equals("QUERY")) {
+      if(bits.length < 2) throw new RuntimeException("ERROR: QUERY requires the path of a query file");
+      annotate(bits[1], os);
+    } else if(command.equals("ENTITY")) {
+      String [] fields = (bits.length < 2 ? new String[0] : bits[1].split("\\s+", 3));
+      if(fields.length < 3) throw new RuntimeException("ERROR: ENTITY requires an entity type (PER or ORG), a docid, and a name");
+      KBPEntity entity = new KBPEntity();
+      entity.type = EntityType.fromXmlRepresentation(fields[0].toUpperCase());
+      if(entity.type == null) throw new RuntimeException("ERROR: unknown entity type " + fields[0]);
+      entity.docid = fields[1];
+      entity.name = fields[2];
+      entity.queryId = "SERVER" + entityCount.incrementAndGet();
+      entity.id = entity.queryId;
+      File queryFile = File.createTempFile("serverquery", ".xml");
+      try {
+        KBPEvaluator.makeEntityQueryFile(entity, queryFile);
+        annotate(queryFile.getAbsolutePath(), os);
+      } finally {
+        queryFile.delete();
+      }
+    } else if(command.equals("METRICS")) {
+      os.print(Metrics.toText());
+    } else if(command.equals("SHUTDOWN")) {
+      shutdown();
+    } else {
+      throw new RuntimeException("ERROR: unknown request " + command);
+    }
+  }
+
+  private void annotate(String queryFile, PrintStream os) throws Exception {
+    // per-request properties, so changes made during annotation stay in this request
+    Properties requestProps = new Properties();
+    requestProps.putAll(props);
+    KBPEvaluator evaluator = evaluators.take();
+    try {
+      long start = Metrics.start();
+      Map<KBPEntity, Collection<KBPSlot>> relations = evaluator.annotate(
+          queryFile, listOutput, slotNameToThresholds, false, false, requestProps, new HashSet<String>());
+      Metrics.stop("server.request", start);
+      KBPEvaluator.outputRelations(os, requestProps, evaluator.getSlotsToNamedEntities(), relations, false);
+    } finally {
+      evaluators.put(evaluator);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    Properties props = StringUtils.argsToProperties(args);
+    Log.setLevel(Log.stringToLevel(props.getProperty(Props.LOG_LEVEL, "INFO")));
+    Log.severe("Using properties: " + props);
+    Metrics.configure(props);
+
+    new KBPServer(props).run();
+
+    Metrics.report(props);
+  }
+}
@@ -5,6 +5,7 @@ import java.io.File;
 import java.io.FileWriter;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.GregorianCalendar;
 import java.util.Calendar;
 import java.util.HashMap;
@@ -30,7 +31,6 @@ import edu.stanford.nlp.ling.CoreAnnotations;
 import edu.stanford.nlp.ling.CoreLabel;
 import edu.stanford.nlp.stats.Counter;
 import edu.stanford.nlp.stats.Counters;
-import edu.stanford.nlp.stats.OpenAddressCounter;
 import edu.stanford.nlp.time.TimeExpression;
 import edu.stanford.nlp.time.SUTime.IsoDate;
 import edu.stanford.nlp.time.SUTime.Range;
@@ -53,8 +53,21 @@ import edu.stanford.nlp.util.StringUtils;
 public class KBPTemporal {
 
   static Pattern acceptableTokenRegex = Pattern.compile("[\\dX][\\dX][\\dX][\\dX]-?[\\dX]?[\\dX]?-?[\\dX]?[\\dX]?", Pattern.CASE_INSENSITIVE);
+  // date patterns, compiled once rather than by String.matches on every call
+  private static final Pattern HAS_DIGIT = Pattern.compile(".*\\d.*");
+  private static final Pattern YEAR = Pattern.compile("\\d\\d\\d\\d");
+  private static final Pattern UNKNOWN_YEAR_DATE = Pattern.compile("XXXX-[\\dX][\\dX]-[\\dX][\\dX]");
+  private static final Pattern YEAR_MONTH = Pattern.compile("[\\dX][\\dX][\\dX][\\dX]-[\\d][\\d]");
+  private static final Pattern EXACT_DATE = Pattern.compile("\\d\\d\\d\\d-\\d\\d-\\d\\d");
+  private static final Pattern EXACT_MONTH = Pattern.compile("\\d\\d\\d\\d-\\d\\d");
+  private static final Pattern FALL = Pattern.compile("\\d\\d\\d\\d-FA");
+  private static final Pattern SPRING = Pattern.compile("\\d\\d\\d\\d-SP");
+  private static final Pattern SUMMER = Pattern.compile("\\d\\d\\d\\d-SU");
+  private static final Pattern WINTER = Pattern.compile("\\d\\d\\d\\d-WI");
   static final int numTokensToCheck = 4;
   static Counter<String> startWords, endWords, googleNgrams;
+  /** Built from startWords and endWords by readStartEndFiles */
+  static TemporalNGramScorer startEndScorer;
   // static Logger logger = Logger.getLogger(KBPTemporal.class.toString());
   static boolean precise = false;
   static boolean baseline = false;
@@ -97,7 +110,7 @@ public class KBPTemporal {
       // Counter<String> sum = Counters.union(startWords, endWords);
       Collection<String> notPresentInGoogleNgrams = CollectionUtils.diff(startWords.keySet(), googleNgrams.keySet());
       notPresentInGoogleNgrams.addAll(CollectionUtils.diff(endWords.keySet(), googleNgrams.keySet()));
-      Log.finest("strings not present in googlengrams: " + StringUtils.join(notPresentInGoogleNgrams, "; "));
+      if (Log.isFinest()) Log.finest("strings not present in googlengrams: " + StringUtils.join(notPresentInGoogleNgrams, "; "));
       Counters.removeKeys(startWords, notPresentInGoogleNgrams);
       Counters.removeKeys(endWords, notPresentInGoogleNgrams);
       Counters.divideInPlace(startWords, googleNgrams);
@@ -107,6 +120,7 @@ public class KBPTemporal {
       // Counters.normalize(endWords);
       Log.severe("number of words in startWords is " + startWords.size());
       Log.severe("number of words in endWords is " + endWords.size());
+      startEndScorer = new TemporalNGramScorer(startWords, endWords);
     } else
       throw new Exception("start or end words file not found");
   }
@@ -117,31 +131,36 @@ public class KBPTemporal {
 
   private static double startEndThreshold = 0.1;
 
-  private static STARTOREND getStartOrEnd(List<CoreLabel> tokens, int beginToken, int endToken, String dateVal) {
+  /**
+   * @param words The words of the document tokens, computed once per document
+   */
+  private static STARTOREND getStartOrEnd(List<String> words, int beginToken, int endToken, String dateVal) {
 
-    List<String> dateNormalizedTokens = FindTemporalExpressionsWiki.normalizeDateTokens(tokens, beginToken, endToken, dateVal);
-    Counter<String> sentenceNGrams = new OpenAddressCounter<String>();
+    List<String> dateNormalizedTokens = FindTemporalExpressionsWiki.normalizeDateWords(words, beginToken, endToken, dateVal);
+    Collection<String> sentenceNGrams = Collections.emptySet();
     List<Span> startDateSpans = new ArrayList<Span>();
     if (TemporalSentenceExtractor.matchSlotInSentence(dateVal, dateNormalizedTokens, new String[] { dateVal }, startDateSpans))
-      Counters.addInPlace(sentenceNGrams, FindTemporalExpressionsWiki.getNGrams(dateNormalizedTokens, startDateSpans));
+      sentenceNGrams = FindTemporalExpressionsWiki.getNGrams(dateNormalizedTokens, startDateSpans);
 
     // Counters.normalize(sentenceNGrams);
 
-    double startSim = Counters.jaccardCoefficient(startWords, sentenceNGrams);
-    double endSim = Counters.jaccardCoefficient(endWords, sentenceNGrams);
+    double [] similarities = new double[2];
+    startEndScorer.similarities(sentenceNGrams, similarities);
+    double startSim = similarities[0];
+    double endSim = similarities[1];
 
     double sum = (startSim + endSim);
     startSim = startSim / sum;
     endSim = endSim / sum;
 
     if (startSim > endSim + startEndThreshold) {
-      Log.info("gets start with " + startSim + " and " + endSim);
+      if (Log.isInfo()) Log.info("gets start with " + startSim + " and " + endSim);
       return STARTOREND.START;
     } else if (startSim + startEndThreshold < endSim) {
-      Log.info("gets end with " + startSim + " and " + endSim);
+      if (Log.isInfo()) Log.info("gets end with " + startSim + " and " + endSim);
       return STARTOREND.END;
     } else {
-      Log.info("gets none with " + startSim + " and " + endSim);
+      if (Log.isInfo()) Log.info("gets none with " + startSim + " and " + endSim);
       return STARTOREND.NONE;
     }
 
@@ -151,7 +170,7 @@ public class KBPTemporal {
     String startDateVal = null;
     if (t != null) {
       startDateVal = t.toISOString();
-      if (startDateVal != null && startDateVal.matches(".*\\d.*")) {
+      if (startDateVal != null && HAS_DIGIT.matcher(startDateVal).matches()) {
         startDateVal = startDateVal.substring(0, Math.min(startDateVal.length(), 10));
         if (!acceptableTokenRegex.matcher(startDateVal).matches())
           startDateVal = null;
@@ -162,7 +181,7 @@ public class KBPTemporal {
   }
 
   private static String fillYear(int year, String date) {
-    if (year > 0 && date != null && date.matches("XXXX-[\\dX][\\dX]-[\\dX][\\dX]")) {
+    if (year > 0 && date != null && UNKNOWN_YEAR_DATE.matcher(date).matches()) {
       return year + date.substring(4, date.length());
     }
     return date;
@@ -175,7 +194,7 @@ public class KBPTemporal {
    */
   private static String fillDate(String date, boolean begin) {
 
-    if (date != null && date.matches("[\\dX][\\dX][\\dX][\\dX]-[\\d][\\d]")) {
+    if (date != null && YEAR_MONTH.matcher(date).matches()) {
 
       if (begin)
         return date + "-01";
@@ -183,7 +202,7 @@ public class KBPTemporal {
       Calendar calendar = Calendar.getInstance();
       String yearStr = date.substring(0, 4);
       int year;
-      if (!yearStr.matches("\\d\\d\\d\\d"))
+      if (!YEAR.matcher(yearStr).matches())
         // random year!
         year = 2010;
       else
@@ -196,7 +215,7 @@ public class KBPTemporal {
     return date;
   }
 
-  private static TemporalWithSpan processTimeExpressions(int tokenBeginNum, int tokenEndNum, List<CoreLabel> tokens, Temporal dateExp, Temporal dateExp2, int tokenBeginNum2,
+  private static TemporalWithSpan processTimeExpressions(int tokenBeginNum, int tokenEndNum, List<String> words, Temporal dateExp, Temporal dateExp2, int tokenBeginNum2,
       int tokenEndNum2) {
     IsoDate t1 = null, t2 = null, t3 = null, t4 = null;
 
@@ -211,10 +230,10 @@ public class KBPTemporal {
 
     int year = -1;
     if (dateValue2 != null) {
-      if (dateValue2.length() >= 4 && dateValue2.substring(0, 4).matches("\\d\\d\\d\\d") && (dateValue.length() < 4 || !dateValue.substring(0, 4).contains("\\d\\d\\d\\d"))) {
+      if (dateValue2.length() >= 4 && YEAR.matcher(dateValue2.substring(0, 4)).matches() && (dateValue.length() < 4 || !dateValue.substring(0, 4).contains("\\d\\d\\d\\d"))) {
         year = Integer.parseInt(dateValue2.substring(0, 4));
 
-      } else if (dateValue.length() >= 4 && dateValue.substring(0, 4).matches("\\d\\d\\d\\d") && (dateValue2.length() < 4 || !dateValue2.substring(0, 4).contains("\\d\\d\\d\\d"))) {
+      } else if (dateValue.length() >= 4 && YEAR.matcher(dateValue.substring(0, 4)).matches() && (dateValue2.length() < 4 || !dateValue2.substring(0, 4).contains("\\d\\d\\d\\d"))) {
         year = Integer.parseInt(dateValue2.substring(0, 4));
       }
     }
@@ -247,22 +266,20 @@ public class KBPTemporal {
     startDateVal2 = fillDate(startDateVal2, true);
     endDateVal2 = fillDate(endDateVal2, false);
 
-    Log.info("val is " + dateValue + " and start/end dates are " + startDateVal + " and " + endDateVal);
-    Log.info("val2 is " + dateValue2 + " and start/end dates are " + startDateVal2 + " and " + endDateVal2);
+    Log.info("val is {} and start/end dates are {} and {}", dateValue, startDateVal, endDateVal);
+    Log.info("val2 is {} and start/end dates are {} and {}", dateValue2, startDateVal2, endDateVal2);
 
     if (startDateVal == null && endDateVal == null && startDateVal2 == null && endDateVal2 == null) {
       Log.info("not accepted since both start and end date are null");
       return null;
     }
 
-    Pattern exactDate = Pattern.compile("\\d\\d\\d\\d-\\d\\d-\\d\\d");
-
     boolean isExactDate = false;
-    if (exactDate.matcher(dateValue).matches())
+    if (EXACT_DATE.matcher(dateValue).matches())
       isExactDate = true;
 
     boolean isExactDate2 = false;
-    if (dateValue2 != null && exactDate.matcher(dateValue2).matches())
+    if (dateValue2 != null && EXACT_DATE.matcher(dateValue2).matches())
       isExactDate2 = true;
 
     // if there are two dates, just use them such that first date fills T1, T2
@@ -288,7 +305,7 @@ public class KBPTemporal {
     }
 
     if (useStartEnd) {
-      STARTOREND sore = getStartOrEnd(tokens, tokenBeginNum, tokenEndNum, dateValue);
+      STARTOREND sore = getStartOrEnd(words, tokenBeginNum, tokenEndNum, dateValue);
       if (sore.equals(STARTOREND.START)) {
         t1 = new IsoDate(startDateVal.substring(0, 4), startDateVal.substring(5, 7), startDateVal.substring(8, 10));
         t2 = new IsoDate(endDateVal.substring(0, 4), endDateVal.substring(5, 7), endDateVal.substring(8, 10));
@@ -414,6 +431,29 @@ public class KBPTemporal {
   }
 
   public static List<TemporalWithSpan> getSlotValues(List<CoreMap> timeCluster, List<CoreLabel> tokens) throws Exception {
+    return clusterSlotValues(timeCluster, words(tokens));
+  }
+
+  /**
+   * Slot values of all the time clusters of one document, in one pass: the document words are extracted once,
+   *   and shared by the start/end classification of all date mentions
+   */
+  public static List<TemporalWithSpan> getDocumentSlotValues(List<List<CoreMap>> timeClusters, List<CoreLabel> tokens) throws Exception {
+    List<String> words = words(tokens);
+    List<TemporalWithSpan> slotValues = new ArrayList<TemporalWithSpan>();
+    for (List<CoreMap> timeCluster : timeClusters) {
+      slotValues.addAll(clusterSlotValues(timeCluster, words));
+    }
+    return slotValues;
+  }
+
+  private static List<String> words(List<CoreLabel> tokens) {
+    List<String> words = new ArrayList<String>(tokens.size());
+    for (CoreLabel token : tokens) words.add(token.word());
+    return words;
+  }
+
+  private static List<TemporalWithSpan> clusterSlotValues(List<CoreMap> timeCluster, List<String> words) throws Exception {
 
     if (timeCluster.size() > 2)
       throw new Exception("can't process cluster whose size is greater than 2. How did it reach here?");
@@ -438,8 +478,8 @@ public class KBPTemporal {
     int tokenBeginNum2 = timeExp2 != null ? timeExp2.get(CoreAnnotations.TokenBeginAnnotation.class) : -1;
     int tokenEndNum2 = timeExp2 != null ? timeExp2.get(CoreAnnotations.TokenEndAnnotation.class) : -1;
 
-    TemporalWithSpan s = processTimeExpressions(tokenBeginNum, tokenEndNum, tokens, t, t2, tokenBeginNum2, tokenEndNum2);
-    Log.info("The temporal slot values are: " + s != null ? s.toString() : null);
+    TemporalWithSpan s = processTimeExpressions(tokenBeginNum, tokenEndNum, words, t, t2, tokenBeginNum2, tokenEndNum2);
+    Log.info("The temporal slot values are: {}", s);
     if (s != null)
       spansInCluster.add(s);
 
@@ -450,7 +490,7 @@ public class KBPTemporal {
 
   public static void normalize(String date) {
     // assuming northern hemisphere - fall is from Sept to Nov
-    if (Pattern.matches("\\d\\d\\d\\d-FA", date) || date.equals("XXXX-FA")) {
+    if (FALL.matcher(date).matches() || date.equals("XXXX-FA")) {
       String year = date.substring(0, 4);
       @SuppressWarnings("unused")
       String startDate = year + "-09-01";
@@ -458,20 +498,20 @@ public class KBPTemporal {
       String endDate = year + "-11-30";
     }
     // assuming northern hemisphere - spring is March till May
-    else if (Pattern.matches("\\d\\d\\d\\d-SP", date) || date.equals("XXXX-SP")) {
+    else if (SPRING.matcher(date).matches() || date.equals("XXXX-SP")) {
       String year = date.substring(0, 4);
       @SuppressWarnings("unused")
       String startDate = year + "-03-01";
       @SuppressWarnings("unused")
       String endDate = year + "-05-31";
 
-    } else if (Pattern.matches("\\d\\d\\d\\d-SU", date) || date.equals("XXXX-SU")) {
+    } else if (SUMMER.matcher(date).matches() || date.equals("XXXX-SU")) {
       String year = date.substring(0, 4);
       @SuppressWarnings("unused")
       String startDate = year + "-06-01";
       @SuppressWarnings("unused")
       String endDate = year + "-08-31";
-    } else if (Pattern.matches("\\d\\d\\d\\d-WI", date) || date.equals("XXXX-WI")) {
+    } else if (WINTER.matcher(date).matches() || date.equals("XXXX-WI")) {
       String year = date.substring(0, 4);
       @SuppressWarnings("unused")
       String startDate;
@@ -488,15 +528,15 @@ public class KBPTemporal {
   public static Pair<String, String> normalizeDate(String date) {
 
     Pair<String, String> startEndDate = new Pair<String, String>();
-    if (Pattern.matches("\\d\\d\\d\\d-\\d\\d-\\d\\d", date)) {
+    if (EXACT_DATE.matcher(date).matches()) {
       startEndDate.setFirst(date);
       startEndDate.setSecond(date);
-    } else if (Pattern.matches("\\d\\d\\d\\d-\\d\\d", date)) {
+    } else if (EXACT_MONTH.matcher(date).matches()) {
       Calendar cal = new GregorianCalendar();
       int maxDayOfMonth = cal.getActualMaximum(Calendar.DAY_OF_MONTH);
       startEndDate.setFirst(date + "-01");
       startEndDate.setSecond(date + "-" + maxDayOfMonth);
-    } else if (Pattern.matches("\\d\\d\\d\\d", date)) {
+    } else if (YEAR.matcher(date).matches()) {
       startEndDate.setFirst(date + "-01-01");
       startEndDate.setSecond(date + "-12-31");
     }
@@ -15,6 +15,7 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Random;
@@ -24,6 +25,10 @@ import edu.stanford.nlp.classify.GeneralDataset;
 import edu.stanford.nlp.classify.WeightedDataset;
 import edu.stanford.nlp.ie.machinereading.structure.RelationMention;
 import edu.stanford.nlp.io.FileSystem;
+import edu.stanford.nlp.kbp.slotfilling.classify.BinaryModel;
+import edu.stanford.nlp.kbp.slotfilling.classify.BinaryModelConverter;
+import edu.stanford.nlp.kbp.slotfilling.classify.ConvergenceMonitor;
+import edu.stanford.nlp.kbp.slotfilling.classify.HashedFeatureIndex;
 import edu.stanford.nlp.kbp.slotfilling.classify.JointlyTrainedRelationExtractor;
 import edu.stanford.nlp.kbp.slotfilling.classify.ModelType;
 import edu.stanford.nlp.kbp.slotfilling.classify.MultiLabelDataset;
@@ -34,19 +39,23 @@ import edu.stanford.nlp.kbp.slotfilling.common.Constants;
 import edu.stanford.nlp.kbp.slotfilling.common.KBPEntity;
 import edu.stanford.nlp.kbp.slotfilling.common.KBPSlot;
 import edu.stanford.nlp.kbp.slotfilling.common.Log;
+import edu.stanford.nlp.kbp.slotfilling.common.Metrics;
 import edu.stanford.nlp.kbp.slotfilling.common.MinimalDatum;
 import edu.stanford.nlp.kbp.slotfilling.common.ProcessWrapper;
 import edu.stanford.nlp.kbp.slotfilling.common.Props;
+import edu.stanford.nlp.kbp.slotfilling.common.RandomStreams;
 import edu.stanford.nlp.kbp.slotfilling.common.RelationDatum;
 import edu.stanford.nlp.kbp.slotfilling.distantsupervision.KBPDomReader;
 import edu.stanford.nlp.kbp.slotfilling.distantsupervision.KBPReader;
 import edu.stanford.nlp.ling.BasicDatum;
+import edu.stanford.nlp.ling.Datum;
 import edu.stanford.nlp.stats.ClassicCounter;
 import edu.stanford.nlp.stats.Counter;
 import edu.stanford.nlp.stats.Counters;
 import edu.stanford.nlp.util.Pair;
 import edu.stanford.nlp.util.PropertiesUtils;
 import edu.stanford.nlp.util.StringUtils;
+import edu.stanford.nlp.util.Triple;
 
 /**
  * Trains the relex model for KBP
@@ -177,12 +186,18 @@ public KBPTrainer(Properties props) throws Exception {
     this.slotsByEntityId = slots;
   }
 
-  public static void subsampleNegatives(List<File> trainDatumFiles, File negFile, double subsamplingProb) throws IOException {
+  /**
+   * Saves the lines of the datum files with negatives, each with probability subsamplingProb
+   * Each file is sampled with its own random stream, keyed by its name, so the sample of a file
+   *   does not depend on the other files in the list
+   */
+  public static void subsampleNegatives(List<File> trainDatumFiles, File negFile, double subsamplingProb,
+      RandomStreams randomStreams) throws IOException {
     Log.severe("Subsampling negative datums...");
     PrintStream os = new PrintStream(new FileOutputStream(negFile));
-    Random random = new Random(0);
     int total = 0, selected = 0;
     for (File trainDatumFile : trainDatumFiles) {
+      Random random = randomStreams.stream("negatives/" + trainDatumFile.getName());
       BufferedReader is = new BufferedReader(new FileReader(trainDatumFile));
       for (String line; (line = is.readLine()) != null;) {
         List<MinimalDatum> minDatums = MinimalDatum.lineToDatum(line);
@@ -227,6 +242,18 @@ public KBPTrainer(Properties props) throws Exception {
       Map<String, Set<String>> slotsById,
       boolean considerNegatives,
       Map<String, RelationDatum> datums) throws IOException {
+    loadRelationDatumsFromFile(trainFile, slotsById, considerNegatives, 1.0, datums);
+  }
+  
+  /**
+   * @param sampleRatio Keeps only this fraction of the (entity, slot) groups; the sample depends only on the group key,
+   *   so all lines of a group are kept or skipped together
+   */
+  private static void loadRelationDatumsFromFile(File trainFile,
+      Map<String, Set<String>> slotsById,
+      boolean considerNegatives,
+      double sampleRatio,
+      Map<String, RelationDatum> datums) throws IOException {
     Log.severe("Processing file " + trainFile.getAbsolutePath() + "...");
     BufferedReader is = new BufferedReader(new FileReader(trainFile));
     int lineCount = 0;
@@ -235,8 +262,7 @@ public KBPTrainer(Properties props) throws Exception {
       
       RelationDatum relDatum = RelationDatum.lineToDatum(line);
       if (slotsById.get(relDatum.entityId()) == null) {
-        Log.fine("WARNING: Unknown slots for id: " + relDatum.entityId()
-            + ". This happens because this entity was filtered out from the KB. Continuing.");
+        Log.fine("WARNING: Unknown slots for id: {}. This happens because this entity was filtered out from the KB. Continuing.", relDatum.entityId());
         continue;
       }
       
@@ -245,6 +271,10 @@ public KBPTrainer(Properties props) throws Exception {
         continue;
       }
       
+      if(sampleRatio < 1.0 && (relDatum.key().hashCode() & Integer.MAX_VALUE) % 10000 >= sampleRatio * 10000) {
+        continue;
+      }
+      
       // the current datums might have to be merged with a previously see one
       RelationDatum seenDatum = datums.get(relDatum.key());
       if(seenDatum == null){
@@ -259,7 +289,7 @@ public KBPTrainer(Properties props) throws Exception {
     }
     is.close();
 
-    if(datums.size() == 0) {
+    if(datums.size() == 0 && sampleRatio >= 1.0) {
       throw new RuntimeException("ERROR: cannot have 0 datums after loading a datum file!");
     }
   }
@@ -314,7 +344,8 @@ public KBPTrainer(Properties props) throws Exception {
     //
     // build dataset and discard the datums
     //
-    MultiLabelDataset<String, String> dataset = new MultiLabelDataset<String, String>();
+    MultiLabelDataset<String, String> dataset = 
+      new MultiLabelDataset<String, String>(HashedFeatureIndex.<String>makeFeatureIndex(props));
     for(RelationDatum d: datums) {
 
     	//if(d.slotTypes().size() > 1)
@@ -339,6 +370,8 @@ public KBPTrainer(Properties props) throws Exception {
     //
     Log.severe("Applying feature selection with threshold " + featureCountThreshold + "...");
     dataset.applyFeatureCountThreshold(featureCountThreshold);
+    if(dataset.featureIndex() instanceof HashedFeatureIndex<?>)
+      ((HashedFeatureIndex<String>) dataset.featureIndex()).logCollisionReport();
     
 //    System.out.println("AJAY: DATASET SZ: "+ dataset.getDataArray().length);
 //    int sz = 0;
@@ -354,11 +387,214 @@ public KBPTrainer(Properties props) throws Exception {
     // actual training
     //
     JointlyTrainedRelationExtractor extractor = factory.makeJointExtractor(props);
+    extractor.setConvergenceMonitor(new ConvergenceMonitor(props));
+    long start = Metrics.start();
     extractor.train(dataset);
+    Metrics.stop("training.train", start);
     extractor.save(makeModelPath());
+    if(PropertiesUtils.getBool(props, Props.MODEL_BINARY, false)) saveBinaryModel(extractor, makeModelPath(), props);
+    saveTrainingFiles(makeModelPath(), trainDatumFiles, Arrays.asList(negFile));
     relationExtractor = extractor;
   }
   
+  /**
+   * Continues training the existing model with the datum files generated after it was trained (see Props.TRAIN_INCREMENTAL)
+   * The extractor extends its feature index with the new features, and runs train.incremental.epochs warm-started
+   *   epochs over the new groups plus a sample (train.incremental.replay) of the old groups.
+   * The result is saved as a new model version (kbp_relation_model.TYPE.RATIO.vN.ser), and as the current model.
+   * If train.incremental.compare is set, this fraction of the new groups is held out from training, and the held-out F1
+   *   of the result is compared with that of a model trained from scratch on the same datums (see compareWithScratchModel).
+   */
+  public void trainIncrementally(Properties props, List<File> trainDatumFiles) throws IOException, ClassNotFoundException {
+    String modelPath = makeModelPath();
+    
+    //
+    // find the datum files that are not part of the model yet
+    //
+    List<File> oldDatumFiles = new ArrayList<File>();
+    List<File> oldNegFiles = new ArrayList<File>();
+    if(! readTrainingFiles(modelPath, oldDatumFiles, oldNegFiles)) {
+      // a model trained before the files were recorded: use the files that are older than the model
+      Log.severe("WARNING: no list of training files found for " + modelPath + ". Using the datum files older than this model.");
+      long modelTime = new File(modelPath).lastModified();
+      for(File f: trainDatumFiles) {
+        if(f.lastModified() <= modelTime) {
+          oldDatumFiles.add(f.getAbsoluteFile());
+          File negFile = new File(f.getAbsoluteFile().getParentFile(), 
+              "datums_" + (int) (100.0 * samplingRatio) + ".negatives");
+          if(negFile.exists() && ! oldNegFiles.contains(negFile)) oldNegFiles.add(negFile);
+        }
+      }
+    }
+    Set<File> known = new HashSet<File>(oldDatumFiles);
+    List<File> newDatumFiles = new ArrayList<File>();
+    for(File f: trainDatumFiles) {
+      if(! known.contains(f.getAbsoluteFile())) newDatumFiles.add(f.getAbsoluteFile());
+    }
+    if(newDatumFiles.size() == 0) {
+      Log.severe("No new datum files for " + modelPath + ". Nothing to train.");
+      return;
+    }
+    int version = nextModelVersion(modelPath);
+    Log.severe("Training version " + version + " of " + modelPath + " with " + newDatumFiles.size() + " new datum files.");
+    
+    // negatives of the new files only
+    File newNegFile = new File(newDatumFiles.get(0).getParentFile(), 
+        "datums_" + (int) (100.0 * samplingRatio) + ".v" + version + ".negatives");
+    if(! newNegFile.exists()) {
+      KBPTrainer.subsampleNegatives(newDatumFiles, newNegFile, samplingRatio, RandomStreams.fromProperties(props));
+    }
+    
+    //
+    // load the new groups and a sample of the old ones
+    //
+    double replay = PropertiesUtils.getDouble(props, Props.TRAIN_INCREMENTAL_REPLAY, 0.1);
+    int epochs = PropertiesUtils.getInt(props, Props.TRAIN_INCREMENTAL_EPOCHS, 2);
+    Map<String, RelationDatum> datums = new HashMap<String, RelationDatum>();
+    for(File f: oldDatumFiles) loadRelationDatumsFromFile(f, slotsByEntityId, false, replay, datums);
+    for(File f: oldNegFiles) loadRelationDatumsFromFile(f, slotsByEntityId, true, replay, datums);
+    int replayed = datums.size();
+    double compare = PropertiesUtils.getDouble(props, Props.TRAIN_INCREMENTAL_COMPARE, 0.0);
+    Set<String> replayedKeys = (compare > 0 ? new HashSet<String>(datums.keySet()) : null);
+    for(File f: newDatumFiles) loadRelationDatumsFromFile(f, slotsByEntityId, false, datums);
+    loadRelationDatumsFromFile(newNegFile, slotsByEntityId, true, datums);
+    generateNegativeLabels(datums, slotsByEntityId);
+    Log.severe("Loaded " + datums.size() + " datum groups, out of which " + replayed + " were replayed from the old datum files.");
+    List<RelationDatum> heldOut = new ArrayList<RelationDatum>();
+    if(compare > 0) {
+      // only new groups: the old model was trained on the replayed ones
+      List<String> newKeys = new ArrayList<String>();
+      for(String key: datums.keySet()) if(! replayedKeys.contains(key)) newKeys.add(key);
+      Collections.sort(newKeys);
+      Collections.shuffle(newKeys, RandomStreams.fromProperties(props).stream("incremental.compare"));
+      for(String key: newKeys.subList(0, (int) (newKeys.size() * compare))) heldOut.add(datums.remove(key));
+      Log.severe("Holding out " + heldOut.size() + " new datum groups to compare with a model trained from scratch.");
+    }
+    
+    RelationExtractor loaded = factory.loadSerialized(modelPath, props);
+    if(! (loaded instanceof JointlyTrainedRelationExtractor)) {
+      throw new RuntimeException("ERROR: incremental training is not supported for " + factory.modelType());
+    }
+    JointlyTrainedRelationExtractor extractor = (JointlyTrainedRelationExtractor) loaded;
+    // the streams and the convergence monitor are not saved with the model
+    extractor.setRandomStreams(RandomStreams.fromProperties(props));
+    extractor.setConvergenceMonitor(new ConvergenceMonitor(props));
+    
+    //
+    // build the dataset in the feature space of the model, and discard the datums
+    //
+    MultiLabelDataset<String, String> dataset = extractor.makeIncrementalDataset();
+    int knownFeatures = dataset.featureIndex().size();
+    for(RelationDatum d: datums.values()) {
+      String entityVal = entitiesIdNameMap().get(d.entityId());
+      String slotVal = d.slotValue().replace('_', ' ');
+      dataset.addDatum(d.yPos(), d.yNeg(), d.datums(), entityVal, d.entityType(), slotVal, d.slotTypes());
+    }
+    datums = null; // can be GCed now
+    Log.severe("Applying feature selection with threshold " + featureCountThreshold + " to the " + 
+        (dataset.featureIndex().size() - knownFeatures) + " new features...");
+    dataset.applyFeatureCountThreshold(featureCountThreshold, knownFeatures);
+    if(dataset.featureIndex() instanceof HashedFeatureIndex<?>)
+      ((HashedFeatureIndex<String>) dataset.featureIndex()).logCollisionReport();
+    
+    // training shuffles the dataset in place
+    MultiLabelDataset<String, String> scratchDataset = (heldOut.isEmpty() ? null : dataset.copy());
+    
+    //
+    // actual training
+    //
+    long start = Metrics.start();
+    extractor.trainIncrementally(dataset, epochs);
+    Metrics.stop("training.incremental", start);
+    if(! heldOut.isEmpty()) compareWithScratchModel(props, extractor, scratchDataset, heldOut);
+    
+    // keep the from-scratch model as version 0
+    if(version == 1) FileSystem.copyFile(new File(modelPath), new File(versionedModelPath(modelPath, 0)));
+    List<File> negFiles = new ArrayList<File>(oldNegFiles);
+    negFiles.add(newNegFile);
+    List<File> datumFiles = new ArrayList<File>(oldDatumFiles);
+    datumFiles.addAll(newDatumFiles);
+    for(String path: Arrays.asList(versionedModelPath(modelPath, version), modelPath)) {
+      extractor.save(path);
+      if(PropertiesUtils.getBool(props, Props.MODEL_BINARY, false)) saveBinaryModel(extractor, path, props);
+      saveTrainingFiles(path, datumFiles, negFiles);
+    }
+    Log.severe("Saved version " + version + " of the model in " + versionedModelPath(modelPath, version));
+    relationExtractor = extractor;
+  }
+  
+  /**
+   * Acceptance check of incremental training: trains a model from scratch on the datums of the incremental model,
+   *   and logs the held-out scores of both, and the difference of their F1
+   */
+  private void compareWithScratchModel(Properties props, JointlyTrainedRelationExtractor incremental,
+      MultiLabelDataset<String, String> dataset, List<RelationDatum> heldOut) throws IOException {
+    List<List<Collection<String>>> relations = new ArrayList<List<Collection<String>>>();
+    List<Set<String>> goldLabels = new ArrayList<Set<String>>();
+    for(RelationDatum d: heldOut) {
+      List<Collection<String>> mentions = new ArrayList<Collection<String>>();
+      for(Datum<String, String> datum: d.datums()) mentions.add(datum.asFeatures());
+      relations.add(mentions);
+      goldLabels.add(d.yPos());
+    }
+    
+    Log.severe("Training a model from scratch on the " + dataset.size() + " datum groups of the incremental model...");
+    JointlyTrainedRelationExtractor scratch = factory.makeJointExtractor(props);
+    scratch.setConvergenceMonitor(new ConvergenceMonitor(props));
+    long start = Metrics.start();
+    scratch.train(dataset);
+    Metrics.stop("training.incremental.scratch", start);
+    
+    Triple<Double, Double, Double> incrementalScore = incremental.test(relations, goldLabels, null);
+    Triple<Double, Double, Double> scratchScore = scratch.test(relations, goldLabels, null);
+    Log.severe(String.format(Locale.US, "Held-out scores on %d groups: incremental P %.4f R %.4f F1 %.4f; " +
+        "from scratch P %.4f R %.4f F1 %.4f; F1 difference %+.4f",
+        heldOut.size(), incrementalScore.first(), incrementalScore.second(), incrementalScore.third(),
+        scratchScore.first(), scratchScore.second(), scratchScore.third(),
+        incrementalScore.third() - scratchScore.third()));
+  }
+  
+  /** Saves the binary model next to the serialized one at modelPath, and checks that both score the same */
+  private void saveBinaryModel(RelationExtractor extractor, String modelPath, Properties props) throws IOException {
+    String binaryPath = modelPath + BinaryModel.EXTENSION;
+    extractor.saveBinary(binaryPath, props);
+    BinaryModelConverter.verify(factory, modelPath, binaryPath, props);
+  }
+  
+  static String versionedModelPath(String modelPath, int version) {
+    assert(modelPath.endsWith(Constants.SER_EXT));
+    return modelPath.substring(0, modelPath.length() - Constants.SER_EXT.length()) + ".v" + version + Constants.SER_EXT;
+  }
+  
+  private static int nextModelVersion(String modelPath) {
+    int version = 1;
+    while(new File(versionedModelPath(modelPath, version)).exists()) version ++;
+    return version;
+  }
+  
+  /** Records the datum and negatives files used to train this model, so incremental training can find the new ones */
+  private static void saveTrainingFiles(String modelPath, List<File> datumFiles, List<File> negFiles) throws IOException {
+    PrintStream os = new PrintStream(new FileOutputStream(modelPath + TRAINING_FILES_EXT));
+    for(File f: datumFiles) os.println("datums\t" + f.getAbsolutePath());
+    for(File f: negFiles) os.println("negatives\t" + f.getAbsolutePath());
+    os.close();
+  }
+  
+  /** @return false if this model has no list of training files */
+  private static boolean readTrainingFiles(String modelPath, List<File> datumFiles, List<File> negFiles) throws IOException {
+    File f = new File(modelPath + TRAINING_FILES_EXT);
+    if(! f.exists()) return false;
+    BufferedReader is = new BufferedReader(new FileReader(f));
+    for(String line; (line = is.readLine()) != null; ) {
+      String [] bits = line.split("\t", 2);
+      if(bits.length != 2) continue;
+      if(bits[0].equals("datums")) datumFiles.add(new File(bits[1]));
+      else if(bits[0].equals("negatives")) negFiles.add(new File(bits[1]));
+    }
+    is.close();
+    return true;
+  }
+  
   private static void printStats(Counter<String> stats, String name) {
     List<Pair<String,Double>> sorted = Counters.toDescendingMagnitudeSortedListWithCounts(stats);
     Log.severe("Stats for labels of type " + name);
@@ -451,8 +687,7 @@ public KBPTrainer(Properties props) throws Exception {
       List<MinimalDatum> minDatums = MinimalDatum.lineToDatum(line);
       for(MinimalDatum minDatum: minDatums) {
         if (slotsById.get(minDatum.entityId()) == null) {
-          Log.fine("WARNING: Unknown slots for id: " + minDatum.entityId()
-              + ". This happens because this entity was filtered out from the KB. Continuing.");
+          Log.fine("WARNING: Unknown slots for id: {}. This happens because this entity was filtered out from the KB. Continuing.", minDatum.entityId());
           continue;
         }
 
@@ -588,6 +823,7 @@ public KBPTrainer(Properties props) throws Exception {
     Properties props = StringUtils.argsToProperties(args);
     Log.setLevel(Log.stringToLevel(props.getProperty(Props.LOG_LEVEL)));
     Log.severe("Using run id: " + props.getProperty(Props.RUN_ID) + " in working directory " + props.getProperty(Props.WORK_DIR));
+    Metrics.configure(props);
 
     if (props.containsKey(Props.INPUT)) {
       datumGeneration(props);
@@ -605,11 +841,14 @@ public KBPTrainer(Properties props) throws Exception {
       train(props);
       if(EVALUATE_AFTER_TRAIN) evaluate(props);
     }
+
+    Metrics.report(props);
   }
 
   private static final String DATUM_GEN_MEMORY = "4g";
   private static final String TRAINER_MEMORY = "12g";
   static final String PROP_FILE = "kbp.properties";
+  static final String TRAINING_FILES_EXT = ".files";
   static final String KB_EXTENSION = ".xml";
   private static final int SLEEP_MILISECONDS = 60000;
   @SuppressWarnings("unused")
@@ -696,7 +935,7 @@ public KBPTrainer(Properties props) throws Exception {
       File negFile = new File(trainDir + File.separator + 
           "datums_" + (int) (100.0 * ratio) + ".negatives");
       if(! negFile.exists()) {
-        KBPTrainer.subsampleNegatives(trainDatumFiles, negFile, ratio);
+        KBPTrainer.subsampleNegatives(trainDatumFiles, negFile, ratio, RandomStreams.fromProperties(props));
       }
     }
   }
@@ -723,7 +962,7 @@ public KBPTrainer(Properties props) throws Exception {
         negFile = new File(trainDir + File.separator + 
             "datums_" + (int) (100.0 * samplingRatio) + ".negatives");
         if(! negFile.exists()) {
-          KBPTrainer.subsampleNegatives(trainDatumFiles, negFile, samplingRatio);
+          KBPTrainer.subsampleNegatives(trainDatumFiles, negFile, samplingRatio, RandomStreams.fromProperties(props));
         }
       }
       
@@ -734,6 +973,12 @@ public KBPTrainer(Properties props) throws Exception {
         trainer.trainAtLeastOnce(props, trainDatumFiles, negFile);
       } 
       Log.severe("Training complete.");
+    } else if (PropertiesUtils.getBool(props, Props.TRAIN_INCREMENTAL, false)) {
+      if (factory.isLocallyTrained()) {
+        throw new RuntimeException("ERROR: incremental training is not supported for " + factory.modelType());
+      }
+      trainer.trainIncrementally(props, fetchFiles(trainDir.getAbsolutePath(), ".datums"));
+      Log.severe("Incremental training complete.");
     }
   }
 
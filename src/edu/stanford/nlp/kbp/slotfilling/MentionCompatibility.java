@@ -63,7 +63,7 @@ public class MentionCompatibility {
 
       if (compatibleSlots(s1, ne1, s2, ne2) || 
           compatibleSlots(s2, ne2, s1, ne1)) {
-        Log.fine("Found compatible relation mentions with different slots: " + r1 + " " + r2);
+        Log.fine("Found compatible relation mentions with different slots: {} {}", r1, r2);
         return true;
       }
     }
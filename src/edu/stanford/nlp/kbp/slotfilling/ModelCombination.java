@@ -2,68 +2,178 @@ package edu.stanford.nlp.kbp.slotfilling;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
-import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import edu.stanford.nlp.kbp.slotfilling.common.Constants;
 import edu.stanford.nlp.kbp.slotfilling.common.KBPEntity;
+import edu.stanford.nlp.kbp.slotfilling.common.Log;
 import edu.stanford.nlp.kbp.slotfilling.common.Props;
 import edu.stanford.nlp.stats.ClassicCounter;
 import edu.stanford.nlp.stats.Counter;
 import edu.stanford.nlp.stats.Counters;
-import edu.stanford.nlp.util.CollectionFactory;
-import edu.stanford.nlp.util.CollectionValuedMap;
-import edu.stanford.nlp.util.MapFactory;
+import edu.stanford.nlp.util.HashIndex;
+import edu.stanford.nlp.util.Index;
 import edu.stanford.nlp.util.Pair;
 import edu.stanford.nlp.util.PropertiesUtils;
 import edu.stanford.nlp.util.StringUtils;
 
+/**
+ * Combines the outputs of several systems by (optionally weighted) voting on the slot values of each (query, slot) pair.
+ * Query ids and slot names are interned, so each (query, slot) pair is a group with an int id; the inputs are read
+ *   in parallel, and everything that does not depend on the combination strategy is computed once per group.
+ * If any of the model.combination.grid.* lists has more than one value, all combinations of these strategies are
+ *   scored in memory, in parallel (model.combination.threads), against the key file, which is loaded only once.
+ *   The ranked strategies are saved in runId.combination_grid.tsv in the work directory; the best one is used for the output.
+ * The combined output is saved in runId.combined.output and scored with the official scorer.
+ */
 public class ModelCombination {
-  
-  public static void main(String[] args) throws Exception {
-    Properties props = StringUtils.argsToProperties(args);
-    
-    String[] inputFiles = PropertiesUtils.getStringArray(props, Props.MODEL_COMBINATION_INPUT_FILES);
-    String runId = props.getProperty(Props.RUN_ID);
-    double scoreThreshold = PropertiesUtils.getDouble(props, Props.SLOT_THRESHOLD);
-    double weightedScoreBias = PropertiesUtils.getDouble(props, Props.MODEL_COMBINATION_SCORE_BIAS);
-    boolean anydoc = PropertiesUtils.getBool(props, Props.ANYDOC, 
-                                             Constants.DEFAULT_ANYDOC);
-    Map<String, String> queryIdToNerType = new HashMap<String, String>(); 
-    
-    Map<String, KBPEntity> allQueries = KBPEvaluator.loadQueryFile(props.getProperty(Props.TEST_QUERIES));
-    Map<String, Set<String>> ignores = computeIgnores(allQueries);
-    System.err.println("Slots to be ignored:");
-    for(String id: ignores.keySet()) {
-      System.err.println("\t" + id + ": " + ignores.get(id));
+  static final String GRID_FILE_EXT = ".combination_grid.tsv";
+
+  /** How votes are weighted, and the minimum (weighted) vote a slot value needs */
+  static class Strategy {
+    final double threshold;
+    final boolean weightByScores;
+    final double scoreBias;
+    final double nilWeight;
+
+    Strategy(double threshold, boolean weightByScores, double scoreBias, double nilWeight) {
+      this.threshold = threshold;
+      this.weightByScores = weightByScores;
+      this.scoreBias = scoreBias;
+      this.nilWeight = nilWeight;
     }
-    
-    //
-    // load relations from all input files, grouping results into a { (queryId, slotName) : list of matching QueryResult objects }
-    //
-    
-    // on a personal note, this is probably the nastiest Java I've ever written
-    MapFactory<Pair<String, String>, Collection<QueryResult>> hashMapFactory = MapFactory.<Pair<String,String>,Collection<QueryResult>>hashMapFactory();
-    CollectionFactory<QueryResult> arrayListFactory = CollectionFactory.<QueryResult>arrayListFactory();
-    CollectionValuedMap<Pair<String,String>, QueryResult> relationToQueryResults =
-      new CollectionValuedMap<Pair<String,String>, QueryResult>(hashMapFactory, arrayListFactory, false);
-    
-    for (String inputFile : inputFiles) {
-      // this determines whether our inputs were produced with model.combination.enabled or not
-      boolean inputsHaveScores = PropertiesUtils.getBool(props, Props.MODEL_COMBINATION_INPUTS_HAVE_SCORES);
-      for (QueryResult queryResult :  QueryResult.readSystemOutput(inputFile, inputsHaveScores)) {
+
+    @Override
+    public String toString() {
+      return "threshold=" + threshold + ",weightByScores=" + weightByScores +
+        (weightByScores ? ",scoreBias=" + scoreBias : "") + ",nilWeight=" + nilWeight;
+    }
+  }
+
+  /** All input results for one (query, slot) pair; read-only once loaded */
+  private static class Group {
+    final String queryId;
+    final String slotName;
+    final boolean single;
+    /** In input order, which is also the order in which votes are added */
+    final List<QueryResult> results = new ArrayList<QueryResult>();
+    /** Index in values of the slot value of each result */
+    int [] valueOf;
+    /** Indices in results, sorted by QueryResult.StandardOrdering, to ensure stable output */
+    int [] sorted;
+    final List<String> values = new ArrayList<String>();
+    /** The most frequent supporting doc of each value */
+    String [] docs;
+    /** Index of NIL in values, or -1 */
+    int nil = -1;
+
+    Group(String queryId, String slotName) {
+      this.queryId = queryId;
+      this.slotName = slotName;
+      String slotType = SFScore.slotType(queryId + ":" + slotName);
+      assert !slotType.equals("error");
+      single = slotType.equals("single");
+    }
+
+    void index() {
+      Map<String, Integer> valueIds = new HashMap<String, Integer>();
+      // keep track of the set of supporting documents proposed for each slot value and their counts
+      // after voting, we will keep the most frequent document
+      List<Counter<String>> docids = new ArrayList<Counter<String>>();
+      valueOf = new int[results.size()];
+      for(int i = 0; i < results.size(); i ++) {
+        QueryResult queryResult = results.get(i);
+        Integer v = valueIds.get(queryResult.slotValue);
+        if(v == null) {
+          v = values.size();
+          valueIds.put(queryResult.slotValue, v);
+          values.add(queryResult.slotValue);
+          docids.add(new ClassicCounter<String>());
+          if(queryResult.isNull()) nil = v;
+        }
+        valueOf[i] = v;
+        if(queryResult.docId != null)
+          docids.get(v).incrementCount(queryResult.docId);
+      }
+      docs = new String[values.size()];
+      for(int v = 0; v < values.size(); v ++) docs[v] = findMostCommonDoc(docids.get(v), values.get(v));
+
+      Integer [] order = new Integer[results.size()];
+      for(int i = 0; i < order.length; i ++) order[i] = i;
+      final Comparator<QueryResult> ordering = new QueryResult.StandardOrdering();
+      Arrays.sort(order, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer o1, Integer o2) {
+          return ordering.compare(results.get(o1), results.get(o2));
+        }
+      });
+      sorted = new int[order.length];
+      for(int i = 0; i < order.length; i ++) sorted[i] = order[i];
+    }
+  }
+
+  private final String runId;
+  private final Index<String> queryIds = new HashIndex<String>();
+  private final Index<String> slotNames = new HashIndex<String>();
+  private final List<Group> groups = new ArrayList<Group>();
+  private final Map<String, String> queryIdToNerType = new HashMap<String, String>();
+
+  public ModelCombination(String runId) {
+    this.runId = runId;
+  }
+
+  /**
+   * Loads the outputs of all input systems, grouping them by (queryId, slotName)
+   * The files are parsed in parallel; their results are grouped in the order of the files, as before
+   */
+  public void load(String [] inputFiles, final boolean inputsHaveScores, int threads) throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, inputFiles.length)));
+    List<Future<List<QueryResult>>> outputs = new ArrayList<Future<List<QueryResult>>>();
+    for (final String inputFile : inputFiles) {
+      outputs.add(executor.submit(new Callable<List<QueryResult>>() {
+        @Override
+        public List<QueryResult> call() {
+          return QueryResult.readSystemOutput(inputFile, inputsHaveScores);
+        }
+      }));
+    }
+    executor.shutdown();
+
+    // (query, slot) pair -> group id
+    Map<Long, Integer> groupIds = new HashMap<Long, Integer>();
+    for (int i = 0; i < inputFiles.length; i ++) {
+      List<QueryResult> output;
+      try {
+        output = outputs.get(i).get();
+      } catch (ExecutionException e) {
+        throw new RuntimeException("ERROR: cannot read system output " + inputFiles[i], e.getCause());
+      }
+      Log.severe("Read " + output.size() + " results from " + inputFiles[i]);
+      for (QueryResult queryResult : output) {
         String queryId = queryResult.queryId;
-        Pair<String,String> key = new Pair<String,String>(queryId, queryResult.slotName);
-        relationToQueryResults.add(key, queryResult);
-        
+        long pair = ((long) queryIds.indexOf(queryId, true) << 32) | slotNames.indexOf(queryResult.slotName, true);
+        Integer id = groupIds.get(pair);
+        if (id == null) {
+          id = groups.size();
+          groupIds.put(pair, id);
+          groups.add(new Group(queryId, queryResult.slotName));
+        }
+        groups.get(id).results.add(queryResult);
+
         // extract NER types for each query ID
         if (!queryResult.isNull()) {
           String nerType = queryResult.slotName.split(":", 0)[0];
@@ -75,9 +185,11 @@ public class ModelCombination {
             queryIdToNerType.put(queryId, nerType);
           }
         }
-      } 
+      }
     }
-    
+    for (Group group : groups) group.index();
+    Log.severe("Loaded " + groups.size() + " (query, slot) pairs for " + queryIds.size() + " queries and " + slotNames.size() + " slots.");
+
     // We are missing these entities
     // TODO: fix this!!
     if(! queryIdToNerType.containsKey("SF525")) queryIdToNerType.put("SF525", "org");
@@ -85,95 +197,209 @@ public class ModelCombination {
     if(! queryIdToNerType.containsKey("SF513")) queryIdToNerType.put("SF513", "org");
     if(! queryIdToNerType.containsKey("SF509")) queryIdToNerType.put("SF509", "org");
     if(! queryIdToNerType.containsKey("SF535")) queryIdToNerType.put("SF535", "org");
-    
-    //
-    // for each (queryId, slotName), merge outputs according to the type of slotName
-    //
+  }
+
+  public Map<String, String> queryIdToNerType() { return queryIdToNerType; }
+
+  /**
+   * For each (queryId, slotName), merges outputs according to the type of slotName
+   * Reads only the loaded groups, so several strategies may be combined concurrently
+   */
+  public List<QueryResult> combine(Strategy strategy) {
     List<QueryResult> mergedResults = new ArrayList<QueryResult>();
-    for (Entry<Pair<String,String>, Collection<QueryResult>> entry : relationToQueryResults.entrySet()) {
-      Pair<String,String> pair = entry.getKey();
-      String queryId = pair.first();
-      String slotName = pair.second();
-      List<QueryResult> queryResults = new ArrayList<QueryResult>(entry.getValue());
-      
-      // keep track of the set of supporting documents proposed for each slot value and their counts
-      // after voting, we will keep the most frequent document
-      // this is a map from slot value to counter of doc ids
-      Map<String, Counter<String>> docidsForValue = new HashMap<String, Counter<String>>();
-      
+    for (Group group : groups) {
       // add (optionally weighted) votes from all the matching QueryResult objects
-      Counter<String> counts = new ClassicCounter<String>();
-      for (QueryResult queryResult : queryResults) {
+      double [] counts = new double[group.values.size()];
+      for (int i = 0; i < group.results.size(); i ++) {
+        QueryResult queryResult = group.results.get(i);
         double weight = 1;
-        
         if (queryResult.isNull()) {
-          weight = PropertiesUtils.getDouble(props, Props.MODEL_COMBINATION_NIL_WEIGHT, 1);
-        } else if (PropertiesUtils.getBool(props, Props.MODEL_COMBINATION_WEIGHT_BY_SCORES)) {
-          weight = weightedScoreBias + queryResult.score;
+          weight = strategy.nilWeight;
+        } else if (strategy.weightByScores) {
+          weight = strategy.scoreBias + queryResult.score;
         }
-        counts.incrementCount(queryResult.slotValue, weight);
-        
-        Counter<String> docids = docidsForValue.get(queryResult.slotValue);
-        if(docids == null){
-          docids = new ClassicCounter<String>();
-          docidsForValue.put(queryResult.slotValue, docids);
-        }
-        
-        if(queryResult.docId != null)
-          docids.incrementCount(queryResult.docId);
+        counts[group.valueOf[i]] += weight;
       }
-      
+
       // determine set of values to keep
-      String slotType = SFScore.slotType(queryId + ":" + slotName);
-      assert !slotType.equals("error");
-      
-      Counters.retainAbove(counts, scoreThreshold);
-      Set<String> validValues = counts.keySet();
-      
-      if (validValues.size() > 1) {
-        validValues.remove("NIL");
+      boolean [] valid = new boolean[counts.length];
+      int validCount = 0;
+      for (int v = 0; v < counts.length; v ++) {
+        valid[v] = (counts[v] >= strategy.threshold);
+        if (valid[v]) validCount ++;
+      }
+      if (validCount > 1 && group.nil >= 0) {
+        valid[group.nil] = false;
       }
-      
-      // keep only the queryResults with matching values
-      List<QueryResult> matchingQueryResults = new ArrayList<QueryResult>(); 
-      
-      // sorted to ensure stable output
-      Collections.sort(queryResults, new QueryResult.StandardOrdering());
-      
-      for (QueryResult queryResult : queryResults) {
-        String slotValue = queryResult.slotValue;
-        if (validValues.contains(slotValue)) {
-          QueryResult mergedResult = new QueryResult(queryId, slotName, runId, /*queryResult.docId*/ findMostCommonDoc(docidsForValue.get(slotValue), slotValue), slotValue);
-          mergedResult.score = counts.getCount(slotValue);
-          matchingQueryResults.add(mergedResult);
+
+      // keep only the queryResults with matching values; in stable order, so single slots always get the same first item
+      for (int i : group.sorted) {
+        int v = group.valueOf[i];
+        if (valid[v]) {
+          QueryResult mergedResult = new QueryResult(group.queryId, group.slotName, runId, group.docs[v], group.values.get(v));
+          mergedResult.score = counts[v];
+          mergedResults.add(mergedResult);
+          if (group.single) break;
         }
       }
-      
-      // we have to sort and then pick the first item since there may be more than one QueryResult with the highest score
-      // this ensures we get consistent output
-      if (slotType.equals("single") && matchingQueryResults.size() > 0) {
-        mergedResults.add(matchingQueryResults.get(0));
-      } else {
-        mergedResults.addAll(matchingQueryResults);
+    }
+    return mergedResults;
+  }
+
+  /** All combinations of the model.combination.grid.* values; each list defaults to the single non-grid value */
+  static List<Strategy> strategies(Properties props) {
+    double [] thresholds = doubles(props, Props.MODEL_COMBINATION_GRID_THRESHOLDS,
+        PropertiesUtils.getDouble(props, Props.SLOT_THRESHOLD));
+    double [] biases = doubles(props, Props.MODEL_COMBINATION_GRID_SCORE_BIASES,
+        PropertiesUtils.getDouble(props, Props.MODEL_COMBINATION_SCORE_BIAS));
+    double [] nilWeights = doubles(props, Props.MODEL_COMBINATION_GRID_NIL_WEIGHTS,
+        PropertiesUtils.getDouble(props, Props.MODEL_COMBINATION_NIL_WEIGHT, 1));
+    boolean [] weightByScores;
+    if (props.getProperty(Props.MODEL_COMBINATION_GRID_WEIGHT_BY_SCORES) != null) {
+      String [] bits = PropertiesUtils.getStringArray(props, Props.MODEL_COMBINATION_GRID_WEIGHT_BY_SCORES);
+      weightByScores = new boolean[bits.length];
+      for (int i = 0; i < bits.length; i ++) weightByScores[i] = Boolean.parseBoolean(bits[i].trim());
+    } else {
+      weightByScores = new boolean[] { PropertiesUtils.getBool(props, Props.MODEL_COMBINATION_WEIGHT_BY_SCORES) };
+    }
+
+    List<Strategy> strategies = new ArrayList<Strategy>();
+    for (double threshold : thresholds) {
+      for (boolean weight : weightByScores) {
+        for (double nilWeight : nilWeights) {
+          if (weight) {
+            for (double bias : biases) strategies.add(new Strategy(threshold, true, bias, nilWeight));
+          } else {
+            // the bias is not used without score weighting
+            strategies.add(new Strategy(threshold, false, biases[0], nilWeight));
+          }
+        }
+      }
+    }
+    return strategies;
+  }
+
+  private static double [] doubles(Properties props, String key, double defaultValue) {
+    if (props.getProperty(key) == null) return new double[] { defaultValue };
+    String [] bits = PropertiesUtils.getStringArray(props, key);
+    double [] values = new double[bits.length];
+    for (int i = 0; i < bits.length; i ++) values[i] = Double.parseDouble(bits[i].trim());
+    return values;
+  }
+
+  /**
+   * Scores all strategies in memory against the same key, in parallel
+   * @return (precision, recall) of each strategy, in the same order
+   */
+  public List<Pair<Double, Double>> scoreStrategies(List<Strategy> strategies, final SFScore.Key key,
+      final Map<String, Set<String>> ignores, int threads) throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+    List<Future<Pair<Double, Double>>> futures = new ArrayList<Future<Pair<Double, Double>>>();
+    for (final Strategy strategy : strategies) {
+      futures.add(executor.submit(new Callable<Pair<Double, Double>>() {
+        @Override
+        public Pair<Double, Double> call() {
+          List<QueryResult> mergedResults = combine(strategy);
+          return key.score(QueryResult.expandSystemOutputs(mergedResults, queryIdToNerType, ignores));
+        }
+      }));
+    }
+    executor.shutdown();
+
+    List<Pair<Double, Double>> scores = new ArrayList<Pair<Double, Double>>();
+    for (int i = 0; i < strategies.size(); i ++) {
+      try {
+        scores.add(futures.get(i).get());
+      } catch (ExecutionException e) {
+        throw new RuntimeException("ERROR: cannot score strategy " + strategies.get(i), e.getCause());
       }
     }
+    return scores;
+  }
+
+  public static void main(String[] args) throws Exception {
+    Properties props = StringUtils.argsToProperties(args);
     
-    //
-    // output merged results and score
-    //
+    String[] inputFiles = PropertiesUtils.getStringArray(props, Props.MODEL_COMBINATION_INPUT_FILES);
+    String runId = props.getProperty(Props.RUN_ID);
+    boolean anydoc = PropertiesUtils.getBool(props, Props.ANYDOC, 
+                                             Constants.DEFAULT_ANYDOC);
+    int threads = PropertiesUtils.getInt(props, Props.MODEL_COMBINATION_THREADS, Runtime.getRuntime().availableProcessors());
+    
+    Map<String, KBPEntity> allQueries = KBPEvaluator.loadQueryFile(props.getProperty(Props.TEST_QUERIES));
+    Map<String, Set<String>> ignores = computeIgnores(allQueries);
+    System.err.println("Slots to be ignored:");
+    for(String id: ignores.keySet()) {
+      System.err.println("\t" + id + ": " + ignores.get(id));
+    }
+    
+    // this determines whether our inputs were produced with model.combination.enabled or not
+    boolean inputsHaveScores = PropertiesUtils.getBool(props, Props.MODEL_COMBINATION_INPUTS_HAVE_SCORES);
+    ModelCombination combination = new ModelCombination(runId);
+    combination.load(inputFiles, inputsHaveScores, threads);
     
     String workDir = props.getProperty(Props.WORK_DIR);
     String keyFile = props.getProperty(Props.GOLD_RESPONSES);
     assert(keyFile != null);
     
+    List<Strategy> strategies = strategies(props);
+    Strategy best = strategies.get(0);
+    if (strategies.size() > 1) {
+      Log.severe("Scoring " + strategies.size() + " combination strategies using " + threads + " threads.");
+      SFScore.Key key = new SFScore.Key(keyFile, anydoc, false);
+      List<Pair<Double, Double>> scores = combination.scoreStrategies(strategies, key, ignores, threads);
+      best = reportStrategies(strategies, scores, workDir + File.separator + runId + GRID_FILE_EXT);
+    }
+    Log.severe("Combining with strategy " + best);
+    
+    //
+    // output merged results and score
+    //
+    
     String outputFilename = workDir + File.separator + runId + ".combined.output";
     File outputFile = new File(outputFilename);
     PrintStream outputFileStream = new PrintStream(new FileOutputStream(outputFile));
     
-    QueryResult.writeSystemOutputs(mergedResults, outputFileStream, queryIdToNerType, ignores);   
+    QueryResult.writeSystemOutputs(combination.combine(best), outputFileStream, combination.queryIdToNerType(), ignores);
+    outputFileStream.close();
     SFScore.score(System.out, outputFilename, keyFile, null, anydoc, null, null); // TODO: change null to queryIds as last param
   }
   
+  /**
+   * Saves the strategies ranked by F1 (then P, then R)
+   * @return The best strategy
+   */
+  private static Strategy reportStrategies(List<Strategy> strategies, List<Pair<Double, Double>> scores, String gridFile) throws IOException {
+    Integer [] order = new Integer[strategies.size()];
+    final double [] f1s = new double[order.length];
+    final double [] ps = new double[order.length];
+    final double [] rs = new double[order.length];
+    for (int i = 0; i < order.length; i ++) {
+      order[i] = i;
+      ps[i] = scores.get(i).first();
+      rs[i] = scores.get(i).second();
+      f1s[i] = SFScore.pairToFscore(scores.get(i));
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer o1, Integer o2) {
+        if (f1s[o1] != f1s[o2]) return (f1s[o1] > f1s[o2] ? -1 : 1);
+        if (ps[o1] != ps[o2]) return (ps[o1] > ps[o2] ? -1 : 1);
+        if (rs[o1] != rs[o2]) return (rs[o1] > rs[o2] ? -1 : 1);
+        return o1 - o2;
+      }
+    });
+    
+    PrintStream os = new PrintStream(new FileOutputStream(gridFile));
+    os.println("strategy\tP\tR\tF1");
+    for (int i : order) {
+      os.println(strategies.get(i) + "\t" + ps[i] + "\t" + rs[i] + "\t" + f1s[i]);
+    }
+    os.close();
+    Log.severe("Ranked combination strategies saved in " + gridFile);
+    return strategies.get(order[0]);
+  }
+  
   static Map<String, Set<String>> computeIgnores(Map<String, KBPEntity> allQueries) {
     Map<String, Set<String>> ignores = new HashMap<String, Set<String>>();
     for(String id: allQueries.keySet()) {
@@ -1,11 +1,9 @@
 package edu.stanford.nlp.kbp.slotfilling;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
@@ -15,7 +13,6 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -24,11 +21,14 @@ import java.util.zip.GZIPInputStream;
 
 import edu.stanford.nlp.kbp.slotfilling.classify.*;
 import edu.stanford.nlp.kbp.slotfilling.common.Log;
-import edu.stanford.nlp.kbp.slotfilling.common.ProcessWrapper;
+import edu.stanford.nlp.kbp.slotfilling.common.Metrics;
 import edu.stanford.nlp.kbp.slotfilling.common.Props;
+import edu.stanford.nlp.kbp.slotfilling.common.RandomStreams;
 import edu.stanford.nlp.kbp.slotfilling.multir.ProtobufToMultiLabelDataset;
 import edu.stanford.nlp.stats.ClassicCounter;
 import edu.stanford.nlp.stats.Counter;
+import edu.stanford.nlp.util.HashIndex;
+import edu.stanford.nlp.util.Index;
 import edu.stanford.nlp.util.PropertiesUtils;
 import edu.stanford.nlp.util.StringUtils;
 import edu.stanford.nlp.util.Triple;
@@ -57,6 +57,9 @@ public class MultiR {
     String testFile;
     ModelType type;
     int featureCountThreshold;
+    /** Number of bits for feature hashing; 0 means no hashing */
+    int featureHashingBits;
+    boolean featureHashingReport;
     int numberOfTrainEpochs;
     int numberOfFolds;
     String workDir;
@@ -66,6 +69,8 @@ public class MultiR {
     String infType;
     boolean trainY;
     Integer fold;
+    /** All randomness of loading and training, from the random.seed property */
+    RandomStreams randomStreams;
     
     static Parameters propsToParameters(Properties props) {
       Parameters p = new Parameters();
@@ -77,6 +82,12 @@ public class MultiR {
       p.featureCountThreshold = PropertiesUtils.getInt(props, 
           Props.FEATURE_COUNT_THRESHOLD, 
           DEFAULT_FEATURE_COUNT_THRESHOLD);
+      p.featureHashingBits = PropertiesUtils.getInt(props,
+          Props.FEATURE_HASHING_BITS,
+          0);
+      p.featureHashingReport = PropertiesUtils.getBool(props,
+          Props.FEATURE_HASHING_REPORT,
+          false);
       p.numberOfTrainEpochs = PropertiesUtils.getInt(props, 
           Props.EPOCHS, 
           DEFAULT_EPOCHS);
@@ -99,6 +110,28 @@ public class MultiR {
       p.baseDir = props.getProperty(Props.CORPUS_BASE_DIR);
       p.fold = props.containsKey(FOLD_PROP) ?
           Integer.valueOf(props.getProperty(FOLD_PROP)) : null;
+      p.randomStreams = RandomStreams.fromProperties(props);
+      return p;
+    }
+    
+    Parameters copy() {
+      Parameters p = new Parameters();
+      p.trainFile = trainFile;
+      p.testFile = testFile;
+      p.type = type;
+      p.featureCountThreshold = featureCountThreshold;
+      p.featureHashingBits = featureHashingBits;
+      p.featureHashingReport = featureHashingReport;
+      p.numberOfTrainEpochs = numberOfTrainEpochs;
+      p.numberOfFolds = numberOfFolds;
+      p.workDir = workDir;
+      p.baseDir = baseDir;
+      p.localFilter = localFilter;
+      p.featureModel = featureModel;
+      p.infType = infType;
+      p.trainY = trainY;
+      p.fold = fold;
+      p.randomStreams = randomStreams;
       return p;
     }
   }
@@ -106,6 +139,7 @@ public class MultiR {
   public static void main(String[] args) throws Exception {
     Properties props = StringUtils.argsToProperties(args);
     Log.setLevel(Log.stringToLevel(props.getProperty(Props.LOG_LEVEL, "SEVERE")));
+    Metrics.configure(props);
     
     if(props.containsKey("tuneFeatures")) {
       tuneFeatures(props);
@@ -118,94 +152,62 @@ public class MultiR {
       run(props);
     }
     
+    Metrics.report(props);
   }
   
   private static void tuneFeatures(Properties props) throws Exception {
     Parameters p = Parameters.propsToParameters(props);
-    Set<String> sigs = new HashSet<String>();
+    List<Parameters> configs = new ArrayList<Parameters>();
     int [] values = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 };
     for(int fold = 0; fold < TUNING_FOLDS; fold ++) {
-      String trainFile = p.baseDir + File.separator + 
-        TUNING_FOLDS + "folds" + File.separator +
-        "fold" + fold + File.separator +
-        "train.pb.gz";
-      String testFile = p.baseDir + File.separator + 
-        TUNING_FOLDS + "folds" + File.separator +
-        "fold" + fold + File.separator +
-        "test.pb.gz";
-      p.trainFile = trainFile;
-      p.testFile = testFile;
-      p.fold = fold;
+      setTuningFold(p, fold);
       for(int v: values) {
-        Log.severe("Launching job for fold #" + fold + " with value " + v + "...");
         p.featureCountThreshold = v;
-        launchJob(p, trainFile, testFile);
-        String sig = makeSignature(p);
-        sigs.add(sig);
+        configs.add(p.copy());
       }
     }
     
-    waitFor(sigs, p);
-    reportResults(sigs, p);
+    new MultiRGrid(props).run(configs);
   }
   
   private static void tuneEpochs(Properties props) throws Exception {
     Parameters p = Parameters.propsToParameters(props);
-    Set<String> sigs = new HashSet<String>();
+    List<Parameters> configs = new ArrayList<Parameters>();
     int [] values = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 };
     for(int fold = 0; fold < TUNING_FOLDS; fold ++) {
-      String trainFile = p.baseDir + File.separator + 
-        TUNING_FOLDS + "folds" + File.separator +
-        "fold" + fold + File.separator +
-        "train.pb.gz";
-      String testFile = p.baseDir + File.separator + 
-        TUNING_FOLDS + "folds" + File.separator +
-        "fold" + fold + File.separator +
-        "test.pb.gz";
-      p.trainFile = trainFile;
-      p.testFile = testFile;
-      p.fold = fold;
+      setTuningFold(p, fold);
       for(int v: values) {
-        Log.severe("Launching job for fold #" + fold + " with value " + v + "...");
         p.numberOfTrainEpochs = v;
-        launchJob(p, trainFile, testFile);
-        //launchSequential(p, trainFile, testFile);
-        String sig = makeSignature(p);
-        sigs.add(sig);
+        configs.add(p.copy());
       }
     }
     
-    waitFor(sigs, p);
-    reportResults(sigs, p);
+    new MultiRGrid(props).run(configs);
   }
   
   private static void tuneFolds(Properties props) throws Exception {
     Parameters p = Parameters.propsToParameters(props);
-    Set<String> sigs = new HashSet<String>();
+    List<Parameters> configs = new ArrayList<Parameters>();
     int [] values = { 2, 3, 5, 6 };
     for(int fold = 0; fold < TUNING_FOLDS; fold ++) {
-      String trainFile = p.baseDir + File.separator + 
-        TUNING_FOLDS + "folds" + File.separator +
-        "fold" + fold + File.separator +
-        "train.pb.gz";
-      String testFile = p.baseDir + File.separator + 
-        TUNING_FOLDS + "folds" + File.separator +
-        "fold" + fold + File.separator +
-        "test.pb.gz";
-      p.trainFile = trainFile;
-      p.testFile = testFile;
-      p.fold = fold;
+      setTuningFold(p, fold);
       for(int v: values) {
-        Log.severe("Launching job for fold #" + fold + " with value " + v + "...");
         p.numberOfFolds = v;
-        launchJob(p, trainFile, testFile);
-        String sig = makeSignature(p);
-        sigs.add(sig);
+        configs.add(p.copy());
       }
     }
     
-    waitFor(sigs, p);
-    reportResults(sigs, p);
+    new MultiRGrid(props).run(configs);
+  }
+  
+  /** Uses the train and test files of this cross-validation fold */
+  private static void setTuningFold(Parameters p, int fold) {
+    String foldDir = p.baseDir + File.separator + 
+      TUNING_FOLDS + "folds" + File.separator +
+      "fold" + fold + File.separator;
+    p.trainFile = foldDir + "train.pb.gz";
+    p.testFile = foldDir + "test.pb.gz";
+    p.fold = fold;
   }
   
   static class Result {
@@ -215,41 +217,7 @@ public class MultiR {
     String sig;
   }
   
-  private static void reportResults(Set<String> sigs, Parameters p) {
-    List<Result> results = new ArrayList<Result>();
-    for(String sig: sigs) {
-      try {
-        BufferedReader is = new BufferedReader(new FileReader(p.workDir + File.separator + sig + ".score"));
-        String line = is.readLine();
-        String [] bits = line.split("\\s+");
-        Result r = new Result();
-        r.sig = sig;
-        r.p = Double.valueOf(bits[1]);
-        r.r = Double.valueOf(bits[3]);
-        r.f1 = Double.valueOf(bits[5]);
-        results.add(r);
-        is.close();
-      } catch(IOException e) {
-        System.err.println("WARNING: cannot read results for sig: " + sig);
-      }
-    }
-    
-    results = averageFolds(results);
-    
-    Collections.sort(results, new Comparator<Result>() {
-      @Override
-      public int compare(Result o1, Result o2) {
-        if(o1.f1 > o2.f1) return -1;
-        if(o1.f1 == o2.f1) return 0;
-        return 1;
-      }}); 
-    
-    for(Result r: results) {
-      System.out.println(r.sig + "\tP " + r.p + " R " + r.r + " F1 " + r.f1);
-    }
-  }
-  
-  private static List<Result> averageFolds(List<Result> foldResults) {
+  static List<Result> averageFolds(List<Result> foldResults) {
     Map<String, List<Result>> resultsBySig = new HashMap<String, List<Result>>();
     for(Result r: foldResults) {
       int end = r.sig.indexOf("_fold");
@@ -293,38 +261,14 @@ public class MultiR {
     return sum;
   }
   
-  private static void waitFor(Set<String> sigs, Parameters p) throws InterruptedException {
-    Log.severe("Waiting for " + sigs.size() + " jobs.");
-    int remaining = 0;
-    while(true) {
-      Set<String> inc = countCompleted(sigs, p.workDir);
-      if(inc.size() == 0) {
-        Log.severe("All jobs complete!");
-        break;
-      } else {
-        if(inc.size() != remaining)
-          Log.severe("Still waiting for " + inc.size() + " jobs: " + inc);
-        remaining = inc.size();
-      }
-      Thread.sleep(60000);
-    }
-  }
-  
-  private static Set<String> countCompleted(Set<String> sigs, String workDir) {
-    Set<String> incomplete = new HashSet<String>();
-    for(String sig: sigs) {
-      File f = new File(workDir + File.separator + sig + ".score");
-      if(! f.exists()) incomplete.add(sig);
-    }
-    return incomplete;
-  }
-  
   static boolean launchSequential(Parameters p, String trainFile, String testFile) throws Exception {
     Properties props = new Properties();
     props.setProperty(Props.WORK_DIR, p.workDir);
     props.setProperty("multir.train", p.trainFile);
     props.setProperty("multir.test", p.testFile);
     props.setProperty(Props.FEATURE_COUNT_THRESHOLD, Integer.toString(p.featureCountThreshold));
+    props.setProperty(Props.FEATURE_HASHING_BITS, Integer.toString(p.featureHashingBits));
+    props.setProperty(Props.FEATURE_HASHING_REPORT, Boolean.toString(p.featureHashingReport));
     props.setProperty(Props.EPOCHS, Integer.toString(p.numberOfTrainEpochs));
     props.setProperty(Props.FOLDS, Integer.toString(p.numberOfFolds));
     props.setProperty(Props.FILTER, p.localFilter);
@@ -336,71 +280,6 @@ public class MultiR {
     return true;
   }
   
-  private static final String TRAINER_MEMORY = "12g";
-
-  private static boolean launchJob(Parameters p, String trainFile, String testFile) throws Exception {
-    String sig = makeSignature(p);
-    File logDir = new File(p.workDir + File.separator + sig);
-    
-    // check if the job is running or has run
-    if(logDir.exists()){
-      Log.severe("Job " + sig + " already done. Its log directory exists! Remove it to rerun.");
-      return true;
-    }
-    
-    mkDir(logDir);
-    
-    String cmd = "nlpsub -v --join-output-streams --queue=long --debug --cores=2"
-      + " --log-dir=" + logDir.getAbsolutePath() + " --name=" + sig 
-      + " java -ea -Xmx" + TRAINER_MEMORY + " -XX:MaxPermSize=512m" 
-      + " edu.stanford.nlp.kbp.slotfilling.MultiR" 
-      + " -" + Props.WORK_DIR + " " + p.workDir 
-      + " -multir.train " + p.trainFile 
-      + " -multir.test " + p.testFile 
-      + " -" + Props.FEATURE_COUNT_THRESHOLD + " " + p.featureCountThreshold
-      + " -" + Props.EPOCHS + " " + p.numberOfTrainEpochs
-      + " -" + Props.FOLDS + " " + p.numberOfFolds 
-      + " -" + Props.FILTER + " " + p.localFilter
-      + " -" + Props.INFERENCE_TYPE + " " + p.infType
-      + " -" + Props.FEATURES + " " + p.featureModel
-      + " -" + Props.TRAINY + " " + p.trainY
-      + (p.fold != null ? " -" + Parameters.FOLD_PROP + " " + p.fold : "")
-      + " -run"; 
-    Log.severe("Command: " + cmd);
-    
-    return launch(cmd);
-  }
-  
-  private static boolean launch(String cmd) throws IOException, InterruptedException {
-    ProcessWrapper process = ProcessWrapper.create(cmd);
-    process.waitFor();
-    int exitCode = process.exitValue();
-    if (exitCode == 0) {
-      Log.severe("The above command terminated successfully.");
-    } else {
-      Log.severe("The above command exited with code: " + exitCode);
-    }
-
-    String err = process.consumeErrorStream();
-    if (err.length() > 0) {
-      Log.severe("Error stream contained:\n" + err);
-    }
-    String stdout = process.consumeReadStream();
-    if (stdout.length() > 0) {
-      Log.severe("Stdout stream contained:\n" + stdout);
-    }
-
-    return (exitCode == 0);
-  }
-  
-  private static void mkDir(File dir) throws InterruptedException {
-    if (!dir.exists()) {
-      dir.mkdirs();
-    }
-    Thread.sleep(5000); // let NFS catch up
-    assert (dir.exists() && dir.isDirectory());
-  }
-   
   private static void run(Properties props) throws Exception {
     Parameters p = Parameters.propsToParameters(props);
     String sig = makeSignature(p);
@@ -514,6 +393,26 @@ public class MultiR {
       String modelPath,
       List<Set<String>> goldLabels,
       List<Counter<String>> predictedLabels) throws IOException, ClassNotFoundException {
+    List<List<Collection<String>>> relations = 
+      new ArrayList<List<Collection<String>>>();
+    Triple<Double, Double, Double> score = run(p, modelPath, null, relations, goldLabels, predictedLabels);
+    //Triple<Double, Double, Double> score = extractor.oracle(relations, goldLabels, predictedLabels);
+    return score;
+  }
+  
+  /**
+   * Trains (or loads) and tests one configuration
+   * @param trainDataset The parsed and randomized train dataset, which is copied before training;
+   *   if null, it is read from p.trainFile when needed
+   * @param relations The test relations; if empty, they (and goldLabels) are read from p.testFile
+   */
+  static Triple<Double, Double, Double> run(
+      Parameters p,
+      String modelPath,
+      MultiLabelDataset<String, String> trainDataset,
+      List<List<Collection<String>>> relations,
+      List<Set<String>> goldLabels,
+      List<Counter<String>> predictedLabels) throws IOException, ClassNotFoundException {
     JointlyTrainedRelationExtractor extractor = null;
     if(p.type == ModelType.JOINT_BAYES) {
       String initialModelPath = modelPath.replaceAll("\\.ser", ".initial.ser");
@@ -543,6 +442,7 @@ public class MultiR {
     } else {
       throw new RuntimeException("ERROR: unsupported model type: " + p.type);
     }
+    extractor.setRandomStreams(p.randomStreams);
     
     if(new File(modelPath).exists()) {
       // load an existing model
@@ -552,36 +452,58 @@ public class MultiR {
       in.close();
     } else {
       // train a new model
-      InputStream is = new GZIPInputStream(
-          new BufferedInputStream(new FileInputStream(p.trainFile)));
-      MultiLabelDataset<String, String> trainDataset =  
-        ProtobufToMultiLabelDataset.toMultiLabelDataset(is);
-      is.close();
-      trainDataset.randomize(1);
+      trainDataset = (trainDataset != null ? trainDataset.copy() : loadTrainDataset(p));
+      Index<String> featureIndex = trainDataset.featureIndex();
       trainDataset.applyFeatureCountThreshold(p.featureCountThreshold);
+      if(featureIndex instanceof HashedFeatureIndex<?>)
+        ((HashedFeatureIndex<String>) featureIndex).logCollisionReport();
+      long trainStart = Metrics.start();
       extractor.train(trainDataset);
+      Metrics.stop("training.train", trainStart);
 
       // save
       extractor.save(modelPath);
     }
     
     // test
-    List<List<Collection<String>>> relations = 
-      new ArrayList<List<Collection<String>>>();
+    if(relations.isEmpty()) loadTestDataset(p, relations, goldLabels);
+    long testStart = Metrics.start();
+    Triple<Double, Double, Double> score = extractor.test(relations, goldLabels, predictedLabels);
+    Metrics.stop("classification.test", testStart);
+    return score;
+  }
+  
+  /** Reads the train dataset of this configuration, before the feature count threshold is applied */
+  static MultiLabelDataset<String, String> loadTrainDataset(Parameters p) throws IOException {
+    InputStream is = new GZIPInputStream(
+        new BufferedInputStream(new FileInputStream(p.trainFile)));
+    Index<String> featureIndex = (p.featureHashingBits > 0 ?
+        new HashedFeatureIndex<String>(p.featureHashingBits, p.featureHashingReport) :
+        new HashIndex<String>());
+    MultiLabelDataset<String, String> trainDataset =  
+      ProtobufToMultiLabelDataset.toMultiLabelDataset(is, featureIndex);
+    is.close();
+    trainDataset.randomize(p.randomStreams.stream("load"));
+    return trainDataset;
+  }
+  
+  static void loadTestDataset(Parameters p,
+      List<List<Collection<String>>> relations,
+      List<Set<String>> goldLabels) throws IOException {
     InputStream is = new GZIPInputStream(
         new BufferedInputStream(new FileInputStream(p.testFile)));
     ProtobufToMultiLabelDataset.toDatums(is, relations, goldLabels);
     is.close();
-    Triple<Double, Double, Double> score = extractor.test(relations, goldLabels, predictedLabels);
-    //Triple<Double, Double, Double> score = extractor.oracle(relations, goldLabels, predictedLabels);
-    return score;
   }
   
-  private static String makeSignature(Parameters p) {
+  static String makeSignature(Parameters p) {
     StringBuffer os = new StringBuffer();
     os.append("multir");
     os.append("_" + p.type);
     os.append("_T" + p.featureCountThreshold);
+    // only when hashing, so the signatures of existing models do not change
+    if(p.featureHashingBits > 0)
+      os.append("_H" + p.featureHashingBits);
     os.append("_E" + p.numberOfTrainEpochs);
     os.append("_NF" + p.numberOfFolds);
     os.append("_F" + p.localFilter);
@@ -0,0 +1,248 @@
+package edu.stanford.nlp.kbp.slotfilling;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import edu.stanford.nlp.kbp.slotfilling.MultiR.Parameters;
+import edu.stanford.nlp.kbp.slotfilling.MultiR.Result;
+import edu.stanford.nlp.kbp.slotfilling.classify.ModelType;
+import edu.stanford.nlp.kbp.slotfilling.classify.MultiLabelDataset;
+import edu.stanford.nlp.kbp.slotfilling.common.Log;
+import edu.stanford.nlp.kbp.slotfilling.common.Metrics;
+import edu.stanford.nlp.kbp.slotfilling.common.Props;
+import edu.stanford.nlp.stats.Counter;
+import edu.stanford.nlp.util.PropertiesUtils;
+import edu.stanford.nlp.util.Triple;
+
+/**
+ * Runs a grid of MultiR configurations (e.g., MultiR -tuneEpochs) in this JVM
+ * The train and test data of each tuning fold are loaded once, and shared by all configurations of this fold;
+ *   each configuration trains on its own copy of the train dataset, because training modifies it.
+ * Configurations run on a bounded thread pool (multir.grid.threads). A configuration starts only when its
+ *   estimated memory fits in what is left of the memory budget (multir.grid.memory, in MB).
+ * The score of each configuration is appended to multir_grid.tsv in the work directory as soon as it is known;
+ *   configurations already in this file are not run again, so an interrupted grid is resumed by running it again.
+ * The final table, averaged over tuning folds and ranked by F1 (then P, then R), is saved in multir_grid.ranked.tsv.
+ */
+public class MultiRGrid {
+  static final String RESULTS_FILE = "multir_grid.tsv";
+  static final String RANKED_FILE = "multir_grid.ranked.tsv";
+
+  private static final long MB = 1024 * 1024;
+
+  /** Train and test data of one tuning fold; read-only once loaded */
+  private static class FoldData {
+    MultiLabelDataset<String, String> train;
+    final List<List<Collection<String>>> testRelations = new ArrayList<List<Collection<String>>>();
+    final List<Set<String>> testLabels = new ArrayList<Set<String>>();
+    long trainBytes;
+  }
+
+  private final String workDir;
+  private final int threads;
+  /** In MB; 0 means: use the free heap after the datasets are loaded */
+  private final int memoryBudget;
+
+  public MultiRGrid(Properties props) {
+    workDir = props.getProperty(Props.WORK_DIR);
+    threads = PropertiesUtils.getInt(props, Props.MULTIR_GRID_THREADS, Runtime.getRuntime().availableProcessors());
+    memoryBudget = PropertiesUtils.getInt(props, Props.MULTIR_GRID_MEMORY, 0);
+  }
+
+  public void run(List<Parameters> configs) throws Exception {
+    final Map<String, Result> results = readResults();
+
+    List<Parameters> pending = new ArrayList<Parameters>();
+    for(Parameters p: configs) {
+      if(results.containsKey(MultiR.makeSignature(p))) continue;
+      pending.add(p);
+    }
+    Log.severe("Running " + pending.size() + " of " + configs.size() + " configurations; the others have results in " +
+        workDir + File.separator + RESULTS_FILE + ".");
+
+    // load the data of each fold only once
+    final Map<String, FoldData> data = new HashMap<String, FoldData>();
+    for(Parameters p: pending) {
+      String key = dataKey(p);
+      if(data.containsKey(key)) continue;
+      Log.severe("Loading train data from " + p.trainFile + " and test data from " + p.testFile);
+      FoldData fold = new FoldData();
+      fold.train = MultiR.loadTrainDataset(p);
+      fold.trainBytes = datasetBytes(fold.train);
+      MultiR.loadTestDataset(p, fold.testRelations, fold.testLabels);
+      data.put(key, fold);
+    }
+
+    int budget = memoryBudget;
+    if(budget <= 0) {
+      Runtime rt = Runtime.getRuntime();
+      budget = (int) Math.max(1, (rt.maxMemory() - (rt.totalMemory() - rt.freeMemory())) / MB);
+    }
+    Log.severe("Using " + threads + " threads and a memory budget of " + budget + " MB.");
+    final Semaphore memory = new Semaphore(budget, true);
+    final int maxPermits = budget;
+
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    for(final Parameters p: pending) {
+      final FoldData fold = data.get(dataKey(p));
+      final int estimate = estimateMemory(p, fold);
+      executor.submit(new Runnable() {
+        @Override
+        public void run() {
+          String sig = MultiR.makeSignature(p);
+          // a configuration larger than the budget runs alone
+          int permits = Math.min(estimate, maxPermits);
+          memory.acquireUninterruptibly(permits);
+          try {
+            Log.severe("Starting configuration " + sig + " (estimated memory: " + estimate + " MB)");
+            long start = Metrics.start();
+            String modelPath = workDir + File.separator + sig + ".ser";
+            List<Counter<String>> predictedLabels = new ArrayList<Counter<String>>();
+            Triple<Double, Double, Double> score = MultiR.run(p, modelPath,
+                fold.train, fold.testRelations, fold.testLabels, predictedLabels);
+            Metrics.stop("multir.grid.config", start);
+
+            Result r = new Result();
+            r.sig = sig;
+            r.p = score.first();
+            r.r = score.second();
+            r.f1 = score.third();
+            saveResult(r, results);
+            Log.severe("Configuration " + sig + ": P " + r.p + " R " + r.r + " F1 " + r.f1);
+          } catch(Throwable e) {
+            // the other configurations continue; this one runs again when the grid is resumed
+            Log.severe("ERROR: configuration " + sig + " failed: " + e);
+            e.printStackTrace();
+          } finally {
+            memory.release(permits);
+          }
+        }
+      });
+    }
+    executor.shutdown();
+    executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+    // rank the configurations of this grid
+    Set<String> sigs = new HashSet<String>();
+    for(Parameters p: configs) sigs.add(MultiR.makeSignature(p));
+    List<Result> gridResults = new ArrayList<Result>();
+    synchronized(results) {
+      for(Result r: results.values()) {
+        if(sigs.contains(r.sig)) gridResults.add(r);
+      }
+    }
+    if(gridResults.size() < sigs.size())
+      Log.severe("WARNING: " + (sigs.size() - gridResults.size()) + " configurations have no results. Run the grid again to resume them.");
+    reportResults(gridResults);
+  }
+
+  private static String dataKey(Parameters p) {
+    return p.trainFile + "|" + p.testFile + "|" + p.featureHashingBits;
+  }
+
+  /** Rough size of the arrays of a dataset */
+  static long datasetBytes(MultiLabelDataset<String, String> dataset) {
+    long bytes = 0;
+    for(int [][] group: dataset.getDataArray()) {
+      bytes += 16 + 8 * group.length;
+      for(int [] datum: group) bytes += 16 + 4 * datum.length;
+    }
+    // the positive and negative label sets of each group
+    bytes += dataset.size() * 2 * (48 + 32 * dataset.labelIndex().size());
+    return bytes;
+  }
+
+  /**
+   * Upper bound of the memory (in MB) needed by one configuration: a copy of its train dataset, and its model
+   * The feature count is taken before the threshold is applied, so the estimate is conservative
+   */
+  static int estimateMemory(Parameters p, FoldData fold) {
+    long features = fold.train.featureIndex().size();
+    // plus NIL
+    long labels = fold.train.labelIndex().size() + 1;
+    long weights = 8 * features * labels;
+    long model;
+    if(p.type == ModelType.JOINT_BAYES || p.type == ModelType.LOCAL_BAYES) {
+      // one Z classifier per fold, plus the single Z classifier and the optimizer state
+      model = (p.numberOfFolds + 4) * weights;
+    } else if(p.type == ModelType.AT_LEAST_ONCE) {
+      // weights, average weights, and their update bookkeeping
+      model = 3 * weights;
+    } else {
+      model = weights;
+    }
+    return (int) Math.min(Integer.MAX_VALUE, (fold.trainBytes + model) / MB + 1);
+  }
+
+  /** Results of previous (possibly partial) runs of this grid */
+  private Map<String, Result> readResults() throws IOException {
+    Map<String, Result> results = new LinkedHashMap<String, Result>();
+    File f = new File(workDir + File.separator + RESULTS_FILE);
+    if(! f.exists()) return results;
+    BufferedReader is = new BufferedReader(new FileReader(f));
+    for(String line; (line = is.readLine()) != null; ) {
+      String [] bits = line.split("\t");
+      if(bits.length != 4) continue;
+      Result r = new Result();
+      r.sig = bits[0];
+      r.p = Double.valueOf(bits[1]);
+      r.r = Double.valueOf(bits[2]);
+      r.f1 = Double.valueOf(bits[3]);
+      results.put(r.sig, r);
+    }
+    is.close();
+    Log.severe("Found " + results.size() + " results of previous runs in " + f);
+    return results;
+  }
+
+  /** Appends one result to the results file, so it survives if the grid is interrupted */
+  private void saveResult(Result r, Map<String, Result> results) throws IOException {
+    synchronized(results) {
+      PrintStream os = new PrintStream(new FileOutputStream(workDir + File.separator + RESULTS_FILE, true));
+      os.println(r.sig + "\t" + r.p + "\t" + r.r + "\t" + r.f1);
+      os.close();
+      results.put(r.sig, r);
+    }
+  }
+
+  private void reportResults(List<Result> foldResults) throws IOException {
+    List<Result> results = MultiR.averageFolds(foldResults);
+    Collections.sort(results, new Comparator<Result>() {
+      @Override
+      public int compare(Result o1, Result o2) {
+        if(o1.f1 != o2.f1) return (o1.f1 > o2.f1 ? -1 : 1);
+        if(o1.p != o2.p) return (o1.p > o2.p ? -1 : 1);
+        if(o1.r != o2.r) return (o1.r > o2.r ? -1 : 1);
+        return o1.sig.compareTo(o2.sig);
+      }});
+
+    String rankedFile = workDir + File.separator + RANKED_FILE;
+    PrintStream os = new PrintStream(new FileOutputStream(rankedFile));
+    os.println("signature\tP\tR\tF1");
+    for(Result r: results) {
+      os.println(r.sig + "\t" + r.p + "\t" + r.r + "\t" + r.f1);
+      System.out.println(r.sig + "\tP " + r.p + " R " + r.r + " F1 " + r.f1);
+    }
+    os.close();
+    Log.severe("Ranked results saved in " + rankedFile);
+  }
+}
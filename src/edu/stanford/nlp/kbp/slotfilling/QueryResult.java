@@ -13,6 +13,7 @@ import java.util.Map.Entry;
 import org.apache.commons.lang.StringUtils;
 
 import edu.stanford.nlp.io.IOUtils;
+import edu.stanford.nlp.kbp.slotfilling.common.Log;
 import edu.stanford.nlp.util.ArrayUtils;
 import edu.stanford.nlp.util.CollectionValuedMap;
 import edu.stanford.nlp.util.TwoDimensionalCollectionValuedMap;
@@ -169,6 +170,17 @@ public class QueryResult {
   }
   
   public static void writeSystemOutputs(Collection<QueryResult> queryResults, PrintStream stream, Map<String, String> queryIdToNerType, Map<String, Set<String>> queryIdToIgnoredSlots) {
+    for (QueryResult mergedResult : expandSystemOutputs(queryResults, queryIdToNerType, queryIdToIgnoredSlots)) {
+      mergedResult.writeSystemOutput(stream);
+    }
+  }
+  
+  /**
+   * The results exactly as writeSystemOutputs writes them: with NILs for all the slots of each query without results,
+   *   sorted by StandardOrdering, and without the ignored slots
+   * Does not modify queryIdToNerType or queryIdToIgnoredSlots, so it may be called concurrently
+   */
+  public static List<QueryResult> expandSystemOutputs(Collection<QueryResult> queryResults, Map<String, String> queryIdToNerType, Map<String, Set<String>> queryIdToIgnoredSlots) {
     String runId = null; // we will autodetect this
     
     // expand queryResults to include NILs for all remaining slots
@@ -190,7 +202,7 @@ public class QueryResult {
         throw new RuntimeException("Found NULL NE type for query " + queryId);
         // matchingRelations = SFScore.allSlots;
       } else {
-        System.err.println("Using NE type " + nerType + " for query " + queryId);
+        Log.fine("Using NE type " + nerType + " for query " + queryId);
         matchingRelations = SFScore.relationsForNerType(nerType);
       }
       CollectionValuedMap<String, QueryResult> slotNameToQueryResults = entry.getValue();
@@ -206,6 +218,7 @@ public class QueryResult {
     List<QueryResult> expandedQueryResults = new ArrayList<QueryResult>(queryIdToSlotNameToQueryResults.values());
     
     Collections.sort(expandedQueryResults, new QueryResult.StandardOrdering());
+    List<QueryResult> keptQueryResults = new ArrayList<QueryResult>(expandedQueryResults.size());
     for (QueryResult mergedResult : expandedQueryResults) {
       Set<String> myIgnores = null; 
       assert(queryIdToIgnoredSlots != null);
@@ -214,11 +227,12 @@ public class QueryResult {
       }
       // assert(myIgnores != null);
       if(myIgnores == null || ! myIgnores.contains(mergedResult.slotName)){
-        mergedResult.writeSystemOutput(stream);
+        keptQueryResults.add(mergedResult);
       } else {
-        System.err.println("Skipping <ignore> slot " + mergedResult.slotName + " for query " + mergedResult.queryId);
+        Log.fine("Skipping <ignore> slot " + mergedResult.slotName + " for query " + mergedResult.queryId);
       }
     }
+    return keptQueryResults;
   }
 
   public static class StandardOrdering implements Comparator<QueryResult> {
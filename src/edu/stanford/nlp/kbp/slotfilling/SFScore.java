@@ -38,11 +38,13 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 
+import edu.stanford.nlp.kbp.slotfilling.common.Log;
 import edu.stanford.nlp.util.CollectionUtils;
 import edu.stanford.nlp.util.Pair;
 import edu.stanford.nlp.util.StringUtils;
@@ -541,6 +543,110 @@ public class SFScore {
     return new Pair<Double, Double>((double) precision, (double) recall);
   }
 
+  /**
+   *  Judgements of a key file, loaded once, and shared read-only by many in-memory scorings
+   *  (e.g., the combination strategies of ModelCombination).
+   *  score() gives the same precision and recall as the official scorer on a response file
+   *  with the same responses, with no slot list, no candidate filter, and recall over answered slots only;
+   *  it prints nothing and is safe to call concurrently.
+   */
+  public static class Key {
+    private final boolean anydoc;
+    private final boolean nocase;
+
+    //  mapping from entity_id:slot_name:doc_id:response_string --> judgement
+    private final Map<String, Integer> judgements = new HashMap<String, Integer>();
+    //  mapping from entity_id:slot_name:doc_id:response_string --> equivalence class
+    private final Map<String, Integer> eclasses = new HashMap<String, Integer>();
+    //  mapping from entity_id:slot_name --> equivalence classes of correct answers; present iff the query has an answer
+    private final Map<String, Set<Integer>> queryEclasses = new HashMap<String, Set<Integer>>();
+
+    public Key(String keyFile, boolean anydoc, boolean nocase) throws IOException {
+      this.anydoc = anydoc;
+      this.nocase = nocase;
+      int generator = 1000000;
+      BufferedReader keyReader = new BufferedReader(new FileReader(keyFile));
+      for (String line; (line = keyReader.readLine()) != null; ) {
+        String[] fields = line.split("\t", 11);
+        if (fields.length != 11) continue;
+        String query_id = fields[1] + ":" + fields[3];
+        String doc_id = fields[4];
+        if (doc_id.equals("NIL")) continue;
+        if (anydoc) doc_id = "*";
+        String answerString = fields[8];
+        if (nocase) answerString = answerString.toLowerCase();
+        int jment, eclass;
+        try {
+          jment = Integer.parseInt(fields[10]);
+          eclass = Integer.parseInt(fields[9]);
+        } catch (NumberFormatException e) {
+          continue;
+        }
+        if (eclass == 0) eclass = generator++;
+        String key = query_id + ":" + doc_id + ":" + answerString;
+        if (judgements.get(key) != null && ! doc_id.equals("*"))
+          throw new RuntimeException("ERROR: more than one judgment for " + key + " in " + keyFile);
+        judgements.put(key, jment);
+        eclasses.put(key, eclass);
+        if (jment == CORRECT) {
+          if (queryEclasses.get(query_id) == null)
+            queryEclasses.put(query_id, new HashSet<Integer>());
+          queryEclasses.get(query_id).add(eclass);
+        }
+      }
+      keyReader.close();
+      Log.severe("Loaded " + judgements.size() + " judgements from " + keyFile);
+    }
+
+    /**
+     *  Scores these responses, in the order they would appear in the response file
+     *  @return (precision, recall)
+     */
+    public Pair<Double, Double> score(List<QueryResult> responses) {
+      // mapping from entity_id:slot_name --> list[doc_id, response_string]
+      Map<String, List<String[]>> response = new LinkedHashMap<String, List<String[]>>();
+      for (QueryResult r : responses) {
+        String query_id = r.queryId + ":" + r.slotName;
+        String doc_id = (r.isNull() ? "NIL" : String.valueOf(r.docId));
+        if (anydoc && ! doc_id.equals("NIL")) doc_id = "*";
+        String answer_string = (r.isNull() ? "" : r.slotValue.trim());
+        if (nocase) answer_string = answer_string.toLowerCase();
+        if (response.get(query_id) == null)
+          response.put(query_id, new ArrayList<String[]>());
+        response.get(query_id).add(new String[] { doc_id, answer_string });
+      }
+
+      int num_answers = 0, num_responses = 0, num_correct = 0;
+      for (Map.Entry<String, List<String[]>> entry : response.entrySet()) {
+        String query = entry.getKey();
+        String type = slotType(query);
+        Set<Integer> answers = queryEclasses.get(query);
+        if (type == "single") {
+          if (answers != null) num_answers++;
+          String[] first = entry.getValue().get(0);
+          if (first[0].equals("NIL")) continue;
+          num_responses++;
+          Integer J = judgements.get(query + ":" + first[0] + ":" + first[1]);
+          if (J != null && J == CORRECT) num_correct++;
+        } else if (type == "list") {
+          if (answers != null) num_answers += answers.size();
+          Set<Integer> distincts = new HashSet<Integer>();
+          for (String[] r : entry.getValue()) {
+            if (r[0].equals("NIL")) continue;
+            num_responses++;
+            String key = query + ":" + r[0] + ":" + r[1];
+            Integer J = judgements.get(key);
+            if (J != null && J == CORRECT && distincts.add(eclasses.get(key))) num_correct++;
+          }
+        }
+      }
+
+      float recall = ((float) num_correct) / num_answers;
+      float precision = ((float) num_correct) / num_responses;
+      return new Pair<Double, Double>((double) precision, (double) recall);
+    }
+  }
+
   /**
    *  reads a series of lines from 'fileName' and returns them as a list of Strings
    */
@@ -0,0 +1,190 @@
+package edu.stanford.nlp.kbp.slotfilling;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.stanford.nlp.ie.machinereading.structure.EntityMention;
+import edu.stanford.nlp.ie.machinereading.structure.MachineReadingAnnotations;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.ling.IndexedWord;
+import edu.stanford.nlp.ling.CoreAnnotations.TokensAnnotation;
+import edu.stanford.nlp.process.Morphology;
+import edu.stanford.nlp.stats.ClassicCounter;
+import edu.stanford.nlp.stats.Counter;
+import edu.stanford.nlp.trees.Tree;
+import edu.stanford.nlp.trees.TreeCoreAnnotations.TreeAnnotation;
+import edu.stanford.nlp.trees.semgraph.SemanticGraph;
+import edu.stanford.nlp.trees.semgraph.SemanticGraphEdge;
+import edu.stanford.nlp.util.CoreMap;
+
+/**
+ * Syntactic information about one sentence that FeatureFactory needs for every relation mention in it.
+ * Leaves, preterminals and parent links are computed once, when the context is created.
+ * Tree paths, dependency paths, and lemmas are computed on demand and memoized,
+ *   so candidate pairs in the same sentence share the work.
+ * The memoized dependency paths are the ones returned by the SemanticGraph itself,
+ *   so the features are identical to computing them for each mention.
+ * Created with FeatureFactory.createContext once the entity mentions of the sentence are final,
+ *   and passed to createDatum for each relation mention in the sentence.
+ */
+public class SentenceFeatureContext {
+  final CoreMap sentence;
+  final FeatureFactory.DEPENDENCY_TYPE dependencyType;
+
+  final Tree tree;
+  final List<Tree> leaves;
+  final List<CoreLabel> tokens;
+  /** Word of each leaf */
+  final String [] words;
+  /** Preterminal (POS) node of each leaf */
+  final Tree [] preterminals;
+  /** POS tag of each leaf */
+  final String [] posTags;
+  /** Parent of each tree node; identity based, because Tree.equals is structural */
+  private final IdentityHashMap<Tree, Tree> parents;
+
+  /** Number of entity mentions of each type in this sentence */
+  final Counter<String> entityTypeCounts;
+
+  private final Map<Long, String> treePaths = new HashMap<Long, String>();
+  private final Map<Long, Integer> treePathLengths = new HashMap<Long, Integer>();
+
+  /** Set by FeatureFactory the first time a dependency feature is needed */
+  private SemanticGraph graph = null;
+  private boolean graphFetched = false;
+  private final Map<Long, List<SemanticGraphEdge>> edgePaths = new HashMap<Long, List<SemanticGraphEdge>>();
+  private final Map<Long, List<IndexedWord>> nodePaths = new HashMap<Long, List<IndexedWord>>();
+  private final Map<Integer, String> lemmas = new HashMap<Integer, String>();
+
+  SentenceFeatureContext(CoreMap sentence, FeatureFactory.DEPENDENCY_TYPE dependencyType) {
+    this.sentence = sentence;
+    this.dependencyType = dependencyType;
+    this.tree = sentence.get(TreeAnnotation.class);
+    if(tree == null){
+      throw new RuntimeException("ERROR: Relation extraction requires full syntactic analysis!");
+    }
+    this.tokens = sentence.get(TokensAnnotation.class);
+
+    parents = new IdentityHashMap<Tree, Tree>();
+    List<Tree> stack = new ArrayList<Tree>();
+    stack.add(tree);
+    while(! stack.isEmpty()) {
+      Tree node = stack.remove(stack.size() - 1);
+      for(Tree kid: node.children()) {
+        parents.put(kid, node);
+        stack.add(kid);
+      }
+    }
+
+    leaves = tree.getLeaves();
+    words = new String[leaves.size()];
+    preterminals = new Tree[leaves.size()];
+    posTags = new String[leaves.size()];
+    for(int i = 0; i < leaves.size(); i ++) {
+      Tree leaf = leaves.get(i);
+      words[i] = leaf.label().value();
+      preterminals[i] = parents.get(leaf);
+      posTags[i] = preterminals[i].label().value();
+    }
+
+    entityTypeCounts = new ClassicCounter<String>();
+    List<EntityMention> mentions = sentence.get(MachineReadingAnnotations.EntityMentionsAnnotation.class);
+    if(mentions != null) {
+      for (EntityMention arg : mentions)
+        entityTypeCounts.incrementCount(arg.getType());
+    }
+  }
+
+  boolean matches(CoreMap sentence, FeatureFactory.DEPENDENCY_TYPE dependencyType) {
+    return this.sentence == sentence && this.dependencyType == dependencyType;
+  }
+
+  private static long pairKey(int first, int second) {
+    return (((long) first) << 32) | (second & 0xffffffffL);
+  }
+
+  /** Returns the node and all its ancestors, bottom up */
+  private List<Tree> ancestors(Tree node) {
+    List<Tree> path = new ArrayList<Tree>();
+    for(Tree t = node; t != null; t = parents.get(t)) path.add(t);
+    return path;
+  }
+
+  /**
+   * Path between the preterminals of two leaves in the phrase structure tree, e.g., NNP &lt;- PP -&gt; NN
+   * Same as Tree.joinNode + Tree.dominationPath, but using the parent links
+   */
+  String treePath(int leaf0, int leaf1) {
+    Long key = pairKey(leaf0, leaf1);
+    String path = treePaths.get(key);
+    if(path != null) return path;
+
+    List<Tree> up0 = ancestors(preterminals[leaf0]);
+    List<Tree> up1 = ancestors(preterminals[leaf1]);
+    IdentityHashMap<Tree, Integer> positions1 = new IdentityHashMap<Tree, Integer>();
+    for(int i = 0; i < up1.size(); i ++) positions1.put(up1.get(i), i);
+    int join0 = 0;
+    while(! positions1.containsKey(up0.get(join0))) join0 ++;
+    int join1 = positions1.get(up0.get(join0));
+
+    StringBuilder pathStringBuilder = new StringBuilder();
+    for(int i = 0; i < join0; i ++) {
+      pathStringBuilder.append(up0.get(i).label().value() + " <- ");
+    }
+    pathStringBuilder.append(up1.get(join1).label().value());
+    for(int i = join1 - 1; i >= 0; i --) {
+      pathStringBuilder.append(" -> " + up1.get(i).label().value());
+    }
+    path = pathStringBuilder.toString();
+    treePaths.put(key, path);
+    return path;
+  }
+
+  /** Length of the path between two leaves, as computed by Tree.pathNodeToNode */
+  int treePathLength(int leaf0, int leaf1) {
+    Long key = pairKey(leaf0, leaf1);
+    Integer length = treePathLengths.get(key);
+    if(length == null) {
+      length = tree.pathNodeToNode(leaves.get(leaf0), leaves.get(leaf1)).size();
+      treePathLengths.put(key, length);
+    }
+    return length;
+  }
+
+  boolean hasDependencyGraph() { return graphFetched; }
+
+  SemanticGraph dependencyGraph() { return graph; }
+
+  void setDependencyGraph(SemanticGraph graph) {
+    this.graph = graph;
+    this.graphFetched = true;
+  }
+
+  List<SemanticGraphEdge> shortestPathEdges(IndexedWord source, IndexedWord target) {
+    Long key = pairKey(source.index(), target.index());
+    if(edgePaths.containsKey(key)) return edgePaths.get(key);
+    List<SemanticGraphEdge> path = graph.getShortestUndirectedPathEdges(source, target);
+    edgePaths.put(key, path);
+    return path;
+  }
+
+  List<IndexedWord> shortestPathNodes(IndexedWord source, IndexedWord target) {
+    Long key = pairKey(source.index(), target.index());
+    if(nodePaths.containsKey(key)) return nodePaths.get(key);
+    List<IndexedWord> path = graph.getShortestUndirectedPathNodes(source, target);
+    nodePaths.put(key, path);
+    return path;
+  }
+
+  String lemma(IndexedWord node) {
+    String lemma = lemmas.get(node.index());
+    if(lemma == null) {
+      lemma = Morphology.lemmaStatic(node.value(), node.tag(), true);
+      lemmas.put(node.index(), lemma);
+    }
+    return lemma;
+  }
+}
@@ -1,11 +1,11 @@
 package edu.stanford.nlp.kbp.slotfilling;
 
 import edu.stanford.nlp.ie.machinereading.structure.RelationMention;
-import edu.stanford.nlp.kbp.slotfilling.common.SlotToNamedEntities;
 import edu.stanford.nlp.kbp.slotfilling.common.SlotsToNamedEntities;
 
 /**
  * Decides if a slot candidate is valid
+ * The checks use the compiled schema of SlotsToNamedEntities, so they are table lookups that do not allocate
  * @author Mihai
  *
  */
@@ -15,25 +15,38 @@ public class SlotValidity {
       String label, 
       String entityType, 
       String slotNE) {
+    return validCandidateForLabel(slotsToNamedEntities, label,
+        slotsToNamedEntities.entityClass(entityType),
+        slotsToNamedEntities.namedEntityId(slotNE));
+  }
+
+  /**
+   * Same as above, with the entity class and slot NE label already interned by slotsToNamedEntities,
+   *   so callers can intern them once per candidate rather than once per label
+   */
+  public static boolean validCandidateForLabel(
+      SlotsToNamedEntities slotsToNamedEntities,
+      String label, 
+      int entityClass, 
+      int slotNE) {
     if (label.equals(RelationMention.UNRELATED)) return true;
-    SlotToNamedEntities slotInfo = slotsToNamedEntities.getSlotInfo(label);
-    return validCandidateForLabel(slotInfo, label, entityType, slotNE);
+    int slot = slotsToNamedEntities.slotId(label);
+    if (slot < 0) throw new RuntimeException("ERROR: unknown slot " + label);
+    return validCandidateForLabel(slotsToNamedEntities, slot, entityClass, slotNE);
   }
   
-  public static boolean validCandidateForLabel(SlotToNamedEntities slotInfo,
-      String label, 
-      String entityType, 
-      String slotNE) {
-    if (label.startsWith("org:") && 
-        ! entityType.startsWith("ENT:ORG") && 
-        ! entityType.startsWith("ORG"))
-      return false;
-    if (label.startsWith("per:") && 
-        ! entityType.startsWith("ENT:PER") &&
-        ! entityType.startsWith("PER"))
+  /**
+   * Same as above, with the slot interned too
+   */
+  public static boolean validCandidateForLabel(SlotsToNamedEntities slotsToNamedEntities,
+      int slot, 
+      int entityClass, 
+      int slotNE) {
+    // org: slots are only valid for organizations, per: slots for persons
+    if (! slotsToNamedEntities.validForEntityClass(slot, entityClass))
       return false;
 
-    if (!slotInfo.validNamedEntityLabels().contains(slotNE))
+    if (! slotsToNamedEntities.acceptsNamedEntity(slot, slotNE))
       return false;
     
     /*
@@ -63,7 +76,7 @@ public class SlotValidity {
     if(slotNE == null) return false;
     
     // must have a valid NE
-    if(matchSlotNE && ! slotsToNamedEntities.getValidNamedEntityLabels().contains(slotNE))
+    if(matchSlotNE && slotsToNamedEntities.namedEntityId(slotNE) < 0)
       return false;
     
     // must have a valid POS
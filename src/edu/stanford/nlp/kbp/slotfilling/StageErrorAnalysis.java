@@ -25,7 +25,6 @@ import edu.stanford.nlp.kbp.slotfilling.common.KBPEntity;
 import edu.stanford.nlp.kbp.slotfilling.common.KBPSlot;
 import edu.stanford.nlp.kbp.slotfilling.common.Log;
 import edu.stanford.nlp.kbp.slotfilling.common.Props;
-import edu.stanford.nlp.kbp.slotfilling.common.SlotToNamedEntities;
 import edu.stanford.nlp.kbp.slotfilling.common.SlotsToNamedEntities;
 import edu.stanford.nlp.kbp.slotfilling.common.StringFinder;
 import edu.stanford.nlp.kbp.slotfilling.common.Utils;
@@ -117,9 +116,7 @@ public class StageErrorAnalysis {
   }
   
   private boolean compatible(String slot, String ne) {
-    SlotToNamedEntities entry = NEREntries.getSlotInfo(slot);
-    if(entry != null && entry.validNamedEntityLabels().contains(ne)) return true;
-    return false;
+    return NEREntries.acceptsNamedEntity(slot, ne);
   }
   
   private List<Set<String>> getGoldResponses(KBPEntity entity, List<KBPSlot> knownSlots, String slotName) {
@@ -0,0 +1,76 @@
+package edu.stanford.nlp.kbp.slotfilling;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import edu.stanford.nlp.stats.Counter;
+
+/**
+ * Start/end similarities of the n-grams around a date mention, as used by KBPTemporal.getStartOrEnd
+ * The n-grams of the start and end vocabularies are interned to dense int ids, and their weights are kept in
+ *   primitive arrays indexed by these ids. The sentence n-grams are a set (each n-gram has count 1) and all
+ *   vocabulary weights are non-negative, so the weighted Jaccard coefficient of Counters.jaccardCoefficient is
+ *   sum(min) / (|sentence| + total(vocabulary) - sum(min)), where sum(min) is non-zero only for the n-grams the
+ *   sentence shares with the vocabulary. Scoring a mention thus touches only its own n-grams, not the whole vocabulary.
+ * The ids are exact (a map, not a lossy hash), so the coefficients are the same as before, up to floating point
+ *   summation order.
+ * Read-only after construction, so it can be shared by threads.
+ */
+class TemporalNGramScorer {
+  /** n-gram -> id, for all n-grams of the start or end vocabularies */
+  private final Map<String, Integer> ids;
+  /** Weight of each id in the start vocabulary, 0 if absent */
+  private final double [] startWeights;
+  /** Weight of each id in the end vocabulary, 0 if absent */
+  private final double [] endWeights;
+  private final double startTotal;
+  private final double endTotal;
+
+  TemporalNGramScorer(Counter<String> startWords, Counter<String> endWords) {
+    ids = new HashMap<String, Integer>();
+    for(String ngram: startWords.keySet()) intern(ngram);
+    for(String ngram: endWords.keySet()) intern(ngram);
+
+    startWeights = new double[ids.size()];
+    endWeights = new double[ids.size()];
+    double total = 0;
+    for(String ngram: startWords.keySet()) {
+      double w = startWords.getCount(ngram);
+      if(w < 0) throw new RuntimeException("ERROR: negative weight " + w + " for start n-gram " + ngram);
+      startWeights[ids.get(ngram)] = w;
+      total += w;
+    }
+    startTotal = total;
+    total = 0;
+    for(String ngram: endWords.keySet()) {
+      double w = endWords.getCount(ngram);
+      if(w < 0) throw new RuntimeException("ERROR: negative weight " + w + " for end n-gram " + ngram);
+      endWeights[ids.get(ngram)] = w;
+      total += w;
+    }
+    endTotal = total;
+  }
+
+  private void intern(String ngram) {
+    if(! ids.containsKey(ngram)) ids.put(ngram, ids.size());
+  }
+
+  public int vocabularySize() { return ids.size(); }
+
+  /**
+   * Jaccard coefficients of this set of n-grams against the start and end vocabularies
+   * @param similarities Receives the start similarity in [0], and the end similarity in [1]
+   */
+  public void similarities(Collection<String> ngrams, double [] similarities) {
+    double startMin = 0, endMin = 0;
+    for(String ngram: ngrams) {
+      Integer id = ids.get(ngram);
+      if(id == null) continue;
+      startMin += Math.min(1.0, startWeights[id]);
+      endMin += Math.min(1.0, endWeights[id]);
+    }
+    similarities[0] = startMin / (ngrams.size() + startTotal - startMin);
+    similarities[1] = endMin / (ngrams.size() + endTotal - endMin);
+  }
+}
@@ -0,0 +1,484 @@
+package edu.stanford.nlp.kbp.slotfilling.classify;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import edu.stanford.nlp.kbp.slotfilling.common.Props;
+import edu.stanford.nlp.util.PropertiesUtils;
+
+/**
+ * Versioned binary container for relation extractor models, read through a read-only memory map.
+ * Layout (little endian):
+ *   header: magic, version, offset of the directory;
+ *   sections, each aligned to 8 bytes: string tables (with an open addressing hash table for lookups),
+ *     and dense weight blocks with one row per label;
+ *   directory: model type, digest of the training properties, metadata, and the name, kind, offset, and length of each section.
+ * Nothing is deserialized when a model is opened: lookups and weights are read directly from the mapped file,
+ *   so startup is fast and several JVMs serving the same model share the page cache.
+ */
+public class BinaryModel {
+  /** "KBPM" */
+  public static final int MAGIC = 0x4d50424b;
+  public static final int VERSION = 1;
+  /** Binary models saved next to a serialized model use this extension */
+  public static final String EXTENSION = ".bin";
+
+  static final byte STRINGS = 1;
+  static final byte WEIGHTS_FLOAT64 = 2;
+  static final byte WEIGHTS_FLOAT32 = 3;
+
+  private static final int HEADER_SIZE = 16;
+  private static final int STRING_HASH_SEED = 0x3c6ef372;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static class Section {
+    final String name;
+    final byte kind;
+    final long offset;
+    final long length;
+
+    Section(String name, byte kind, long offset, long length) {
+      this.name = name;
+      this.kind = kind;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  private final String path;
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final String modelType;
+  private final String propsDigest;
+  private final Map<String, String> meta = new LinkedHashMap<String, String>();
+  private final Map<String, Section> sections = new LinkedHashMap<String, Section>();
+
+  private BinaryModel(String path) throws IOException {
+    this.path = path;
+    this.file = new RandomAccessFile(path, "r");
+    this.channel = file.getChannel();
+
+    ByteBuffer header = map(0, HEADER_SIZE);
+    if(header.getInt(0) != MAGIC)
+      throw new RuntimeException("ERROR: not a binary model: " + path);
+    int version = header.getInt(4);
+    if(version > VERSION)
+      throw new RuntimeException("ERROR: binary model " + path + " has version " + version + "; this code supports up to version " + VERSION);
+
+    long directory = header.getLong(8);
+    ByteBuffer dir = map(directory, channel.size() - directory);
+    modelType = readString(dir);
+    propsDigest = readString(dir);
+    int metaCount = dir.getInt();
+    for(int i = 0; i < metaCount; i ++) {
+      String key = readString(dir);
+      meta.put(key, readString(dir));
+    }
+    int sectionCount = dir.getInt();
+    for(int i = 0; i < sectionCount; i ++) {
+      String name = readString(dir);
+      byte kind = dir.get();
+      long offset = dir.getLong();
+      long length = dir.getLong();
+      sections.put(name, new Section(name, kind, offset, length));
+    }
+  }
+
+  /** Opens a binary model; sections are mapped when they are first requested */
+  public static BinaryModel open(String path) throws IOException {
+    return new BinaryModel(path);
+  }
+
+  /** True if this file starts with the binary model magic */
+  public static boolean isBinaryModel(String path) throws IOException {
+    File f = new File(path);
+    if(! f.isFile() || f.length() < HEADER_SIZE) return false;
+    InputStream is = new FileInputStream(f);
+    byte [] magic = new byte[4];
+    int read = is.read(magic);
+    is.close();
+    return (read == 4 && ByteBuffer.wrap(magic).order(ByteOrder.LITTLE_ENDIAN).getInt() == MAGIC);
+  }
+
+  public String path() { return path; }
+  public String modelType() { return modelType; }
+  public String propsDigest() { return propsDigest; }
+
+  public String meta(String key) {
+    String v = meta.get(key);
+    if(v == null) throw new RuntimeException("ERROR: key " + key + " not found in binary model " + path);
+    return v;
+  }
+
+  public String meta(String key, String defaultValue) {
+    String v = meta.get(key);
+    return (v != null ? v : defaultValue);
+  }
+
+  public boolean hasSection(String name) { return sections.containsKey(name); }
+
+  private Section section(String name) {
+    Section s = sections.get(name);
+    if(s == null) throw new RuntimeException("ERROR: section " + name + " not found in binary model " + path);
+    return s;
+  }
+
+  public StringTable strings(String name) throws IOException {
+    Section s = section(name);
+    if(s.kind != STRINGS) throw new RuntimeException("ERROR: section " + name + " is not a string table");
+    return new StringTable(map(s.offset, s.length));
+  }
+
+  public Weights weights(String name) throws IOException {
+    Section s = section(name);
+    if(s.kind != WEIGHTS_FLOAT64 && s.kind != WEIGHTS_FLOAT32)
+      throw new RuntimeException("ERROR: section " + name + " is not a weight block");
+    ByteBuffer header = map(s.offset, 8);
+    int rows = header.getInt(0);
+    int columns = header.getInt(4);
+    int width = (s.kind == WEIGHTS_FLOAT64 ? 8 : 4);
+    long rowBytes = (long) columns * width;
+    // one mapping per row, so blocks larger than 2GB can be mapped
+    Weights w = new Weights(rows, columns, s.kind == WEIGHTS_FLOAT64);
+    for(int r = 0; r < rows; r ++) {
+      ByteBuffer row = map(s.offset + 8 + r * rowBytes, rowBytes);
+      if(w.float64 != null) w.float64[r] = row.asDoubleBuffer();
+      else w.float32[r] = row.asFloatBuffer();
+    }
+    return w;
+  }
+
+  /** Mappings stay valid after the file is closed */
+  public void close() throws IOException {
+    channel.close();
+    file.close();
+  }
+
+  private ByteBuffer map(long offset, long length) throws IOException {
+    if(length > Integer.MAX_VALUE)
+      throw new RuntimeException("ERROR: cannot map " + length + " bytes at once from " + path);
+    ByteBuffer b = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+    b.order(ByteOrder.LITTLE_ENDIAN);
+    return b;
+  }
+
+  private static String readString(ByteBuffer b) {
+    byte [] bytes = new byte[b.getInt()];
+    b.get(bytes);
+    return new String(bytes, UTF8);
+  }
+
+  /** Weights are saved as floats, unless model.binary.float64 is set */
+  public static boolean singlePrecision(Properties props) {
+    return ! PropertiesUtils.getBool(props, Props.MODEL_BINARY_FLOAT64, false);
+  }
+
+  static int hash(String s) {
+    return HashedFeatureIndex.murmur3(s, STRING_HASH_SEED);
+  }
+
+  /** Digest of all properties, so a binary model can be traced back to the configuration that trained it */
+  public static String digest(Properties props) {
+    if(props == null) return "";
+    List<String> keys = new ArrayList<String>(props.stringPropertyNames());
+    Collections.sort(keys);
+    try {
+      MessageDigest md = MessageDigest.getInstance("MD5");
+      for(String key: keys) md.update((key + "=" + props.getProperty(key) + "\n").getBytes(UTF8));
+      StringBuilder os = new StringBuilder();
+      for(byte b: md.digest()) os.append(String.format("%02x", b & 0xff));
+      return os.toString();
+    } catch(NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Immutable table of strings: id to string, and string to id through a hash table stored in the same section
+   */
+  public static class StringTable {
+    private final ByteBuffer data;
+    private final int size;
+    private final int slots;
+    private final int offsetsStart;
+    private final int slotsStart;
+    private final int blobStart;
+
+    StringTable(ByteBuffer data) {
+      this.data = data;
+      this.size = data.getInt(0);
+      this.slots = data.getInt(4);
+      this.offsetsStart = 8;
+      this.slotsStart = offsetsStart + 4 * (size + 1);
+      this.blobStart = slotsStart + 4 * slots;
+    }
+
+    public int size() { return size; }
+
+    public String get(int i) {
+      if(i < 0 || i >= size) throw new ArrayIndexOutOfBoundsException(i);
+      int start = data.getInt(offsetsStart + 4 * i);
+      int end = data.getInt(offsetsStart + 4 * (i + 1));
+      byte [] bytes = new byte[end - start];
+      for(int k = 0; k < bytes.length; k ++) bytes[k] = data.get(blobStart + start + k);
+      return new String(bytes, UTF8);
+    }
+
+    /** Id of this string, or -1 if it is not in the table */
+    public int indexOf(String s) {
+      byte [] bytes = s.getBytes(UTF8);
+      int mask = slots - 1;
+      int h = hash(s) & mask;
+      while(true) {
+        int id = data.getInt(slotsStart + 4 * h);
+        if(id < 0) return -1;
+        if(equalsAt(id, bytes)) return id;
+        h = (h + 1) & mask;
+      }
+    }
+
+    private boolean equalsAt(int id, byte [] bytes) {
+      int start = data.getInt(offsetsStart + 4 * id);
+      int end = data.getInt(offsetsStart + 4 * (id + 1));
+      if(end - start != bytes.length) return false;
+      for(int k = 0; k < bytes.length; k ++)
+        if(data.get(blobStart + start + k) != bytes[k]) return false;
+      return true;
+    }
+
+    /** All strings, in id order; meant for small tables such as label sets */
+    public List<String> toList() {
+      List<String> strings = new ArrayList<String>(size);
+      for(int i = 0; i < size; i ++) strings.add(get(i));
+      return strings;
+    }
+  }
+
+  /**
+   * Dense weight block, rows x columns, stored in double or single precision
+   */
+  public static class Weights {
+    private final int rows;
+    private final int columns;
+    final DoubleBuffer [] float64;
+    final FloatBuffer [] float32;
+
+    Weights(int rows, int columns, boolean doublePrecision) {
+      this.rows = rows;
+      this.columns = columns;
+      this.float64 = (doublePrecision ? new DoubleBuffer[rows] : null);
+      this.float32 = (doublePrecision ? null : new FloatBuffer[rows]);
+    }
+
+    public int rows() { return rows; }
+    public int columns() { return columns; }
+
+    public double get(int row, int column) {
+      if(float64 != null) return float64[row].get(column);
+      return float32[row].get(column);
+    }
+
+    /** Copy of one row on the heap */
+    public double [] row(int r) {
+      double [] values = new double[columns];
+      for(int c = 0; c < columns; c ++) values[c] = get(r, c);
+      return values;
+    }
+  }
+
+  /**
+   * Writes a binary model sequentially; the directory is written at the end, when all sections are known
+   */
+  public static class Writer {
+    private final String path;
+    private final String modelType;
+    private final String propsDigest;
+    private final boolean singlePrecision;
+    private final Map<String, String> meta = new LinkedHashMap<String, String>();
+    private final List<Section> sections = new ArrayList<Section>();
+
+    private final OutputStream os;
+    private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+    private long position = 0;
+
+    /** The weight block currently being written */
+    private String blockName = null;
+    private long blockStart;
+    private int blockColumns;
+    private int blockRowsLeft;
+
+    /**
+     * @param singlePrecision If true, weights are stored as floats; this halves the model size but the scores are no longer identical.
+     *   Extractors pass singlePrecision(props), true by default
+     */
+    public Writer(String path, String modelType, Properties props, boolean singlePrecision) throws IOException {
+      this.path = path;
+      this.modelType = modelType;
+      this.propsDigest = digest(props);
+      this.singlePrecision = singlePrecision;
+
+      // make sure the directory exists
+      File dir = new File(path).getAbsoluteFile().getParentFile();
+      if(dir != null && ! dir.exists()) dir.mkdirs();
+
+      os = new BufferedOutputStream(new FileOutputStream(path), 1 << 20);
+      putInt(MAGIC);
+      putInt(VERSION);
+      putLong(0); // directory offset, set in close()
+    }
+
+    public void setMeta(String key, String value) { meta.put(key, value); }
+
+    public void addStrings(String name, List<String> strings) throws IOException {
+      align();
+      long start = position;
+      int size = strings.size();
+      byte [][] encoded = new byte[size][];
+      for(int i = 0; i < size; i ++) encoded[i] = strings.get(i).getBytes(UTF8);
+
+      // open addressing, at most half full
+      int slots = 2;
+      while(slots < 2 * size) slots *= 2;
+      int [] table = new int[slots];
+      Arrays.fill(table, -1);
+      for(int i = 0; i < size; i ++) {
+        int h = hash(strings.get(i)) & (slots - 1);
+        while(table[h] != -1) h = (h + 1) & (slots - 1);
+        table[h] = i;
+      }
+
+      putInt(size);
+      putInt(slots);
+      long offset = 0;
+      for(int i = 0; i < size; i ++) {
+        putInt((int) offset);
+        offset += encoded[i].length;
+        if(offset > Integer.MAX_VALUE) throw new RuntimeException("ERROR: string table " + name + " is too large");
+      }
+      putInt((int) offset);
+      for(int t: table) putInt(t);
+      for(byte [] bytes: encoded) putBytes(bytes);
+      sections.add(new Section(name, STRINGS, start, position - start));
+    }
+
+    /** Starts a weight block; it must be followed by exactly rows calls to writeRow */
+    public void beginWeights(String name, int rows, int columns) throws IOException {
+      if(blockName != null) throw new RuntimeException("ERROR: weight block " + blockName + " is not finished");
+      align();
+      blockName = name;
+      blockStart = position;
+      blockColumns = columns;
+      blockRowsLeft = rows;
+      putInt(rows);
+      putInt(columns);
+      if(rows == 0) endWeights();
+    }
+
+    public void writeRow(double [] row) throws IOException {
+      if(blockName == null) throw new RuntimeException("ERROR: no weight block started");
+      if(row.length != blockColumns)
+        throw new RuntimeException("ERROR: row of length " + row.length + " in weight block " + blockName + " with " + blockColumns + " columns");
+      for(double v: row) {
+        if(singlePrecision) putFloat((float) v);
+        else putDouble(v);
+      }
+      blockRowsLeft --;
+      if(blockRowsLeft == 0) endWeights();
+    }
+
+    private void endWeights() {
+      sections.add(new Section(blockName, (singlePrecision ? WEIGHTS_FLOAT32 : WEIGHTS_FLOAT64), blockStart, position - blockStart));
+      blockName = null;
+    }
+
+    /** Writes a weight block whose rows are all available */
+    public void addWeights(String name, double [][] rows) throws IOException {
+      beginWeights(name, rows.length, (rows.length > 0 ? rows[0].length : 0));
+      for(double [] row: rows) writeRow(row);
+    }
+
+    public void close() throws IOException {
+      if(blockName != null) throw new RuntimeException("ERROR: weight block " + blockName + " is not finished");
+      align();
+      long directory = position;
+      putString(modelType);
+      putString(propsDigest);
+      putInt(meta.size());
+      for(Map.Entry<String, String> e: meta.entrySet()) {
+        putString(e.getKey());
+        putString(e.getValue());
+      }
+      putInt(sections.size());
+      for(Section s: sections) {
+        putString(s.name);
+        putByte(s.kind);
+        putLong(s.offset);
+        putLong(s.length);
+      }
+      flush();
+      os.close();
+
+      RandomAccessFile f = new RandomAccessFile(path, "rw");
+      f.seek(8);
+      f.write(ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(directory).array());
+      f.close();
+    }
+
+    private void flush() throws IOException {
+      os.write(buffer.array(), 0, buffer.position());
+      buffer.clear();
+    }
+
+    private void ensure(int bytes) throws IOException {
+      if(buffer.remaining() < bytes) flush();
+    }
+
+    private void align() throws IOException {
+      while(position % 8 != 0) putByte((byte) 0);
+    }
+
+    private void putByte(byte v) throws IOException { ensure(1); buffer.put(v); position += 1; }
+    private void putInt(int v) throws IOException { ensure(4); buffer.putInt(v); position += 4; }
+    private void putLong(long v) throws IOException { ensure(8); buffer.putLong(v); position += 8; }
+    private void putFloat(float v) throws IOException { ensure(4); buffer.putFloat(v); position += 4; }
+    private void putDouble(double v) throws IOException { ensure(8); buffer.putDouble(v); position += 8; }
+
+    private void putBytes(byte [] bytes) throws IOException {
+      if(bytes.length <= buffer.capacity()) {
+        ensure(bytes.length);
+        buffer.put(bytes);
+      } else {
+        flush();
+        os.write(bytes);
+      }
+      position += bytes.length;
+    }
+
+    private void putString(String s) throws IOException {
+      byte [] bytes = s.getBytes(UTF8);
+      putInt(bytes.length);
+      putBytes(bytes);
+    }
+  }
+}
@@ -0,0 +1,152 @@
+package edu.stanford.nlp.kbp.slotfilling.classify;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import edu.stanford.nlp.kbp.slotfilling.common.Constants;
+import edu.stanford.nlp.kbp.slotfilling.common.Log;
+import edu.stanford.nlp.kbp.slotfilling.common.Props;
+import edu.stanford.nlp.stats.Counter;
+import edu.stanford.nlp.util.PropertiesUtils;
+import edu.stanford.nlp.util.StringUtils;
+
+/**
+ * Converts a serialized relation extractor model to the BinaryModel format, and checks that both models score the same:
+ *   random tuples are built from the features stored in the binary model (plus unknown features),
+ *   and are classified with both models.
+ * Double precision models must produce identical scores; float models (the default) must produce the same labels,
+ *   with scores within FLOAT_TOLERANCE. KBPTrainer runs the same check (verify) on every binary model it saves.
+ * Usage:
+ *   java edu.stanford.nlp.kbp.slotfilling.classify.BinaryModelConverter -trainer.model JOINT_BAYES -input model.ser
+ * Other options: output (default: input + ".bin"), model.binary.float64,
+ *   verify.tuples (number of random tuples, default 1000; 0 disables the check), verify.seed.
+ * The check also compares batch (classifyMentionsBatch) and per-tuple classification of the binary model.
+ */
+public class BinaryModelConverter {
+  private BinaryModelConverter() {} // static class
+
+  /** Largest relative score difference allowed between a float binary model and its serialized model */
+  static final double FLOAT_TOLERANCE = 1e-4;
+
+  /** Builds random tuples from the features of a binary model */
+  static List<List<Collection<String>>> randomTuples(String binaryPath, int count, long seed) throws IOException {
+    BinaryModel model = BinaryModel.open(binaryPath);
+    BinaryModel.StringTable features = null;
+    if(model.hasSection("z.features")) features = model.strings("z.features");
+    else if(model.hasSection("features")) features = model.strings("features");
+
+    Random random = new Random(seed);
+    List<List<Collection<String>>> tuples = new ArrayList<List<Collection<String>>>();
+    for(int t = 0; t < count; t ++) {
+      List<Collection<String>> mentions = new ArrayList<Collection<String>>();
+      int mentionCount = 1 + random.nextInt(5);
+      for(int m = 0; m < mentionCount; m ++) {
+        List<String> mention = new ArrayList<String>();
+        int featureCount = 1 + random.nextInt(50);
+        for(int f = 0; f < featureCount; f ++) {
+          // hashed feature spaces have no feature table; any string is a valid feature there
+          if(features != null && features.size() > 0) mention.add(features.get(random.nextInt(features.size())));
+          else mention.add("f" + random.nextInt(100000));
+        }
+        mention.add("unknown-feature-" + random.nextInt());
+        mentions.add(mention);
+      }
+      tuples.add(mentions);
+    }
+    model.close();
+    return tuples;
+  }
+
+  /**
+   * Classifies all tuples with both extractors
+   * @return Number of tuples with different labels or scores
+   */
+  static int compare(RelationExtractor expected, RelationExtractor actual,
+      List<List<Collection<String>>> tuples, boolean exact) {
+    int mismatches = 0;
+    double maxDifference = 0;
+    for(List<Collection<String>> tuple: tuples) {
+      Counter<String> e = expected.classifyMentions(tuple);
+      Counter<String> a = actual.classifyMentions(tuple);
+      boolean same = e.keySet().equals(a.keySet());
+      if(same) {
+        for(String label: e.keySet()) {
+          double ev = e.getCount(label);
+          double av = a.getCount(label);
+          maxDifference = Math.max(maxDifference, Math.abs(ev - av));
+          if(exact ? Double.compare(ev, av) != 0 : Math.abs(ev - av) > FLOAT_TOLERANCE * Math.max(1.0, Math.abs(ev))) same = false;
+        }
+      }
+      if(! same) {
+        mismatches ++;
+        if(mismatches <= 10) Log.severe("Different scores: expected " + e + " but found " + a);
+      }
+    }
+    Log.severe("Compared " + tuples.size() + " tuples: " + mismatches + " " + (exact ? "differ" : "differ beyond the float tolerance") +
+        "; the largest score difference is " + maxDifference + ".");
+    return mismatches;
+  }
+
+  /**
+   * Checks that classifyMentionsBatch returns exactly the same results as classifyMentions for each tuple
+   * @return Number of tuples with different results
+   */
+  static int compareBatch(RelationExtractor extractor, List<List<Collection<String>>> tuples) {
+    List<Counter<String>> batch = extractor.classifyMentionsBatch(tuples);
+    int mismatches = 0;
+    for(int i = 0; i < tuples.size(); i ++) {
+      Counter<String> e = extractor.classifyMentions(tuples.get(i));
+      Counter<String> a = batch.get(i);
+      boolean same = e.keySet().equals(a.keySet());
+      for(String label: e.keySet()) {
+        if(same && Double.compare(e.getCount(label), a.getCount(label)) != 0) same = false;
+      }
+      if(! same) {
+        mismatches ++;
+        if(mismatches <= 10) Log.severe("Different batch scores: expected " + e + " but found " + a);
+      }
+    }
+    Log.severe("Compared batch and per-tuple classification of " + tuples.size() + " tuples: " + mismatches + " differ.");
+    return mismatches;
+  }
+
+  /**
+   * Round-trip check of a binary model: loads it and the serialized model it was saved from, and compares
+   *   their scores on verify.tuples random tuples (default 1000; 0 disables the check)
+   */
+  public static void verify(RelationExtractorFactory factory, String serializedPath, String binaryPath, Properties props) throws IOException {
+    int tupleCount = PropertiesUtils.getInt(props, "verify.tuples", 1000);
+    if(tupleCount <= 0) return;
+    RelationExtractor serialized;
+    try {
+      serialized = factory.loadSerialized(serializedPath, props);
+    } catch(ClassNotFoundException e) {
+      throw new RuntimeException(e);
+    }
+    RelationExtractor binary = factory.loadBinary(binaryPath, props);
+    List<List<Collection<String>>> tuples = randomTuples(binaryPath, tupleCount, PropertiesUtils.getInt(props, "verify.seed", 1));
+    if(compare(serialized, binary, tuples, ! BinaryModel.singlePrecision(props)) > 0)
+      throw new RuntimeException("ERROR: the binary model " + binaryPath + " does not reproduce the scores of " + serializedPath);
+    if(compareBatch(binary, tuples) > 0)
+      throw new RuntimeException("ERROR: batch classification does not reproduce the per-tuple scores of " + binaryPath);
+  }
+
+  public static void main(String[] args) throws Exception {
+    Properties props = StringUtils.argsToProperties(args);
+    Log.setLevel(Log.stringToLevel(props.getProperty(Props.LOG_LEVEL, "SEVERE")));
+    String input = props.getProperty("input");
+    if(input == null) throw new RuntimeException("ERROR: the serialized model must be given with -input");
+    String output = props.getProperty("output", input + BinaryModel.EXTENSION);
+
+    RelationExtractorFactory factory = new RelationExtractorFactory(props.getProperty(Props.MODEL_TYPE, Constants.DEFAULT_MODEL));
+    RelationExtractor serialized = factory.loadSerialized(input, props);
+    serialized.saveBinary(output, props);
+    Log.severe("Saved binary model to " + output);
+
+    verify(factory, input, output, props);
+  }
+}
@@ -0,0 +1,273 @@
+package edu.stanford.nlp.kbp.slotfilling.classify;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Set;
+
+import edu.stanford.nlp.kbp.slotfilling.common.Log;
+import edu.stanford.nlp.kbp.slotfilling.common.Metrics;
+import edu.stanford.nlp.kbp.slotfilling.common.Props;
+import edu.stanford.nlp.util.PropertiesUtils;
+
+/**
+ * Tracks the convergence of iterative training (the EM epochs of JointBayes, the perceptron epochs)
+ *   and decides when to stop early.
+ * Each epoch reports the fraction of Z labels that changed, the Z log-likelihood (NaN for the perceptrons),
+ *   the norm of the Z weights, and optionally a held-out score (F1 of the Y labels).
+ * Training stops when all enabled criteria hold for train.convergence.patience consecutive epochs:
+ *   train.convergence.zflips (fraction of flipped Z labels at most this),
+ *   train.convergence.loglik (relative log-likelihood change below this),
+ *   train.convergence.weights (relative weight norm change below this).
+ * If train.convergence.heldout is set, training also stops when the held-out score has not improved
+ *   for train.convergence.patience epochs; the extractor then restores the model of the best epoch.
+ * All criteria are disabled by default, so training runs all its epochs unless configured otherwise.
+ * The perceptron extractors run their epochs between start() and finish(), which also hold out the groups
+ *   for scoring and count the Z flips; JointBayes measures both itself, and only calls record().
+ */
+public class ConvergenceMonitor {
+  /** Predicts the Y labels of a group with the current (non-averaged) weights of the extractor being trained */
+  public interface LabelPredictor {
+    public Set<Integer> predictLabels(int [][] group);
+  }
+
+  /** Telemetry of one epoch */
+  public static class EpochStats {
+    public final int epoch;
+    public final double zFlipFraction;
+    public final double logLikelihood;
+    public final double weightNorm;
+    public final double heldOutScore;
+
+    public EpochStats(int epoch, double zFlipFraction, double logLikelihood, double weightNorm, double heldOutScore) {
+      this.epoch = epoch;
+      this.zFlipFraction = zFlipFraction;
+      this.logLikelihood = logLikelihood;
+      this.weightNorm = weightNorm;
+      this.heldOutScore = heldOutScore;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.US, "epoch %d: z flips %.6f, log-likelihood %.4f, weight norm %.4f, held-out F1 %.4f",
+          epoch, zFlipFraction, logLikelihood, weightNorm, heldOutScore);
+    }
+  }
+
+  /** Negative values disable this criterion */
+  private final double maxZFlips;
+  /** Zero disables this criterion */
+  private final double minLogLikelihoodChange;
+  /** Zero disables this criterion */
+  private final double minWeightNormChange;
+  private final int patience;
+  private final int minEpochs;
+  /** For the perceptrons: fraction of the groups held out from training; for JointBayes any value > 0 enables held-out scoring */
+  private final double heldOut;
+
+  private final List<EpochStats> history = new ArrayList<EpochStats>();
+  private int convergedEpochs;
+  private EpochStats best;
+  private String stopReason;
+
+  /** Groups held out from the current perceptron training run; null without held-out scoring */
+  private MultiLabelDataset<String, String> heldOutGroups;
+  /** Z labels predicted for each group in the previous epoch of the current run */
+  private IdentityHashMap<int [][], int []> previousZ;
+  private int zFlips;
+  private int totalMentions;
+
+  /** All criteria disabled */
+  public ConvergenceMonitor() {
+    this(new Properties());
+  }
+
+  public ConvergenceMonitor(Properties props) {
+    maxZFlips = PropertiesUtils.getDouble(props, Props.TRAIN_CONVERGENCE_ZFLIPS, -1.0);
+    minLogLikelihoodChange = PropertiesUtils.getDouble(props, Props.TRAIN_CONVERGENCE_LOGLIK, 0.0);
+    minWeightNormChange = PropertiesUtils.getDouble(props, Props.TRAIN_CONVERGENCE_WEIGHTS, 0.0);
+    patience = Math.max(1, PropertiesUtils.getInt(props, Props.TRAIN_CONVERGENCE_PATIENCE, 1));
+    minEpochs = PropertiesUtils.getInt(props, Props.TRAIN_CONVERGENCE_MIN_EPOCHS, 1);
+    heldOut = PropertiesUtils.getDouble(props, Props.TRAIN_CONVERGENCE_HELDOUT, 0.0);
+  }
+
+  public boolean useHeldOut() { return heldOut > 0; }
+
+  public double heldOutFraction() { return heldOut; }
+
+  /** Clears the history, before training starts */
+  public void reset() {
+    history.clear();
+    convergedEpochs = 0;
+    best = null;
+    stopReason = null;
+  }
+
+  /**
+   * Starts a perceptron training run: clears the history, and, with held-out scoring,
+   *   holds out the last heldOutFraction of the groups
+   * @return The groups to train on
+   */
+  public MultiLabelDataset<String, String> start(MultiLabelDataset<String, String> dataset) {
+    reset();
+    heldOutGroups = null;
+    if(useHeldOut()) {
+      int heldOutSize = (int) (dataset.size() * heldOut);
+      heldOutGroups = dataset.subset(dataset.size() - heldOutSize, dataset.size());
+      dataset = dataset.subset(0, dataset.size() - heldOutSize);
+      Log.severe("Holding out " + heldOutSize + " groups for convergence tracking.");
+    }
+    previousZ = new IdentityHashMap<int [][], int []>();
+    totalMentions = 0;
+    for(int [][] group: dataset.getDataArray()) totalMentions += group.length;
+    return dataset;
+  }
+
+  public void startEpoch() {
+    zFlips = 0;
+  }
+
+  /** Counts the Z labels of this group that changed since the previous epoch; groups are identified by their arrays */
+  public void countZFlips(int [][] group, int [] zPredicted) {
+    if(previousZ == null) return;
+    int [] prevZ = previousZ.put(group, zPredicted);
+    for(int i = 0; i < zPredicted.length; i ++)
+      if(prevZ == null || prevZ[i] != zPredicted[i]) zFlips ++;
+  }
+
+  /**
+   * Records the end of an epoch of the run started by start()
+   * @param zWeights The current Z weight vectors, for their norm
+   * @param predictor Scores the held-out groups, if any
+   * @return true if the extractor should snapshot its model; see record()
+   */
+  public boolean endEpoch(int epoch, JointlyTrainedRelationExtractor.AveragedWeights [] zWeights, LabelPredictor predictor) {
+    double heldOutScore = Double.NaN;
+    if(heldOutGroups != null) {
+      List<Set<Integer>> gold = new ArrayList<Set<Integer>>();
+      List<Set<Integer>> predicted = new ArrayList<Set<Integer>>();
+      for(int i = 0; i < heldOutGroups.size(); i ++) {
+        predicted.add(predictor.predictLabels(heldOutGroups.getDataArray()[i]));
+        gold.add(heldOutGroups.getPositiveLabelsArray()[i]);
+      }
+      heldOutScore = f1(gold, predicted);
+    }
+    double norm = 0;
+    for(JointlyTrainedRelationExtractor.AveragedWeights w: zWeights) norm += squaredNorm(w.weights());
+    return record(new EpochStats(epoch, (double) zFlips / (double) Math.max(1, totalMentions),
+        Double.NaN, Math.sqrt(norm), heldOutScore));
+  }
+
+  /** Ends the run started by start(), releasing the held-out groups and the Z labels */
+  public void finish() {
+    heldOutGroups = null;
+    previousZ = null;
+  }
+
+  /** Deep copy through serialization, e.g., of the weights of the best epoch */
+  @SuppressWarnings("unchecked")
+  public static <T extends Serializable> T snapshot(T model) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ObjectOutputStream os = new ObjectOutputStream(bytes);
+      os.writeObject(model);
+      os.close();
+      ObjectInputStream is = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+      T copy = (T) is.readObject();
+      is.close();
+      return copy;
+    } catch(IOException e) {
+      throw new RuntimeException(e);
+    } catch(ClassNotFoundException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Records the telemetry of one epoch
+   * @return true if this epoch has the best held-out score so far, i.e., the extractor should snapshot its model;
+   *   always false without held-out scoring
+   */
+  public boolean record(EpochStats stats) {
+    EpochStats prev = (history.isEmpty() ? null : history.get(history.size() - 1));
+    history.add(stats);
+    Log.severe("CONVERGENCE " + stats);
+    Metrics.add("training.epochs", 1);
+
+    boolean enabled = false;
+    boolean converged = true;
+    if(maxZFlips >= 0) {
+      enabled = true;
+      converged &= (stats.zFlipFraction <= maxZFlips);
+    }
+    if(minLogLikelihoodChange > 0 && ! Double.isNaN(stats.logLikelihood)) {
+      enabled = true;
+      converged &= (prev != null && relativeChange(prev.logLikelihood, stats.logLikelihood) < minLogLikelihoodChange);
+    }
+    if(minWeightNormChange > 0) {
+      enabled = true;
+      converged &= (prev != null && relativeChange(prev.weightNorm, stats.weightNorm) < minWeightNormChange);
+    }
+    if(enabled && converged) convergedEpochs ++;
+    else convergedEpochs = 0;
+
+    boolean isBest = false;
+    if(useHeldOut() && (best == null || stats.heldOutScore > best.heldOutScore)) {
+      best = stats;
+      isBest = true;
+    }
+
+    if(history.size() >= minEpochs) {
+      if(convergedEpochs >= patience) {
+        stopReason = "converged for " + convergedEpochs + " epochs";
+      } else if(useHeldOut() && stats.epoch - best.epoch >= patience) {
+        stopReason = "no held-out improvement since epoch " + best.epoch;
+      }
+    }
+    return isBest;
+  }
+
+  /** True if training should stop after the last recorded epoch */
+  public boolean shouldStop() {
+    if(stopReason != null) Log.severe("Stopping training after epoch " + history.get(history.size() - 1).epoch + ": " + stopReason + ".");
+    return stopReason != null;
+  }
+
+  /** Epoch with the best held-out score; null without held-out scoring */
+  public EpochStats best() { return best; }
+
+  public List<EpochStats> history() { return history; }
+
+  private static double relativeChange(double prev, double crt) {
+    return Math.abs(crt - prev) / Math.max(Math.abs(prev), 1e-12);
+  }
+
+  /** Squared L2 norm; add these up over all weight vectors, and take the square root at the end */
+  public static double squaredNorm(double [] weights) {
+    double sum = 0;
+    for(double w: weights) sum += w * w;
+    return sum;
+  }
+
+  /** Micro-averaged F1 of the predicted labels of each group */
+  public static double f1(List<Set<Integer>> gold, List<Set<Integer>> predicted) {
+    int correct = 0, predictedCount = 0, total = 0;
+    for(int i = 0; i < gold.size(); i ++) {
+      total += gold.get(i).size();
+      predictedCount += predicted.get(i).size();
+      for(int l: predicted.get(i))
+        if(gold.get(i).contains(l)) correct ++;
+    }
+    double p = (predictedCount > 0 ? (double) correct / predictedCount : 0);
+    double r = (total > 0 ? (double) correct / total : 0);
+    return (p != 0 && r != 0 ? 2 * p * r / (p + r) : 0);
+  }
+}
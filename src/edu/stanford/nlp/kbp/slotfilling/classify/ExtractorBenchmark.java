@@ -0,0 +1,211 @@
+package edu.stanford.nlp.kbp.slotfilling.classify;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+
+import edu.stanford.nlp.kbp.slotfilling.common.BenchmarkRunner;
+import edu.stanford.nlp.kbp.slotfilling.common.BenchmarkRunner.Benchmark;
+import edu.stanford.nlp.kbp.slotfilling.common.Log;
+import edu.stanford.nlp.kbp.slotfilling.common.Props;
+import edu.stanford.nlp.classify.LinearClassifier;
+import edu.stanford.nlp.stats.Counter;
+import edu.stanford.nlp.util.ErasureUtils;
+import edu.stanford.nlp.util.StringUtils;
+
+/**
+ * Micro benchmarks for the hot paths of the relation extractors:
+ *   per-group inference, per-update training, per-tuple classification, and feature selection.
+ * They are run by BenchmarkRunner, which reports the time and the bytes allocated per operation.
+ * The datasets are synthetic (see SyntheticDatasets.Shape for the options) or loaded from bench.fixture.
+ * Usage:
+ *   java edu.stanford.nlp.kbp.slotfilling.classify.ExtractorBenchmark -bench.groups 1000 -bench.filter hoffmann
+ * See BenchmarkRunner for the other options.
+ */
+public class ExtractorBenchmark {
+  /** Results are stored here, so the JIT cannot eliminate the benchmarked code */
+  static volatile Object sink;
+
+  private final MultiLabelDataset<String, String> dataset;
+  private final List<List<Collection<String>>> tuples;
+  private final Properties props;
+
+  public ExtractorBenchmark(Properties props) throws Exception {
+    this.props = props;
+    this.dataset = makeDataset();
+    this.tuples = SyntheticDatasets.toMentions(dataset);
+    int mentions = 0;
+    for(List<Collection<String>> t: tuples) mentions += t.size();
+    Log.severe("Benchmark dataset: " + dataset.size() + " groups, " + mentions + " mentions, " +
+        dataset.featureIndex().size() + " features, " + dataset.labelIndex().size() + " labels.");
+  }
+
+  /**
+   * Creates a new dataset for each extractor, because some of them modify the label index during training
+   */
+  private MultiLabelDataset<String, String> makeDataset() throws Exception {
+    if(props.containsKey("bench.fixture"))
+      return SyntheticDatasets.load(props.getProperty("bench.fixture"));
+    SyntheticDatasets.Shape shape = SyntheticDatasets.Shape.fromProperties(props);
+    Log.severe("Generating synthetic dataset: " + shape);
+    return SyntheticDatasets.generate(shape);
+  }
+
+  List<Benchmark> benchmarks() {
+    List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+    benchmarks.add(new Benchmark("multilabel.applyFeatureCountThreshold") {
+      MultiLabelDataset<String, String> copy;
+      @Override
+      public void prepareBatch() { copy = SyntheticDatasets.copy(dataset); }
+      @Override
+      public int runBatch() {
+        copy.applyFeatureCountThreshold(2);
+        sink = copy;
+        return 1;
+      }
+    });
+
+    benchmarks.add(new Benchmark("hoffmann.labelWeights.update") {
+      HoffmannExtractor.LabelWeights weights;
+      @Override
+      public void prepareBatch() { weights = new HoffmannExtractor.LabelWeights(dataset.featureIndex().size()); }
+      @Override
+      public int runBatch() {
+        int ops = 0;
+        for(int [][] group: dataset.getDataArray()) {
+          for(int [] datum: group) {
+            weights.update(datum, (ops % 2 == 0 ? +1.0 : -1.0));
+            weights.updateSurvivalIterations();
+            ops ++;
+          }
+        }
+        sink = weights;
+        return ops;
+      }
+    });
+
+    benchmarks.add(new Benchmark("hoffmann.estimateZ") {
+      HoffmannExtractor extractor;
+      MultiLabelDataset<String, String> data;
+      @Override
+      public void setup() throws Exception {
+        data = makeDataset();
+        extractor = new HoffmannExtractor(1);
+        extractor.train(data);
+      }
+      @Override
+      public int runBatch() {
+        for(int [][] group: data.getDataArray()) sink = extractor.estimateZ(group);
+        return data.size();
+      }
+    });
+
+    benchmarks.add(new Benchmark("hoffmann.classifyMentions") {
+      HoffmannExtractor extractor;
+      @Override
+      public void setup() throws Exception {
+        extractor = new HoffmannExtractor(1);
+        extractor.train(makeDataset());
+      }
+      @Override
+      public int runBatch() {
+        for(List<Collection<String>> tuple: tuples) sink = extractor.classifyMentions(tuple);
+        return tuples.size();
+      }
+    });
+
+    benchmarks.add(new Benchmark("hoffmann.classifyMentionsBatch") {
+      HoffmannExtractor extractor;
+      @Override
+      public void setup() throws Exception {
+        extractor = new HoffmannExtractor(1);
+        extractor.train(makeDataset());
+      }
+      @Override
+      public int runBatch() {
+        sink = extractor.classifyMentionsBatch(tuples);
+        return tuples.size();
+      }
+    });
+
+    benchmarks.add(new Benchmark("jointbayes.inferZLabelsStable") {
+      JointBayesRelationExtractor extractor;
+      MultiLabelDataset<String, String> data;
+      LinearClassifier<String, String> zClassifier;
+      int [][] zLabels;
+      @Override
+      public void setup() throws Exception {
+        data = makeDataset();
+        extractor = new JointBayesRelationExtractor(null, 1, 2, "all", 0, "stable", true, false);
+        extractor.train(data);
+        zClassifier = extractor.zClassifier(0);
+        zLabels = new int[data.size()][];
+        for(int i = 0; i < data.size(); i ++) zLabels[i] = new int[data.getDataArray()[i].length];
+      }
+      @Override
+      public int runBatch() {
+        for(int i = 0; i < data.size(); i ++) {
+          int [][] group = data.getDataArray()[i];
+          Counter<String> [] zLogProbs = ErasureUtils.uncheckedCast(new Counter[group.length]);
+          extractor.inferZLabelsStable(group,
+              data.getPositiveLabelsArray()[i], data.getNegativeLabelsArray()[i],
+              zLabels[i], zLogProbs, zClassifier, 0);
+          sink = zLogProbs;
+        }
+        return data.size();
+      }
+    });
+
+    benchmarks.add(new Benchmark("jointbayes.classifyMentions") {
+      JointBayesRelationExtractor extractor;
+      @Override
+      public void setup() throws Exception {
+        extractor = new JointBayesRelationExtractor(null, 1, 2, "all", 0, "stable", true, false);
+        extractor.train(makeDataset());
+      }
+      @Override
+      public int runBatch() {
+        for(List<Collection<String>> tuple: tuples) sink = extractor.classifyMentions(tuple);
+        return tuples.size();
+      }
+    });
+
+    benchmarks.add(new Benchmark("jointbayes.classifyMentionsBatch") {
+      JointBayesRelationExtractor extractor;
+      @Override
+      public void setup() throws Exception {
+        extractor = new JointBayesRelationExtractor(null, 1, 2, "all", 0, "stable", true, false);
+        extractor.train(makeDataset());
+      }
+      @Override
+      public int runBatch() {
+        sink = extractor.classifyMentionsBatch(tuples);
+        return tuples.size();
+      }
+    });
+
+    benchmarks.add(new Benchmark("selprefor.classifyMentions") {
+      SelPrefORExtractor extractor;
+      @Override
+      public void setup() throws Exception {
+        extractor = new SelPrefORExtractor(1);
+        extractor.train(makeDataset());
+      }
+      @Override
+      public int runBatch() {
+        for(List<Collection<String>> tuple: tuples) sink = extractor.classifyMentions(tuple);
+        return tuples.size();
+      }
+    });
+
+    return benchmarks;
+  }
+
+  public static void main(String[] args) throws Exception {
+    Properties props = StringUtils.argsToProperties(args);
+    Log.setLevel(Log.stringToLevel(props.getProperty(Props.LOG_LEVEL, "SEVERE")));
+    new BenchmarkRunner(props).runAll(new ExtractorBenchmark(props).benchmarks());
+  }
+}
@@ -0,0 +1,269 @@
+package edu.stanford.nlp.kbp.slotfilling.classify;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.Writer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+
+import edu.stanford.nlp.kbp.slotfilling.common.Log;
+import edu.stanford.nlp.kbp.slotfilling.common.Props;
+import edu.stanford.nlp.util.HashIndex;
+import edu.stanford.nlp.util.Index;
+import edu.stanford.nlp.util.PropertiesUtils;
+
+/**
+ * Feature index for the hashing trick: every feature is mapped to one of 2^bits buckets
+ *   by hashing its string form, so the index (and all the weight vectors built on top of it)
+ *   has a fixed size, no matter how many distinct features the data contains.
+ * No reverse index is kept: get(i) returns the synthetic bucket name "hash#i", not a feature, and iterating
+ *   over the index, or listing its objects, goes over the names of all 2^bits buckets. Bucket names map back
+ *   to their bucket, so features recovered with get (e.g., SyntheticDatasets.toMentions) score as the originals;
+ *   model dumps and feature printers show bucket names for these indices, since the feature strings are lost.
+ * The index is saved as a header only (class tag, bits, signed-hash flag); see saveToWriter and load.
+ *   Locking it has no effect, since every feature always has a bucket.
+ * Optionally, collisions are counted by storing a fingerprint of the first feature seen in each bucket.
+ */
+public class HashedFeatureIndex<E> implements Index<E>, Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private static final int HASH_SEED = 0x9747b28c;
+  private static final int FINGERPRINT_SEED = 0x5bd1e995;
+
+  /** Prefix of the synthetic names returned by get */
+  public static final String BUCKET_PREFIX = "hash#";
+  /** First line of a saved index */
+  static final String CLASS_TAG = "HashedFeatureIndex";
+
+  private final int bits;
+  private final int mask;
+
+  /** Fingerprint of the first feature stored in each bucket; 0 means empty. Null if no collision report is needed */
+  private transient int [] fingerprints;
+  private transient long lookups;
+  private transient long collidingLookups;
+  private boolean locked = false;
+
+  public HashedFeatureIndex(int bits, boolean trackCollisions) {
+    if(bits < 1 || bits > 30)
+      throw new RuntimeException("ERROR: the number of hashing bits must be between 1 and 30: " + bits);
+    this.bits = bits;
+    this.mask = (1 << bits) - 1;
+    if(trackCollisions) fingerprints = new int[1 << bits];
+  }
+
+  /**
+   * Creates the feature index configured in props:
+   *   a HashedFeatureIndex if features.hashing.bits > 0, a regular HashIndex otherwise
+   */
+  public static <E> Index<E> makeFeatureIndex(Properties props) {
+    int bits = PropertiesUtils.getInt(props, Props.FEATURE_HASHING_BITS, 0);
+    if(bits <= 0) return new HashIndex<E>();
+    boolean report = PropertiesUtils.getBool(props, Props.FEATURE_HASHING_REPORT, false);
+    Log.severe("Using feature hashing with " + bits + " bits (" + (1 << bits) + " buckets).");
+    return new HashedFeatureIndex<E>(bits, report);
+  }
+
+  public int bits() { return bits; }
+
+  public int size() { return mask + 1; }
+
+  public int indexOf(E o) {
+    return indexOf(o, false);
+  }
+
+  /** The add flag is irrelevant here: all features always have a bucket */
+  public int indexOf(E o, boolean add) {
+    String s = o.toString();
+    int bucket = bucketOfName(s);
+    if(bucket >= 0) return bucket;
+    bucket = murmur3(s, HASH_SEED) & mask;
+    if(fingerprints != null) countCollision(bucket, s);
+    return bucket;
+  }
+
+  public boolean add(E o) {
+    indexOf(o, true);
+    return true;
+  }
+
+  public boolean addAll(Collection<? extends E> c) {
+    for(E o: c) add(o);
+    return true;
+  }
+
+  /** Every feature has a bucket */
+  public boolean contains(Object o) {
+    return true;
+  }
+
+  /** No reverse index is kept, so this is just a name for the bucket: "hash#i", which indexOf maps back to i */
+  @SuppressWarnings("unchecked")
+  public E get(int i) {
+    if(i < 0 || i > mask) throw new ArrayIndexOutOfBoundsException("Index " + i + " outside of the hashed space of size " + size());
+    return (E) (BUCKET_PREFIX + i);
+  }
+
+  /** The bucket named by s, if s is a name returned by get; -1 otherwise */
+  private int bucketOfName(String s) {
+    if(! s.startsWith(BUCKET_PREFIX) || s.length() == BUCKET_PREFIX.length() || s.length() > BUCKET_PREFIX.length() + 10) return -1;
+    long bucket = 0;
+    for(int i = BUCKET_PREFIX.length(); i < s.length(); i ++) {
+      char c = s.charAt(i);
+      if(c < '0' || c > '9') return -1;
+      bucket = bucket * 10 + (c - '0');
+    }
+    return (bucket <= mask ? (int) bucket : -1);
+  }
+
+  /** The names of all buckets, in order; a view, so nothing is allocated up front */
+  public List<E> objectsList() {
+    return new AbstractList<E>() {
+      @Override
+      public E get(int i) { return HashedFeatureIndex.this.get(i); }
+      @Override
+      public int size() { return HashedFeatureIndex.this.size(); }
+    };
+  }
+
+  public Collection<E> objects(int [] indices) {
+    List<E> objects = new ArrayList<E>(indices.length);
+    for(int i: indices) objects.add(get(i));
+    return objects;
+  }
+
+  public Iterator<E> iterator() {
+    return objectsList().iterator();
+  }
+
+  public boolean isLocked() { return locked; }
+  public void lock() { locked = true; }
+  public void unlock() { locked = false; }
+
+  /** The buckets cannot be emptied: this only resets the collision statistics */
+  public synchronized void clear() {
+    if(fingerprints != null) fingerprints = new int[fingerprints.length];
+    lookups = 0;
+    collidingLookups = 0;
+  }
+
+  /**
+   * Saves the header that defines the hashed space; the bucket names carry no information.
+   * The signed flag is always false: this index does not hash the signs of the features.
+   * Read it back with load.
+   */
+  public void saveToWriter(Writer out) throws IOException {
+    out.write(CLASS_TAG + "\n");
+    out.write("bits=" + bits + "\n");
+    out.write("signed=false\n");
+    out.write("locked=" + locked + "\n");
+  }
+
+  public void saveToFilename(String s) {
+    try {
+      BufferedWriter bw = new BufferedWriter(new FileWriter(s));
+      try {
+        saveToWriter(bw);
+      } finally {
+        bw.close();
+      }
+    } catch(IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /** Reads an index saved by saveToWriter; collision tracking starts empty, if enabled */
+  public static <E> HashedFeatureIndex<E> load(BufferedReader in, boolean trackCollisions) throws IOException {
+    String tag = in.readLine();
+    if(! CLASS_TAG.equals(tag)) throw new RuntimeException("ERROR: not a saved HashedFeatureIndex: " + tag);
+    Properties header = new Properties();
+    for(String line; (line = in.readLine()) != null && line.length() > 0; ) {
+      int eq = line.indexOf('=');
+      if(eq < 0) throw new RuntimeException("ERROR: invalid HashedFeatureIndex header line: " + line);
+      header.setProperty(line.substring(0, eq), line.substring(eq + 1));
+    }
+    if(header.getProperty("bits") == null) throw new RuntimeException("ERROR: HashedFeatureIndex header without bits");
+    if(Boolean.parseBoolean(header.getProperty("signed", "false")))
+      throw new RuntimeException("ERROR: signed feature hashing is not supported by this version");
+    HashedFeatureIndex<E> index = new HashedFeatureIndex<E>(Integer.parseInt(header.getProperty("bits").trim()), trackCollisions);
+    if(Boolean.parseBoolean(header.getProperty("locked", "false"))) index.lock();
+    return index;
+  }
+
+  public static <E> HashedFeatureIndex<E> loadFromFilename(String file) throws IOException {
+    BufferedReader in = new BufferedReader(new FileReader(file));
+    try {
+      return load(in, false);
+    } finally {
+      in.close();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "HashedFeatureIndex(" + bits + " bits, " + size() + " buckets)";
+  }
+
+  private synchronized void countCollision(int bucket, String s) {
+    int fp = murmur3(s, FINGERPRINT_SEED);
+    if(fp == 0) fp = 1;
+    lookups ++;
+    if(fingerprints[bucket] == 0) fingerprints[bucket] = fp;
+    else if(fingerprints[bucket] != fp) collidingLookups ++;
+  }
+
+  /** Logs how full the hashed space is and how many feature lookups landed in a bucket owned by a different feature */
+  public synchronized void logCollisionReport() {
+    if(fingerprints == null) {
+      Log.severe("Feature hashing: " + size() + " buckets; collision tracking is disabled.");
+      return;
+    }
+    int used = 0;
+    for(int fp: fingerprints) if(fp != 0) used ++;
+    Log.severe("Feature hashing: " + used + " of " + size() + " buckets used (" +
+        String.format("%.2f", 100.0 * used / size()) + "%). " +
+        collidingLookups + " of " + lookups + " feature lookups collided (" +
+        String.format("%.2f", (lookups > 0 ? 100.0 * collidingLookups / lookups : 0.0)) + "%).");
+  }
+
+  /** MurmurHash3 (x86, 32 bit) over the chars of s */
+  public static int murmur3(String s, int seed) {
+    final int c1 = 0xcc9e2d51;
+    final int c2 = 0x1b873593;
+    int h = seed;
+    int len = s.length();
+    int i = 0;
+    // two chars per 32-bit block
+    for(; i + 1 < len; i += 2) {
+      int k = s.charAt(i) | (s.charAt(i + 1) << 16);
+      k *= c1;
+      k = Integer.rotateLeft(k, 15);
+      k *= c2;
+      h ^= k;
+      h = Integer.rotateLeft(h, 13);
+      h = h * 5 + 0xe6546b64;
+    }
+    if(i < len) {
+      int k = s.charAt(i);
+      k *= c1;
+      k = Integer.rotateLeft(k, 15);
+      k *= c2;
+      h ^= k;
+    }
+    h ^= len * 2;
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+}
@@ -3,9 +3,11 @@ package edu.stanford.nlp.kbp.slotfilling.classify;
 import edu.stanford.nlp.ie.machinereading.structure.RelationMention;
 import edu.stanford.nlp.kbp.slotfilling.common.Log;
 import edu.stanford.nlp.kbp.slotfilling.common.Props;
+import edu.stanford.nlp.kbp.slotfilling.common.RandomStreams;
 import edu.stanford.nlp.stats.ClassicCounter;
 import edu.stanford.nlp.stats.Counter;
 import edu.stanford.nlp.util.ErasureUtils;
+import edu.stanford.nlp.util.HashIndex;
 import edu.stanford.nlp.util.Index;
 import edu.stanford.nlp.util.Pair;
 import edu.stanford.nlp.util.PropertiesUtils;
@@ -24,7 +26,7 @@ public class HoffmannExtractor extends JointlyTrainedRelationExtractor {
   /**
    * Stores weight information for one label
    */
-  static class LabelWeights implements Serializable {
+  static class LabelWeights implements Serializable, AveragedWeights {
     private static final long serialVersionUID = 1L;
 
     /**
@@ -36,6 +38,9 @@ public class HoffmannExtractor extends JointlyTrainedRelationExtractor {
     /** Indicates how many iterations has this vector survived */
     int survivalIterations;
 
+    /** Number of iterations summed in avgWeights; 0 for models saved before incremental training */
+    long averagedIterations;
+
     /**
      * Average vector computed as a weighted sum of all seen vectors
      * The weight for each vector is the number of iterations it survived
@@ -54,8 +59,24 @@ public class HoffmannExtractor extends JointlyTrainedRelationExtractor {
       weights = null;
     }
 
+    public double [] weights() {
+      return weights;
+    }
+
+    /**
+     * Prepares a loaded vector (its weights were cleared by save) for incremental training:
+     *   training continues from the average vector, and a new average is accumulated
+     */
+    void warmStart(int numFeatures) {
+      weights = warmStartWeights(avgWeights, numFeatures, averagedIterations);
+      avgWeights = new double[numFeatures];
+      survivalIterations = 0;
+      averagedIterations = 0;
+    }
+
     void updateSurvivalIterations() {
       survivalIterations ++;
+      averagedIterations ++;
     }
 
     /** Adds the latest weight vector to the average vector */
@@ -118,8 +139,12 @@ public class HoffmannExtractor extends JointlyTrainedRelationExtractor {
   Index<String> zFeatureIndex;
   /** Index of the NIL label */
   int nilIndex;
+  /** Set if this model was loaded from a BinaryModel; replaces zWeights and zFeatureIndex */
+  transient MappedLinearClassifier mappedZWeights;
   /** Number of epochs during training */
   final int epochs;
+  /** Decides when training stops before the last epoch; all criteria disabled by default */
+  transient ConvergenceMonitor convergence = new ConvergenceMonitor();
 
   public HoffmannExtractor(int epochs) {
     this.epochs = epochs;
@@ -127,9 +152,16 @@ public class HoffmannExtractor extends JointlyTrainedRelationExtractor {
   public HoffmannExtractor(Properties props) {
     Log.severe("HoffmannExtractor configured with the following properties:");
     this.epochs = PropertiesUtils.getInt(props, Props.PERCEPTRON_EPOCHS, 10);
+    this.convergence = new ConvergenceMonitor(props);
+    setRandomStreams(RandomStreams.fromProperties(props));
     Log.severe("epochs = " + epochs);
   }
 
+  @Override
+  public void setConvergenceMonitor(ConvergenceMonitor m) {
+    convergence = m;
+  }
+
   @Override
   public void train(MultiLabelDataset<String, String> dataset) {
     Log.severe("Training the \"at least once\" model using "
@@ -149,12 +181,52 @@ public class HoffmannExtractor extends JointlyTrainedRelationExtractor {
     for(int i = 0; i < zWeights.length; i ++)
       zWeights[i] = new LabelWeights(dataset.featureIndex().size());
 
+    trainEpochs(dataset, epochs);
+  }
+
+  @Override
+  public MultiLabelDataset<String, String> makeIncrementalDataset() {
+    if(zWeights == null) throw new RuntimeException("ERROR: incremental training requires a serialized model, not a binary one");
+    return new MultiLabelDataset<String, String>(labelIndex, zFeatureIndex);
+  }
+
+  @Override
+  public void trainIncrementally(MultiLabelDataset<String, String> dataset, int epochs) {
+    Log.severe("Incremental training of the \"at least once\" model using "
+            + dataset.featureIndex().size() + " features (" + zWeights[0].avgWeights.length + " before) and "
+            + dataset.size() + " datum groups.");
+    if(zWeights[0].averagedIterations == 0)
+      Log.severe("WARNING: this model does not store its number of training iterations; starting from its unnormalized average weights.");
+
+    // new labels start with empty vectors
+    LabelWeights [] newZWeights = new LabelWeights[labelIndex.size()];
+    for(int i = 0; i < newZWeights.length; i ++) {
+      if(i < zWeights.length) {
+        newZWeights[i] = zWeights[i];
+        newZWeights[i].warmStart(dataset.featureIndex().size());
+      } else {
+        newZWeights[i] = new LabelWeights(dataset.featureIndex().size());
+      }
+    }
+    zWeights = newZWeights;
+    // the feature threshold may have rebuilt the index
+    zFeatureIndex = dataset.featureIndex();
+
+    trainEpochs(dataset, epochs);
+  }
+
+  private void trainEpochs(MultiLabelDataset<String, String> dataset, int epochs) {
+    if(convergence == null) convergence = new ConvergenceMonitor();
+    dataset = convergence.start(dataset);
+    LabelWeights [] bestZWeights = null;
+
     // repeat for a number of epochs
     for(int t = 0; t < epochs; t ++){
+      convergence.startEpoch();
       // randomize the data set in each epoch
-      // use a fixed seed for replicability
+      // use a stream of the epoch for replicability
       Log.severe("Started epoch #" + t + "...");
-      dataset.randomize(t);
+      dataset.randomize(randomStreams().stream("shuffle", t));
 
       Counter<Integer> posUpdateStats = new ClassicCounter<Integer>();
       Counter<Integer> negUpdateStats = new ClassicCounter<Integer>();
@@ -174,6 +246,20 @@ public class HoffmannExtractor extends JointlyTrainedRelationExtractor {
               dataset.size() + " datum groups. Performed " +
               posUpdateStats.getCount(LABEL_ALL) + " ++ updates and " +
               negUpdateStats.getCount(LABEL_ALL) + " -- updates.");
+
+      if(convergence.endEpoch(t, zWeights, new ConvergenceMonitor.LabelPredictor() {
+        public Set<Integer> predictLabels(int [][] group) {
+          return estimateY(generateZPredicted(estimateZ(group))).keySet();
+        }
+      })) {
+        bestZWeights = ConvergenceMonitor.snapshot(zWeights);
+      }
+      if(convergence.shouldStop()) break;
+    }
+    convergence.finish();
+    if(bestZWeights != null) {
+      Log.severe("Using the weights of the best held-out epoch: " + convergence.best());
+      zWeights = bestZWeights;
     }
 
     // finalize learning: add the last vector to the avg for each label
@@ -192,6 +278,7 @@ public class HoffmannExtractor extends JointlyTrainedRelationExtractor {
     List<Counter<Integer>> zs = estimateZ(crtGroup);
     // best predictions for each mention
     int [] zPredicted = generateZPredicted(zs);
+    convergence.countZFlips(crtGroup, zPredicted);
 
     // yPredicted - Y labels predicted using the current Zs (full inference)
     Counter<Integer> yPredicted = estimateY(zPredicted);
@@ -441,7 +528,7 @@ public class HoffmannExtractor extends JointlyTrainedRelationExtractor {
     return ys;
   }
 
-  private List<Counter<Integer>> estimateZ(int [][] datums) {
+  List<Counter<Integer>> estimateZ(int [][] datums) {
     List<Counter<Integer>> zs = new ArrayList<Counter<Integer>>();
     for(int [] datum: datums) {
       zs.add(estimateZ(datum));
@@ -536,8 +623,51 @@ public class HoffmannExtractor extends JointlyTrainedRelationExtractor {
     return bestZScores;
   }
 
+  /** Same as classifyMentions for each tuple, but all mention scores are computed in one pass */
+  @Override
+  public List<Counter<String>> classifyMentionsBatch(List<List<Collection<String>>> relations) {
+    MentionMatrix matrix;
+    double [] scores;
+    int labelCount;
+    if(mappedZWeights != null) {
+      matrix = MentionMatrix.countedRows(relations, mappedZWeights);
+      scores = matrix.dotProducts(mappedZWeights);
+      labelCount = mappedZWeights.labelCount();
+    } else {
+      double [][] rows = new double[zWeights.length][];
+      for(int i = 0; i < zWeights.length; i ++) rows[i] = zWeights[i].avgWeights;
+      matrix = MentionMatrix.countedRows(relations, MentionMatrix.lookup(zFeatureIndex));
+      scores = matrix.dotProducts(rows);
+      labelCount = zWeights.length;
+    }
+    List<String> labels = MappedLinearClassifier.indexToList(labelIndex).subList(0, labelCount);
+
+    List<Counter<String>> results = new ArrayList<Counter<String>>(relations.size());
+    for(int t = 0; t < matrix.tupleCount(); t ++) {
+      Counter<String> bestZScores = new ClassicCounter<String>();
+      for(int row = matrix.firstRow(t); row < matrix.endRow(t); row ++) {
+        int top = MentionMatrix.topLabel(scores, row * labelCount, labels);
+        String l = labels.get(top);
+        double s = scores[row * labelCount + top];
+        if(! l.equals(RelationMention.UNRELATED) &&
+           (! bestZScores.containsKey(l) || bestZScores.getCount(l) < s)) {
+          bestZScores.setCount(l, s);
+        }
+      }
+      results.add(bestZScores);
+    }
+    return results;
+  }
+
   private Counter<String> classifyMention(Collection<String> testDatum) {
     Counter<String> scores = new ClassicCounter<String>();
+    if(mappedZWeights != null) {
+      Counter<Integer> vector = mappedZWeights.featureVector(testDatum);
+      for(int labelIdx = 0; labelIdx < mappedZWeights.labelCount(); labelIdx ++){
+        scores.setCount(labelIndex.get(labelIdx), mappedZWeights.dotProduct(labelIdx, vector));
+      }
+      return scores;
+    }
     for(int labelIdx = 0; labelIdx < zWeights.length; labelIdx ++){
       double score = zWeights[labelIdx].avgDotProduct(testDatum, zFeatureIndex);
       scores.setCount(labelIndex.get(labelIdx), score);
@@ -598,4 +728,24 @@ public class HoffmannExtractor extends JointlyTrainedRelationExtractor {
     is.close();
     return ex;
   }
+
+  @Override
+  public void saveBinary(String modelPath, Properties props) throws IOException {
+    if(zWeights == null) throw new RuntimeException("ERROR: no weights to save; was this model loaded from a binary model?");
+    BinaryModel.Writer writer = new BinaryModel.Writer(modelPath, getClass().getSimpleName(), props,
+        BinaryModel.singlePrecision(props));
+    double [][] rows = new double[zWeights.length][];
+    for(int i = 0; i < zWeights.length; i ++) rows[i] = zWeights[i].avgWeights;
+    MappedLinearClassifier.writeFeatures(writer, "z.features", zFeatureIndex);
+    MappedLinearClassifier.write(writer, "z", MappedLinearClassifier.indexToList(labelIndex), rows);
+    writer.close();
+  }
+
+  public static RelationExtractor load(BinaryModel model, Properties props) throws IOException {
+    HoffmannExtractor ex = new HoffmannExtractor(props);
+    ex.mappedZWeights = new MappedLinearClassifier(model, "z", "z.features");
+    ex.labelIndex = new HashIndex<String>(ex.mappedZWeights.labels());
+    ex.nilIndex = ex.labelIndex.indexOf(RelationMention.UNRELATED);
+    return ex;
+  }
 }
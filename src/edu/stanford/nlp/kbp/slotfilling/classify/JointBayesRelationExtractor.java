@@ -30,6 +30,7 @@ import edu.stanford.nlp.ie.machinereading.structure.RelationMention;
 import edu.stanford.nlp.kbp.slotfilling.common.Constants;
 import edu.stanford.nlp.kbp.slotfilling.common.Log;
 import edu.stanford.nlp.kbp.slotfilling.common.Props;
+import edu.stanford.nlp.kbp.slotfilling.common.RandomStreams;
 import edu.stanford.nlp.ling.BasicDatum;
 import edu.stanford.nlp.ling.Datum;
 import edu.stanford.nlp.ling.RVFDatum;
@@ -74,6 +75,9 @@ public class JointBayesRelationExtractor extends JointlyTrainedRelationExtractor
   LinearClassifier<String, String> zSingleClassifier;
   /** one two-class classifier for each top-level relation */
   private Map<String, LinearClassifier<String, String>> yClassifiers;
+  /** Set if this model was loaded from a BinaryModel; replace zClassifiers and zSingleClassifier */
+  private transient MappedLinearClassifier [] mappedZClassifiers;
+  private transient MappedLinearClassifier mappedZSingleClassifier;
   
   private Index<String> featureIndex;
   private Index<String> yLabelIndex;
@@ -112,6 +116,9 @@ public class JointBayesRelationExtractor extends JointlyTrainedRelationExtractor
   /** Counts number of flips for Z labels in one epoch */
   private int zUpdatesInOneEpoch = 0;
   
+  /** Decides when EM stops before numberOfTrainEpochs; all criteria disabled by default */
+  private transient ConvergenceMonitor convergence = new ConvergenceMonitor();
+  
   private final LocalFilter localDataFilter;
   
   private final InferenceType inferenceType;
@@ -163,6 +170,8 @@ public class JointBayesRelationExtractor extends JointlyTrainedRelationExtractor
         Props.FEATURES, 0);
     trainY = PropertiesUtils.getBool(props,
         Props.TRAINY, true);
+    convergence = new ConvergenceMonitor(props);
+    setRandomStreams(RandomStreams.fromProperties(props));
     onlyLocalTraining = onlyLocal;
     serializedModelPath = makeModelPath(
         workDir, 
@@ -222,6 +231,16 @@ public class JointBayesRelationExtractor extends JointlyTrainedRelationExtractor
     serializedModelPath = p;
   }
   
+  @Override
+  public void setConvergenceMonitor(ConvergenceMonitor m) {
+    convergence = m;
+  }
+
+  /** The sentence-level classifier of this fold; used by ExtractorBenchmark */
+  LinearClassifier<String, String> zClassifier(int fold) {
+    return zClassifiers[fold];
+  }
+  
   private static String makeInitialModelPath(
       String workDir, 
       String serializedRelationExtractorName, 
@@ -389,10 +408,17 @@ public class JointBayesRelationExtractor extends JointlyTrainedRelationExtractor
     
     // y dataset initialized to be empty, as it will be populated during the E step
     Map<String, RVFDataset<String, String>> yDatasets = initializeYDatasets();
+    
+    if(convergence == null) convergence = new ConvergenceMonitor();
+    convergence.reset();
+    // classifiers of the epoch with the best held-out score
+    LinearClassifier<String, String> [] bestZClassifiers = null;
+    Map<String, LinearClassifier<String, String>> bestYClassifiers = null;
        
     // run EM
     for (int epoch = 0; epoch < numberOfTrainEpochs; epoch++) {
       zUpdatesInOneEpoch = 0;
+      double zLogLikelihood = 0;
       Log.severe("***EPOCH " + epoch + "***");
 
       // we compute scores in each epoch using these labels
@@ -412,7 +438,8 @@ public class JointBayesRelationExtractor extends JointlyTrainedRelationExtractor
         
         for (int i = start; i < end; i++) {
           int[][] group = data.getDataArray()[i];
-          randomizeGroup(group, epoch);
+          // one stream per (epoch, group), so groups can be processed in any order
+          randomizeGroup(group, randomStreams().stream("group", epoch, i));
           
           Set<Integer> positiveLabels = data.getPositiveLabelsArray()[i];
           Set<Integer> negativeLabels = data.getNegativeLabelsArray()[i];
@@ -431,6 +458,9 @@ public class JointBayesRelationExtractor extends JointlyTrainedRelationExtractor
           default:
             throw new RuntimeException("ERROR: unknown inference type: " + inferenceType);
           }
+          for(int s = 0; s < group.length; s ++) {
+            if(zLogProbs[s] != null) zLogLikelihood += zLogProbs[s].getCount(zLabelIndex.get(zLabels[i][s]));
+          }
 
           // given these predicted z labels, update the features in the y dataset
           //printGroup(zLabels[i], positiveLabels);
@@ -447,13 +477,22 @@ public class JointBayesRelationExtractor extends JointlyTrainedRelationExtractor
       
       computeConfusionMatrixForCounts("EPOCH " + epoch, zLabels, data.getPositiveLabelsArray());
       computeYScore("EPOCH " + epoch, zLabels, data.getPositiveLabelsArray());
-      computeYScore("(Z ONLY) EPOCH " + epoch, zLabelsPredictedByZ, data.getPositiveLabelsArray());
+      // each group is predicted by the Z classifier of its fold, which was not trained on it, so this is a held-out score
+      double heldOutF1 = computeYScore("(Z ONLY) EPOCH " + epoch, zLabelsPredictedByZ, data.getPositiveLabelsArray());
       
       Log.severe("In epoch #" + epoch + " zUpdatesInOneEpoch = " + zUpdatesInOneEpoch);
+      // the classifiers scored here are the ones from the previous M step
+      if(convergence.record(new ConvergenceMonitor.EpochStats(epoch,
+          (double) zUpdatesInOneEpoch / (double) Math.max(1, totalSentences),
+          zLogLikelihood, zWeightNorm(), heldOutF1))) {
+        bestZClassifiers = zClassifiers.clone();
+        bestYClassifiers = new HashMap<String, LinearClassifier<String, String>>(yClassifiers);
+      }
       if(zUpdatesInOneEpoch == 0){
         Log.severe("Stopping training. Did not find any changes in the Z labels!");
         break;
       }
+      if(convergence.shouldStop()) break;
       
       // update the labels in the z dataset
       Dataset<String, String> zDataset = initializeZDataset(totalSentences, zLabels, data.getDataArray());
@@ -497,12 +536,26 @@ public class JointBayesRelationExtractor extends JointlyTrainedRelationExtractor
       yDatasets = initializeYDatasets();
     }
     
+    if(bestZClassifiers != null) {
+      Log.severe("Using the classifiers of the best held-out epoch: " + convergence.best());
+      zClassifiers = bestZClassifiers;
+      yClassifiers = bestYClassifiers;
+    }
+    
     Dataset<String, String> zDataset = initializeZDataset(totalSentences, zLabels, data.getDataArray());
     makeSingleZClassifier(zDataset, zFactory);
   }
   
-  void randomizeGroup(int[][] group, int randomSeed) {
-    Random rand = new Random(randomSeed);
+  /** L2 norm of the weights of all Z classifiers */
+  private double zWeightNorm() {
+    double sum = 0;
+    for(LinearClassifier<String, String> c: zClassifiers) {
+      for(double [] w: c.weights()) sum += ConvergenceMonitor.squaredNorm(w);
+    }
+    return Math.sqrt(sum);
+  }
+  
+  void randomizeGroup(int[][] group, Random rand) {
     for(int j = group.length - 1; j > 0; j --){
       int randIndex = rand.nextInt(j);
       
@@ -512,7 +565,8 @@ public class JointBayesRelationExtractor extends JointlyTrainedRelationExtractor
     }
   }
   
-  void computeYScore(String name, int [][] zLabels, Set<Integer> [] golds) {
+  /** Logs the label and group scores of these Z labels; returns the label F1 */
+  double computeYScore(String name, int [][] zLabels, Set<Integer> [] golds) {
     int labelCorrect = 0, labelPredicted = 0, labelTotal = 0;
     int groupCorrect = 0, groupTotal = 0;
     int nilIndex = zLabelIndex.indexOf(RelationMention.UNRELATED);
@@ -549,6 +603,7 @@ public class JointBayesRelationExtractor extends JointlyTrainedRelationExtractor
     double a = (double) groupCorrect / (double) groupTotal;
     Log.severe("LABEL SCORE for " + name + ": P " + p + " R " + r + " F1 " + f1);
     Log.severe("GROUP SCORE for " + name + ": A " + a);
+    return f1;
   }
   
   void computeConfusionMatrixForCounts(String name, int [][] zLabels, Set<Integer> [] golds) {
@@ -931,7 +986,9 @@ public class JointBayesRelationExtractor extends JointlyTrainedRelationExtractor
       LinearClassifier<String, String> classifier =
         ErasureUtils.uncheckedCast(in.readObject());
       zClassifiers[i] = classifier;
-      Log.severe("Loaded Z classifier for fold #" + i + ": " + zClassifiers[i]);
+      Log.severe("Loaded Z classifier for fold #" + i);
+      // the weight table is formatted only if FINE is enabled
+      Log.fine("Z classifier for fold #{}: {}", i, classifier);
     }
     
     int numLabels = in.readInt();
@@ -991,7 +1048,7 @@ public class JointBayesRelationExtractor extends JointlyTrainedRelationExtractor
       if(l.equalsIgnoreCase(RelationMention.UNRELATED)) {
         negLabel = labelIndex.indexOf(l);
       } else {
-        Log.fine("posLabel = " + l);
+        Log.fine("posLabel = {}", l);
         posLabel = labelIndex.indexOf(l);
       }
     }
@@ -1373,8 +1430,9 @@ public class JointBayesRelationExtractor extends JointlyTrainedRelationExtractor
       Counter<String> sumProbs = new ClassicCounter<String>();
       
       for(int fold = 0; fold < numberOfFolds; fold ++) {
-        LinearClassifier<String, String> zClassifier = zClassifiers[fold];
-        Counter<String> probs = zClassifier.probabilityOf(datum);
+        Counter<String> probs = (mappedZClassifiers != null ?
+            mappedZClassifiers[fold].probabilityOf(sentence) :
+            zClassifiers[fold].probabilityOf(datum));
         sumProbs.addAll(probs);
       }
       
@@ -1384,12 +1442,77 @@ public class JointBayesRelationExtractor extends JointlyTrainedRelationExtractor
     }
     
     if(localClassificationMode == LOCAL_CLASSIFICATION_MODE.SINGLE_MODEL) {
-      Counter<String> probs = zSingleClassifier.probabilityOf(datum);
+      Counter<String> probs = (mappedZSingleClassifier != null ?
+          mappedZSingleClassifier.probabilityOf(sentence) :
+          zSingleClassifier.probabilityOf(datum));
       return probs;
     }
     
     throw new RuntimeException("ERROR: classification mode " + localClassificationMode + " not supported!");
   }
+
+  /**
+   * Z probabilities of all mentions of these tuples, in mention order, computed exactly as classifyLocally
+   *   does for each mention, but with one MentionMatrix pass per classifier
+   */
+  private List<Counter<String>> classifyLocally(List<List<Collection<String>>> relations) {
+    int mentionCount = 0;
+    for(List<Collection<String>> relation: relations) mentionCount += relation.size();
+
+    if(localClassificationMode == LOCAL_CLASSIFICATION_MODE.WEIGHTED_VOTE) {
+      List<Counter<String>> sumProbs = new ArrayList<Counter<String>>(mentionCount);
+      for(int i = 0; i < mentionCount; i ++) sumProbs.add(new ClassicCounter<String>());
+
+      MentionMatrix matrix = null;
+      Index<String> matrixFeatures = null;
+      for(int fold = 0; fold < numberOfFolds; fold ++) {
+        List<Counter<String>> probs;
+        if(mappedZClassifiers != null) {
+          // the mapped classifiers of all folds share the z.features table
+          if(matrix == null) matrix = MentionMatrix.datumRows(relations, mappedZClassifiers[fold]);
+          probs = probabilities(matrix, mappedZClassifiers[fold]);
+        } else {
+          if(matrix == null || zClassifiers[fold].featureIndex() != matrixFeatures) {
+            matrixFeatures = zClassifiers[fold].featureIndex();
+            matrix = MentionMatrix.datumRows(relations, MentionMatrix.lookup(matrixFeatures));
+          }
+          probs = probabilities(matrix, zClassifiers[fold]);
+        }
+        for(int i = 0; i < mentionCount; i ++) sumProbs.get(i).addAll(probs.get(i));
+      }
+
+      for(Counter<String> probs: sumProbs) {
+        for(String l: probs.keySet())
+          probs.setCount(l, probs.getCount(l) / numberOfFolds);
+      }
+      return sumProbs;
+    }
+
+    if(localClassificationMode == LOCAL_CLASSIFICATION_MODE.SINGLE_MODEL) {
+      if(mappedZSingleClassifier != null)
+        return probabilities(MentionMatrix.datumRows(relations, mappedZSingleClassifier), mappedZSingleClassifier);
+      return probabilities(MentionMatrix.datumRows(relations, MentionMatrix.lookup(zSingleClassifier.featureIndex())), zSingleClassifier);
+    }
+
+    throw new RuntimeException("ERROR: classification mode " + localClassificationMode + " not supported!");
+  }
+
+  private static List<Counter<String>> probabilities(MentionMatrix matrix, MappedLinearClassifier classifier) {
+    return probabilities(matrix.dotProducts(classifier), matrix.rowCount(), classifier.labels(), classifier.thresholds());
+  }
+
+  private static List<Counter<String>> probabilities(MentionMatrix matrix, LinearClassifier<String, String> classifier) {
+    List<String> labels = new ArrayList<String>(classifier.labels());
+    double [] scores = matrix.dotProducts(classifier.weights(), labels.size());
+    return probabilities(scores, matrix.rowCount(), labels, MappedLinearClassifier.thresholds(classifier, labels));
+  }
+
+  private static List<Counter<String>> probabilities(double [] scores, int rowCount, List<String> labels, double [] thresholds) {
+    List<Counter<String>> probs = new ArrayList<Counter<String>>(rowCount);
+    for(int row = 0; row < rowCount; row ++)
+      probs.add(MappedLinearClassifier.probabilities(labels, scores, row * labels.size(), thresholds));
+    return probs;
+  }
   
   @Override
   public Counter<String> classifyOracleMentions(
@@ -1443,9 +1566,34 @@ public class JointBayesRelationExtractor extends JointlyTrainedRelationExtractor
   
   @Override
   public Counter<String> classifyMentions(List<Collection<String>> sentences) {
-    String[] zLabels = new String[sentences.size()];
+    List<Counter<String>> zProbs = new ArrayList<Counter<String>>(sentences.size());
+    for(Collection<String> sentence: sentences) zProbs.add(classifyLocally(sentence));
+    return classifyTuple(zProbs);
+  }
+
+  /**
+   * Same as classifyMentions for each tuple, but the Z probabilities of all mentions are computed in one pass
+   * The Y level predictions are still computed for each tuple
+   */
+  @Override
+  public List<Counter<String>> classifyMentionsBatch(List<List<Collection<String>>> relations) {
+    List<Counter<String>> zProbs = classifyLocally(relations);
+    List<Counter<String>> results = new ArrayList<Counter<String>>(relations.size());
+    int start = 0;
+    for(List<Collection<String>> relation: relations) {
+      results.add(classifyTuple(zProbs.subList(start, start + relation.size())));
+      start += relation.size();
+    }
+    return results;
+  }
+
+  /**
+   * Classifies a tuple given the Z probabilities of its mentions, as computed by classifyLocally
+   */
+  private Counter<String> classifyTuple(List<Counter<String>> zProbs) {
+    String[] zLabels = new String[zProbs.size()];
     Counter<String> [] zLogProbs = 
-      ErasureUtils.uncheckedCast(new Counter[sentences.size()]);
+      ErasureUtils.uncheckedCast(new Counter[zProbs.size()]);
       
     //
     // Z level predictions
@@ -1453,9 +1601,8 @@ public class JointBayesRelationExtractor extends JointlyTrainedRelationExtractor
     Counter<String> localSum = new ClassicCounter<String>();
     Counter<String> localBest = new ClassicCounter<String>();
     Counter<String> localNoisyOr = new ClassicCounter<String>();
-    for (int i = 0; i < sentences.size(); i++) {
-      Collection<String> sentence = sentences.get(i);
-      Counter<String> probs = classifyLocally(sentence);
+    for (int i = 0; i < zProbs.size(); i++) {
+      Counter<String> probs = zProbs.get(i);
       
       zLogProbs[i] = new ClassicCounter<String>();
       for(String l: probs.keySet()) {
@@ -1567,8 +1714,7 @@ public class JointBayesRelationExtractor extends JointlyTrainedRelationExtractor
       LinearClassifier<String, String> classifier = 
         ErasureUtils.uncheckedCast(in.readObject());
       yClassifiers.put(yLabel, classifier);
-      Log.severe("Loaded Y classifier for label " + yLabel + 
-          ": " + classifier.toAllWeightsString());
+      Log.fine("Loaded Y classifier for label {}", yLabel);
     }
   }
   
@@ -1579,4 +1725,62 @@ public class JointBayesRelationExtractor extends JointlyTrainedRelationExtractor
     in.close();
     return extractor;
   }  
+
+  @Override
+  public void saveBinary(String path, Properties props) throws IOException {
+    if(zClassifiers == null) throw new RuntimeException("ERROR: no classifiers to save; was this model loaded from a binary model?");
+    if(featureIndex instanceof HashedFeatureIndex<?>)
+      throw new RuntimeException("ERROR: the binary model format does not support LinearClassifiers over hashed features");
+    BinaryModel.Writer writer = new BinaryModel.Writer(path, getClass().getSimpleName(), props,
+        BinaryModel.singlePrecision(props));
+
+    List<String> dependencies = new ArrayList<String>();
+    if(knownDependencies != null) dependencies.addAll(knownDependencies);
+    Collections.sort(dependencies);
+    writer.addStrings("y.dependencies", dependencies);
+    writer.addStrings("z.labelIndex", MappedLinearClassifier.indexToList(zLabelIndex));
+
+    // the Z classifiers of all folds share one feature table
+    List<LinearClassifier<String, String>> allZClassifiers = new ArrayList<LinearClassifier<String, String>>(Arrays.asList(zClassifiers));
+    if(zSingleClassifier != null) allZClassifiers.add(zSingleClassifier);
+    List<String> zFeatures = MappedLinearClassifier.featureUnion(allZClassifiers);
+    writer.addStrings("z.features", zFeatures);
+    writer.setMeta("z.folds", Integer.toString(zClassifiers.length));
+    for(int i = 0; i < zClassifiers.length; i ++)
+      MappedLinearClassifier.write(writer, "z." + i, zFeatures, zClassifiers[i]);
+    if(zSingleClassifier != null)
+      MappedLinearClassifier.write(writer, "z.single", zFeatures, zSingleClassifier);
+
+    // the Y classifiers are tiny; they are materialized again when loaded
+    List<String> yLabels = new ArrayList<String>(yClassifiers.keySet());
+    writer.addStrings("y.labels", yLabels);
+    for(int i = 0; i < yLabels.size(); i ++) {
+      LinearClassifier<String, String> yClassifier = yClassifiers.get(yLabels.get(i));
+      List<String> yFeatures = new ArrayList<String>(yClassifier.features());
+      writer.addStrings("y." + i + ".features", yFeatures);
+      MappedLinearClassifier.write(writer, "y." + i, yFeatures, yClassifier);
+    }
+    writer.close();
+  }
+
+  public static JointlyTrainedRelationExtractor load(BinaryModel model, Properties props) throws IOException {
+    JointBayesRelationExtractor extractor = new JointBayesRelationExtractor(props);
+    extractor.knownDependencies = new HashSet<String>(model.strings("y.dependencies").toList());
+    extractor.zLabelIndex = new HashIndex<String>(model.strings("z.labelIndex").toList());
+
+    extractor.numberOfFolds = Integer.valueOf(model.meta("z.folds"));
+    extractor.mappedZClassifiers = new MappedLinearClassifier[extractor.numberOfFolds];
+    for(int i = 0; i < extractor.numberOfFolds; i ++)
+      extractor.mappedZClassifiers[i] = new MappedLinearClassifier(model, "z." + i, "z.features");
+    if(model.hasSection("z.single.weights"))
+      extractor.mappedZSingleClassifier = new MappedLinearClassifier(model, "z.single", "z.features");
+
+    List<String> yLabels = model.strings("y.labels").toList();
+    extractor.yClassifiers = new HashMap<String, LinearClassifier<String, String>>();
+    for(int i = 0; i < yLabels.size(); i ++) {
+      MappedLinearClassifier yClassifier = new MappedLinearClassifier(model, "y." + i, "y." + i + ".features");
+      extractor.yClassifiers.put(yLabels.get(i), yClassifier.toLinearClassifier());
+    }
+    return extractor;
+  }
 }
\ No newline at end of file
@@ -7,13 +7,64 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Set;
 
+import edu.stanford.nlp.kbp.slotfilling.common.RandomStreams;
 import edu.stanford.nlp.stats.Counter;
 import edu.stanford.nlp.util.Triple;
 
 public abstract class JointlyTrainedRelationExtractor extends RelationExtractor {
   private static final long serialVersionUID = 1L;
 
+  /** One label's weights in the averaged perceptron extractors, whose LabelWeights implement this */
+  interface AveragedWeights {
+    /** The current (non-averaged) weights */
+    double [] weights();
+  }
+
+  /** All randomness of training comes from these streams; not saved with the model */
+  private transient RandomStreams randomStreams;
+
   public abstract void train(MultiLabelDataset<String, String> datums);
+
+  /** Decides when train and trainIncrementally stop early; not saved with the model */
+  public abstract void setConvergenceMonitor(ConvergenceMonitor m);
+
+  public void setRandomStreams(RandomStreams randomStreams) {
+    this.randomStreams = randomStreams;
+  }
+
+  /** The streams set by the Properties constructors or setRandomStreams; those of the default seed otherwise */
+  public RandomStreams randomStreams() {
+    if(randomStreams == null) randomStreams = new RandomStreams(RandomStreams.DEFAULT_SEED);
+    return randomStreams;
+  }
+  
+  /**
+   * Starting weights for incremental training: the average vector of a loaded model, padded to numFeatures
+   * @param norm Number of iterations summed in the average vector; 1 if it is already normalized
+   */
+  static double [] warmStartWeights(double [] avgWeights, int numFeatures, double norm) {
+    double [] weights = new double[numFeatures];
+    norm = Math.max(1, norm);
+    for(int i = 0; i < Math.min(avgWeights.length, numFeatures); i ++) weights[i] = avgWeights[i] / norm;
+    return weights;
+  }
+
+  /**
+   * Empty dataset that uses (and extends) the label and feature indices of this trained model
+   * The new groups for trainIncrementally must be added to this dataset
+   */
+  public MultiLabelDataset<String, String> makeIncrementalDataset() {
+    throw new RuntimeException("ERROR: " + getClass().getSimpleName() + " does not support incremental training");
+  }
+  
+  /**
+   * Continues training this model for the given number of epochs over new (and replayed old) groups
+   * Training starts from the current average weights, which are replaced by the average over these epochs
+   * @param datums Created by makeIncrementalDataset
+   */
+  public void trainIncrementally(MultiLabelDataset<String, String> datums, int epochs) {
+    throw new RuntimeException("ERROR: " + getClass().getSimpleName() + " does not support incremental training");
+  }
   
   public static Triple<Double, Double, Double> score(
       List<Set<String>> goldLabels,
@@ -0,0 +1,191 @@
+package edu.stanford.nlp.kbp.slotfilling.classify;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.stanford.nlp.classify.LinearClassifier;
+import edu.stanford.nlp.ling.BasicDatum;
+import edu.stanford.nlp.stats.ClassicCounter;
+import edu.stanford.nlp.stats.Counter;
+import edu.stanford.nlp.stats.Counters;
+import edu.stanford.nlp.util.HashIndex;
+import edu.stanford.nlp.util.Index;
+
+/**
+ * Linear model stored in a BinaryModel: a feature table, a label table, one weight row per label, and optional thresholds.
+ * Scores are computed in the same order as the in-memory models they were exported from
+ *   (LabelWeights.avgDotProduct for the perceptron models, LinearClassifier.probabilityOf for the LR models),
+ *   so models stored in double precision produce identical scores.
+ * Several classifiers may share one feature table, e.g., the Z classifiers of all folds.
+ */
+public class MappedLinearClassifier implements MentionMatrix.FeatureLookup {
+  /** Null if the feature space is hashed */
+  private final BinaryModel.StringTable features;
+  /** Not null if the feature space is hashed */
+  private final HashedFeatureIndex<String> hashedFeatures;
+  private final List<String> labels;
+  private final BinaryModel.Weights weights;
+  /** Label biases of LinearClassifiers; null for the perceptron models */
+  private final double [] thresholds;
+
+  public MappedLinearClassifier(BinaryModel model, String name, String featureSection) throws IOException {
+    if(model.hasSection(featureSection)) {
+      features = model.strings(featureSection);
+      hashedFeatures = null;
+    } else {
+      features = null;
+      hashedFeatures = new HashedFeatureIndex<String>(Integer.valueOf(model.meta(featureSection + ".hashing.bits")), false);
+    }
+    labels = model.strings(name + ".labels").toList();
+    weights = model.weights(name + ".weights");
+    if(weights.rows() != labels.size())
+      throw new RuntimeException("ERROR: " + name + " has " + labels.size() + " labels but " + weights.rows() + " weight rows");
+    thresholds = (model.hasSection(name + ".thresholds") ? model.weights(name + ".thresholds").row(0) : null);
+  }
+
+  public List<String> labels() { return labels; }
+
+  public int labelCount() { return labels.size(); }
+
+  @Override
+  public int featureIndexOf(String feature) {
+    if(hashedFeatures != null) return hashedFeatures.indexOf(feature);
+    return features.indexOf(feature);
+  }
+
+  /** Sparse vector of feature counts, built exactly as LabelWeights.avgDotProduct does */
+  public Counter<Integer> featureVector(Collection<String> mention) {
+    Counter<Integer> vector = new ClassicCounter<Integer>();
+    for(String feat: mention) {
+      int idx = featureIndexOf(feat);
+      if(idx >= 0) vector.incrementCount(idx);
+    }
+    return vector;
+  }
+
+  public double weight(int label, int feature) { return weights.get(label, feature); }
+
+  /** Label biases, or null if this model has none */
+  public double [] thresholds() { return thresholds; }
+
+  /** Same as LabelWeights.dotProduct with the average weights of this label */
+  public double dotProduct(int label, Counter<Integer> vector) {
+    double dotProd = 0;
+    for (Map.Entry<Integer, Double> entry : vector.entrySet()) {
+      dotProd += entry.getValue() * weights.get(label, entry.getKey());
+    }
+    return dotProd;
+  }
+
+  /** Same as LinearClassifier.probabilityOf for a BasicDatum with these features */
+  public Counter<String> probabilityOf(Collection<String> mention) {
+    // unknown features are skipped, as in LinearClassifier.scoresOf
+    int [] active = new int[mention.size()];
+    int activeCount = 0;
+    for(String feat: mention) {
+      int idx = featureIndexOf(feat);
+      if(idx >= 0) active[activeCount ++] = idx;
+    }
+
+    double [] scores = new double[labels.size()];
+    for(int label = 0; label < labels.size(); label ++) {
+      double score = 0.0;
+      for(int i = 0; i < activeCount; i ++) score += weights.get(label, active[i]);
+      scores[label] = score;
+    }
+    return probabilities(labels, scores, 0, thresholds);
+  }
+
+  /**
+   * Softmax of dotProducts[offset ... offset + labels.size() - 1] plus the thresholds (if not null),
+   *   computed with the same operations as LinearClassifier.probabilityOf
+   */
+  static Counter<String> probabilities(List<String> labels, double [] dotProducts, int offset, double [] thresholds) {
+    Counter<String> scores = new ClassicCounter<String>();
+    for(int label = 0; label < labels.size(); label ++) {
+      scores.setCount(labels.get(label), dotProducts[offset + label] + (thresholds != null ? thresholds[label] : 0.0));
+    }
+
+    Counters.logNormalizeInPlace(scores);
+    for(String label: scores.keySet()) {
+      scores.setCount(label, Math.exp(scores.getCount(label)));
+    }
+    return scores;
+  }
+
+  /** Materializes this model as a LinearClassifier; meant for small models, e.g., the Y classifiers of JointBayes */
+  public LinearClassifier<String, String> toLinearClassifier() {
+    if(features == null)
+      throw new RuntimeException("ERROR: cannot convert a hashed feature space to a LinearClassifier");
+    if(thresholds != null) {
+      for(double t: thresholds)
+        if(t != 0.0) throw new RuntimeException("ERROR: cannot convert a model with non-zero thresholds to a LinearClassifier");
+    }
+    Index<String> featureIndex = new HashIndex<String>(features.toList());
+    Index<String> labelIndex = new HashIndex<String>(labels);
+    double [][] w = new double[features.size()][labels.size()];
+    for(int l = 0; l < labels.size(); l ++)
+      for(int f = 0; f < features.size(); f ++)
+        w[f][l] = weights.get(l, f);
+    return new LinearClassifier<String, String>(w, featureIndex, labelIndex);
+  }
+
+  static List<String> indexToList(Index<String> index) {
+    List<String> objects = new ArrayList<String>(index.size());
+    for(int i = 0; i < index.size(); i ++) objects.add(index.get(i));
+    return objects;
+  }
+
+  /** Writes a feature index shared by one or more classifiers; for hashed feature spaces, only the number of bits is stored */
+  static void writeFeatures(BinaryModel.Writer writer, String section, Index<String> index) throws IOException {
+    if(index instanceof HashedFeatureIndex<?>) {
+      writer.setMeta(section + ".hashing.bits", Integer.toString(((HashedFeatureIndex<?>) index).bits()));
+    } else {
+      writer.addStrings(section, indexToList(index));
+    }
+  }
+
+  /** All features known to these classifiers, in the order in which they are first seen */
+  static List<String> featureUnion(Collection<LinearClassifier<String, String>> classifiers) {
+    Set<String> union = new LinkedHashSet<String>();
+    for(LinearClassifier<String, String> c: classifiers) union.addAll(c.features());
+    return new ArrayList<String>(union);
+  }
+
+  /** Writes a perceptron model: row i stores the weights of label i */
+  static void write(BinaryModel.Writer writer, String name, List<String> labels, double [][] rows) throws IOException {
+    writer.addStrings(name + ".labels", labels);
+    writer.addWeights(name + ".weights", rows);
+  }
+
+  /**
+   * Writes a LinearClassifier over the given feature table
+   * The table may contain features unknown to this classifier; their weights are 0
+   */
+  static void write(BinaryModel.Writer writer, String name, List<String> features, LinearClassifier<String, String> classifier) throws IOException {
+    List<String> labels = new ArrayList<String>(classifier.labels());
+    writer.addStrings(name + ".labels", labels);
+    writer.beginWeights(name + ".weights", labels.size(), features.size());
+    double [] row = new double[features.size()];
+    for(String label: labels) {
+      for(int f = 0; f < row.length; f ++) row[f] = classifier.weight(features.get(f), label);
+      writer.writeRow(row);
+    }
+
+    writer.addWeights(name + ".thresholds", new double[][] { thresholds(classifier, labels) });
+  }
+
+  /** Label biases of a LinearClassifier, in the order of the given labels */
+  static double [] thresholds(LinearClassifier<String, String> classifier, List<String> labels) {
+    // the thresholds are the scores of a datum without features
+    Counter<String> bias = classifier.scoresOf(new BasicDatum<String, String>(new ArrayList<String>()));
+    double [] thresholds = new double[labels.size()];
+    for(int l = 0; l < labels.size(); l ++) thresholds[l] = bias.getCount(labels.get(l));
+    return thresholds;
+  }
+}
@@ -0,0 +1,212 @@
+package edu.stanford.nlp.kbp.slotfilling.classify;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import edu.stanford.nlp.stats.ClassicCounter;
+import edu.stanford.nlp.stats.Counter;
+import edu.stanford.nlp.util.Index;
+
+/**
+ * All mentions of a batch of tuples (e.g., all candidate slot values of one entity) as one sparse matrix,
+ *   in compressed row format: one row per mention, storing the ids and counts of its known features.
+ * The rows of tuple t are firstRow(t) ... endRow(t) - 1.
+ * The dot products of all rows with all label weight vectors are computed in one pass over the matrix,
+ *   instead of rebuilding a feature vector for every (mention, label) pair.
+ * Each dot product is summed in the same order as the per-mention code it replaces, so scores are identical.
+ */
+public class MentionMatrix {
+  /** Maps a feature to its id, or -1 if the feature is unknown */
+  public interface FeatureLookup {
+    public int featureIndexOf(String feature);
+  }
+
+  public static FeatureLookup lookup(final Index<String> index) {
+    return new FeatureLookup() {
+      @Override
+      public int featureIndexOf(String feature) {
+        return index.indexOf(feature);
+      }
+    };
+  }
+
+  private final int [] tupleStart;
+  private final int [] rowStart;
+  private final int [] ids;
+  private final double [] counts;
+
+  private MentionMatrix(int [] tupleStart, int [] rowStart, int [] ids, double [] counts) {
+    this.tupleStart = tupleStart;
+    this.rowStart = rowStart;
+    this.ids = ids;
+    this.counts = counts;
+  }
+
+  public int tupleCount() { return tupleStart.length - 1; }
+
+  public int rowCount() { return rowStart.length - 1; }
+
+  public int firstRow(int tuple) { return tupleStart[tuple]; }
+
+  public int endRow(int tuple) { return tupleStart[tuple + 1]; }
+
+  /**
+   * One entry per distinct known feature, with its count, in the iteration order of the vector built by
+   *   LabelWeights.avgDotProduct, so the perceptron scores are summed in exactly the same order
+   */
+  public static MentionMatrix countedRows(List<List<Collection<String>>> tuples, FeatureLookup lookup) {
+    Builder builder = new Builder(tuples.size());
+    for(List<Collection<String>> tuple: tuples) {
+      for(Collection<String> mention: tuple) {
+        Counter<Integer> vector = new ClassicCounter<Integer>();
+        for(String feat: mention) {
+          int idx = lookup.featureIndexOf(feat);
+          if(idx >= 0) vector.incrementCount(idx);
+        }
+        for(Map.Entry<Integer, Double> entry: vector.entrySet())
+          builder.add(entry.getKey(), entry.getValue());
+        builder.endRow();
+      }
+      builder.endTuple();
+    }
+    return builder.build();
+  }
+
+  /**
+   * One entry per known feature occurrence (duplicates are kept), in mention order,
+   *   as LinearClassifier.scoresOf sees the features of a BasicDatum
+   */
+  public static MentionMatrix datumRows(List<List<Collection<String>>> tuples, FeatureLookup lookup) {
+    Builder builder = new Builder(tuples.size());
+    for(List<Collection<String>> tuple: tuples) {
+      for(Collection<String> mention: tuple) {
+        for(String feat: mention) {
+          int idx = lookup.featureIndexOf(feat);
+          if(idx >= 0) builder.add(idx, 1.0);
+        }
+        builder.endRow();
+      }
+      builder.endTuple();
+    }
+    return builder.build();
+  }
+
+  /**
+   * Dot products of all rows with all labels
+   * @param weights Label-major weights: weights[label][feature]
+   * @return scores[row * weights.length + label]
+   */
+  public double [] dotProducts(double [][] weights) {
+    int labels = weights.length;
+    double [] scores = new double[rowCount() * labels];
+    for(int row = 0; row < rowCount(); row ++) {
+      for(int label = 0; label < labels; label ++) {
+        double [] w = weights[label];
+        double dotProd = 0;
+        for(int k = rowStart[row]; k < rowStart[row + 1]; k ++) dotProd += counts[k] * w[ids[k]];
+        scores[row * labels + label] = dotProd;
+      }
+    }
+    return scores;
+  }
+
+  /**
+   * Dot products of all rows with all labels of a mapped model
+   * @return scores[row * model.labelCount() + label]
+   */
+  public double [] dotProducts(MappedLinearClassifier model) {
+    int labels = model.labelCount();
+    double [] scores = new double[rowCount() * labels];
+    for(int row = 0; row < rowCount(); row ++) {
+      for(int label = 0; label < labels; label ++) {
+        double dotProd = 0;
+        for(int k = rowStart[row]; k < rowStart[row + 1]; k ++) dotProd += counts[k] * model.weight(label, ids[k]);
+        scores[row * labels + label] = dotProd;
+      }
+    }
+    return scores;
+  }
+
+  /**
+   * Dot products of all rows with all labels, for feature-major weights as stored by LinearClassifier
+   * @param weights weights[feature][label]
+   * @return scores[row * labels + label]
+   */
+  public double [] dotProducts(double [][] weights, int labels) {
+    double [] scores = new double[rowCount() * labels];
+    for(int row = 0; row < rowCount(); row ++) {
+      int offset = row * labels;
+      // the label loop is innermost here, but each label still sums its features in row order
+      for(int k = rowStart[row]; k < rowStart[row + 1]; k ++) {
+        double [] w = weights[ids[k]];
+        for(int label = 0; label < labels; label ++) scores[offset + label] += counts[k] * w[label];
+      }
+    }
+    return scores;
+  }
+
+  /**
+   * Position of the best label in scores[offset ... offset + names.size() - 1], with ties broken by label name;
+   *   this is the first element of JointBayesRelationExtractor.sortPredictions for the same scores
+   */
+  public static int topLabel(double [] scores, int offset, List<String> names) {
+    int best = 0;
+    for(int label = 1; label < names.size(); label ++) {
+      Double s = scores[offset + label];
+      Double b = scores[offset + best];
+      if(s > b || (s.equals(b) && names.get(label).compareTo(names.get(best)) < 0)) best = label;
+    }
+    return best;
+  }
+
+  /** Accumulates the compressed rows, growing the arrays as needed */
+  private static class Builder {
+    private int [] tupleStart;
+    private int [] rowStart = new int[64];
+    private int [] ids = new int[1024];
+    private double [] counts = new double[1024];
+    private int tuples = 0;
+    private int rows = 0;
+    private int size = 0;
+
+    Builder(int tupleCount) {
+      tupleStart = new int[tupleCount + 1];
+    }
+
+    void add(int id, double count) {
+      if(size == ids.length) {
+        int [] newIds = new int[ids.length * 2];
+        System.arraycopy(ids, 0, newIds, 0, size);
+        ids = newIds;
+        double [] newCounts = new double[counts.length * 2];
+        System.arraycopy(counts, 0, newCounts, 0, size);
+        counts = newCounts;
+      }
+      ids[size] = id;
+      counts[size] = count;
+      size ++;
+    }
+
+    void endRow() {
+      if(rows + 2 > rowStart.length) {
+        int [] newRowStart = new int[rowStart.length * 2];
+        System.arraycopy(rowStart, 0, newRowStart, 0, rows + 1);
+        rowStart = newRowStart;
+      }
+      rows ++;
+      rowStart[rows] = size;
+    }
+
+    void endTuple() {
+      tuples ++;
+      tupleStart[tuples] = rows;
+    }
+
+    MentionMatrix build() {
+      int [] r = new int[rows + 1];
+      System.arraycopy(rowStart, 0, r, 0, rows + 1);
+      return new MentionMatrix(tupleStart, r, ids, counts);
+    }
+  }
+}
@@ -64,6 +64,24 @@ public MultiLabelDataset() {
   public MultiLabelDataset(int sz) {
     initialize(sz);
   }
+
+  /**
+   * Creates an empty dataset that uses the given feature index
+   * For example, a HashedFeatureIndex to keep the feature space bounded
+   */
+  public MultiLabelDataset(Index<F> featureIndex) {
+    this(10);
+    this.featureIndex = featureIndex;
+  }
+
+  /**
+   * Creates an empty dataset that extends the label and feature indices of an existing model
+   * Used for incremental training (see JointlyTrainedRelationExtractor.makeIncrementalDataset)
+   */
+  public MultiLabelDataset(Index<L> labelIndex, Index<F> featureIndex) {
+    this(featureIndex);
+    this.labelIndex = labelIndex;
+  }
   
   public MultiLabelDataset(int[][][] data,
       Index<F> featureIndex,
@@ -124,6 +142,63 @@ public MultiLabelDataset() {
     return data;
   }
   
+  /**
+   * Copy that can be modified (e.g., by applyFeatureCountThreshold or train) without changing this dataset:
+   *   the groups, their labels, and the label index are copied; the feature index and the argument types are shared
+   * Does not modify this dataset, so several threads may copy the same dataset
+   */
+  @SuppressWarnings("unchecked")
+  public MultiLabelDataset<L, F> copy() {
+    int [][][] newData = new int[size][][];
+    Set<Integer> [] newPos = new Set[size];
+    Set<Integer> [] newNeg = new Set[size];
+    for(int i = 0; i < size; i ++) {
+      newData[i] = new int[data[i].length][];
+      for(int j = 0; j < data[i].length; j ++) newData[i][j] = data[i][j].clone();
+      newPos[i] = new HashSet<Integer>(posLabels[i]);
+      newNeg[i] = new HashSet<Integer>(negLabels[i]);
+    }
+    MultiLabelDataset<L, F> copy = new MultiLabelDataset<L, F>(newData, featureIndex,
+        new HashIndex<L>(labelIndex.objectsList()), newPos, newNeg);
+    copy.argTypeIndex = argTypeIndex;
+    copy.arg1TypesArray = arg1TypesArray;
+    copy.arg2TypesArray = arg2TypesArray;
+    copy.argFeatIndex = argFeatIndex;
+    copy.suffixFeatCounts = suffixFeatCounts;
+    copy.entityTypeCounts = entityTypeCounts;
+    return copy;
+  }
+
+  /**
+   * The groups start ... end - 1 of this dataset, e.g., to hold out some groups from training
+   * The groups, their labels and argument types, and the indices are shared with this dataset
+   */
+  @SuppressWarnings("unchecked")
+  public MultiLabelDataset<L, F> subset(int start, int end) {
+    int [][][] newData = new int[end - start][][];
+    Set<Integer> [] newPos = new Set[end - start];
+    Set<Integer> [] newNeg = new Set[end - start];
+    System.arraycopy(data, start, newData, 0, end - start);
+    System.arraycopy(posLabels, start, newPos, 0, end - start);
+    System.arraycopy(negLabels, start, newNeg, 0, end - start);
+    MultiLabelDataset<L, F> subset = new MultiLabelDataset<L, F>(newData, featureIndex, labelIndex, newPos, newNeg);
+    subset.argTypeIndex = argTypeIndex;
+    subset.arg1TypesArray = subsetArray(arg1TypesArray, start, end);
+    subset.arg2TypesArray = subsetArray(arg2TypesArray, start, end);
+    subset.argFeatIndex = argFeatIndex;
+    subset.suffixFeatCounts = suffixFeatCounts;
+    subset.entityTypeCounts = entityTypeCounts;
+    return subset;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Set<Integer> [] subsetArray(Set<Integer> [] a, int start, int end) {
+    if(a == null) return null;
+    Set<Integer> [] newA = new Set[end - start];
+    System.arraycopy(a, start, newA, 0, Math.max(0, Math.min(end, a.length) - start));
+    return newA;
+  }
+
   @SuppressWarnings("unchecked")
   protected Set<Integer> [] trimToSize(Set<Integer> [] i) {
     if(i.length == size) return i;
@@ -144,7 +219,13 @@ public MultiLabelDataset() {
    * @param randomSeed
    */
   public void randomize(int randomSeed) {
-    Random rand = new Random(randomSeed);
+    randomize(new Random(randomSeed));
+  }
+
+  /**
+   * Randomizes the data array in place, with numbers from this generator
+   */
+  public void randomize(Random rand) {
     for(int j = size - 1; j > 0; j --){
       int randIndex = rand.nextInt(j);
       
@@ -164,7 +245,10 @@ public MultiLabelDataset() {
   }
   
   public void randomize(int [][] zLabels, int randomSeed) {
-    Random rand = new Random(randomSeed);
+    randomize(zLabels, new Random(randomSeed));
+  }
+
+  public void randomize(int [][] zLabels, Random rand) {
     for(int j = size - 1; j > 0; j --){
       int randIndex = rand.nextInt(j);
       
@@ -209,7 +293,22 @@ public MultiLabelDataset() {
    * All features that occur fewer than <i>k</i> times are expunged.
    */
   public void applyFeatureCountThreshold(int threshold) {
+    applyFeatureCountThreshold(threshold, 0);
+  }
+  
+  /**
+   * Applies a feature count threshold only to the features with index &gt;= knownFeatures
+   * The first knownFeatures features keep their indices, so the weights of an existing model still apply to them
+   */
+  public void applyFeatureCountThreshold(int threshold, int knownFeatures) {
     float[] counts = getFeatureCounts();
+    for(int i = 0; i < knownFeatures && i < counts.length; i ++) counts[i] = Float.MAX_VALUE;
+    
+    if(featureIndex instanceof HashedFeatureIndex<?>) {
+      // the hashed space has a fixed size, so we only remove the rare buckets from the data
+      removeRareFeatures(counts, threshold);
+      return;
+    }
     
     //
     // rebuild the feature index
@@ -248,6 +347,24 @@ public MultiLabelDataset() {
     }
   }
   
+  private void removeRareFeatures(float[] counts, int threshold) {
+    for (int i = 0; i < size; i++) {
+      for(int j = 0; j < data[i].length; j ++){
+        int kept = 0;
+        for (int k = 0; k < data[i][j].length; k++) {
+          if (counts[data[i][j][k]] >= threshold) kept ++;
+        }
+        if(kept == data[i][j].length) continue;
+        int [] newFeatures = new int[kept];
+        kept = 0;
+        for (int k = 0; k < data[i][j].length; k++) {
+          if (counts[data[i][j][k]] >= threshold) newFeatures[kept ++] = data[i][j][k];
+        }
+        data[i][j] = newFeatures;
+      }
+    }
+  }
+  
   /* deprecated function --- see the modified function
    * 
   public void addDatum(Set<L> yPos, Set<L> yNeg, List<Datum<L, F>> group) {
@@ -424,10 +541,9 @@ public MultiLabelDataset() {
       int[] intFeatures = new int[features.size()];
       int j = 0;
       for (F feature : features) {
-        featureIndex.add(feature);
-        int index = featureIndex.indexOf(feature);
+        int index = featureIndex.indexOf(feature, true);
         if (index >= 0) {
-          intFeatures[j] = featureIndex.indexOf(feature);
+          intFeatures[j] = index;
           j++;
         }
       }
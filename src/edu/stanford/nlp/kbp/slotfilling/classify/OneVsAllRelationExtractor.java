@@ -12,8 +12,10 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
 
 import edu.stanford.nlp.classify.GeneralDataset;
@@ -21,6 +23,7 @@ import edu.stanford.nlp.classify.LinearClassifier;
 import edu.stanford.nlp.classify.LinearClassifierFactory;
 import edu.stanford.nlp.ie.machinereading.structure.RelationMention;
 import edu.stanford.nlp.kbp.slotfilling.common.Constants;
+import edu.stanford.nlp.kbp.slotfilling.common.Props;
 import edu.stanford.nlp.ling.BasicDatum;
 import edu.stanford.nlp.ling.Datum;
 import edu.stanford.nlp.stats.ClassicCounter;
@@ -28,6 +31,7 @@ import edu.stanford.nlp.stats.Counter;
 import edu.stanford.nlp.stats.Counters;
 import edu.stanford.nlp.util.ErasureUtils;
 import edu.stanford.nlp.util.Pair;
+import edu.stanford.nlp.util.PropertiesUtils;
 
 /**
  * Multi-class local LR classifier with incomplete negatives
@@ -37,6 +41,8 @@ public class OneVsAllRelationExtractor extends RelationExtractor {
   private static final long serialVersionUID = -9156368776695470568L;
     
   private Map<String, LinearClassifier<String, String>> classifiers = null;
+  /** Set if this model was loaded from a BinaryModel; replaces classifiers */
+  private transient Map<String, MappedLinearClassifier> mappedClassifiers = null;
   
   /** Regularization coeficient */
   private double sigma;
@@ -59,7 +65,7 @@ public class OneVsAllRelationExtractor extends RelationExtractor {
   
   @Override
   public Counter<String> classifyMentions(List<Collection<String>> relation) {
-    assert(classifiers != null);
+    assert(classifiers != null || mappedClassifiers != null);
 
     Counter<String> labels = new ClassicCounter<String>();
     for(Collection<String> mention: relation) {
@@ -76,14 +82,16 @@ public class OneVsAllRelationExtractor extends RelationExtractor {
   }
 
   private Pair<String, Double> annotateDatum(Datum<String, String> testDatum) {
-    Set<String> knownLabels = classifiers.keySet();
+    Set<String> knownLabels = (mappedClassifiers != null ? mappedClassifiers.keySet() : classifiers.keySet());
     
     // fetch all scores 
     List<Pair<String, Double>> allLabelScores = new ArrayList<Pair<String,Double>>();
     List<Double> scores = new ArrayList<Double>();
     for(String knownLabel: knownLabels){
-      LinearClassifier<String, String> labelClassifier = classifiers.get(knownLabel);
-      Pair<String, Double> pred = classOf(testDatum, labelClassifier);  
+      Counter<String> probs = (mappedClassifiers != null ?
+          mappedClassifiers.get(knownLabel).probabilityOf(testDatum.asFeatures()) :
+          classifiers.get(knownLabel).probabilityOf(testDatum));
+      Pair<String, Double> pred = classOf(probs);  
       assert(pred != null);
       if(pred.second > 0.5) allLabelScores.add(pred);
       scores.add(pred.second);
@@ -107,8 +115,7 @@ public class OneVsAllRelationExtractor extends RelationExtractor {
     return new Pair<String, Double>(RelationMention.UNRELATED, 1.0);
   }
   
-  private Pair<String, Double> classOf(Datum<String, String> datum, LinearClassifier<String, String> classifier) {
-    Counter<String> probs = classifier.probabilityOf(datum); 
+  private Pair<String, Double> classOf(Counter<String> probs) {
     List<Pair<String, Double>> sortedProbs = Counters.toDescendingMagnitudeSortedListWithCounts(probs);
     for(Pair<String, Double> ls: sortedProbs){
       if(! ls.first.equals(RelationMention.UNRELATED)) return ls;
@@ -154,6 +161,33 @@ public class OneVsAllRelationExtractor extends RelationExtractor {
     is.close();
     return ex;
   }
+  
+  @Override
+  public void saveBinary(String modelPath, Properties props) throws IOException {
+    if(classifiers == null) throw new RuntimeException("ERROR: no classifiers to save; was this model loaded from a binary model?");
+    BinaryModel.Writer writer = new BinaryModel.Writer(modelPath, getClass().getSimpleName(), props,
+        BinaryModel.singlePrecision(props));
+    // all classifiers share one feature table
+    List<String> labels = new ArrayList<String>(classifiers.keySet());
+    List<String> features = MappedLinearClassifier.featureUnion(classifiers.values());
+    writer.addStrings("labels", labels);
+    writer.addStrings("features", features);
+    writer.setMeta("sigma", Double.toString(sigma));
+    for(int i = 0; i < labels.size(); i ++)
+      MappedLinearClassifier.write(writer, "label." + i, features, classifiers.get(labels.get(i)));
+    writer.close();
+  }
+  
+  public static RelationExtractor load(BinaryModel model) throws IOException {
+    OneVsAllRelationExtractor ex = new OneVsAllRelationExtractor();
+    ex.sigma = Double.valueOf(model.meta("sigma"));
+    List<String> labels = model.strings("labels").toList();
+    // keep the label order of the saved model, which is the order in which labels are scored
+    ex.mappedClassifiers = new LinkedHashMap<String, MappedLinearClassifier>();
+    for(int i = 0; i < labels.size(); i ++)
+      ex.mappedClassifiers.put(labels.get(i), new MappedLinearClassifier(model, "label." + i, "features"));
+    return ex;
+  }
 
   public void train(Map<String, GeneralDataset<String, String>> trainSets){
     Set<String> labels = trainSets.keySet();
@@ -24,10 +24,12 @@ import edu.stanford.nlp.ie.machinereading.structure.RelationMention;
 import edu.stanford.nlp.kbp.slotfilling.common.Constants;
 import edu.stanford.nlp.kbp.slotfilling.common.Log;
 import edu.stanford.nlp.kbp.slotfilling.common.Props;
+import edu.stanford.nlp.kbp.slotfilling.common.RandomStreams;
 import edu.stanford.nlp.stats.ClassicCounter;
 import edu.stanford.nlp.stats.Counter;
 import edu.stanford.nlp.stats.Counters;
 import edu.stanford.nlp.util.ErasureUtils;
+import edu.stanford.nlp.util.HashIndex;
 import edu.stanford.nlp.util.Index;
 import edu.stanford.nlp.util.Pair;
 import edu.stanford.nlp.util.PropertiesUtils;
@@ -52,7 +54,7 @@ public class PerceptronExtractor extends JointlyTrainedRelationExtractor {
    * @author Mihai
    *
    */
-  static class LabelWeights implements Serializable {
+  static class LabelWeights implements Serializable, AveragedWeights {
     private static final long serialVersionUID = 1L;
 
     /**
@@ -82,6 +84,20 @@ public class PerceptronExtractor extends JointlyTrainedRelationExtractor {
       weights = null;
     }
     
+    public double [] weights() {
+      return weights;
+    }
+    
+    /**
+     * Prepares a loaded vector (its weights were cleared by save) for incremental training:
+     *   training continues from the (normalized) average vector, and a new average is accumulated
+     */
+    void warmStart(int numFeatures) {
+      weights = warmStartWeights(avgWeights, numFeatures, 1);
+      avgWeights = new double[numFeatures];
+      survivalIterations = 0;
+    }
+    
     void updateSurvivalIterations() {
       survivalIterations ++;
     }
@@ -153,6 +169,8 @@ public class PerceptronExtractor extends JointlyTrainedRelationExtractor {
   Index<String> zFeatureIndex;
   /** Index of the NIL label */
   int nilIndex;
+  /** Set if this model was loaded from a BinaryModel; replaces zWeights and zFeatureIndex */
+  transient MappedLinearClassifier mappedZWeights;
   
   /** Joint or local model? */
   final ModelType modelType;
@@ -169,10 +187,15 @@ public class PerceptronExtractor extends JointlyTrainedRelationExtractor {
   private Counter<Integer> negUpdateStats;
   private Counter<Integer> unknownUpdateStats;
   
+  /** Decides when training stops before the last epoch; all criteria disabled by default */
+  transient ConvergenceMonitor convergence;
+  
   public PerceptronExtractor(Properties props) throws IOException {
     Log.severe("PerceptronExtractor configured with the following properties:");
     this.epochs = PropertiesUtils.getInt(props, Props.PERCEPTRON_EPOCHS, 10);
     Log.severe("epochs = " + epochs);
+    this.convergence = new ConvergenceMonitor(props);
+    setRandomStreams(RandomStreams.fromProperties(props));
     this.softmaxEnabled = PropertiesUtils.getBool(props, Props.PERCEPTRON_SOFTMAX, true);
     Log.severe("softmaxEnabled = " + softmaxEnabled);
     String normType = props.getProperty(Props.PERCEPTRON_NORMALIZE, "L2J");
@@ -237,6 +260,31 @@ public class PerceptronExtractor extends JointlyTrainedRelationExtractor {
     return ex;
   }
   
+  @Override
+  public void saveBinary(String modelPath, Properties props) throws IOException {
+    if(zWeights == null) throw new RuntimeException("ERROR: no weights to save; was this model loaded from a binary model?");
+    BinaryModel.Writer writer = new BinaryModel.Writer(modelPath, getClass().getSimpleName(), props,
+        BinaryModel.singlePrecision(props));
+    double [][] rows = new double[zWeights.length][];
+    for(int i = 0; i < zWeights.length; i ++) rows[i] = zWeights[i].avgWeights;
+    MappedLinearClassifier.writeFeatures(writer, "z.features", zFeatureIndex);
+    MappedLinearClassifier.write(writer, "z", MappedLinearClassifier.indexToList(labelIndex), rows);
+    writer.close();
+  }
+  
+  public static RelationExtractor load(BinaryModel model, Properties props) throws IOException {
+    PerceptronExtractor ex = new PerceptronExtractor(props);
+    ex.mappedZWeights = new MappedLinearClassifier(model, "z", "z.features");
+    ex.labelIndex = new HashIndex<String>(ex.mappedZWeights.labels());
+    ex.nilIndex = ex.labelIndex.indexOf(RelationMention.UNRELATED);
+    return ex;
+  }
+  
+  @Override
+  public void setConvergenceMonitor(ConvergenceMonitor m) {
+    convergence = m;
+  }
+  
   @Override
   public void train(MultiLabelDataset<String, String> dataset) {
     Log.severe("Training the \"at least once\" model using "
@@ -253,12 +301,51 @@ public class PerceptronExtractor extends JointlyTrainedRelationExtractor {
     for(int i = 0; i < zWeights.length; i ++) 
       zWeights[i] = new LabelWeights(dataset.featureIndex().size());
     
+    trainEpochs(dataset, epochs);
+  }
+  
+  @Override
+  public MultiLabelDataset<String, String> makeIncrementalDataset() {
+    if(zWeights == null) throw new RuntimeException("ERROR: incremental training requires a serialized model, not a binary one");
+    return new MultiLabelDataset<String, String>(labelIndex, zFeatureIndex);
+  }
+  
+  @Override
+  public void trainIncrementally(MultiLabelDataset<String, String> dataset, int epochs) {
+    Log.severe("Incremental training of the " + modelType + " model using "
+        + dataset.featureIndex().size() + " features (" + zWeights[0].avgWeights.length + " before) and "
+        + dataset.size() + " datum groups.");
+    
+    // new labels start with empty vectors
+    LabelWeights [] newZWeights = new LabelWeights[labelIndex.size()];
+    for(int i = 0; i < newZWeights.length; i ++) {
+      if(i < zWeights.length) {
+        newZWeights[i] = zWeights[i];
+        newZWeights[i].warmStart(dataset.featureIndex().size());
+      } else {
+        newZWeights[i] = new LabelWeights(dataset.featureIndex().size());
+      }
+    }
+    zWeights = newZWeights;
+    // the feature threshold may have rebuilt the index
+    zFeatureIndex = dataset.featureIndex();
+    
+    trainEpochs(dataset, epochs);
+  }
+  
+  private void trainEpochs(MultiLabelDataset<String, String> dataset, int epochs) {
+    if(convergence == null) convergence = new ConvergenceMonitor();
+    dataset = convergence.start(dataset);
+    LabelWeights [] bestZWeights = null;
+    int bestIterations = 0;
+    
     int iterations = 0;
     for(int t = 0; t < epochs; t ++){
+      convergence.startEpoch();
       // randomize the data set in each epoch
-      // use a fixed seed for replicability
+      // use a stream of the epoch for replicability
       Log.severe("Started epoch #" + t + "...");
-      dataset.randomize(t);
+      dataset.randomize(randomStreams().stream("shuffle", t));
       
       posUpdateStats = new ClassicCounter<Integer>();
       negUpdateStats = new ClassicCounter<Integer>();
@@ -299,7 +386,23 @@ public class PerceptronExtractor extends JointlyTrainedRelationExtractor {
             
       // compute performance over the training set
       computeTrainingPerformance(dataset);
+      
+      if(convergence.endEpoch(t, zWeights, new ConvergenceMonitor.LabelPredictor() {
+        public Set<Integer> predictLabels(int [][] group) {
+          return estimateY(generateZPredicted(estimateZ(group))).keySet();
+        }
+      })) {
+        bestZWeights = ConvergenceMonitor.snapshot(zWeights);
+        bestIterations = iterations;
+      }
+      if(convergence.shouldStop()) break;
     } 
+    convergence.finish();
+    if(bestZWeights != null) {
+      Log.severe("Using the weights of the best held-out epoch: " + convergence.best());
+      zWeights = bestZWeights;
+      iterations = bestIterations;
+    }
     Log.severe("Run model through " + iterations + " iterations.");
     
     // normalize the avg vector by the total number of iterations
@@ -316,6 +419,7 @@ public class PerceptronExtractor extends JointlyTrainedRelationExtractor {
       boolean incompleteModel) {
     // zs - all labels with non-zero scores for each datum
     List<Counter<Integer>> zs = estimateZ(crtGroup);
+    int [] zPredicted = new int[crtGroup.length];
     
     for(int i = 0; i < crtGroup.length; i ++){
       int [] datum = crtGroup[i];
@@ -324,6 +428,7 @@ public class PerceptronExtractor extends JointlyTrainedRelationExtractor {
       if(predictions.size() > 0){
         prediction = predictions.get(0).first();
       }
+      zPredicted[i] = prediction;
       
       // positive update(s)
       for(int gold: goldPos) {
@@ -358,6 +463,7 @@ public class PerceptronExtractor extends JointlyTrainedRelationExtractor {
         negUpdateStats.incrementCount(prediction);
       }
     }
+    convergence.countZFlips(crtGroup, zPredicted);
   }
   
   private int [] generateZUnknown(
@@ -379,6 +485,7 @@ public class PerceptronExtractor extends JointlyTrainedRelationExtractor {
     List<Counter<Integer>> zs = estimateZ(crtGroup);
     int [] zPredicted = generateZPredicted(zs);
     if(verbose) predictionZStats(zPredicted);
+    convergence.countZFlips(crtGroup, zPredicted);
 
     // yPredicted - Y labels predicted using the current Zs
     Counter<Integer> yPredicted = estimateY(zPredicted);
@@ -436,13 +543,14 @@ public class PerceptronExtractor extends JointlyTrainedRelationExtractor {
     return probs;
   }
   
+  /** Prints the non-zero average weights by feature; for a HashedFeatureIndex, by bucket name */
   private void printAvgVectors() {
     for(int i = 0; i < zWeights.length; i ++){
       System.err.print("AVG VECTOR #" + i + ":");
       for(int j = 0; j < zWeights[i].avgWeights.length; j ++){
         double v = zWeights[i].avgWeights[j];
         if(v != 0){
-          System.err.print(" " + j + ":" + v);
+          System.err.print(" " + (j < zFeatureIndex.size() ? zFeatureIndex.get(j) : j) + ":" + v);
         }
       }
       System.err.println();
@@ -854,6 +962,54 @@ public class PerceptronExtractor extends JointlyTrainedRelationExtractor {
     return joint;
     // return localBest;
   }
+
+  /** Same as classifyMentions for each tuple, but all mention scores are computed in one pass */
+  @Override
+  public List<Counter<String>> classifyMentionsBatch(List<List<Collection<String>>> relations) {
+    MentionMatrix matrix;
+    double [] scores;
+    int labelCount;
+    if(mappedZWeights != null) {
+      matrix = MentionMatrix.countedRows(relations, mappedZWeights);
+      scores = matrix.dotProducts(mappedZWeights);
+      labelCount = mappedZWeights.labelCount();
+    } else {
+      double [][] rows = new double[zWeights.length][];
+      for(int i = 0; i < zWeights.length; i ++) rows[i] = zWeights[i].avgWeights;
+      matrix = MentionMatrix.countedRows(relations, MentionMatrix.lookup(zFeatureIndex));
+      scores = matrix.dotProducts(rows);
+      labelCount = zWeights.length;
+    }
+    List<String> labels = MappedLinearClassifier.indexToList(labelIndex).subList(0, labelCount);
+
+    List<Counter<String>> results = new ArrayList<Counter<String>>(relations.size());
+    double [] probs = new double[labelCount];
+    for(int t = 0; t < matrix.tupleCount(); t ++) {
+      Counter<String> localNoisyOr = new ClassicCounter<String>();
+      for(int row = matrix.firstRow(t); row < matrix.endRow(t); row ++) {
+        // softmax over all labels, including NIL, as in classifyLocally
+        int offset = row * labelCount;
+        double logZ = Softmax.logNormalizer(scores, offset, labelCount, gamma);
+        for(int z = 0; z < labelCount; z ++) probs[z] = Math.exp((gamma * scores[offset + z]) - logZ);
+
+        int top = MentionMatrix.topLabel(probs, 0, labels);
+        String l = labels.get(top);
+        double s = probs[top];
+        if(! l.equals(RelationMention.UNRELATED)) {
+          double crt = (localNoisyOr.containsKey(l) ? localNoisyOr.getCount(l) : 1.0);
+          crt = crt * (1.0 - s);
+          localNoisyOr.setCount(l, crt);
+        }
+      }
+
+      Counter<String> joint = new ClassicCounter<String>();
+      for(String y: localNoisyOr.keySet()) {
+        joint.setCount(y, 1.0 - localNoisyOr.getCount(y));
+      }
+      results.add(joint);
+    }
+    return results;
+  }
   
   private static List<Pair<Integer, Double>> sortPredictions(Counter<Integer> scores) {
     List<Pair<Integer, Double>> sortedScores = new ArrayList<Pair<Integer,Double>>();
@@ -886,8 +1042,12 @@ public class PerceptronExtractor extends JointlyTrainedRelationExtractor {
     // stores all scores also here; needed for the softmax normalization
     List<Double> scores = new ArrayList<Double>();
     // scan all labels; this includes NIL, which is needed for proper softmax
-    for(int labelIdx = 0; labelIdx < zWeights.length; labelIdx ++){
-      double score = zWeights[labelIdx].avgDotProduct(testDatum, zFeatureIndex);
+    Counter<Integer> vector = (mappedZWeights != null ? mappedZWeights.featureVector(testDatum) : null);
+    int labelCount = (mappedZWeights != null ? mappedZWeights.labelCount() : zWeights.length);
+    for(int labelIdx = 0; labelIdx < labelCount; labelIdx ++){
+      double score = (vector != null ?
+          mappedZWeights.dotProduct(labelIdx, vector) :
+          zWeights[labelIdx].avgDotProduct(testDatum, zFeatureIndex));
       allLabelScores.setCount(labelIdx, score);
       scores.add(score);
     }
@@ -1,9 +1,11 @@
 package edu.stanford.nlp.kbp.slotfilling.classify;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Properties;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -25,15 +27,38 @@ public abstract class RelationExtractor implements Serializable {
    * The NIL label is NOT to be generated by this method. 
    */
   public Counter<String> classifyRelation(KBPTuple tuple) {
+    return classifyMentions(mentionsOf(tuple));
+  }
+
+  /**
+   * Classifies all tuples of a query at once; the results are the same as calling classifyRelation for each tuple
+   */
+  public List<Counter<String>> classifyRelations(List<KBPTuple> tuples) {
+    List<List<Collection<String>>> batch = new ArrayList<List<Collection<String>>>(tuples.size());
+    for(KBPTuple tuple: tuples) batch.add(mentionsOf(tuple));
+    return classifyMentionsBatch(batch);
+  }
+
+  private static List<Collection<String>> mentionsOf(KBPTuple tuple) {
     List<Collection<String>> mentions = new ArrayList<Collection<String>>();
     for(int i = 0; i < tuple.size(); i ++) {
       mentions.add(tuple.datum(i).asFeatures());
     }
-    return classifyMentions(mentions);
+    return mentions;
   }
-  
+
   public abstract Counter<String> classifyMentions(List<Collection<String>> relation);
-  
+
+  /**
+   * Classifies a batch of tuples; must return the same results as classifyMentions for each tuple
+   * Override this to score all mentions of the batch in one pass (see MentionMatrix)
+   */
+  public List<Counter<String>> classifyMentionsBatch(List<List<Collection<String>>> relations) {
+    List<Counter<String>> results = new ArrayList<Counter<String>>(relations.size());
+    for(List<Collection<String>> relation: relations) results.add(classifyMentions(relation));
+    return results;
+  }
+
   // Override for your oracle experiments
   public Counter<String> classifyOracleMentions(
       List<Collection<String>> relation,
@@ -41,6 +66,14 @@ public abstract class RelationExtractor implements Serializable {
     return null;
   }
   
+  /**
+   * Saves this model in the BinaryModel format, which is loaded through a memory map
+   * @param props Used for the props digest stored in the model, and for model.binary.float32
+   */
+  public void saveBinary(String modelPath, Properties props) throws IOException {
+    throw new RuntimeException("ERROR: " + getClass().getSimpleName() + " does not support the binary model format");
+  }
+  
   public void setLoggerLevel(Level level) {
     logger.setLevel(level);
   }
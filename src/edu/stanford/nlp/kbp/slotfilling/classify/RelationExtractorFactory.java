@@ -3,6 +3,11 @@ package edu.stanford.nlp.kbp.slotfilling.classify;
 import java.io.IOException;
 import java.util.Properties;
 
+import edu.stanford.nlp.kbp.slotfilling.common.Log;
+import edu.stanford.nlp.kbp.slotfilling.common.Metrics;
+import edu.stanford.nlp.kbp.slotfilling.common.Props;
+import edu.stanford.nlp.util.PropertiesUtils;
+
 public class RelationExtractorFactory {
   ModelType modelType;
   
@@ -43,7 +48,62 @@ public class RelationExtractorFactory {
     return false;
   }
   
+  /**
+   * Loads a binary model if modelPath is one, or if model.binary is enabled and modelPath + BinaryModel.EXTENSION exists;
+   *   a serialized model otherwise
+   */
   public RelationExtractor load(String modelPath, Properties props) throws IOException, ClassNotFoundException {
+    String binaryPath = binaryModelPath(modelPath, props);
+    if(binaryPath != null) return loadBinary(binaryPath, props);
+    return loadSerialized(modelPath, props);
+  }
+  
+  static String binaryModelPath(String modelPath, Properties props) throws IOException {
+    if(BinaryModel.isBinaryModel(modelPath)) return modelPath;
+    String binaryPath = modelPath + BinaryModel.EXTENSION;
+    if(PropertiesUtils.getBool(props, Props.MODEL_BINARY, false) && BinaryModel.isBinaryModel(binaryPath)) return binaryPath;
+    return null;
+  }
+  
+  public RelationExtractor loadBinary(String modelPath, Properties props) throws IOException {
+    long start = Metrics.start();
+    BinaryModel model = BinaryModel.open(modelPath);
+    Log.severe("Loading binary model " + modelPath + " saved by " + model.modelType() +
+        " with props digest " + model.propsDigest());
+    RelationExtractor relationExtractor = null;
+    if (modelType == ModelType.LR_INC) {
+      checkBinaryType(model, OneVsAllRelationExtractor.class);
+      relationExtractor = OneVsAllRelationExtractor.load(model);
+    } else if (modelType == ModelType.AT_LEAST_ONCE) {
+      checkBinaryType(model, HoffmannExtractor.class);
+      relationExtractor = HoffmannExtractor.load(model, props);
+    } else if(modelType == ModelType.AT_LEAST_ONCE_INC
+        || modelType == ModelType.PERCEPTRON 
+        || modelType == ModelType.PERCEPTRON_INC) {
+      checkBinaryType(model, PerceptronExtractor.class);
+      relationExtractor = PerceptronExtractor.load(model, props);
+    } else if(modelType == ModelType.JOINT_BAYES || modelType == ModelType.LOCAL_BAYES) {
+      checkBinaryType(model, JointBayesRelationExtractor.class);
+      relationExtractor = JointBayesRelationExtractor.load(model, props);
+    } else if(modelType == ModelType.SelPrefOR_EXTRACTOR) {
+      checkBinaryType(model, SelPrefORExtractor.class);
+      relationExtractor = SelPrefORExtractor.load(model, props);
+    } else {
+      throw new RuntimeException("ERROR: Unknown modelType " + modelType);
+    }
+    model.close();
+    Metrics.stop("model.load.binary", start);
+    return relationExtractor;
+  }
+  
+  private static void checkBinaryType(BinaryModel model, Class<? extends RelationExtractor> expected) {
+    if(! model.modelType().equals(expected.getSimpleName()))
+      throw new RuntimeException("ERROR: binary model " + model.path() + " was saved by " + model.modelType() +
+          ", but this model type requires " + expected.getSimpleName());
+  }
+  
+  public RelationExtractor loadSerialized(String modelPath, Properties props) throws IOException, ClassNotFoundException {
+    long start = Metrics.start();
     RelationExtractor relationExtractor = null;
     if (modelType == ModelType.LR_INC) {
       relationExtractor = OneVsAllRelationExtractor.load(modelPath);
@@ -63,6 +123,7 @@ public class RelationExtractorFactory {
     else {
       throw new RuntimeException("ERROR: Unknown modelType " + modelType);
     }
+    Metrics.stop("model.load.serialized", start);
     return relationExtractor;
   }
 }
@@ -8,6 +8,7 @@ import edu.stanford.nlp.kbp.slotfilling.classify.HoffmannExtractor.Edge;
 import edu.stanford.nlp.kbp.slotfilling.common.Constants;
 import edu.stanford.nlp.kbp.slotfilling.common.Log;
 import edu.stanford.nlp.kbp.slotfilling.common.Props;
+import edu.stanford.nlp.kbp.slotfilling.common.RandomStreams;
 import edu.stanford.nlp.stats.ClassicCounter;
 import edu.stanford.nlp.stats.Counter;
 import edu.stanford.nlp.util.ErasureUtils;
@@ -43,7 +44,7 @@ public class SelPrefORExtractor extends JointlyTrainedRelationExtractor {
   /**
    * Stores weight information for one label
    */
-  static class LabelWeights implements Serializable {
+  static class LabelWeights implements Serializable, AveragedWeights {
     private static final long serialVersionUID = 1L;
 
     /**
@@ -55,6 +56,9 @@ public class SelPrefORExtractor extends JointlyTrainedRelationExtractor {
     /** Indicates how many iterations has this vector survived */
     int survivalIterations;
 
+    /** Number of iterations summed in avgWeights; 0 for models saved before incremental training */
+    long averagedIterations;
+
     /**
      * Average vector computed as a weighted sum of all seen vectors
      * The weight for each vector is the number of iterations it survived
@@ -73,8 +77,24 @@ public class SelPrefORExtractor extends JointlyTrainedRelationExtractor {
       weights = null;
     }
 
+    public double [] weights() {
+      return weights;
+    }
+
+    /**
+     * Prepares a loaded vector (its weights were cleared by save) for incremental training:
+     *   training continues from the average vector, and a new average is accumulated
+     */
+    void warmStart(int numFeatures) {
+      weights = warmStartWeights(avgWeights, numFeatures, averagedIterations);
+      avgWeights = new double[numFeatures];
+      survivalIterations = 0;
+      averagedIterations = 0;
+    }
+
     void updateSurvivalIterations() {
       survivalIterations ++;
+      averagedIterations ++;
     }
 
     /** Adds the latest weight vector to the average vector */
@@ -155,8 +175,12 @@ public class SelPrefORExtractor extends JointlyTrainedRelationExtractor {
   Index<String> argTypeIndex;
   /** Index of the NIL label */
   int nilIndex;
+  /** Set if this model was loaded from a BinaryModel; replaces zWeights and zFeatureIndex */
+  transient MappedLinearClassifier mappedZWeights;
   /** Number of epochs during training */
   final int epochs;
+  /** Decides when training stops before the last epoch; all criteria disabled by default */
+  transient ConvergenceMonitor convergence;
   
   final int epochsInf;
 
@@ -170,6 +194,8 @@ public class SelPrefORExtractor extends JointlyTrainedRelationExtractor {
     this.epochs = PropertiesUtils.getInt(props, Props.PERCEPTRON_EPOCHS, 10);
     this.epochsInf = PropertiesUtils.getInt(props, Props.INFERENCE_EPOCHS, 10);
     this.ALGO_TYPE = PropertiesUtils.getInt(props, Props.ALGOTYPE, 1);
+    this.convergence = new ConvergenceMonitor(props);
+    setRandomStreams(RandomStreams.fromProperties(props));
     Log.severe("epochs = " + epochs);
     Log.severe("Algorithm type is " + ALGO_TYPE);
     Log.severe("Inference rounds (gibbs sampling) = " + epochsInf );
@@ -186,6 +212,11 @@ public class SelPrefORExtractor extends JointlyTrainedRelationExtractor {
 	 * f_extract -- independent -- DONE
 	 */
   
+  @Override
+  public void setConvergenceMonitor(ConvergenceMonitor m) {
+    convergence = m;
+  }
+
   @Override
   public void train(MultiLabelDataset<String, String> dataset) {
  	    Log.severe("Training the \"Selectional Preference with Overlapping relations\" model using "
@@ -230,16 +261,54 @@ public class SelPrefORExtractor extends JointlyTrainedRelationExtractor {
 //	    for(int i = 0; i < arg2biasFweights.length; i++) 
 //	    	arg2biasFweights[i] = new LabelWeights(dataset.argFeatIndex().size());
 
+	    trainEpochs(dataset, epochs);
+  }
+
+  @Override
+  public MultiLabelDataset<String, String> makeIncrementalDataset() {
+    if(zWeights == null) throw new RuntimeException("ERROR: incremental training requires a serialized model, not a binary one");
+    MultiLabelDataset<String, String> dataset = new MultiLabelDataset<String, String>(labelIndex, zFeatureIndex);
+    dataset.argTypeIndex = argTypeIndex;
+    return dataset;
+  }
+
+  @Override
+  public void trainIncrementally(MultiLabelDataset<String, String> dataset, int epochs) {
+    Log.severe("Incremental training of the \"Selectional Preference with Overlapping relations\" model using "
+        + dataset.featureIndex().size() + " features (" + zWeights[0].avgWeights.length + " before) and "
+        + dataset.size() + " datum groups.");
+    // the select and mention factors are laid out by the number of labels and argument types
+    int numOfLabels = labelIndex.size();
+    int numOfTypes = argTypeIndex.size();
+    if(numOfLabels != zWeights.length ||
+        selectFweights.avgWeights.length != numOfTypes*numOfTypes*numOfLabels+(2*numOfTypes*numOfLabels)) {
+      throw new RuntimeException("ERROR: the new datums have labels or argument types unknown to this model; retrain it from scratch");
+    }
+
+    for(LabelWeights zw: zWeights) zw.warmStart(dataset.featureIndex().size());
+    selectFweights.warmStart(selectFweights.avgWeights.length);
+    mentionFweights.warmStart(mentionFweights.avgWeights.length);
+    // the feature threshold may have rebuilt the index
+    zFeatureIndex = dataset.featureIndex();
+
+    trainEpochs(dataset, epochs);
+  }
+
+  private void trainEpochs(MultiLabelDataset<String, String> dataset, int epochs) {
+	    if(convergence == null) convergence = new ConvergenceMonitor();
+	    dataset = convergence.start(dataset);
+	    LabelWeights [] bestZWeights = null;
 	    Log.severe("DATASET SIZE = " + dataset.size());
 	    /**
 	     * Training algorithm starts here
 	     */
 	    // repeat for a number of epochs
 	    for(int t = 0; t < epochs; t ++){
+	    	convergence.startEpoch();
 	    	// randomize the data set in each epoch
-	    	// use a fixed seed for replicability
+	    	// use a stream of the epoch for replicability
 	    	Log.severe("Started epoch #" + t + "...");
-	    	dataset.randomize(t); // For uniformity with hoffmann algo randomization
+	    	dataset.randomize(randomStreams().stream("shuffle", t)); // For uniformity with hoffmann algo randomization
 
 	    	// TODO: Check -- Need to update some statistics ??
 	    	Counter<Integer> posUpdateStats = new ClassicCounter<Integer>();
@@ -266,7 +335,22 @@ public class SelPrefORExtractor extends JointlyTrainedRelationExtractor {
 	    			dataset.size() + " datum groups. Performed " +
 	    			posUpdateStats.getCount(LABEL_ALL) + " ++ updates and " +
 	    			negUpdateStats.getCount(LABEL_ALL) + " -- updates.");
-	    	
+
+	    	if(convergence.endEpoch(t, zWeights, new ConvergenceMonitor.LabelPredictor() {
+	    		public Set<Integer> predictLabels(int [][] group) {
+	    			YZPredicted predictedVals = new InferenceWrappers().generateYZPredictedILPnoisyOr(
+	    					computeScores(group, null), group.length, labelIndex, null, -1, -1, nilIndex);
+	    			return predictedVals.getYPredicted().keySet();
+	    		}
+	    	})) {
+	    		bestZWeights = ConvergenceMonitor.snapshot(zWeights);
+	    	}
+	    	if(convergence.shouldStop()) break;
+	    }
+	    convergence.finish();
+	    if(bestZWeights != null) {
+	    	Log.severe("Using the weights of the best held-out epoch: " + convergence.best());
+	    	zWeights = bestZWeights;
 	    }
 
 	    // finalize learning: add the last vector to the avg for each label
@@ -318,7 +402,7 @@ public class SelPrefORExtractor extends JointlyTrainedRelationExtractor {
 			  negFile = new File(trainDir + File.separator + 
 					  "datums_" + (int) (100.0 * samplingRatio) + ".negatives");
 			  if(! negFile.exists()) {
-				  KBPTrainer.subsampleNegatives(trainDatumFiles, negFile, samplingRatio);
+				  KBPTrainer.subsampleNegatives(trainDatumFiles, negFile, samplingRatio, RandomStreams.fromProperties(props));
 			  }
 		  }
 
@@ -495,12 +579,12 @@ public class SelPrefORExtractor extends JointlyTrainedRelationExtractor {
 	    return score;
 	  }
   
-  private ArrayList<Integer> randomizeVar(int sz){
+  private ArrayList<Integer> randomizeVar(int sz, Random rand){
 	  
 	  ArrayList<Integer> randomArray = new ArrayList<Integer>();
 	  for(int i = 0; i < sz; i ++)
 		  randomArray.add(i);
-	  Collections.shuffle(randomArray);
+	  Collections.shuffle(randomArray, rand);
 
 	  return randomArray;
   }
@@ -677,6 +761,14 @@ public class SelPrefORExtractor extends JointlyTrainedRelationExtractor {
   private Counter<Integer> calScoreInf(Collection<String> mentionFeatures) {
 	  
 	  	//mentionFeatures = Xj (i.e. features of the 'j'th mention)
+	  	if(mappedZWeights != null) {
+	  	  Counter<Integer> vector = mappedZWeights.featureVector(mentionFeatures);
+	  	  Counter<Integer> scores = new ClassicCounter<Integer>();
+	  	  for(int zLabel = 0; zLabel < mappedZWeights.labelCount(); zLabel ++)
+	  	    scores.setCount(zLabel, mappedZWeights.dotProduct(zLabel, vector));
+	  	  return scores;
+	  	}
+	  	
 	  	Counter<Integer> vector = new ClassicCounter<Integer>();
 	    for(String feat: mentionFeatures) {
 	      int idx = zFeatureIndex.indexOf(feat);
@@ -807,6 +899,7 @@ public class SelPrefORExtractor extends JointlyTrainedRelationExtractor {
 		  YZPredicted predictedVals = ilpInfHandle.generateYZPredictedILPnoisyOr(scores, crtGroup.length, labelIndex, typeBiasScores, egId, epoch, nilIndex);
 		  Counter<Integer> yPredicted = predictedVals.getYPredicted();
 		  zPredicted = predictedVals.getZPredicted();
+		  convergence.countZFlips(crtGroup, zPredicted);
 		  Set<Integer> [] zUpdate;
 		  
 //		  System.out.print("epoch: " + (epoch-1) +  "; egid: " + egId + "; z=[");
@@ -847,7 +940,7 @@ public class SelPrefORExtractor extends JointlyTrainedRelationExtractor {
 			  // 2.0) Z*, T* = argmax Pr (Z, T | Yi, Xi; \theta)
 			  
 			  // 2.1) Pr (Z | Yi; \theta) --> gibbs sampling
-			  zUpdate = generateZUpdate(goldPos, crtGroup);
+			  zUpdate = generateZUpdate(goldPos, crtGroup, epoch - 1, egId); // epoch counts from 1 here
 			  
 			  // 2.2) Pr (T | Yi; \theta) --> gibbs sampling
 			  
@@ -1214,7 +1307,9 @@ Set<Integer> [] generateTUpdate(Set<Integer> goldPos,List<Counter<Integer>> zs)
    */
   	private Set<Integer> [] generateZUpdate(
           Set<Integer> goldPosY,
-          int [][] crtGroup) {
+          int [][] crtGroup,
+          int epoch,
+          int egId) {
 	  
   	  List<Counter<Integer>> pr_z = estimateZ(crtGroup); // ComputePrZ(crtGroup);
   	  int zPredicted [] = generateZPredicted(pr_z);
@@ -1231,7 +1326,8 @@ Set<Integer> [] generateTUpdate(Set<Integer> goldPos,List<Counter<Integer>> zs)
 	  
 	  for(int i = 0; i < epochsInf; i ++){
 		  //Log.severe("Gibbs Sampling: Started epochInf #" + i + "...");
-		  ArrayList<Integer> randomArray = randomizeVar(pr_z.size()); 
+		  // a stream per sampling iteration, so the permutations depend only on the seed
+		  ArrayList<Integer> randomArray = randomizeVar(pr_z.size(), randomStreams().stream("gibbs", epoch, egId, i)); 
 		  
 		  for(int j = 0; j < zUpdate.length; j ++){
 
@@ -1435,13 +1531,51 @@ Set<Integer> [] generateTUpdate(Set<Integer> goldPos,List<Counter<Integer>> zs)
   
   @Override
   public Counter<String> classifyMentions(List<Collection<String>> mentions) {
+	  return classifyMentions(computeScoresInf(mentions), mentions);
+  }
+  
+  /**
+   * Same as classifyMentions for each tuple, but the mention scores of all tuples are computed in one pass
+   * ILP inference still runs for each tuple
+   */
+  @Override
+  public List<Counter<String>> classifyMentionsBatch(List<List<Collection<String>>> relations) {
+	  MentionMatrix matrix;
+	  double [] scores;
+	  int labelCount;
+	  if(mappedZWeights != null) {
+		  matrix = MentionMatrix.countedRows(relations, mappedZWeights);
+		  scores = matrix.dotProducts(mappedZWeights);
+		  labelCount = mappedZWeights.labelCount();
+	  } else {
+		  double [][] rows = new double[zWeights.length][];
+		  for(int i = 0; i < zWeights.length; i ++) rows[i] = zWeights[i].avgWeights;
+		  matrix = MentionMatrix.countedRows(relations, MentionMatrix.lookup(zFeatureIndex));
+		  scores = matrix.dotProducts(rows);
+		  labelCount = zWeights.length;
+	  }
+	  
+	  List<Counter<String>> results = new ArrayList<Counter<String>>(relations.size());
+	  for(int t = 0; t < matrix.tupleCount(); t ++) {
+		  List<Counter<Integer>> scoreInf = new ArrayList<Counter<Integer>>();
+		  for(int row = matrix.firstRow(t); row < matrix.endRow(t); row ++) {
+			  Counter<Integer> mentionScores = new ClassicCounter<Integer>();
+			  for(int zLabel = 0; zLabel < labelCount; zLabel ++)
+				  mentionScores.setCount(zLabel, scores[row * labelCount + zLabel]);
+			  scoreInf.add(mentionScores);
+		  }
+		  results.add(classifyMentions(scoreInf, relations.get(t)));
+	  }
+	  return results;
+  }
+  
+  private Counter<String> classifyMentions(List<Counter<Integer>> scoreInf, List<Collection<String>> mentions) {
 	  Counter<String> yScores = new ClassicCounter<String>();
 	 
 	  //Set<Integer> arg1Type = new HashSet<Integer>();
 	  //Set<Integer> arg2Type = new HashSet<Integer>();    
 	  //extractArgTypes(mentions, arg1Type, arg2Type);
 	  
-	  List<Counter<Integer>> scoreInf = computeScoresInf(mentions);
 	  Counter<Integer> typeBiasScores = null; //computeTypeBiasScores(arg1Type, arg2Type, true);
 	  InferenceWrappers ilpInfHandle = new InferenceWrappers();
 	  
@@ -1633,5 +1767,41 @@ Set<Integer> [] generateTUpdate(Set<Integer> goldPos,List<Counter<Integer>> zs)
     return ex;
   }
 
+  @Override
+  public void saveBinary(String modelPath, Properties props) throws IOException {
+    if(zWeights == null) throw new RuntimeException("ERROR: no weights to save; was this model loaded from a binary model?");
+    BinaryModel.Writer writer = new BinaryModel.Writer(modelPath, getClass().getSimpleName(), props,
+        BinaryModel.singlePrecision(props));
+    double [][] rows = new double[zWeights.length][];
+    for(int i = 0; i < zWeights.length; i ++) rows[i] = zWeights[i].avgWeights;
+    MappedLinearClassifier.writeFeatures(writer, "z.features", zFeatureIndex);
+    MappedLinearClassifier.write(writer, "z", MappedLinearClassifier.indexToList(labelIndex), rows);
+
+    // the factor weights are not needed for inference, but they are kept so the model is complete
+    if(argTypeIndex != null) writer.addStrings("argtypes", MappedLinearClassifier.indexToList(argTypeIndex));
+    if(mentionFweights != null) writer.addWeights("mention.weights", new double[][] { mentionFweights.avgWeights });
+    if(selectFweights != null) writer.addWeights("select.weights", new double[][] { selectFweights.avgWeights });
+    writer.close();
+  }
+
+  public static RelationExtractor load(BinaryModel model, Properties props) throws IOException {
+    SelPrefORExtractor ex = new SelPrefORExtractor(props);
+    ex.mappedZWeights = new MappedLinearClassifier(model, "z", "z.features");
+    ex.labelIndex = new HashIndex<String>(ex.mappedZWeights.labels());
+    ex.nilIndex = ex.labelIndex.indexOf(RelationMention.UNRELATED);
+    if(model.hasSection("argtypes")) ex.argTypeIndex = new HashIndex<String>(model.strings("argtypes").toList());
+    ex.mentionFweights = loadAverageWeights(model, "mention.weights");
+    ex.selectFweights = loadAverageWeights(model, "select.weights");
+    return ex;
+  }
+
+  private static LabelWeights loadAverageWeights(BinaryModel model, String name) throws IOException {
+    if(! model.hasSection(name)) return null;
+    LabelWeights w = new LabelWeights(0);
+    w.avgWeights = model.weights(name).row(0);
+    w.clear();
+    return w;
+  }
+
 }
 
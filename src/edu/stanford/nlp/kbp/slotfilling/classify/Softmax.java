@@ -21,4 +21,16 @@ public class Softmax {
     double softmax = Math.exp(logSoftmax);
     return softmax;
   }
+
+  /**
+   * Log of the softmax normalization term for scores[offset ... offset + length - 1]
+   * softmax(score, scores, gamma) == Math.exp(gamma * score - logNormalizer(...)), but the normalizer
+   *   is computed once for all labels, rather than once per label
+   */
+  public static double logNormalizer(double [] scores, int offset, int length, double gamma) {
+    double [] scoreArray = new double[length];
+    for(int i = 0; i < length; i ++)
+      scoreArray[i] = gamma * scores[offset + i];
+    return ArrayMath.logSum(scoreArray);
+  }
 }
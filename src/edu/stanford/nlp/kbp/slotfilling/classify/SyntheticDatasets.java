@@ -0,0 +1,159 @@
+package edu.stanford.nlp.kbp.slotfilling.classify;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import edu.stanford.nlp.kbp.slotfilling.common.Log;
+import edu.stanford.nlp.kbp.slotfilling.multir.ProtobufToMultiLabelDataset;
+import edu.stanford.nlp.util.ErasureUtils;
+import edu.stanford.nlp.util.PropertiesUtils;
+
+/**
+ * Generates MultiLabelDatasets for benchmarking, either synthetic or loaded from a fixture file
+ * Synthetic datasets are fully determined by their shape and seed:
+ *   feature ids are skewed towards small values (a few features are very frequent, most are rare, as in real data),
+ *   and a fraction of the groups has no positive labels (NIL), as in distant supervision.
+ */
+public class SyntheticDatasets {
+  private SyntheticDatasets() {} // static class
+
+  static final String [] ARG1_TYPES = { "PERSON", "ORGANIZATION" };
+  static final String [] ARG2_TYPES = { "PERSON", "ORGANIZATION", "CITY", "COUNTRY", "DATE", "NUMBER", "TITLE" };
+
+  /** Shape of a synthetic dataset */
+  public static class Shape {
+    /** Number of datum groups (entity, slot value tuples) */
+    public int groups = 2000;
+    /** Average number of mentions per group; the actual number is uniform in [1, 2 * mentionsPerGroup - 1] */
+    public int mentionsPerGroup = 5;
+    /** Number of features of each mention */
+    public int featuresPerMention = 50;
+    /** Number of distinct features */
+    public int featureSpace = 100000;
+    /** Number of relation labels, without NIL */
+    public int labels = 40;
+    /** Maximum number of positive labels of a non-NIL group */
+    public int labelCardinality = 2;
+    /** Fraction of groups without positive labels */
+    public double nilFraction = 0.5;
+    public long seed = 1;
+
+    public static Shape fromProperties(Properties props) {
+      Shape s = new Shape();
+      s.groups = PropertiesUtils.getInt(props, "bench.groups", s.groups);
+      s.mentionsPerGroup = PropertiesUtils.getInt(props, "bench.mentions", s.mentionsPerGroup);
+      s.featuresPerMention = PropertiesUtils.getInt(props, "bench.features", s.featuresPerMention);
+      s.featureSpace = PropertiesUtils.getInt(props, "bench.featureSpace", s.featureSpace);
+      s.labels = PropertiesUtils.getInt(props, "bench.labels", s.labels);
+      s.labelCardinality = PropertiesUtils.getInt(props, "bench.labelCardinality", s.labelCardinality);
+      s.nilFraction = PropertiesUtils.getDouble(props, "bench.nilFraction", s.nilFraction);
+      s.seed = PropertiesUtils.getInt(props, "bench.seed", (int) s.seed);
+      return s;
+    }
+
+    @Override
+    public String toString() {
+      return "groups=" + groups + " mentions=" + mentionsPerGroup + " features=" + featuresPerMention +
+        " featureSpace=" + featureSpace + " labels=" + labels + " labelCardinality=" + labelCardinality +
+        " nilFraction=" + nilFraction + " seed=" + seed;
+    }
+  }
+
+  static String label(int i) { return "rel" + i; }
+
+  public static MultiLabelDataset<String, String> generate(Shape shape) {
+    Random random = new Random(shape.seed);
+    MultiLabelDataset<String, String> dataset = new MultiLabelDataset<String, String>(shape.groups);
+    for(int g = 0; g < shape.groups; g ++) {
+      Set<String> pos = new HashSet<String>();
+      if(random.nextDouble() >= shape.nilFraction) {
+        int card = 1 + random.nextInt(Math.max(1, shape.labelCardinality));
+        while(pos.size() < Math.min(card, shape.labels)) pos.add(label(random.nextInt(shape.labels)));
+      }
+      Set<String> neg = new HashSet<String>();
+      for(int l = 0; l < shape.labels; l ++) {
+        if(! pos.contains(label(l))) neg.add(label(l));
+      }
+
+      int mentions = 1 + random.nextInt(Math.max(1, 2 * shape.mentionsPerGroup - 1));
+      List<Collection<String>> group = new ArrayList<Collection<String>>();
+      for(int m = 0; m < mentions; m ++) {
+        Set<String> features = new HashSet<String>();
+        while(features.size() < Math.min(shape.featuresPerMention, shape.featureSpace)) {
+          // squaring a uniform variable skews the ids towards 0
+          double r = random.nextDouble();
+          features.add("f" + (int) (shape.featureSpace * r * r));
+        }
+        group.add(features);
+      }
+
+      String arg1Type = ARG1_TYPES[random.nextInt(ARG1_TYPES.length)];
+      List<String> arg2Types = new ArrayList<String>();
+      arg2Types.add(ARG2_TYPES[random.nextInt(ARG2_TYPES.length)]);
+      dataset.add(pos, neg, group, "entity" + g, arg1Type, "value" + g, arg2Types);
+    }
+    return dataset;
+  }
+
+  /**
+   * Loads a fixture dataset: either a gzipped protobuf file (*.pb.gz), as used by MultiR,
+   *   or a serialized MultiLabelDataset
+   */
+  public static MultiLabelDataset<String, String> load(String path) throws IOException, ClassNotFoundException {
+    Log.severe("Loading benchmark fixture from " + path);
+    if(path.endsWith(".pb.gz")) {
+      InputStream is = new GZIPInputStream(new BufferedInputStream(new FileInputStream(path)));
+      MultiLabelDataset<String, String> dataset = ProtobufToMultiLabelDataset.toMultiLabelDataset(is);
+      is.close();
+      return dataset;
+    }
+    ObjectInputStream is = new ObjectInputStream(new BufferedInputStream(new FileInputStream(path)));
+    MultiLabelDataset<String, String> dataset = ErasureUtils.uncheckedCast(is.readObject());
+    is.close();
+    return dataset;
+  }
+
+  /** Deep copy of the groups and labels, so benchmarks that modify the dataset can run repeatedly */
+  public static MultiLabelDataset<String, String> copy(MultiLabelDataset<String, String> dataset) {
+    int [][][] data = new int[dataset.size()][][];
+    Set<Integer> [] pos = ErasureUtils.uncheckedCast(new Set[dataset.size()]);
+    Set<Integer> [] neg = ErasureUtils.uncheckedCast(new Set[dataset.size()]);
+    for(int i = 0; i < dataset.size(); i ++) {
+      int [][] group = dataset.getDataArray()[i];
+      data[i] = new int[group.length][];
+      for(int j = 0; j < group.length; j ++) data[i][j] = group[j].clone();
+      pos[i] = new HashSet<Integer>(dataset.getPositiveLabelsArray()[i]);
+      neg[i] = new HashSet<Integer>(dataset.getNegativeLabelsArray()[i]);
+    }
+    return new MultiLabelDataset<String, String>(data, dataset.featureIndex(), dataset.labelIndex(), pos, neg);
+  }
+
+  /**
+   * Converts the groups back to the feature strings seen by classifyMentions
+   * For a HashedFeatureIndex these are the bucket names, which the index maps back to the same buckets
+   */
+  public static List<List<Collection<String>>> toMentions(MultiLabelDataset<String, String> dataset) {
+    List<List<Collection<String>>> tuples = new ArrayList<List<Collection<String>>>();
+    for(int i = 0; i < dataset.size(); i ++) {
+      List<Collection<String>> mentions = new ArrayList<Collection<String>>();
+      for(int [] datum: dataset.getDataArray()[i]) {
+        List<String> features = new ArrayList<String>();
+        for(int f: datum) features.add(dataset.featureIndex().get(f));
+        mentions.add(features);
+      }
+      tuples.add(mentions);
+    }
+    return tuples;
+  }
+}
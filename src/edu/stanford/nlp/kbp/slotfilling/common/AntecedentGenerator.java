@@ -13,7 +13,6 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.logging.Level;
 
 import edu.stanford.nlp.ling.CoreAnnotations;
 import edu.stanford.nlp.dcoref.CorefCoreAnnotations;
@@ -49,7 +48,7 @@ public class AntecedentGenerator {
    */
   public Set<Integer> findAntecedents(Annotation corpus) {
     List<CoreMap> sentences = corpus.get(SentencesAnnotation.class);
-    if (Log.levelFinerThan(Level.FINEST)) {
+    if (Log.isFinest()) {
       for (CoreMap sentence : sentences) {
         Log.finest(sentence.get(TreeAnnotation.class).toString());
         for (CoreLabel word : sentence.get(TokensAnnotation.class)) {
@@ -67,7 +66,7 @@ public class AntecedentGenerator {
     List<Pair<IntTuple, IntTuple>> corefGraph = getCorefGraph(corpus);
     assert(corefGraph != null);
 
-    if (Log.levelFinerThan(Level.FINEST)) {
+    if (Log.isFinest()) {
       Log.finest(corefGraph.toString());
       for (Pair<IntTuple, IntTuple> link : corefGraph) {
         // ms, 09202010: all coref offsets start at 1 now! => subtract 1 to get real Java indices!
@@ -83,7 +82,7 @@ public class AntecedentGenerator {
     Map<IntTuple, Integer> corefTupleToCluster = mapTuplesToClusters(corefGraph);
     List<List<IntTuple>> corefClusters = buildClusters(corefTupleToCluster);
 
-    if (Log.levelFinerThan(Level.FINEST)) {
+    if (Log.isFinest()) {
       int numClusters = corefClusters.size();
       Log.finest(numClusters + " coref clusters");
       Log.finest(corefTupleToCluster.toString());
@@ -93,7 +92,7 @@ public class AntecedentGenerator {
     }
     
     for (List<IntTuple> cluster : corefClusters) {
-      Log.finest("Doing cluster " + cluster);
+      Log.finest("Doing cluster {}", cluster);
       String antecedent = findBestNER(sentences, cluster, entityName);
 
       if (antecedent == null)
@@ -108,7 +107,7 @@ public class AntecedentGenerator {
       if (antecedent == null)
         throw new RuntimeException("Got a document that had no part of speech tags");
 
-      Log.fine("Found antecedent: \"" + antecedent + "\"");
+      Log.fine("Found antecedent: \"{}\"", antecedent);
       setAntecedent(sentences, cluster, antecedent);
 
       // If the antecedent we found matches the entity we were
@@ -118,7 +117,7 @@ public class AntecedentGenerator {
         for (IntTuple tuple : cluster) {
           // ms, 09202010: all coref offsets start at 1 now! => subtract 1 to get real Java indices!
           goodSentences.add(tuple.get(0) - 1);
-          Log.finest("Sentence " + (tuple.get(0) - 1) + " is useful");
+          if (Log.isFinest()) Log.finest("Sentence " + (tuple.get(0) - 1) + " is useful");
         }
       }
     }
@@ -137,7 +136,7 @@ public class AntecedentGenerator {
       CoreLabel word = tokens.get(tuple.get(1) - 1);
       String tag = word.get(PartOfSpeechAnnotation.class);
       if (tag.toLowerCase().matches(posRE)) {
-        Log.finest(tag + " matches " + posRE + ": " + tuple);
+        Log.finest("{} matches {}: {}", tag, posRE, tuple);
         if (firstSentence == -1 || firstSentence > tuple.get(0) - 1 ||
             (firstSentence == tuple.get(0) - 1 && firstPosition > tuple.get(1) - 1)) {
           firstSentence = tuple.get(0) - 1;
@@ -146,7 +145,7 @@ public class AntecedentGenerator {
         }
       }
     }
-    Log.finest(firstSentence + " " + firstPosition + " " + antecedent);
+    if (Log.isFinest()) Log.finest(firstSentence + " " + firstPosition + " " + antecedent);
     return antecedent;
   }
   
@@ -171,7 +170,7 @@ public class AntecedentGenerator {
       if (ner.equals(Constants.NER_BLANK_STRING))
         continue;
 
-      Log.finest("Found NER: " + word + " " + ner);
+      Log.finest("Found NER: {} {}", word, ner);
 
       // Scroll backwards to find the first token with the same NER type
       int start = tuple.get(1) - 1;
@@ -0,0 +1,131 @@
+package edu.stanford.nlp.kbp.slotfilling.common;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+import edu.stanford.nlp.util.PropertiesUtils;
+
+/**
+ * Runs micro benchmarks: a few warmup batches of each, followed by measured batches; for each it reports
+ *   the time per operation (mean and standard deviation across batches) and, on HotSpot JVMs,
+ *   the bytes allocated per operation.
+ * Options: bench.warmup (batches, default 3), bench.iterations (batches, default 10),
+ *   bench.filter (run only benchmarks whose name contains this string).
+ * The benchmarks themselves live next to the code they measure (e.g., ExtractorBenchmark, LogBenchmark).
+ */
+public class BenchmarkRunner {
+  /** One benchmark: a batch of operations, with optional untimed preparation before each batch */
+  public static abstract class Benchmark {
+    public final String name;
+    public Benchmark(String name) { this.name = name; }
+    /** Called once, before warmup */
+    public void setup() throws Exception {}
+    /** Called before each batch, not timed */
+    public void prepareBatch() {}
+    /** Runs one batch and returns the number of operations in it */
+    public abstract int runBatch();
+  }
+
+  private final int warmup;
+  private final int iterations;
+  private final String filter;
+
+  public BenchmarkRunner(Properties props) {
+    this.warmup = PropertiesUtils.getInt(props, "bench.warmup", 3);
+    this.iterations = PropertiesUtils.getInt(props, "bench.iterations", 10);
+    this.filter = props.getProperty("bench.filter");
+  }
+
+  /** Used heap after garbage collection, approximately */
+  public static long usedHeap() {
+    Runtime rt = Runtime.getRuntime();
+    for(int i = 0; i < 3; i ++) System.gc();
+    return rt.totalMemory() - rt.freeMemory();
+  }
+
+  /** Allocation counter of the current thread; null if the JVM does not provide one */
+  private static com.sun.management.ThreadMXBean allocationBean() {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if(! (bean instanceof com.sun.management.ThreadMXBean)) return null;
+    com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+    if(! sunBean.isThreadAllocatedMemorySupported()) return null;
+    sunBean.setThreadAllocatedMemoryEnabled(true);
+    return sunBean;
+  }
+
+  private static final PrintStream NULL_STREAM = new PrintStream(new OutputStream() {
+    @Override
+    public void write(int b) {}
+    @Override
+    public void write(byte [] b, int off, int len) {}
+  });
+
+  /** Runs one benchmark and returns its report line */
+  public String run(Benchmark b) throws Exception {
+    Log.severe("Setting up benchmark " + b.name + "...");
+    b.setup();
+
+    com.sun.management.ThreadMXBean allocations = allocationBean();
+    long thread = Thread.currentThread().getId();
+    double [] nanosPerOp = new double[iterations];
+    double bytesPerOp = 0;
+
+    // some of the measured code is very verbose on stderr; that is not what we want to measure
+    PrintStream err = System.err;
+    System.setErr(NULL_STREAM);
+    try {
+      for(int i = 0; i < warmup; i ++) {
+        b.prepareBatch();
+        b.runBatch();
+      }
+      long totalOps = 0;
+      long totalBytes = 0;
+      for(int i = 0; i < iterations; i ++) {
+        b.prepareBatch();
+        long bytesStart = (allocations != null ? allocations.getThreadAllocatedBytes(thread) : 0);
+        long start = System.nanoTime();
+        int ops = b.runBatch();
+        long nanos = System.nanoTime() - start;
+        long bytes = (allocations != null ? allocations.getThreadAllocatedBytes(thread) - bytesStart : 0);
+        nanosPerOp[i] = (double) nanos / Math.max(1, ops);
+        totalOps += ops;
+        totalBytes += bytes;
+      }
+      bytesPerOp = (double) totalBytes / Math.max(1, totalOps);
+    } finally {
+      System.setErr(err);
+    }
+
+    double mean = 0;
+    for(double v: nanosPerOp) mean += v;
+    mean /= nanosPerOp.length;
+    double var = 0;
+    for(double v: nanosPerOp) var += (v - mean) * (v - mean);
+    double stddev = (nanosPerOp.length > 1 ? Math.sqrt(var / (nanosPerOp.length - 1)) : 0);
+
+    return String.format(Locale.US, "%-40s %14.1f ns/op  +- %10.1f  %14s B/op",
+        b.name, mean, stddev, (allocations != null ? String.format(Locale.US, "%.1f", bytesPerOp) : "n/a"));
+  }
+
+  /** Runs the benchmarks that match bench.filter, and prints their report on stdout */
+  public void runAll(List<? extends Benchmark> benchmarks) {
+    List<String> report = new ArrayList<String>();
+    for(Benchmark b: benchmarks) {
+      if(filter != null && ! b.name.contains(filter)) continue;
+      try {
+        report.add(run(b));
+      } catch(Exception e) {
+        // e.g., ILP inference is not available on this machine
+        Log.severe("Benchmark " + b.name + " failed: " + e);
+        report.add(String.format("%-40s %s", b.name, "FAILED: " + e.getMessage()));
+      }
+    }
+    System.out.println("Benchmark results (" + warmup + " warmup and " + iterations + " measured batches each):");
+    for(String line: report) System.out.println(line);
+  }
+}
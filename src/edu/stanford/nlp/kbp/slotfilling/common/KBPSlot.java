@@ -145,6 +145,6 @@ public class KBPSlot implements Serializable {
     if(alternateSlotValues == null) alternateSlotValues = new ArrayList<String []>();
     String [] stringToks = Utils.tokenizeToStrings(s);
     alternateSlotValues.add(stringToks);
-    Log.fine("Added alternate slot value \"" + s + "\" for slot \"" + slotValue + "\" for type " + slotName);
+    Log.fine("Added alternate slot value \"{}\" for slot \"{}\" for type {}", s, slotValue, slotName);
   }
 }
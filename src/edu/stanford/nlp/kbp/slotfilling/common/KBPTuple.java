@@ -86,19 +86,11 @@ public class KBPTuple {
     slotType = chooseMajoritySlotNE(mentions);
     
     // pick the longest extent as the slot value
-    String bestSlotValue = "";
-    // String bestSlotValueNE = "";
+    slotValue = chooseSlotValue(mentions);
     normalizedSlotValues = new HashSet<String>();
     for (DatumAndMention m : mentions) {
-      String ext = m.mention().getArg(1).getExtentString();
-      if (ext.length() > bestSlotValue.length()) {
-        bestSlotValue = ext;
-        // bestSlotValueNE = m.mention().getArg(1).getType();
-      }
       normalizedSlotValues().add(m.mention().getNormalizedSlotValue());
     }
-    slotValue = bestSlotValue.replaceAll("\t+", " ");
-    // slotValueNE = bestSlotValueNE;
 
     goldMentionLabels = new ArrayList<String>();
     datums = new ArrayList<Datum<String,String>>();
@@ -133,6 +125,7 @@ public class KBPTuple {
     }
 
     // if we did not find a docid in the official index, try again by directly searching the index
+    // (this is usually a cache hit, see KBPEvaluator.readTuples)
     String officialDocid;
     if(! bestIndexName.equals(docidFinder.getSource()) &&
       (officialDocid = docidFinder.findBestDocid(entityName, slotValue)) != null) {
@@ -147,6 +140,27 @@ public class KBPTuple {
     }
   }
   
+  /** Picks the longest extent as the slot value */
+  public static String chooseSlotValue(Collection<DatumAndMention> mentions) {
+    String bestSlotValue = "";
+    for (DatumAndMention m : mentions) {
+      String ext = m.mention().getArg(1).getExtentString();
+      if (ext.length() > bestSlotValue.length()) {
+        bestSlotValue = ext;
+      }
+    }
+    return bestSlotValue.replaceAll("\t+", " ");
+  }
+
+  /** True if at least one of these mentions comes from the given index */
+  public static boolean hasMentionInIndex(Collection<DatumAndMention> mentions, String indexName) {
+    for (DatumAndMention mention : mentions) {
+      String mentionIndex = Constants.getIndexPath(mention.mention().getArg(0).getSentence().get(SourceIndexAnnotation.class));
+      if (mentionIndex.equals(indexName)) return true;
+    }
+    return false;
+  }
+
   private static String chooseMajoritySlotNE(Collection<DatumAndMention> mentions) {
     Counter<String> neCounts = new ClassicCounter<String>();
     for (DatumAndMention m : mentions)
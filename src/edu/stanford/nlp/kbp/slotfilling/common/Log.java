@@ -6,6 +6,16 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
 
+/**
+ * Logging facade for the slotfilling packages
+ * Messages that are expensive to build should not be concatenated at the call site, because that happens
+ *   even when their level is disabled. Instead, either guard them with isInfo()/isFine()/isFinest(), or use the
+ *   template overloads: each {} in the template is replaced by the next argument, and the message (including the
+ *   toString() of the arguments) is built only if the level is enabled. Arguments whose toString() is expensive
+ *   (e.g., a classifier that prints its weights) are thus formatted lazily.
+ * The overloads with up to three arguments allocate nothing when the level is disabled, as long as the arguments
+ *   already exist (primitives are boxed at the call site, so guard hot calls with primitive arguments).
+ */
 public class Log {
   public static final Logger logger;
 
@@ -35,16 +45,49 @@ public class Log {
     return logger.getLevel();
   }
 
+  /** True if messages of this level are logged; also works when the level is inherited from the parent logger */
   public static boolean levelFinerThan(Level level) {
-    assert(getLevel() != null);
-    return getLevel().intValue() <= level.intValue();
+    return logger.isLoggable(level);
   }
 
+  public static boolean isInfo() { return logger.isLoggable(Level.INFO); }
+  public static boolean isFine() { return logger.isLoggable(Level.FINE); }
+  public static boolean isFinest() { return logger.isLoggable(Level.FINEST); }
+
   public static void info(String s) { logger.info(s); }
   public static void fine(String s) { logger.fine(s); }
   public static void finest(String s) { logger.finest(s); }
   public static void severe(String s) { logger.severe(s); }
 
+  public static void info(String template, Object a1) { if(isInfo()) logger.info(format(template, a1)); }
+  public static void info(String template, Object a1, Object a2) { if(isInfo()) logger.info(format(template, a1, a2)); }
+  public static void info(String template, Object a1, Object a2, Object a3) { if(isInfo()) logger.info(format(template, a1, a2, a3)); }
+  public static void info(String template, Object... args) { if(isInfo()) logger.info(format(template, args)); }
+
+  public static void fine(String template, Object a1) { if(isFine()) logger.fine(format(template, a1)); }
+  public static void fine(String template, Object a1, Object a2) { if(isFine()) logger.fine(format(template, a1, a2)); }
+  public static void fine(String template, Object a1, Object a2, Object a3) { if(isFine()) logger.fine(format(template, a1, a2, a3)); }
+  public static void fine(String template, Object... args) { if(isFine()) logger.fine(format(template, args)); }
+
+  public static void finest(String template, Object a1) { if(isFinest()) logger.finest(format(template, a1)); }
+  public static void finest(String template, Object a1, Object a2) { if(isFinest()) logger.finest(format(template, a1, a2)); }
+  public static void finest(String template, Object a1, Object a2, Object a3) { if(isFinest()) logger.finest(format(template, a1, a2, a3)); }
+  public static void finest(String template, Object... args) { if(isFinest()) logger.finest(format(template, args)); }
+
+  public static void severe(String template, Object... args) { logger.severe(format(template, args)); }
+
+  /** Replaces each {} in the template with the next argument; extra {} are kept as they are */
+  static String format(String template, Object... args) {
+    StringBuilder os = new StringBuilder(template.length() + 16 * args.length);
+    int start = 0;
+    for(int arg = 0, pos; arg < args.length && (pos = template.indexOf("{}", start)) >= 0; arg ++) {
+      os.append(template, start, pos).append(args[arg]);
+      start = pos + 2;
+    }
+    os.append(template, start, template.length());
+    return os.toString();
+  }
+
   private static void setConsoleLevel(Level level) {
     // get the top Logger:
     Logger topLogger = java.util.logging.Logger.getLogger("");
@@ -0,0 +1,67 @@
+package edu.stanford.nlp.kbp.slotfilling.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import edu.stanford.nlp.kbp.slotfilling.common.BenchmarkRunner.Benchmark;
+import edu.stanford.nlp.util.StringUtils;
+
+/**
+ * Micro benchmarks for disabled log calls (logLevel SEVERE, the default here): the template and guarded calls
+ *   must report 0 B/op; the concatenated call is the baseline, which builds its message anyway.
+ * Usage:
+ *   java edu.stanford.nlp.kbp.slotfilling.common.LogBenchmark -bench.filter template
+ * See BenchmarkRunner for the other options.
+ */
+public class LogBenchmark {
+  /** Results are stored here, so the JIT cannot eliminate the benchmarked code */
+  static volatile Object sink;
+
+  /** Calls per batch */
+  static final int CALLS = 1000;
+
+  static List<Benchmark> benchmarks() {
+    List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+    // an argument with an expensive toString(), as the indices and classifiers that are logged
+    final List<String> logArg = new ArrayList<String>();
+    for(int i = 0; i < 100; i ++) logArg.add("label" + i);
+    final String logName = "label index";
+
+    benchmarks.add(new Benchmark("log.disabled.concat") {
+      @Override
+      public int runBatch() {
+        for(int i = 0; i < CALLS; i ++) Log.finest("Found " + logName + ": " + logArg);
+        return CALLS;
+      }
+    });
+
+    benchmarks.add(new Benchmark("log.disabled.template") {
+      @Override
+      public int runBatch() {
+        for(int i = 0; i < CALLS; i ++) Log.finest("Found {}: {}", logName, logArg);
+        return CALLS;
+      }
+    });
+
+    benchmarks.add(new Benchmark("log.disabled.guarded") {
+      @Override
+      public int runBatch() {
+        for(int i = 0; i < CALLS; i ++) {
+          if(Log.isFinest()) Log.finest("Found " + logName + " #" + i + ": " + logArg);
+        }
+        sink = logArg;
+        return CALLS;
+      }
+    });
+
+    return benchmarks;
+  }
+
+  public static void main(String[] args) throws Exception {
+    Properties props = StringUtils.argsToProperties(args);
+    Log.setLevel(Log.stringToLevel(props.getProperty(Props.LOG_LEVEL, "SEVERE")));
+    new BenchmarkRunner(props).runAll(benchmarks());
+  }
+}
@@ -0,0 +1,254 @@
+package edu.stanford.nlp.kbp.slotfilling.common;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import edu.stanford.nlp.util.PropertiesUtils;
+
+/**
+ * Lightweight in-process metrics: named counters and timers, the latter with a latency histogram for percentiles.
+ * Disabled by default; when disabled, start() returns 0 and all recording methods return immediately.
+ * Typical use:
+ * <pre>
+ *   long start = Metrics.start();
+ *   ... do work ...
+ *   Metrics.stop("retrieval.sentences", start);
+ * </pre>
+ * At the end of a run, report() saves all metrics in the file given by metrics.report, as JSON or CSV depending on its extension.
+ */
+public class Metrics {
+  private Metrics() {} // static class
+
+  private static volatile boolean enabled = false;
+
+  private static final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+  private static final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<String, Timer>();
+
+  /** Monotonic event counter */
+  public static class Counter {
+    private final AtomicLong value = new AtomicLong();
+
+    public void add(long n) { value.addAndGet(n); }
+    public long value() { return value.get(); }
+  }
+
+  /**
+   * Counts events and their durations
+   * Durations are also stored in a histogram with 4 buckets per power of 2 nanoseconds (at most 19% relative error),
+   *   which is enough for percentiles of latencies spanning microseconds to hours
+   */
+  public static class Timer {
+    private static final int BUCKETS_PER_POWER = 4;
+    private static final int BUCKETS = 64 * BUCKETS_PER_POWER;
+
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+    public void record(long nanos) {
+      if(nanos < 0) nanos = 0;
+      count.incrementAndGet();
+      totalNanos.addAndGet(nanos);
+      long max;
+      while(nanos > (max = maxNanos.get()) && ! maxNanos.compareAndSet(max, nanos));
+      histogram.incrementAndGet(bucket(nanos));
+    }
+
+    private static int bucket(long nanos) {
+      if(nanos < 1) return 0;
+      int power = 63 - Long.numberOfLeadingZeros(nanos);
+      // the two bits right after the highest bit give the sub bucket
+      int sub = (power >= 2 ? (int) ((nanos >>> (power - 2)) & 3) : (int) ((nanos << (2 - power)) & 3));
+      return power * BUCKETS_PER_POWER + sub;
+    }
+
+    /** Upper bound of the values stored in this bucket */
+    private static long bucketLimit(int bucket) {
+      int power = bucket / BUCKETS_PER_POWER;
+      int sub = bucket % BUCKETS_PER_POWER;
+      double limit = Math.pow(2, power) * (1.0 + (sub + 1) / (double) BUCKETS_PER_POWER);
+      return (limit >= Long.MAX_VALUE ? Long.MAX_VALUE : (long) limit);
+    }
+
+    public long count() { return count.get(); }
+    public long totalNanos() { return totalNanos.get(); }
+    public long maxNanos() { return maxNanos.get(); }
+
+    public double totalMillis() { return totalNanos.get() / 1e6; }
+
+    public double meanMillis() {
+      long c = count.get();
+      return (c > 0 ? totalNanos.get() / 1e6 / c : 0.0);
+    }
+
+    /** Approximate percentile, in milliseconds; p is between 0 and 100 */
+    public double percentileMillis(double p) {
+      long c = count.get();
+      if(c == 0) return 0.0;
+      long rank = (long) Math.ceil(c * p / 100.0);
+      if(rank < 1) rank = 1;
+      long seen = 0;
+      for(int i = 0; i < BUCKETS; i ++) {
+        seen += histogram.get(i);
+        if(seen >= rank) return Math.min(bucketLimit(i), maxNanos.get()) / 1e6;
+      }
+      return maxNanos.get() / 1e6;
+    }
+  }
+
+  /** Enables metrics if metrics.enabled is set, or a report file is given */
+  public static void configure(Properties props) {
+    boolean on = PropertiesUtils.getBool(props, Props.METRICS_ENABLED, props.containsKey(Props.METRICS_REPORT));
+    setEnabled(on);
+    if(on) Log.severe("Metrics collection is enabled.");
+  }
+
+  public static void setEnabled(boolean on) { enabled = on; }
+
+  public static boolean enabled() { return enabled; }
+
+  public static void reset() {
+    counters.clear();
+    timers.clear();
+  }
+
+  public static Counter counter(String name) {
+    Counter c = counters.get(name);
+    if(c == null) {
+      Counter newCounter = new Counter();
+      c = counters.putIfAbsent(name, newCounter);
+      if(c == null) c = newCounter;
+    }
+    return c;
+  }
+
+  public static Timer timer(String name) {
+    Timer t = timers.get(name);
+    if(t == null) {
+      Timer newTimer = new Timer();
+      t = timers.putIfAbsent(name, newTimer);
+      if(t == null) t = newTimer;
+    }
+    return t;
+  }
+
+  public static void increment(String name) {
+    if(enabled) counter(name).add(1);
+  }
+
+  public static void add(String name, long n) {
+    if(enabled) counter(name).add(n);
+  }
+
+  /** Start time to be passed to stop(); 0 if metrics are disabled */
+  public static long start() {
+    return (enabled ? System.nanoTime() : 0);
+  }
+
+  /** Records the time elapsed since start in the given timer */
+  public static void stop(String name, long start) {
+    if(enabled && start != 0) timer(name).record(System.nanoTime() - start);
+  }
+
+  /** Records a duration that was measured elsewhere */
+  public static void record(String name, long nanos) {
+    if(enabled) timer(name).record(nanos);
+  }
+
+  /** Saves the report in the file given by metrics.report, if any, and logs a summary */
+  public static void report(Properties props) {
+    if(! enabled) return;
+    Log.severe("Metrics:\n" + toText());
+    String fileName = props.getProperty(Props.METRICS_REPORT);
+    if(fileName == null) return;
+    try {
+      save(fileName);
+      Log.severe("Saved metrics report to " + fileName);
+    } catch(IOException e) {
+      Log.severe("Could not save metrics report to " + fileName + ": " + e.getMessage());
+    }
+  }
+
+  /** Saves all metrics in this file: CSV if the name ends with .csv, JSON otherwise */
+  public static void save(String fileName) throws IOException {
+    PrintStream os = new PrintStream(new FileOutputStream(fileName));
+    if(fileName.endsWith(".csv")) os.print(toCSV());
+    else os.print(toJSON());
+    os.close();
+  }
+
+  private static <V> List<String> sortedNames(Map<String, V> metrics) {
+    List<String> names = new ArrayList<String>(metrics.keySet());
+    Collections.sort(names);
+    return names;
+  }
+
+  public static String toText() {
+    StringBuilder os = new StringBuilder();
+    for(String name: sortedNames(counters)) {
+      os.append("  " + name + ": " + counters.get(name).value() + "\n");
+    }
+    for(String name: sortedNames(timers)) {
+      Timer t = timers.get(name);
+      os.append(String.format(Locale.US, "  %s: count=%d total=%.1fms mean=%.3fms p50=%.3fms p90=%.3fms p99=%.3fms max=%.3fms\n",
+          name, t.count(), t.totalMillis(), t.meanMillis(),
+          t.percentileMillis(50), t.percentileMillis(90), t.percentileMillis(99), t.maxNanos() / 1e6));
+    }
+    return os.toString();
+  }
+
+  public static String toCSV() {
+    StringBuilder os = new StringBuilder();
+    os.append("name,type,count,total_ms,mean_ms,p50_ms,p90_ms,p99_ms,max_ms\n");
+    for(String name: sortedNames(counters)) {
+      os.append(name + ",counter," + counters.get(name).value() + ",,,,,,\n");
+    }
+    for(String name: sortedNames(timers)) {
+      Timer t = timers.get(name);
+      os.append(String.format(Locale.US, "%s,timer,%d,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f\n",
+          name, t.count(), t.totalMillis(), t.meanMillis(),
+          t.percentileMillis(50), t.percentileMillis(90), t.percentileMillis(99), t.maxNanos() / 1e6));
+    }
+    return os.toString();
+  }
+
+  public static String toJSON() {
+    StringBuilder os = new StringBuilder();
+    os.append("{\n  \"counters\": {");
+    boolean first = true;
+    for(String name: sortedNames(counters)) {
+      os.append(first ? "\n" : ",\n");
+      os.append("    \"" + jsonEscape(name) + "\": " + counters.get(name).value());
+      first = false;
+    }
+    os.append("\n  },\n  \"timers\": {");
+    first = true;
+    for(String name: sortedNames(timers)) {
+      Timer t = timers.get(name);
+      os.append(first ? "\n" : ",\n");
+      os.append(String.format(Locale.US, "    \"%s\": {\"count\": %d, \"total_ms\": %.3f, \"mean_ms\": %.3f, " +
+          "\"p50_ms\": %.3f, \"p90_ms\": %.3f, \"p99_ms\": %.3f, \"max_ms\": %.3f}",
+          jsonEscape(name), t.count(), t.totalMillis(), t.meanMillis(),
+          t.percentileMillis(50), t.percentileMillis(90), t.percentileMillis(99), t.maxNanos() / 1e6));
+      first = false;
+    }
+    os.append("\n  }\n}\n");
+    return os.toString();
+  }
+
+  private static String jsonEscape(String s) {
+    return s.replace("\\", "\\\\").replace("\"", "\\\"");
+  }
+}
@@ -75,7 +75,7 @@ public class MinimalDatum {
     String concatenatedLabel = bits[3];
     String [] labels = concatenatedLabel.split("\\|");
     if(labels.length > 1){
-      Log.finest("Found concatenated label: " + concatenatedLabel);
+      Log.finest("Found concatenated label: {}", concatenatedLabel);
     }
     Collection<String> feats = new LinkedList<String>();
     for(int i = 4; i < bits.length; i ++){
@@ -0,0 +1,117 @@
+package edu.stanford.nlp.kbp.slotfilling.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip output stream that compresses blocks of blockSize bytes in parallel on a (shared) executor
+ * Each block is written as a separate gzip member; a sequence of members is a valid gzip file (RFC 1952),
+ *   which GZIPInputStream reads as one stream.
+ * At most maxPending compressed blocks are kept in memory; the writer blocks until the oldest one is written.
+ * Not thread safe: one thread writes to each stream, but many streams may share the executor.
+ */
+public class ParallelGZIPOutputStream extends OutputStream {
+  public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+  private final OutputStream out;
+  private final ExecutorService executor;
+  private final int blockSize;
+  private final int maxPending;
+  /** Compressed blocks, in the order they must be written */
+  private final LinkedList<Future<byte []>> pending = new LinkedList<Future<byte []>>();
+
+  private byte [] block;
+  private int blockLength;
+  private int blockCount;
+  private boolean closed;
+
+  public ParallelGZIPOutputStream(OutputStream out, ExecutorService executor, int blockSize, int maxPending) {
+    this.out = out;
+    this.executor = executor;
+    this.blockSize = blockSize;
+    this.maxPending = Math.max(1, maxPending);
+    this.block = new byte[blockSize];
+    this.blockLength = 0;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if(blockLength == blockSize) submitBlock();
+    block[blockLength ++] = (byte) b;
+  }
+
+  @Override
+  public void write(byte [] b, int off, int len) throws IOException {
+    while(len > 0) {
+      if(blockLength == blockSize) submitBlock();
+      int n = Math.min(len, blockSize - blockLength);
+      System.arraycopy(b, off, block, blockLength, n);
+      blockLength += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  private void submitBlock() throws IOException {
+    if(blockLength == 0) return;
+    final byte [] data = block;
+    final int length = blockLength;
+    pending.addLast(executor.submit(new Callable<byte []>() {
+      @Override
+      public byte [] call() throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 4 + 64);
+        GZIPOutputStream gz = new GZIPOutputStream(compressed);
+        gz.write(data, 0, length);
+        gz.close();
+        return compressed.toByteArray();
+      }
+    }));
+    block = new byte[blockSize];
+    blockLength = 0;
+    blockCount ++;
+    while(pending.size() > maxPending) writeOldest();
+  }
+
+  private void writeOldest() throws IOException {
+    Future<byte []> f = pending.removeFirst();
+    try {
+      out.write(f.get());
+    } catch(InterruptedException e) {
+      throw new IOException("ERROR: interrupted while compressing: " + e);
+    } catch(ExecutionException e) {
+      throw new IOException("ERROR: compression failed: " + e.getCause());
+    }
+  }
+
+  /** Compresses the current (partial) block, and writes all compressed blocks */
+  @Override
+  public void flush() throws IOException {
+    submitBlock();
+    while(! pending.isEmpty()) writeOldest();
+    out.flush();
+  }
+
+  /** Writes the remaining blocks and closes the underlying stream, which is closed even if compression fails */
+  @Override
+  public void close() throws IOException {
+    if(closed) return;
+    closed = true;
+    try {
+      flush();
+      // an empty stream is still a valid gzip file
+      if(blockCount == 0) new GZIPOutputStream(out).finish();
+    } finally {
+      // after a failure, the blocks still queued are not needed
+      for(Future<byte []> f: pending) f.cancel(true);
+      pending.clear();
+      out.close();
+    }
+  }
+}
@@ -10,12 +10,26 @@ public class Props {
   public static final String EPOCHS = "epochs";
   public static final String FEATURES = "features";
   public static final String FEATURE_COUNT_THRESHOLD = "featureCountThreshold";
+  public static final String FEATURE_HASHING_BITS = "features.hashing.bits";
+  public static final String FEATURE_HASHING_REPORT = "features.hashing.report";
   public static final String FILTER = "filter";
   public static final String FOLDS = "folds";
   public static final String INDEX = "index.kbp";
   public static final String MINIMAL_ANALYSIS = "index.minimal.analysis";
   public static final String OFFICIAL_INDEX = "index.official";
+  public static final String DOCID_CACHE_FILE = "index.official.docid.cache";
+  public static final String DOCID_CACHE_SIZE = "index.official.docid.cache.size";
+  public static final String DOCID_THREADS = "index.official.docid.threads";
+  public static final String METRICS_ENABLED = "metrics.enabled";
+  public static final String METRICS_REPORT = "metrics.report";
+  public static final String MODEL_BINARY = "model.binary";
+  public static final String MODEL_BINARY_FLOAT64 = "model.binary.float64";
   public static final String INDEX_CACHE_DIR = "index.cache.dir";
+  public static final String INDEX_COMBINATION_CONCURRENT = "index.combination.concurrent";
+  public static final String INDEX_COMBINATION_QUOTAS = "index.combination.quotas";
+  public static final String INDEX_COMBINATION_TIMEOUTS = "index.combination.timeouts";
+  public static final String INDEX_DECODED_CACHE_MB = "index.decoded.cache.mb";
+  public static final String INDEX_DECODED_CACHE_OFFHEAP_MB = "index.decoded.cache.offheap.mb";
   public static final String INDEX_PIPELINE_METHOD = "index.pipelinemethod";
   public static final String SENTENCE_CACHE = "index.sentencecache";
   public static final String TEST_SENTENCES_PER_ENTITY = "index.test.sentences.per.entity";
@@ -43,9 +57,15 @@ public class Props {
   public static final String NERENTRY_FILE = "kbp.ner.types";
   public static final String TEST_CACHE = "kbp.testcache";
   public static final String RUN_ID = "kbp.runid";
+  public static final String KBP_SERVER_EVALUATORS = "kbp.server.evaluators";
+  public static final String KBP_SERVER_PORT = "kbp.server.port";
+  public static final String KBP_SERVER_THREADS = "kbp.server.threads";
   public static final String KBP_STATES = "kbp.states";
   public static final String KBP_TEMPORAL = "kbp.temporal";
   public static final String KBP_TEMPORAL_SENTENCEEXTRACTOR = "kbp.temporal.sentenceExtractor";
+  public static final String KBP_WEBSNIPPETS_ORDERED = "kbp.websnippets.ordered";
+  public static final String KBP_WEBSNIPPETS_STORE = "kbp.websnippets.store";
+  public static final String KBP_WEBSNIPPETS_THREADS = "kbp.websnippets.threads";
   public static final String KB_SCORE_FILE = "kbScoreFile";
   public static final String LOG_LEVEL = "logLevel";
   public static final String MODEL_COMBINATION_ENABLED = "model.combination.enabled";
@@ -54,6 +74,13 @@ public class Props {
   public static final String MODEL_COMBINATION_NIL_WEIGHT = "model.combination.nil.weight";
   public static final String MODEL_COMBINATION_INPUTS_HAVE_SCORES = "model.combination.inputs.have.scores";
   public static final String MODEL_COMBINATION_SCORE_BIAS = "model.combination.score.bias";
+  public static final String MODEL_COMBINATION_GRID_NIL_WEIGHTS = "model.combination.grid.nil.weights";
+  public static final String MODEL_COMBINATION_GRID_SCORE_BIASES = "model.combination.grid.score.biases";
+  public static final String MODEL_COMBINATION_GRID_THRESHOLDS = "model.combination.grid.thresholds";
+  public static final String MODEL_COMBINATION_GRID_WEIGHT_BY_SCORES = "model.combination.grid.weight.by.scores";
+  public static final String MODEL_COMBINATION_THREADS = "model.combination.threads";
+  public static final String MULTIR_GRID_MEMORY = "multir.grid.memory";
+  public static final String MULTIR_GRID_THREADS = "multir.grid.threads";
   public static final String NATIONALITIES = "nationalities";
   public static final String NEGATIVES_SAMPLE_RATIO = "negatives.sampleratio";
   public static final String NLPSUB = "nlpsub";
@@ -64,6 +91,7 @@ public class Props {
   public static final String PERCEPTRON_THRESHOLD = "perceptron.threshold";
   public static final String PRIORITY_FILE = "priority.file";
   public static final String QUERY_SCORE_FILE = "queryScoreFile";
+  public static final String RANDOM_SEED = "random.seed";
   public static final String DOMAIN_ADAPT = "reader.domain.adapt";
   public static final String DOMAIN_ADAPT_STYLE = "reader.domain.adapt.style";
   public static final String ENFORCE_NE = "reader.enforcene";
@@ -97,6 +125,16 @@ public class Props {
   public static final String TEST_QUERIES = "testQueries";
   public static final String TIME_COMBINATION = "temporal.timecombination";
   public static final String TRAINY = "trainy";
+  public static final String TRAIN_CONVERGENCE_ZFLIPS = "train.convergence.zflips";
+  public static final String TRAIN_CONVERGENCE_LOGLIK = "train.convergence.loglik";
+  public static final String TRAIN_CONVERGENCE_WEIGHTS = "train.convergence.weights";
+  public static final String TRAIN_CONVERGENCE_PATIENCE = "train.convergence.patience";
+  public static final String TRAIN_CONVERGENCE_MIN_EPOCHS = "train.convergence.min.epochs";
+  public static final String TRAIN_CONVERGENCE_HELDOUT = "train.convergence.heldout";
+  public static final String TRAIN_INCREMENTAL = "train.incremental";
+  public static final String TRAIN_INCREMENTAL_COMPARE = "train.incremental.compare";
+  public static final String TRAIN_INCREMENTAL_EPOCHS = "train.incremental.epochs";
+  public static final String TRAIN_INCREMENTAL_REPLAY = "train.incremental.replay";
   public static final String DEFAULT_TIME_COMBINATION = "COMBINE";
   public static final String TRAINER = "trainer";
   public static final String MODEL_TYPE = "trainer.model";
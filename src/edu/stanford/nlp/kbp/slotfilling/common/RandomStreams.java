@@ -0,0 +1,91 @@
+package edu.stanford.nlp.kbp.slotfilling.common;
+
+import java.io.Serializable;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Reproducible random streams for training, all derived from one root seed (random.seed)
+ * A stream is identified by its purpose and a path of indices, e.g., ("shuffle", epoch) or ("group", epoch, group).
+ * Its seed is a hash of the root seed, purpose, and path only, so it does not depend on which streams were created
+ *   before it, or on which thread: a loop over epochs, folds, or groups that takes one stream per iteration draws
+ *   the same numbers whether it runs sequentially or in parallel.
+ * The streams are java.util.Random instances generating SplitMix64 numbers, as java.util.SplittableRandom does.
+ *   Like Random, each stream must be used by one thread at a time.
+ */
+public class RandomStreams implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  public static final long DEFAULT_SEED = 0;
+
+  /** Odd constant of SplitMix64: 2^64 divided by the golden ratio */
+  private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+  private final long seed;
+
+  public RandomStreams(long seed) {
+    this.seed = seed;
+  }
+
+  public static RandomStreams fromProperties(Properties props) {
+    String v = props.getProperty(Props.RANDOM_SEED);
+    return new RandomStreams(v != null ? Long.parseLong(v.trim()) : DEFAULT_SEED);
+  }
+
+  public long seed() {
+    return seed;
+  }
+
+  /** A new stream, always the same for the same root seed, purpose, and path */
+  public Random stream(String purpose, int ... path) {
+    return new SplitMixRandom(streamSeed(purpose, path));
+  }
+
+  long streamSeed(String purpose, int ... path) {
+    long h = mix64(seed + GOLDEN_GAMMA);
+    // a full SplitMix64 step on the hash: every bit of it reaches the seed
+    h = mix64(h + mix64(purpose.hashCode() + GOLDEN_GAMMA));
+    for(int i: path) h = mix64(h + GOLDEN_GAMMA + i);
+    // the length separates ("x", 0) from ("x", 0, 0)
+    return mix64(h + path.length);
+  }
+
+  /** The finalizer of SplitMix64 (variant 13 of Stafford's MurmurHash3 mixers) */
+  static long mix64(long z) {
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+
+  @Override
+  public String toString() {
+    return "RandomStreams(" + seed + ")";
+  }
+
+  /** A Random whose bits come from SplitMix64 rather than the linear congruential generator of Random */
+  static class SplitMixRandom extends Random {
+    private static final long serialVersionUID = 1L;
+    private long state;
+
+    SplitMixRandom(long seed) {
+      state = seed;
+    }
+
+    @Override
+    public synchronized void setSeed(long seed) {
+      // also called by the constructor of Random, before state is initialized
+      state = seed;
+    }
+
+    @Override
+    protected int next(int bits) {
+      return (int) (nextLong() >>> (64 - bits));
+    }
+
+    @Override
+    public long nextLong() {
+      state += GOLDEN_GAMMA;
+      return mix64(state);
+    }
+  }
+}
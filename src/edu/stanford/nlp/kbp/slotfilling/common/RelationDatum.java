@@ -125,7 +125,7 @@ public class RelationDatum {
     String concatenatedLabel = bits[3];
     String [] labels = concatenatedLabel.split("\\|");
     if(labels.length > 1){
-      Log.finest("Found concatenated label: " + concatenatedLabel);
+      Log.finest("Found concatenated label: {}", concatenatedLabel);
     }
     if(labels.length == 1 && labels[0].equals(RelationMention.UNRELATED)) {
       // for negatives we set yPos to the empty set
@@ -9,9 +9,16 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 public class SlotsToNamedEntities {
+  /** Classes of entity types, as far as slot validity is concerned */
+  public static final int ENTITY_ORG = 0;
+  public static final int ENTITY_PER = 1;
+  public static final int ENTITY_OTHER = 2;
+
   /** Map from slot name to valid NE labels for this slot */
   private Map<String, SlotToNamedEntities> slots;
   /** All valid NE labels for the task */
@@ -20,6 +27,22 @@ public class SlotsToNamedEntities {
   private Set<String> validPOSPrefixes;
   /** Inverse index from NE labels to slots that accept them */
   private Map<String, Set<String>> neToSlots;
+
+  //
+  // the compiled schema: slot names and NE labels interned to small ints, built after the entries are read
+  //
+  private Map<String, Integer> slotIds;
+  private Map<String, Integer> neIds;
+  /** Bit n of slotNEMasks[slot] is set if the slot accepts NE label n */
+  private long [] slotNEMasks;
+  /** [entity class][slot]: true if entities of this class may have this slot */
+  private boolean [][] entityClassValidity;
+  /** Indexed by NE label id: true if the label is accepted by a date/person name/country name slot */
+  private boolean [] dateNEs;
+  private boolean [] personNEs;
+  private boolean [] countryNEs;
+  /** Class of each entity type seen so far; entity types are not known in advance */
+  private final Map<String, Integer> entityClasses = new ConcurrentHashMap<String, Integer>();
   
   public SlotsToNamedEntities(String path) throws IOException {
     this(new BufferedReader(new FileReader(path)));
@@ -40,24 +63,18 @@ public class SlotsToNamedEntities {
   }
   
   public boolean isNamedEntityForDateSlot(String ne) {
-    for(String slot: neToSlots.get(ne)){
-      if(KBPSlot.isDateSlot(slot)) return true;
-    }
-    return false;
+    int id = namedEntityId(ne);
+    return id >= 0 && dateNEs[id];
   }
   
   public boolean isNamedEntityForPersonSlot(String ne) {
-    for(String slot: neToSlots.get(ne)){
-      if(KBPSlot.isPersonNameSlot(slot)) return true;
-    }
-    return false;
+    int id = namedEntityId(ne);
+    return id >= 0 && personNEs[id];
   } 
   
   public boolean isNamedEntityForCountrySlot(String ne) {
-    for(String slot: neToSlots.get(ne)){
-      if(KBPSlot.isCountryNameSlot(slot)) return true;
-    }
-    return false;
+    int id = namedEntityId(ne);
+    return id >= 0 && countryNEs[id];
   }
   
   public void readEntries(BufferedReader reader) throws IOException {
@@ -90,6 +107,84 @@ public class SlotsToNamedEntities {
       }
     }
     reader.close();
+    compile();
+  }
+
+  /** Interns slots and NE labels, and precomputes the validity tables */
+  private void compile() {
+    slotIds = new HashMap<String, Integer>();
+    for(String slot: slots.keySet()) slotIds.put(slot, slotIds.size());
+    neIds = new HashMap<String, Integer>();
+    for(String ne: new TreeSet<String>(validNamedEntityLabels)) neIds.put(ne, neIds.size());
+    if(neIds.size() > Long.SIZE)
+      throw new RuntimeException("ERROR: at most " + Long.SIZE + " NE labels are supported, found " + neIds.size() + ": " + neIds.keySet());
+
+    slotNEMasks = new long[slotIds.size()];
+    entityClassValidity = new boolean[3][slotIds.size()];
+    for(Map.Entry<String, Integer> e: slotIds.entrySet()) {
+      String slot = e.getKey();
+      int id = e.getValue();
+      for(String ne: slots.get(slot).validNamedEntityLabels()) slotNEMasks[id] |= 1L << neIds.get(ne);
+      entityClassValidity[ENTITY_ORG][id] = ! slot.startsWith("per:");
+      entityClassValidity[ENTITY_PER][id] = ! slot.startsWith("org:");
+      entityClassValidity[ENTITY_OTHER][id] = ! slot.startsWith("per:") && ! slot.startsWith("org:");
+    }
+
+    dateNEs = new boolean[neIds.size()];
+    personNEs = new boolean[neIds.size()];
+    countryNEs = new boolean[neIds.size()];
+    for(Map.Entry<String, Integer> e: neIds.entrySet()) {
+      for(String slot: neToSlots.get(e.getKey())) {
+        if(KBPSlot.isDateSlot(slot)) dateNEs[e.getValue()] = true;
+        if(KBPSlot.isPersonNameSlot(slot)) personNEs[e.getValue()] = true;
+        if(KBPSlot.isCountryNameSlot(slot)) countryNEs[e.getValue()] = true;
+      }
+    }
+  }
+
+  /** Id of this slot in the compiled schema, or -1 if unknown */
+  public int slotId(String slotName) {
+    Integer id = slotIds.get(slotName);
+    return (id == null ? -1 : id);
+  }
+
+  /** Id of this NE label in the compiled schema, or -1 if no slot accepts it */
+  public int namedEntityId(String ne) {
+    Integer id = neIds.get(ne);
+    return (id == null ? -1 : id);
+  }
+
+  /** ENTITY_ORG, ENTITY_PER, or ENTITY_OTHER; the prefix checks run once per distinct entity type */
+  public int entityClass(String entityType) {
+    if(entityType == null) return ENTITY_OTHER;
+    Integer c = entityClasses.get(entityType);
+    if(c == null) {
+      if(entityType.startsWith("ENT:ORG") || entityType.startsWith("ORG")) c = ENTITY_ORG;
+      else if(entityType.startsWith("ENT:PER") || entityType.startsWith("PER")) c = ENTITY_PER;
+      else c = ENTITY_OTHER;
+      entityClasses.put(entityType, c);
+    }
+    return c;
+  }
+
+  /** True if the slot accepts the NE label; both are ids in the compiled schema */
+  public boolean acceptsNamedEntity(int slot, int ne) {
+    return ne >= 0 && (slotNEMasks[slot] & (1L << ne)) != 0;
+  }
+
+  public boolean acceptsNamedEntity(String slotName, String ne) {
+    int slot = slotId(slotName);
+    return slot >= 0 && acceptsNamedEntity(slot, namedEntityId(ne));
+  }
+
+  /** True if entities of this class may have this slot */
+  public boolean validForEntityClass(int slot, int entityClass) {
+    return entityClassValidity[entityClass][slot];
+  }
+
+  /** True if some NE label is accepted by both slots; both must be known */
+  public boolean shareNamedEntities(String slot1, String slot2) {
+    return (slotNEMasks[slotId(slot1)] & slotNEMasks[slotId(slot2)]) != 0;
   }
   
   public SlotToNamedEntities getSlotInfo(String slotName) { return slots.get(slotName); }
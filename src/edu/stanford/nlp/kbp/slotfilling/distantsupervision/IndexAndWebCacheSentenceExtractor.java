@@ -16,6 +16,7 @@ import edu.stanford.nlp.kbp.slotfilling.common.Log;
 import edu.stanford.nlp.kbp.slotfilling.common.Props;
 import edu.stanford.nlp.kbp.slotfilling.index.IndexExtractor;
 import edu.stanford.nlp.kbp.slotfilling.index.KBPAnnotationSerializer;
+import edu.stanford.nlp.kbp.slotfilling.index.SentenceCache;
 import edu.stanford.nlp.kbp.slotfilling.index.SentenceExtractor;
 import edu.stanford.nlp.kbp.slotfilling.index.IndexExtractor.ResultSortMode;
 import edu.stanford.nlp.ling.CoreAnnotations.SentencesAnnotation;
@@ -34,6 +35,9 @@ public class IndexAndWebCacheSentenceExtractor extends EntitySentenceExtractor {
   /** Web snippets are cached here; if null do NOT use web */
   private String webCacheDir;
 
+  /** Decoded cache files, shared with the other extractors; null if disabled */
+  private SentenceCache sentenceCache;
+
   /** Use known slots in the IR query? */
   boolean useKnownSlots;
 
@@ -90,6 +94,8 @@ public class IndexAndWebCacheSentenceExtractor extends EntitySentenceExtractor {
     }
     */
 
+    sentenceCache = SentenceCache.shared(props);
+
     try {
       kbpIndex = IndexExtractor.createIndexExtractors(sortMode, props);
     } catch (IOException e) {
@@ -111,12 +117,20 @@ public class IndexAndWebCacheSentenceExtractor extends EntitySentenceExtractor {
     Log.severe("CACHING: Saved " + sentences.size() + " sentences to cache file " + file.getAbsolutePath());
   }
 
-  private static List<CoreMap> loadCachedSentences(File file, int indexSentencesPerEntity) throws IOException, ClassCastException, ClassNotFoundException {
-    AnnotationSerializer ser = new KBPAnnotationSerializer(false, true);
-    InputStream is = new FileInputStream(file);
+  private List<CoreMap> loadCachedSentences(File file, int indexSentencesPerEntity) throws IOException, ClassCastException, ClassNotFoundException {
     Annotation corpus = null;
     try {
-      corpus = ser.load(is);
+      if (sentenceCache != null) {
+        corpus = sentenceCache.get(file.getAbsolutePath(), false, SentenceCache.fileLoader(file));
+      } else {
+        AnnotationSerializer ser = new KBPAnnotationSerializer(false, true);
+        InputStream is = new FileInputStream(file);
+        try {
+          corpus = ser.load(is);
+        } finally {
+          is.close();
+        }
+      }
     } catch (Exception e) {
       // TODO: handle this correctly. Fix saving/loading of annotations to/from
       // disk.
@@ -125,8 +139,7 @@ public class IndexAndWebCacheSentenceExtractor extends EntitySentenceExtractor {
       corpus = new Annotation("");
       corpus.set(SentencesAnnotation.class, new ArrayList<CoreMap>());
     }
-    is.close();
-    List<CoreMap> sents = corpus.get(SentencesAnnotation.class);
+    List<CoreMap> sents = (corpus != null ? corpus.get(SentencesAnnotation.class) : null);
     Log.severe("CACHING: Loaded " + (sents != null ? sents.size() : 0) + " sentences from cache file " + file.getAbsolutePath());
 
     // we may not want all the sentences cached => take the top N (assumes they
@@ -200,6 +213,7 @@ public class IndexAndWebCacheSentenceExtractor extends EntitySentenceExtractor {
       assert (indexSentences != null);
       myDir.mkdirs();
       saveSentencesToCache(myFile, indexSentences);
+      if (sentenceCache != null) sentenceCache.remove(myFile.getAbsolutePath());
     }
 
     List<CoreMap> webSentences = new ArrayList<CoreMap>();
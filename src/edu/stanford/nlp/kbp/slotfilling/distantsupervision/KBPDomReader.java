@@ -172,7 +172,7 @@ public class KBPDomReader extends DomReader {
     EntityType entType = null; 
     if(perEntityClasses.contains(entityClass.toLowerCase())){
       if(background != null && BANDS != null && BANDS.contains(background.toLowerCase())){
-        Log.fine("Found group_or_band: " + entityName);
+        Log.fine("Found group_or_band: {}", entityName);
       } else {
         entType = EntityType.PERSON;
       } 
@@ -214,8 +214,12 @@ public class KBPDomReader extends DomReader {
   }
   
   private Set<KBPSlot> extractAllRelations(String entityName, String entityId, Node filler, Set<String> relations) {
-    StringBuffer os = new StringBuffer();
-    os.append(entityName + "\t" + relations + "\t" + getTextWithLinks(filler));
+    // the trace below is built only if it is logged
+    StringBuffer os = null;
+    if (Log.isFine()) {
+      os = new StringBuffer();
+      os.append(entityName + "\t" + relations + "\t" + getTextWithLinks(filler));
+    }
     
     Set<KBPSlot> result = new HashSet<KBPSlot>();
     
@@ -252,9 +256,11 @@ public class KBPDomReader extends DomReader {
       result.addAll(extractAmbiguousRelations(entityName, entityId, fillerName, relations));
     }
     
-    for (KBPSlot mention : result)
-      os.append(", " + mention.slotName + "\t" + mention.slotValue);
-    Log.fine(os.toString());
+    if (os != null) {
+      for (KBPSlot mention : result)
+        os.append(", " + mention.slotName + "\t" + mention.slotValue);
+      Log.fine(os.toString());
+    }
     
     return result;
   }
@@ -36,6 +36,7 @@ import edu.stanford.nlp.io.IOUtils;
 import edu.stanford.nlp.kbp.slotfilling.FeatureFactory;
 import edu.stanford.nlp.kbp.slotfilling.KBPTemporal;
 import edu.stanford.nlp.kbp.slotfilling.MentionCompatibility;
+import edu.stanford.nlp.kbp.slotfilling.SentenceFeatureContext;
 import edu.stanford.nlp.kbp.slotfilling.SlotValidity;
 import edu.stanford.nlp.kbp.slotfilling.common.KBPAnnotations.SlotMentionsAnnotation;
 import edu.stanford.nlp.kbp.slotfilling.common.KBPAnnotations.SourceIndexAnnotation;
@@ -387,7 +388,7 @@ public class KBPReader extends GenericDataSetReader {
     List<KBPEntity> mentions = TaskXMLParser.parseQueryFile(fn);
     for (KBPEntity em : mentions) {
       map.put(em, new ArrayList<KBPSlot>());
-      Log.info("Loaded KBP entity: " + em);
+      Log.info("Loaded KBP entity: {}", em);
     }
     Log.severe("Found " + map.keySet().size() + " entity queries.");
     return map;
@@ -553,8 +554,11 @@ public class KBPReader extends GenericDataSetReader {
       logger.severe("valid doc ids are null! Not to worry if you are not running KBP temporal diagnostic task");
     else
       logger.severe(("valid doc ids are " + StringUtils.join(validDocIds, ";")));
+    long retrievalStart = Metrics.start();
     List<CoreMap> sentences = sentenceExtractor.findSentences(entity, knownSlotsAsKeywords, sourceFile, testMode,
         validDocIds);
+    Metrics.stop("retrieval.sentences", retrievalStart);
+    Metrics.add("retrieval.sentences.count", sentences.size());
 
     logger.fine("Found " + sentences.size() + " sentences containing entity " + entity);
     entToSentHistogram.incrementCount(sentences.size() < 100 ? sentences.size() : 100);
@@ -566,7 +570,9 @@ public class KBPReader extends GenericDataSetReader {
     //
     for (CoreMap sentence : sentences)
       logger.finest("Sentence before onlineNER: " + Utils.sentenceToString(sentence));
+    long nerStart = Metrics.start();
     onlineNer(sentences);
+    Metrics.stop("ner.online", nerStart);
     for (CoreMap sentence : sentences)
       logger.finest("Sentence after onlineNER: " + Utils.sentenceToString(sentence));
 
@@ -1034,15 +1040,10 @@ public class KBPReader extends GenericDataSetReader {
         // logger.severe("\n\n timex info is " + dateValue + " \n\n");
       }
 
-      for (List<CoreMap> timeCluster : timeClusters) {
-
-        List<TemporalWithSpan> slotV = KBPTemporal.getSlotValues(timeCluster, document
-            .get(CoreAnnotations.TokensAnnotation.class));
-        if (slotV != null && slotV.size() > 0) slotsValues.addAll(slotV);
-
-        // todo: see NormalizedNamedEntityTagAnnotation
-
-      }
+      // all time clusters of this document in one pass
+      slotsValues.addAll(KBPTemporal.getDocumentSlotValues(timeClusters, document
+          .get(CoreAnnotations.TokensAnnotation.class)));
+      // todo: see NormalizedNamedEntityTagAnnotation
 
       // when no temporal expressions are present, add temporal values as (null,
       // docDate, docDate, null) if the sentence doesn't contain any past tense
@@ -1443,18 +1444,20 @@ public class KBPReader extends GenericDataSetReader {
     }
 
     // mode: running train/test over the KB entities
+    int candidateNE = (matchSlotNE ? slotsToNamedEntities.namedEntityId(candidate.getType()) : -1);
     for (KBPSlot slot : knownSlots) {
       String slotType = slot.slotName;
-      Set<String> validNEs = null;
+      int slotId = -1;
       if (matchSlotNE) {
         // System.err.println("slotsToNamedEntities contains info on the following slots: "
         // + slotsToNamedEntities.keySet());
         // System.err.println("slotType is " + slotType);
 
-        validNEs = slotsToNamedEntities.getSlotInfo(slotType).validNamedEntityLabels();
-        if (validNEs == null) throw new RuntimeException("ERROR: cannot find valid NEs for relation " + slotType);
+        slotId = slotsToNamedEntities.slotId(slotType);
+        if (slotId < 0) throw new RuntimeException("ERROR: cannot find valid NEs for relation " + slotType);
       }
-      if (!matchSlotNE || !enforceNeInTraining || validNEs.contains(candidate.getType())) {
+      if (!matchSlotNE || !enforceNeInTraining ||
+          slotsToNamedEntities.acceptsNamedEntity(slotId, candidateNE)) {
         if (Constants.EXACT_SLOT_MATCH) {
           if (slotMatchesExactly(candidate, slot, sentence)) {
             addType(matchingTypes, slot.slotValue, slotType);
@@ -1837,9 +1840,11 @@ public class KBPReader extends GenericDataSetReader {
 
     for (CoreMap sentence : corpus.get(SentencesAnnotation.class)) {
       List<RelationMention> relationMentions = sentence.get(MachineReadingAnnotations.RelationMentionsAnnotation.class);
-      if (relationMentions != null) {
+      if (relationMentions != null && ! relationMentions.isEmpty()) {
+        // all mentions of this sentence share its syntactic information
+        SentenceFeatureContext context = rff.createContext(sentence);
         for (RelationMention rel : relationMentions) {
-          Datum<String, String> d = rff.createDatum(rel);
+          Datum<String, String> d = rff.createDatum(rel, context);
 
           if (domainAdaptation) {
             CoreMap sent = rel.getSentence();
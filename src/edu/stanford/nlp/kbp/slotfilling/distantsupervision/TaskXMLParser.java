@@ -103,7 +103,7 @@ public class TaskXMLParser extends KbpXmlHandler {
                                    mentions.size());
       currentMention = new KBPEntity();
       String id = attributes.getValue(ID_ATTRIBUTE);
-      Log.fine("Query ID is " + id);
+      Log.fine("Query ID is {}", id);
       if (id == null) 
         throw new SAXException("Query #" + (mentions.size() + 1) + 
                                " has no id, " +
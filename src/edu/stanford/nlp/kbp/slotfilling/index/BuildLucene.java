@@ -27,15 +27,26 @@ public class BuildLucene extends KBPFileProcessor {
     this(new SimpleFSDirectory(new File(indexDir)));
   }
 
-  @SuppressWarnings("deprecation")
   public BuildLucene(Directory directory) 
     throws IOException
+  {
+    this(directory, true, IndexWriter.DEFAULT_RAM_BUFFER_SIZE_MB);
+  }
+
+  /**
+   * @param create If false, documents are added to the index already in directory
+   * @param ramBufferMB Memory used to buffer documents before they are flushed to directory
+   */
+  @SuppressWarnings("deprecation")
+  public BuildLucene(Directory directory, boolean create, double ramBufferMB) 
+    throws IOException
   {
     super();
 
     writer = new IndexWriter(directory,
                              new StandardAnalyzer(Version.LUCENE_CURRENT), 
-                             true, IndexWriter.MaxFieldLength.LIMITED);
+                             create, IndexWriter.MaxFieldLength.LIMITED);
+    writer.setRAMBufferSizeMB(ramBufferMB);
   }
 
   /**
@@ -18,19 +18,21 @@ import org.apache.lucene.store.SimpleFSDirectory;
 import edu.stanford.nlp.kbp.slotfilling.common.AntecedentGenerator;
 import edu.stanford.nlp.kbp.slotfilling.common.EntityType;
 import edu.stanford.nlp.kbp.slotfilling.common.Log;
+import edu.stanford.nlp.kbp.slotfilling.common.Metrics;
 import edu.stanford.nlp.kbp.slotfilling.common.KBPAnnotations.SourceIndexDocIDAnnotation;
 import edu.stanford.nlp.ling.CoreAnnotations.SentencesAnnotation;
 import edu.stanford.nlp.pipeline.Annotation;
 import edu.stanford.nlp.util.CoreMap;
-import edu.stanford.nlp.util.Timing;
 
 public class CachedIndexExtractor extends IndexExtractor {
-  long totalExtractTime = 0;
-  long totalProcessingTime = 0;
+  final Metrics.Timer extractTime = new Metrics.Timer();
+  final Metrics.Timer processingTime = new Metrics.Timer();
 
   static final String EXTRA_RESULTS_PROPERTY = "index.extraresults.factor";
   static final String EXTRA_RESULTS_DEFAULT = "1.0";
   final double extraResultsFactor;
+  /** Decoded documents, shared with the other extractors; null if disabled */
+  final SentenceCache sentenceCache;
 
   public CachedIndexExtractor(String indexDir, ResultSortMode sortMode, Properties pipelineProperties) throws IOException {
     this(new SimpleFSDirectory(new File(indexDir)), sortMode, pipelineProperties);
@@ -43,6 +45,7 @@ public class CachedIndexExtractor extends IndexExtractor {
   public CachedIndexExtractor(Directory directory, ResultSortMode sortMode, Properties pipelineProperties) throws IOException {
     super(directory, sortMode, pipelineProperties);
     extraResultsFactor = Double.parseDouble(pipelineProperties.getProperty(EXTRA_RESULTS_PROPERTY, EXTRA_RESULTS_DEFAULT));
+    sentenceCache = SentenceCache.shared(pipelineProperties);
   }
 
   List<CoreMap> findRelevantSentences(List<Integer> docIds, String entityName, EntityType entityType, Set<String> slotKeywords, int numResults, Set<String> validDocIds) {
@@ -51,19 +54,24 @@ public class CachedIndexExtractor extends IndexExtractor {
     int docCount = 0;
     Set<String> seenDocIDs = new HashSet<String>();
     for (Integer luceneDocId : docIds) {
+      // cancelled, e.g., by a ConcurrentCombinationExtractor that has enough sentences
+      if (Thread.currentThread().isInterrupted()) break;
 
       if (relevantSentences.size() >= numResults || (validDocIds != null && seenDocIDs.equals(validDocIds)))
         break;
 
       Document doc = fetchDocument(luceneDocId);
 
-      Log.fine("Starting doc " + docCount);
+      if (Log.isFine()) Log.fine("Starting doc " + docCount);
 
-      Timing extractTimer = new Timing();
-      extractTimer.start();
+      long extractStart = System.nanoTime();
       Annotation annotatedText = null;
       try {
-        annotatedText = LucenePipelineCacher.getAnnotationFromDoc(doc);
+        // docids are only unique within an index, so documents of unnamed indices are not cached
+        if (sentenceCache != null && getSource() != null)
+          annotatedText = LucenePipelineCacher.getAnnotationFromDoc(doc, sentenceCache, getSource() + "#" + luceneDocId);
+        else
+          annotatedText = LucenePipelineCacher.getAnnotationFromDoc(doc);
       } catch (Exception e) {
         // throw new RuntimeException(e);
         // we do throw exceptions on some really uncommon and weird texts. Let's
@@ -72,7 +80,9 @@ public class CachedIndexExtractor extends IndexExtractor {
         Log.fine("WARNING: failed to read annotation from index due to exception below. Continuing...");
         e.printStackTrace();
       }
-      totalExtractTime += extractTimer.stop();
+      long extractNanos = System.nanoTime() - extractStart;
+      extractTime.record(extractNanos);
+      Metrics.record("retrieval.cache.deserialize", extractNanos);
 
       Field docId = doc.getField(docIdField());
 
@@ -89,13 +99,12 @@ public class CachedIndexExtractor extends IndexExtractor {
       }
       if (annotatedText == null) {
         String docIdText = (docId != null ? (" (" + docId.stringValue() + ")") : " (unknown docid)");
-        Log.fine("Doc " + docCount + docIdText + " did not have an annotation; ignoring");
+        if (Log.isFine()) Log.fine("Doc " + docCount + docIdText + " did not have an annotation; ignoring");
         ++docCount;
         continue;
       }
 
-      Timing processTime = new Timing();
-      processTime.start();
+      long processStart = System.nanoTime();
       AntecedentGenerator antGen = new AntecedentGenerator(entityName, maxSentenceLength);
       List<CoreMap> sentences = annotatedText.get(SentencesAnnotation.class);
       // this find antecedents for all tokens in annotatedTokens,
@@ -113,10 +122,12 @@ public class CachedIndexExtractor extends IndexExtractor {
         if (relevantSentences.size() >= numResults * extraResultsFactor)
           break;
       }
-      totalProcessingTime += processTime.stop();
+      long processNanos = System.nanoTime() - processStart;
+      processingTime.record(processNanos);
+      Metrics.record("retrieval.cache.process", processNanos);
 
       if (failedDocCount > 0) {
-        Log.fine("Retrieval failed on " + failedDocCount + " out of " + docCount + " documents for entity " + entityName);
+        if (Log.isFine()) Log.fine("Retrieval failed on " + failedDocCount + " out of " + docCount + " documents for entity " + entityName);
       }
       Log.fine("================================");
       ++docCount;
@@ -136,8 +147,8 @@ public class CachedIndexExtractor extends IndexExtractor {
     StringBuilder time = new StringBuilder();
     time.append(luceneTime());
     time.append("\n");
-    time.append("Total time spent extracting the annotations: " + totalExtractTime / 1000 + "." + totalExtractTime % 1000 + "s\n");
-    time.append("Total time spent processing: " + totalProcessingTime / 1000 + "." + totalProcessingTime % 1000 + "s\n");
+    time.append("Total time spent extracting the annotations: " + seconds(extractTime.totalNanos()) + "s\n");
+    time.append("Total time spent processing: " + seconds(processingTime.totalNanos()) + "s\n");
     return time.toString();
   }
 
@@ -47,8 +47,7 @@ public class CombinationExtractor implements SentenceExtractor {
         // more expensive.  Another solution would be to pass around
         // the set of already-known sentences.  That's not a very
         // happy solution either, though.
-        String sentence = Utils.sentenceToString(result, true, false, false,
-                                                 false, false, false, false);
+        String sentence = sentenceKey(result);
         if (!uniqueSentences.contains(sentence)) {
           uniqueSentences.add(sentence);
           results.add(result);
@@ -64,6 +63,12 @@ public class CombinationExtractor implements SentenceExtractor {
     return results;
   }
 
+  /** The content of the sentence, which identifies duplicates across subextractors */
+  static String sentenceKey(CoreMap sentence) {
+    return Utils.sentenceToString(sentence, true, false, false,
+                                  false, false, false, false);
+  }
+
   public String timingInformation() {
     StringBuilder timing = new StringBuilder();
     for (int i = 0; i < subextractors.length; ++i) {
@@ -0,0 +1,177 @@
+package edu.stanford.nlp.kbp.slotfilling.index;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import edu.stanford.nlp.kbp.slotfilling.common.EntityType;
+import edu.stanford.nlp.kbp.slotfilling.common.Log;
+import edu.stanford.nlp.kbp.slotfilling.common.Metrics;
+import edu.stanford.nlp.kbp.slotfilling.common.Props;
+import edu.stanford.nlp.util.CoreMap;
+import edu.stanford.nlp.util.Pair;
+
+/**
+ * Combines the results of several SentenceExtractors, like CombinationExtractor, but queries all of them at once.
+ * The results are merged in the order of the subextractors (their priority), without duplicate sentences, so they are
+ *   those of CombinationExtractor as long as each subextractor ranks its sentences the same way for any n.
+ * Each subextractor returns at most its quota of sentences (index.combination.quotas; n by default), and is dropped if it
+ *   has not answered within its timeout (index.combination.timeouts, in milliseconds; none by default).
+ *   Both properties are comma-separated lists, one value per subextractor, or a single value for all.
+ * Once the merged results have n sentences, the lower-priority subextractors that are still running are interrupted.
+ * Each subextractor runs on its own thread, one query at a time, since the extractors (and their pipelines) are not
+ *   thread safe. Interrupting does not stop a pipeline in the middle of a document, so a subextractor that timed out may
+ *   still be running when the next query comes; it is skipped until it finishes.
+ */
+public class ConcurrentCombinationExtractor extends CombinationExtractor {
+  final int [] quotas;
+  final long [] timeouts;
+  /** One thread per subextractor */
+  final ExecutorService [] threadPools;
+  /**
+   * Per subextractor, whether the query abandoned after its last timeout is still running; guarded by this.
+   * Its Future cannot tell: a cancelled Future is done, although cancel does not stop the pipeline.
+   */
+  private final AtomicBoolean [] abandoned;
+
+  public ConcurrentCombinationExtractor(Properties props, SentenceExtractor ... subextractors) {
+    super(subextractors);
+    quotas = new int[subextractors.length];
+    timeouts = new long[subextractors.length];
+    String [] q = perExtractor(props.getProperty(Props.INDEX_COMBINATION_QUOTAS), subextractors.length);
+    String [] t = perExtractor(props.getProperty(Props.INDEX_COMBINATION_TIMEOUTS), subextractors.length);
+    for (int i = 0; i < subextractors.length; ++i) {
+      quotas[i] = (q != null ? Integer.parseInt(q[i]) : Integer.MAX_VALUE);
+      timeouts[i] = (t != null ? Long.parseLong(t[i]) : 0);
+    }
+    // the threads do not keep the JVM alive, since nobody shuts these pools down
+    ThreadFactory daemons = new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "combination-extractor");
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+    threadPools = new ExecutorService[subextractors.length];
+    for (int i = 0; i < subextractors.length; ++i) threadPools[i] = Executors.newSingleThreadExecutor(daemons);
+    abandoned = new AtomicBoolean[subextractors.length];
+    Log.severe("Querying " + subextractors.length + " subextractors concurrently, with quotas " + (q != null ? props.getProperty(Props.INDEX_COMBINATION_QUOTAS) : "n") +
+        " and timeouts " + (t != null ? props.getProperty(Props.INDEX_COMBINATION_TIMEOUTS) + " ms" : "none"));
+  }
+
+  private static String [] perExtractor(String value, int count) {
+    if (value == null) return null;
+    String [] values = value.trim().split("\\s*,\\s*");
+    if (values.length == 1) {
+      String [] all = new String[count];
+      for (int i = 0; i < count; ++i) all[i] = values[0];
+      return all;
+    }
+    if (values.length != count)
+      throw new RuntimeException("ERROR: expected 1 or " + count + " values, one per subextractor, but got " + value);
+    return values;
+  }
+
+  @Override
+  public List<CoreMap> findRelevantSentences(final String entityName, final EntityType entityType,
+                                             final Set<String> slotKeywords, int n, final Set<String> validDocIds) {
+    List<Future<List<Pair<CoreMap, String>>>> futures = new ArrayList<Future<List<Pair<CoreMap, String>>>>();
+    List<AtomicBoolean> running = new ArrayList<AtomicBoolean>();
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < subextractors.length; ++i) {
+      if (isBusy(i)) {
+        Log.severe("WARNING: subextractor " + i + " is still running a query that timed out; skipping it for entity " + entityName);
+        Metrics.increment("retrieval.combination.busy");
+        futures.add(null);
+        running.add(null);
+        continue;
+      }
+      final SentenceExtractor extractor = subextractors[i];
+      final int needed = Math.min(n, quotas[i]);
+      // false until the query starts, and once it ends; a query cancelled before it starts never runs
+      final AtomicBoolean isRunning = new AtomicBoolean(false);
+      running.add(isRunning);
+      futures.add(threadPools[i].submit(new Callable<List<Pair<CoreMap, String>>>() {
+        public List<Pair<CoreMap, String>> call() {
+          isRunning.set(true);
+          try {
+            List<CoreMap> sentences = extractor.findRelevantSentences(entityName, entityType, slotKeywords, needed, validDocIds);
+            // the keys for deduplication are computed here, in parallel
+            List<Pair<CoreMap, String>> keyed = new ArrayList<Pair<CoreMap, String>>(sentences.size());
+            for (CoreMap sentence : sentences) {
+              keyed.add(new Pair<CoreMap, String>(sentence, sentenceKey(sentence)));
+            }
+            return keyed;
+          } finally {
+            isRunning.set(false);
+          }
+        }
+      }));
+    }
+
+    HashSet<String> uniqueSentences = new HashSet<String>();
+    List<CoreMap> results = new ArrayList<CoreMap>();
+    try {
+      for (int i = 0; i < subextractors.length && results.size() < n; ++i) {
+        if (futures.get(i) == null) continue;
+        List<Pair<CoreMap, String>> newResults;
+        try {
+          if (timeouts[i] > 0) {
+            long wait = start + timeouts[i] - System.currentTimeMillis();
+            newResults = futures.get(i).get(Math.max(wait, 0), TimeUnit.MILLISECONDS);
+          } else {
+            newResults = futures.get(i).get();
+          }
+        } catch (TimeoutException e) {
+          Log.severe("WARNING: subextractor " + i + " did not answer within " + timeouts[i] + " ms for entity " + entityName + "; skipping it");
+          Metrics.increment("retrieval.combination.timeouts");
+          setAbandoned(i, running.get(i));
+          continue;
+        }
+        int added = 0;
+        for (Pair<CoreMap, String> result : newResults) {
+          if (results.size() == n || added == quotas[i]) break;
+          if (uniqueSentences.add(result.second())) {
+            results.add(result.first());
+            added ++;
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    } finally {
+      // interrupts the subextractors that are not needed any more (or timed out)
+      for (Future<List<Pair<CoreMap, String>>> f : futures) {
+        if (f != null && f.cancel(true)) Metrics.increment("retrieval.combination.cancelled");
+      }
+    }
+    return results;
+  }
+
+  /** True if the last query abandoned by subextractor i is still running */
+  private synchronized boolean isBusy(int i) {
+    if (abandoned[i] == null) return false;
+    if (abandoned[i].get()) return true;
+    abandoned[i] = null;
+    return false;
+  }
+
+  private synchronized void setAbandoned(int i, AtomicBoolean isRunning) {
+    abandoned[i] = isRunning;
+  }
+
+}
@@ -0,0 +1,141 @@
+package edu.stanford.nlp.kbp.slotfilling.index;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.stanford.nlp.kbp.slotfilling.common.Log;
+
+/**
+ * Bounded LRU cache of docid lookups, keyed by the normalized (name, slot value) pair.
+ * Misses are cached as well, so a pair that has no document in the index is searched only once.
+ * The cache can be saved to and loaded from a tab-separated file, so that it survives between runs
+ *   (tuning, testing, and model combination all ask for the same pairs).
+ * All public methods are thread safe.
+ */
+public class DocidCache {
+  /** Marks a pair for which the index contains no matching document */
+  public static final String NOT_FOUND = "<NONE>";
+
+  /** One cache per index path, shared by all DocidFinders in this JVM */
+  private static final Map<String, DocidCache> sharedCaches = new HashMap<String, DocidCache>();
+
+  private final LinkedHashMap<String, String> cache;
+  private final int maxSize;
+  private final String fileName;
+  private boolean modified = false;
+  private int hits = 0;
+  private int misses = 0;
+
+  public DocidCache(final int maxSize, String fileName) {
+    this.maxSize = maxSize;
+    this.fileName = fileName;
+    // access order, so iteration (and eviction) goes from least to most recently used
+    this.cache = new LinkedHashMap<String, String>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+        return size() > DocidCache.this.maxSize;
+      }
+    };
+    if(fileName != null && new File(fileName).exists()) {
+      try {
+        load(fileName);
+      } catch(IOException e) {
+        Log.severe("Could not read docid cache from " + fileName + ": " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Returns the cache for this index, creating it the first time it is requested
+   * @param indexPath The index the docids come from
+   * @param maxSize Maximum number of pairs kept in memory
+   * @param fileName File where the cache is persisted; null if no persistence is desired
+   */
+  public static synchronized DocidCache forIndex(String indexPath, int maxSize, String fileName) {
+    DocidCache c = sharedCaches.get(indexPath);
+    if(c == null) {
+      c = new DocidCache(maxSize, fileName);
+      sharedCaches.put(indexPath, c);
+    }
+    return c;
+  }
+
+  /** The key uses the same normalization as the docid queries, so all pairs that produce the same query share an entry */
+  public static String makeKey(String name, String slotValue) {
+    return normalize(name) + "\t" + normalize(slotValue);
+  }
+
+  private static String normalize(String s) {
+    // tabs and new lines would break the file format
+    return QueryUtils.rewriteQueryTerm(s).replaceAll("[\t\n\r]", " ");
+  }
+
+  /**
+   * Returns the cached docid for this key, NOT_FOUND if the index has no document for it, or null if it is not cached.
+   * This is the one lookup method, so it also keeps the hit and miss counts.
+   */
+  public synchronized String lookup(String key) {
+    String docid = cache.get(key);
+    if(docid == null) misses ++;
+    else hits ++;
+    return docid;
+  }
+
+  public synchronized void put(String key, String docid) {
+    cache.put(key, (docid != null ? docid : NOT_FOUND));
+    modified = true;
+  }
+
+  public synchronized int size() { return cache.size(); }
+  public synchronized int hits() { return hits; }
+  public synchronized int misses() { return misses; }
+
+  private void load(String fn) throws IOException {
+    BufferedReader is = new BufferedReader(new FileReader(fn));
+    int count = 0;
+    for(String line; (line = is.readLine()) != null; ){
+      String [] bits = line.split("\t");
+      if(bits.length != 3) {
+        Log.severe("Skipping invalid line in docid cache " + fn + ": " + line);
+        continue;
+      }
+      cache.put(bits[0] + "\t" + bits[1], bits[2]);
+      count ++;
+    }
+    is.close();
+    Log.severe("Loaded " + count + " docid lookups from cache " + fn);
+  }
+
+  /** Saves the cache in its file, if persistence is enabled and something changed since the last save */
+  public synchronized void save() throws IOException {
+    if(fileName == null || ! modified) return;
+    List<Map.Entry<String, String>> entries = new ArrayList<Map.Entry<String,String>>(cache.entrySet());
+    // write to a temporary file first, so a crash does not leave behind a truncated cache
+    // the name is unique, so other processes saving the same cache do not write into it
+    File out = new File(fileName);
+    File tmp = File.createTempFile(out.getName(), ".tmp", out.getAbsoluteFile().getParentFile());
+    PrintStream os = new PrintStream(new FileOutputStream(tmp));
+    for(Map.Entry<String, String> entry: entries) {
+      os.println(entry.getKey() + "\t" + entry.getValue());
+    }
+    os.close();
+    if(out.exists() && ! out.delete())
+      throw new IOException("ERROR: cannot overwrite docid cache " + fileName);
+    if(! tmp.renameTo(out))
+      throw new IOException("ERROR: cannot create docid cache " + fileName);
+    modified = false;
+    Log.severe("Saved " + entries.size() + " docid lookups to cache " + fileName +
+        " (hits: " + hits + ", misses: " + misses + ")");
+  }
+}
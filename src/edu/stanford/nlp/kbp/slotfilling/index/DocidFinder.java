@@ -3,13 +3,21 @@ package edu.stanford.nlp.kbp.slotfilling.index;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
@@ -24,22 +32,38 @@ import org.apache.lucene.store.SimpleFSDirectory;
 import org.apache.lucene.util.Version;
 
 import edu.stanford.nlp.kbp.slotfilling.common.Log;
+import edu.stanford.nlp.kbp.slotfilling.common.Metrics;
+import edu.stanford.nlp.kbp.slotfilling.common.Props;
 import edu.stanford.nlp.kbp.slotfilling.common.StringFinder;
 import edu.stanford.nlp.ling.CoreAnnotations.SentencesAnnotation;
 import edu.stanford.nlp.pipeline.Annotation;
 import edu.stanford.nlp.util.CoreMap;
 import edu.stanford.nlp.util.Pair;
+import edu.stanford.nlp.util.PropertiesUtils;
 
 public class DocidFinder {
   static public final int DOCID_QUERY_SIZE = 100;
 
   static public final String OFFICIAL_INDEX_PROPERTY = "index.official";
 
+  static public final int DEFAULT_DOCID_CACHE_SIZE = 100000;
+
+  static public final int DEFAULT_DOCID_THREADS = 4;
+
   final IndexSearcher searcher;
   final Set<String> stopWords;
 
   final QueryParser queryParser;
 
+  /** Memoizes findBestDocid; null if caching is disabled */
+  DocidCache cache = null;
+
+  /** How many queries findBestDocids runs concurrently */
+  int threads = 1;
+
+  /** Runs the concurrent lookups of findBestDocids; null if threads <= 1 */
+  ExecutorService threadPool = null;
+
   String source = null;
   public String getSource() { return source; }
   
@@ -50,6 +74,35 @@ public class DocidFinder {
     source = indexDir;
   }
 
+  /**
+   * Same as above, but also enables the docid cache and concurrent batch lookups, as configured in props
+   */
+  public DocidFinder(String indexDir, Properties props)
+    throws IOException
+  {
+    this(indexDir);
+    int cacheSize = PropertiesUtils.getInt(props, Props.DOCID_CACHE_SIZE, DEFAULT_DOCID_CACHE_SIZE);
+    if (cacheSize > 0) {
+      cache = DocidCache.forIndex(indexDir, cacheSize, props.getProperty(Props.DOCID_CACHE_FILE));
+    }
+    threads = PropertiesUtils.getInt(props, Props.DOCID_THREADS, DEFAULT_DOCID_THREADS);
+    if (threads > 1) {
+      // daemon threads, since the finder has no close() that could shut the pool down
+      threadPool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "docid-finder");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+  }
+
+  /** True if the results of findBestDocid(s) are cached, so looking them up again is cheap */
+  public boolean isCaching() {
+    return cache != null;
+  }
+
   public DocidFinder(Directory directory) 
     throws IOException
   {
@@ -107,15 +160,79 @@ public class DocidFinder {
   }
 
   public String findBestDocid(String name, String slotValue) {
+    String key = null;
+    if (cache != null) {
+      key = DocidCache.makeKey(name, slotValue);
+      String cached = cache.lookup(key);
+      if (cached != null) {
+        Metrics.increment("docid.cache.hits");
+        return (cached.equals(DocidCache.NOT_FOUND) ? null : cached);
+      }
+      Metrics.increment("docid.cache.misses");
+    }
+
+    long start = Metrics.start();
     String docid = findBestDocidExactStrings(name, slotValue);
-    if (docid != null)
-      return docid;
+    Metrics.stop("docid.search", start);
 
     // this seems to hurt precision too much for the benefit it gives
     // recall
-    //return findBestDocidInexactStrings(name, slotValue);
+    //if (docid == null)
+    //  docid = findBestDocidInexactStrings(name, slotValue);
 
-    return null;
+    if (cache != null) {
+      cache.put(key, docid);
+    }
+    return docid;
+  }
+
+  /**
+   * Finds the best docids for all slot values of the same entity.
+   * Lookups that are not cached run concurrently against the shared searcher
+   *   (IndexSearcher is thread safe).
+   * @return Map from slot value to docid; the docid is null if nothing was found
+   */
+  public Map<String, String> findBestDocids(final String name, Collection<String> slotValues) {
+    Map<String, String> docids = new HashMap<String, String>();
+    if (threadPool == null || slotValues.size() <= 1) {
+      for (String slotValue : slotValues) {
+        docids.put(slotValue, findBestDocid(name, slotValue));
+      }
+      return docids;
+    }
+
+    Map<String, Future<String>> futures = new HashMap<String, Future<String>>();
+    try {
+      for (final String slotValue : slotValues) {
+        if (futures.containsKey(slotValue)) continue;
+        futures.put(slotValue, threadPool.submit(new Callable<String>() {
+          public String call() {
+            return findBestDocid(name, slotValue);
+          }
+        }));
+      }
+      for (Map.Entry<String, Future<String>> entry : futures.entrySet()) {
+        docids.put(entry.getKey(), entry.getValue().get());
+      }
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    } finally {
+      // the pool is shared by all calls, so only this call's leftover lookups are stopped
+      for (Future<String> f : futures.values()) f.cancel(true);
+    }
+    return docids;
+  }
+
+  /** Persists the docid cache, if caching and persistence are enabled */
+  public void saveCache() {
+    if (cache == null) return;
+    try {
+      cache.save();
+    } catch (IOException e) {
+      Log.severe("Could not save docid cache: " + e.getMessage());
+    }
   }
 
   public String findBestDocidInexactStrings(String name, String slotValue) {
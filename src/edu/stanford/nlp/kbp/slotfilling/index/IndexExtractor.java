@@ -26,6 +26,8 @@ import edu.stanford.nlp.kbp.slotfilling.common.Constants;
 import edu.stanford.nlp.kbp.slotfilling.common.EntityType;
 import edu.stanford.nlp.kbp.slotfilling.common.KBPSlot;
 import edu.stanford.nlp.kbp.slotfilling.common.Log;
+import edu.stanford.nlp.kbp.slotfilling.common.Metrics;
+import edu.stanford.nlp.kbp.slotfilling.common.Props;
 import edu.stanford.nlp.kbp.slotfilling.common.StringFinder;
 import edu.stanford.nlp.kbp.slotfilling.common.Utils;
 import edu.stanford.nlp.kbp.slotfilling.common.KBPAnnotations.DatetimeAnnotation;
@@ -37,7 +39,6 @@ import edu.stanford.nlp.ling.CoreAnnotations.NamedEntityTagAnnotation;
 import edu.stanford.nlp.ling.CoreAnnotations.TokensAnnotation;
 import edu.stanford.nlp.util.CoreMap;
 import edu.stanford.nlp.util.StringUtils;
-import edu.stanford.nlp.util.Timing;
 
 /**
  * IndexExtractor
@@ -103,9 +104,9 @@ public abstract class IndexExtractor implements SentenceExtractor {
 
   ResultSortMode sortMode;
 
-  long totalLuceneTime = 0;
-  long totalQueryTime = 0;
-  long totalFetchTime = 0;
+  /** Lucene time spent by this extractor; also aggregated over all extractors in the global Metrics */
+  final Metrics.Timer queryTime = new Metrics.Timer();
+  final Metrics.Timer fetchTime = new Metrics.Timer();
 
   /**
    * How many sentences before or after the chosen sentence to use when
@@ -140,6 +141,8 @@ public abstract class IndexExtractor implements SentenceExtractor {
         Log.severe("Creating index extractor on: " + directories[i]);
         extractors[i] = createIndexExtractor(directories[i], sortMode, pipelineProperties);
       }
+      if (Boolean.valueOf(pipelineProperties.getProperty(Props.INDEX_COMBINATION_CONCURRENT, "false")))
+        return new ConcurrentCombinationExtractor(pipelineProperties, extractors);
       return new CombinationExtractor(extractors);
     }
   }
@@ -227,12 +230,12 @@ public abstract class IndexExtractor implements SentenceExtractor {
   // validocIds should be null if you don't want to restrict the documents from
   // which the information should be extracted
   public List<CoreMap> findRelevantSentences(String entityName, EntityType entityType, Set<String> slotKeywords, int n, Set<String> validDocIds) {
-    Log.fine("QUERY entity: " + entityName + " and slots: " + slotKeywords);
+    Log.fine("QUERY entity: {} and slots: {}", entityName, slotKeywords);
 
-    Log.finest("Looking for " + DOC_MULTIPLIER * n + " docs");
+    if (Log.isFinest()) Log.finest("Looking for " + DOC_MULTIPLIER * n + " docs");
 
     List<Integer> docIds = findRelevantDocuments(entityName, slotKeywords, DOC_MULTIPLIER * n);
-    Log.fine("Found " + docIds.size() + " relevant documents for entity " + entityType + ":" + entityName + " and slots: " + slotKeywords);
+    if (Log.isFine()) Log.fine("Found " + docIds.size() + " relevant documents for entity " + entityType + ":" + entityName + " and slots: " + slotKeywords);
     List<CoreMap> relevantSentences = findRelevantSentences(docIds, entityName, entityType, slotKeywords, n, validDocIds);
     return relevantSentences;
   }
@@ -260,10 +263,9 @@ public abstract class IndexExtractor implements SentenceExtractor {
 
   List<Integer> findRelevantDocuments(Query query, int n) {
     // We will need at most n docs that have a hit to get n sentences
-    Timing queryTimer = new Timing();
-    queryTimer.start();
+    long start = System.nanoTime();
 
-    Log.info("Running query " + query);
+    Log.info("Running query {}", query);
 
     TopDocs results;
     try {
@@ -277,16 +279,15 @@ public abstract class IndexExtractor implements SentenceExtractor {
       docIds.add(scoreDoc.doc);
     }
 
-    long time = queryTimer.stop();
-    totalQueryTime += time;
-    totalLuceneTime += time;
+    long time = System.nanoTime() - start;
+    queryTime.record(time);
+    Metrics.record("retrieval.lucene.query", time);
 
     return docIds;
   }
 
   Document fetchDocument(int docId) {
-    Timing fetchTimer = new Timing();
-    fetchTimer.start();
+    long start = System.nanoTime();
 
     Document doc;
     try {
@@ -295,9 +296,9 @@ public abstract class IndexExtractor implements SentenceExtractor {
       throw new RuntimeException(e);
     }
 
-    long time = fetchTimer.stop();
-    totalFetchTime += time;
-    totalLuceneTime += time;
+    long time = System.nanoTime() - start;
+    fetchTime.record(time);
+    Metrics.record("retrieval.lucene.fetch", time);
 
     return doc;
   }
@@ -457,11 +458,16 @@ public abstract class IndexExtractor implements SentenceExtractor {
     return combined;
   }
 
+  static String seconds(long nanos) {
+    long millis = nanos / 1000000;
+    return millis / 1000 + "." + String.format("%03d", millis % 1000);
+  }
+
   public String luceneTime() {
     StringBuilder time = new StringBuilder();
-    time.append("Total time spent in Lucene: " + totalLuceneTime / 1000 + "." + totalLuceneTime % 1000 + "s\n");
-    time.append("  -- Lucene query time: " + totalQueryTime / 1000 + "." + totalQueryTime % 1000 + "s\n");
-    time.append("  -- Lucene fetch time: " + totalFetchTime / 1000 + "." + totalFetchTime % 1000 + "s");
+    time.append("Total time spent in Lucene: " + seconds(queryTime.totalNanos() + fetchTime.totalNanos()) + "s\n");
+    time.append("  -- Lucene query time: " + seconds(queryTime.totalNanos()) + "s (" + queryTime.count() + " queries)\n");
+    time.append("  -- Lucene fetch time: " + seconds(fetchTime.totalNanos()) + "s (" + fetchTime.count() + " documents)");
     return time.toString();
   }
 
@@ -83,6 +83,11 @@ public class LucenePipelineCacher {
     pipeline = new StanfordCoreNLP(pipelineProperties);
   }
 
+  /** Uses a pipeline shared with other cachers, e.g., by the shards of ShardManager */
+  public LucenePipelineCacher(StanfordCoreNLP pipeline) {
+    this.pipeline = pipeline;
+  }
+
   public static List<String> recursiveFindFiles(String pattern,
                                                 String ... startingLocations) {
     ArrayList<String> results = new ArrayList<String>();
@@ -171,102 +176,115 @@ public class LucenePipelineCacher {
     return interestingDocuments;
   }
 
-  public void runPipeline(String inputDirectory,
-                          String outputDirectory,
-                          Set<Integer> interestingDocs,
-                          Set<Integer> docsToSkip,
-                          int shardNum, int numShards,
-                          boolean isWikipedia) 
+  /** Returns the number of annotated documents */
+  public int runPipeline(String inputDirectory,
+                         String outputDirectory,
+                         Set<Integer> interestingDocs,
+                         Set<Integer> docsToSkip,
+                         int shardNum, int numShards,
+                         boolean isWikipedia) 
     throws IOException
   {
-    runPipeline(new SimpleFSDirectory(new File(inputDirectory)),
+    return runPipeline(new SimpleFSDirectory(new File(inputDirectory)),
                 new SimpleFSDirectory(new File(outputDirectory)),
                 interestingDocs, docsToSkip, 
                 shardNum, numShards, isWikipedia);
   }
 
   @SuppressWarnings("deprecation")
-  public void runPipeline(Directory inputDirectory,
-                          Directory outputDirectory,
-                          Set<Integer> interestingDocs,
-                          Set<Integer> docsToSkip,
-                          int shardNum, int numShards,
-                          boolean isWikipedia) 
+  public int runPipeline(Directory inputDirectory,
+                         Directory outputDirectory,
+                         Set<Integer> interestingDocs,
+                         Set<Integer> docsToSkip,
+                         int shardNum, int numShards,
+                         boolean isWikipedia) 
     throws IOException
   {
     IndexSearcher searcher = new IndexSearcher(inputDirectory);
-    int numDocs = searcher.maxDoc();
-    MutableInteger serSize = new MutableInteger(0);
-
-    int toProcess = 0;
-    if (numShards <= 0) {
-      toProcess = numDocs;
-    } else {
-      toProcess = (numDocs / numShards + 
-                   (numDocs % numShards > shardNum ? 1 : 0));
-    }
-    Log.severe("Processing " + toProcess + " of " + numDocs + " docs");
-    
-    IndexWriter writer = 
-      new IndexWriter(outputDirectory,
-                      new StandardAnalyzer(Version.LUCENE_CURRENT), 
-                      true, IndexWriter.MaxFieldLength.LIMITED);
-    int processed = 0;
-    int annotated = 0;
-    for (int i = 0; i < numDocs; ++i) {
-      if (numShards > 0 && i % numShards != shardNum)
-        continue;
-
-      Log.severe("Processing document at position #" + i);
-
-      Document doc = searcher.doc(i);
-      String docid = doc.get(KBPField.DOCID.fieldName());
-      Log.severe("Parsing document with docid " + docid);
-      System.err.println("Parsing document with docid " + docid);
-
-      // if the doc id we are looking at is one we care about, or we
-      // didn't specify which docs we care about...
-      if (interestingDocs != null && !interestingDocs.contains(i)) {
-        Log.severe("  Not interesting; will not be saved in the new index!");
-      } else if (docsToSkip != null && docsToSkip.contains(i)) {
-        Log.severe("  Interesting but you said to skip it; " +
-                           "will not be saved in the new index!");
-      } else {
-        // then add the Annotation for this doc as a serialized object
-        String text = IndexExtractor.extractText(doc, isWikipedia);
-        Annotation annotatedText = new Annotation(text);
-        pipeline.annotate(annotatedText);
+    try {
+      int numDocs = searcher.maxDoc();
+      MutableInteger serSize = new MutableInteger(0);
 
-        addAnnotationToDoc(doc, annotatedText, serSize);
-        ++annotated;
+      int toProcess = 0;
+      if (numShards <= 0) {
+        toProcess = numDocs;
+      } else {
+        toProcess = (numDocs / numShards + 
+                     (numDocs % numShards > shardNum ? 1 : 0));
+      }
+      Log.severe("Processing " + toProcess + " of " + numDocs + " docs");
+    
+      IndexWriter writer = 
+        new IndexWriter(outputDirectory,
+                        new StandardAnalyzer(Version.LUCENE_CURRENT), 
+                        true, IndexWriter.MaxFieldLength.LIMITED);
+      int processed = 0;
+      int annotated = 0;
+      boolean committed = false;
+      try {
+        for (int i = 0; i < numDocs; ++i) {
+          if (numShards > 0 && i % numShards != shardNum)
+            continue;
+
+          Log.severe("Processing document at position #" + i);
+
+          Document doc = searcher.doc(i);
+          String docid = doc.get(KBPField.DOCID.fieldName());
+          Log.severe("Parsing document with docid " + docid);
+          System.err.println("Parsing document with docid " + docid);
+
+          // if the doc id we are looking at is one we care about, or we
+          // didn't specify which docs we care about...
+          if (interestingDocs != null && !interestingDocs.contains(i)) {
+            Log.severe("  Not interesting; will not be saved in the new index!");
+          } else if (docsToSkip != null && docsToSkip.contains(i)) {
+            Log.severe("  Interesting but you said to skip it; " +
+                               "will not be saved in the new index!");
+          } else {
+            // then add the Annotation for this doc as a serialized object
+            String text = IndexExtractor.extractText(doc, isWikipedia);
+            Annotation annotatedText = new Annotation(text);
+            pipeline.annotate(annotatedText);
+
+            addAnnotationToDoc(doc, annotatedText, serSize);
+            ++annotated;
         
-        if(isWikipedia){
-          // the new (2010) wikipedia index has "title" and "content" but no "docid" and "text"
-          // copy title to docid; move content to text
-          // the above operations make the regenerated Wikipedia index compatible with other indices we have
-          copyField(doc, KBPField.WIKITITLE, KBPField.DOCID, false);
-          copyField(doc, KBPField.WIKICONTENT, KBPField.TEXT, true);
-        }
+            if(isWikipedia){
+              // the new (2010) wikipedia index has "title" and "content" but no "docid" and "text"
+              // copy title to docid; move content to text
+              // the above operations make the regenerated Wikipedia index compatible with other indices we have
+              copyField(doc, KBPField.WIKITITLE, KBPField.DOCID, false);
+              copyField(doc, KBPField.WIKICONTENT, KBPField.TEXT, true);
+            }
         
-        // save in the new index
-        writer.addDocument(doc);
-        Log.severe("Completed document with docid " + docid);
-        System.err.println("Completed document with docid " + docid);
-      }
+            // save in the new index
+            writer.addDocument(doc);
+            Log.severe("Completed document with docid " + docid);
+            System.err.println("Completed document with docid " + docid);
+          }
       
-      ++processed;
-      if (processed % 100 == 0 || processed == toProcess) {
-        Log.severe("Processed " + processed + " docs; annotated " +
-                           annotated + " docs.");
+          ++processed;
+          if (processed % 100 == 0 || processed == toProcess) {
+            Log.severe("Processed " + processed + " docs; annotated " +
+                               annotated + " docs.");
+          }
+        }
+
+        Log.severe("Finishing index...");
+        writer.optimize();
+        writer.close();
+        committed = true;
+      } finally {
+        // a failed shard does not leave a partial index behind, nor the write lock of the output directory
+        if (! committed) writer.rollback();
       }
+      Log.severe("Done!");
+      Log.severe("Annotated " + annotated 
+          + " documents. Annotation size = " + serSize.intValue());
+      return annotated;
+    } finally {
+      searcher.close();
     }
-
-    Log.severe("Finishing index...");
-    writer.optimize();
-    writer.close();
-    Log.severe("Done!");
-    Log.severe("Annotated " + annotated 
-        + " documents. Annotation size = " + serSize.intValue());
   }
   
   public static boolean copyField(Document doc, KBPField src, KBPField dst, boolean removeSrc) {
@@ -340,6 +358,21 @@ public class LucenePipelineCacher {
     return getAnnotationFromDoc(doc, null);
   }
 
+  /**
+   * Same as getAnnotationFromDoc, but decodes through the given cache, where key identifies
+   * this document among those of all indices
+   */
+  public static Annotation getAnnotationFromDoc(final Document doc, SentenceCache cache, String key)
+    throws IOException, ClassNotFoundException
+  {
+    return cache.get(key, COMPRESS_ANNOTATIONS, new SentenceCache.Loader() {
+      public byte [] load() throws IOException {
+        String annotationBytes = doc.get(KBPField.COREMAP.fieldName());
+        return (annotationBytes != null ? annotationBytes.getBytes("ISO-8859-1") : null);
+      }
+    });
+  }
+
   public static Annotation getAnnotationFromDocNoExceptions(Document doc) {
     try {
       return getAnnotationFromDoc(doc);
@@ -381,6 +414,32 @@ public class LucenePipelineCacher {
     return annotation;
   }
 
+  /** The documents matching the queries in FILTER_PROPERTY; null (i.e., all documents) if not set */
+  static Set<Integer> findInterestingDocuments(Properties properties)
+    throws IOException, SAXException, ParserConfigurationException
+  {
+    String filter = properties.getProperty(FILTER_PROPERTY);
+    if (filter == null) return null;
+    KBPDomReader domReader = new KBPDomReader(properties);
+    Set<Integer> interestingDocuments = 
+      findInterestingDocuments(domReader, properties.getProperty(INPUT_PROPERTY), filter);
+    Log.severe("Found " + interestingDocuments.size() + 
+                       " documents to annotate");
+    return interestingDocuments;
+  }
+
+  /** The documents in SKIP_IDS_PROPERTY; null if not set */
+  static Set<Integer> findDocsToSkip(Properties properties) {
+    String docsToSkipString = properties.getProperty(SKIP_IDS_PROPERTY);
+    if (docsToSkipString == null) return null;
+    Set<Integer> docsToSkip = new HashSet<Integer>();
+    for (String docIdString : docsToSkipString.split(",")) {
+      docsToSkip.add(Integer.valueOf(docIdString));
+    }
+    Log.severe("Skipping the following documents: " + docsToSkip);
+    return docsToSkip;
+  }
+
   public static void main(String[] args) 
     throws Exception
   {
@@ -430,26 +489,8 @@ public class LucenePipelineCacher {
     Log.severe("Doing wikipedia parsing: " + isWikipedia);
     Log.severe("Filtering with queries from: " + filter);
 
-    Set<Integer> interestingDocuments = null;
-    if (filter != null) {
-      KBPDomReader domReader = new KBPDomReader(properties);
-      interestingDocuments = findInterestingDocuments(domReader,
-                                                      inputDirectory,
-                                                      filter);
-      Log.severe("Found " + interestingDocuments.size() + 
-                         " documents to annotate");
-    }
-
-    Set<Integer> docsToSkip = null;
-    String docsToSkipString = properties.getProperty(SKIP_IDS_PROPERTY);
-    if (docsToSkipString != null) {
-      docsToSkip = new HashSet<Integer>();
-      for (String docIdString : docsToSkipString.split(",")) {
-        docsToSkip.add(Integer.valueOf(docIdString));
-      }
-      Log.severe("Skipping the following documents: " + docsToSkip);
-    }
-    
+    Set<Integer> interestingDocuments = findInterestingDocuments(properties);
+    Set<Integer> docsToSkip = findDocsToSkip(properties);
 
     LucenePipelineCacher cacher = new LucenePipelineCacher(properties);
     cacher.runPipeline(inputDirectory, outputDirectory, 
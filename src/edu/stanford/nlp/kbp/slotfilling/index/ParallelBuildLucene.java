@@ -0,0 +1,267 @@
+package edu.stanford.nlp.kbp.slotfilling.index;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.SimpleFSDirectory;
+import org.apache.lucene.util.Version;
+
+import edu.stanford.nlp.kbp.slotfilling.common.Log;
+import edu.stanford.nlp.kbp.slotfilling.common.Metrics;
+
+/**
+ * Builds the same index as BuildLucene on several threads
+ * Input files are handed to the threads as they become free; each thread parses them with its own BuildLucene
+ *   (hence its own SAX parser and LuceneDocumentHandler), which writes to its own sub-index, indexDir.parts/part-N.
+ * Every checkpoint files, a thread commits its sub-index and appends the files indexed since its last commit to part-N.done.
+ *   With -resume, these files are skipped and the sub-indices are reopened, so an interrupted build
+ *   only redoes the files since the last checkpoint of each thread.
+ * At the end the sub-indices are merged into indexDir, which is optimized as in BuildLucene, and removed.
+ * The documents and their fields are those of BuildLucene; only the order of the documents differs.
+ */
+public class ParallelBuildLucene {
+  static final String PARTS_SUFFIX = ".parts";
+  static final String PART_PREFIX = "part-";
+  static final String DONE_SUFFIX = ".done";
+
+  final String indexDir;
+  final File partsDir;
+  final int threads;
+  final double ramBufferMB;
+  final int checkpoint;
+
+  private final ConcurrentLinkedQueue<String> files = new ConcurrentLinkedQueue<String>();
+  private final AtomicInteger filesProcessed = new AtomicInteger();
+  private int totalFiles;
+  private volatile Throwable error;
+
+  public ParallelBuildLucene(String indexDir, int threads, double ramBufferMB, int checkpoint) {
+    this.indexDir = indexDir;
+    this.partsDir = new File(indexDir + PARTS_SUFFIX);
+    this.threads = Math.max(1, threads);
+    this.ramBufferMB = ramBufferMB;
+    this.checkpoint = Math.max(1, checkpoint);
+  }
+
+  /**
+   * Indexes all files in filenames (recursively, as KBPFileProcessor.recursiveProcess)
+   * @param resume If true, continue the build of a previous run with the same indexDir
+   */
+  public void build(String[] filenames, boolean resume) throws IOException {
+    long start = Metrics.start();
+    if (! resume && partsDir.exists()) {
+      throw new RuntimeException("ERROR: " + partsDir + " exists; remove it, or use -resume to continue that build");
+    }
+    partsDir.mkdirs();
+
+    Set<String> done = (resume ? readDone() : new HashSet<String>());
+    List<String> all = new ArrayList<String>();
+    collectFiles(filenames, all);
+    for (String f : all) {
+      if (! done.contains(f)) files.add(f);
+    }
+    totalFiles = files.size();
+    Log.severe("Indexing " + totalFiles + " files on " + threads + " threads; " + done.size() + " files were indexed by previous runs");
+
+    List<Thread> workers = new ArrayList<Thread>();
+    for (int i = 0; i < threads; ++i) {
+      final Worker worker = new Worker(i);
+      workers.add(new Thread(new Runnable() {
+        public void run() {
+          try {
+            worker.run();
+          } catch (Throwable e) {
+            fail(e);
+          }
+        }
+      }, "indexer-" + i));
+    }
+    for (Thread t : workers) t.start();
+    for (Thread t : workers) {
+      try {
+        t.join();
+      } catch (InterruptedException e) {
+        throw new IOException("ERROR: interrupted while waiting for the indexer threads: " + e);
+      }
+    }
+    if (error != null) {
+      throw new RuntimeException("ERROR: indexing failed; the files committed so far are kept, run again with -resume", error);
+    }
+    Metrics.stop("index.build.parse", start);
+
+    merge();
+    Metrics.stop("index.build", start);
+    Log.severe("Done!  Total files indexed: " + filesProcessed.get());
+  }
+
+  /** Same traversal as KBPFileProcessor.recursiveProcess */
+  private static void collectFiles(String[] filenames, List<String> all) {
+    for (String filename : filenames) {
+      File file = new File(filename);
+      if (file.isDirectory()) {
+        String[] sublist = file.list();
+        for (int i = 0; i < sublist.length; ++i) {
+          sublist[i] = filename + File.separator + sublist[i];
+        }
+        collectFiles(sublist, all);
+      } else {
+        all.add(filename);
+      }
+    }
+  }
+
+  private Set<String> readDone() throws IOException {
+    Set<String> done = new HashSet<String>();
+    for (File f : partsDir.listFiles()) {
+      if (! f.getName().endsWith(DONE_SUFFIX)) continue;
+      BufferedReader is = new BufferedReader(new FileReader(f));
+      for (String line; (line = is.readLine()) != null; ) {
+        if (line.length() > 0) done.add(line);
+      }
+      is.close();
+    }
+    return done;
+  }
+
+  /** Parses files into the sub-index of one thread */
+  private class Worker {
+    final File dir;
+    final BuildLucene indexer;
+    final PrintWriter doneWriter;
+    final List<String> pending = new ArrayList<String>();
+
+    Worker(int id) throws IOException {
+      dir = new File(partsDir, PART_PREFIX + id);
+      boolean create = ! dir.exists();
+      indexer = new BuildLucene(new SimpleFSDirectory(dir), create, ramBufferMB);
+      doneWriter = new PrintWriter(new FileWriter(new File(partsDir, PART_PREFIX + id + DONE_SUFFIX), true));
+    }
+
+    void run() throws IOException {
+      boolean finished = false;
+      try {
+        for (String filename; error == null && (filename = files.poll()) != null; ) {
+          indexer.processXML(filename);
+          pending.add(filename);
+          if (pending.size() >= checkpoint) checkpoint();
+          int count = filesProcessed.incrementAndGet();
+          if (count % 1000 == 0)
+            Log.severe("Indexed " + count + " of " + totalFiles + " files");
+        }
+        if (error == null) {
+          checkpoint();
+          indexer.writer.close();
+          finished = true;
+        }
+      } finally {
+        // the documents since the last checkpoint are not recorded as done, so they must not be committed either
+        if (! finished) indexer.writer.rollback();
+        doneWriter.close();
+      }
+    }
+
+    /** Commits the sub-index, then records its new files as done */
+    void checkpoint() throws IOException {
+      indexer.writer.commit();
+      for (String filename : pending) doneWriter.println(filename);
+      doneWriter.flush();
+      pending.clear();
+    }
+  }
+
+  private synchronized void fail(Throwable e) {
+    if (error == null) error = e;
+    Log.severe("ERROR: indexer thread failed: " + e);
+    e.printStackTrace();
+  }
+
+  /** Merges all sub-indices (including those of previous runs with more threads) into indexDir */
+  @SuppressWarnings("deprecation")
+  private void merge() throws IOException {
+    List<Directory> parts = new ArrayList<Directory>();
+    for (File f : partsDir.listFiles()) {
+      if (f.isDirectory() && f.getName().startsWith(PART_PREFIX)) parts.add(new SimpleFSDirectory(f));
+    }
+    Log.severe("Merging " + parts.size() + " sub-indices into " + indexDir);
+    IndexWriter writer = new IndexWriter(new SimpleFSDirectory(new File(indexDir)),
+                                         new StandardAnalyzer(Version.LUCENE_CURRENT),
+                                         true, IndexWriter.MaxFieldLength.LIMITED);
+    writer.setRAMBufferSizeMB(ramBufferMB);
+    writer.addIndexesNoOptimize(parts.toArray(new Directory[parts.size()]));
+    Log.severe("Optimizing");
+    writer.optimize();
+    writer.close();
+    for (Directory d : parts) d.close();
+    delete(partsDir);
+  }
+
+  private static void delete(File f) {
+    File[] children = f.listFiles();
+    if (children != null) {
+      for (File c : children) delete(c);
+    }
+    if (! f.delete()) Log.severe("WARNING: cannot delete " + f);
+  }
+
+  /**
+   * To run: java &lt;program name&gt; [-threads N] [-ramBufferMB M] [-checkpoint K] [-resume] indexDir [filename...]
+   */
+  static public void main(String[] args)
+    throws IOException
+  {
+    int threads = Runtime.getRuntime().availableProcessors();
+    double ramBufferMB = 256;
+    int checkpoint = 10000;
+    boolean resume = false;
+    int arg = 0;
+    for (; arg < args.length && args[arg].startsWith("-"); ++arg) {
+      if (args[arg].equals("-resume")) {
+        resume = true;
+      } else if (arg + 1 < args.length && args[arg].equals("-threads")) {
+        threads = Integer.parseInt(args[++arg]);
+      } else if (arg + 1 < args.length && args[arg].equals("-ramBufferMB")) {
+        ramBufferMB = Double.parseDouble(args[++arg]);
+      } else if (arg + 1 < args.length && args[arg].equals("-checkpoint")) {
+        checkpoint = Integer.parseInt(args[++arg]);
+      } else {
+        System.out.println("Unknown option: " + args[arg]);
+        System.exit(2);
+      }
+    }
+    if (args.length - arg < 2) {
+      System.out.println("Usage: [-threads N] [-ramBufferMB M] [-checkpoint K] [-resume] indexDir files...\n" +
+                         "The index directory must not exist; files may be files or directories to index.");
+      System.exit(2);
+    }
+
+    File file = new File(args[arg]);
+    if (file.exists() && !file.isDirectory()) {
+      System.out.println("Hey, be careful, you almost overwrote an " +
+                         "important file: " + args[arg]);
+      System.exit(1);
+    } else if (file.exists()) {
+      System.out.println("There's already something here: " + args[arg]);
+      System.out.println("Try running with a directory that doesn't " +
+                         "already exist; the directory will be created");
+      System.exit(1);
+    }
+
+    ParallelBuildLucene indexer = new ParallelBuildLucene(args[arg], threads, ramBufferMB, checkpoint);
+    String[] inputs = new String[args.length - arg - 1];
+    System.arraycopy(args, arg + 1, inputs, 0, inputs.length);
+    indexer.build(inputs, resume);
+  }
+}
@@ -15,6 +15,7 @@ import org.apache.lucene.store.SimpleFSDirectory;
 import edu.stanford.nlp.kbp.slotfilling.common.AntecedentGenerator;
 import edu.stanford.nlp.kbp.slotfilling.common.EntityType;
 import edu.stanford.nlp.kbp.slotfilling.common.Log;
+import edu.stanford.nlp.kbp.slotfilling.common.Metrics;
 import edu.stanford.nlp.kbp.slotfilling.common.Props;
 import edu.stanford.nlp.kbp.slotfilling.common.StringFinder;
 import edu.stanford.nlp.kbp.slotfilling.common.Utils;
@@ -148,17 +149,21 @@ public class PipelineIndexExtractor extends IndexExtractor {
 
     int docCount = 0;
     for (Document doc : docs) {
-      Log.finest("Starting doc " + docCount);
+      // cancelled, e.g., by a ConcurrentCombinationExtractor that has enough sentences
+      if (Thread.currentThread().isInterrupted()) break;
+      if (Log.isFinest()) Log.finest("Starting doc " + docCount);
 
       String text = extractText(doc);
       if (text == null || text.equals("")) {
-        Log.finest("Doc " + docCount + " was empty; ignoring");
+        if (Log.isFinest()) Log.finest("Doc " + docCount + " was empty; ignoring");
         ++docCount;
         continue;
       }
 
       Annotation annotatedText = new Annotation(text);
+      long step1Start = Metrics.start();
       step1Pipeline.annotate(annotatedText);
+      Metrics.stop("annotation.pipeline.step1", step1Start);
 
       List<CoreMap> sentences = annotatedText.get(SentencesAnnotation.class);
 
@@ -170,13 +175,15 @@ public class PipelineIndexExtractor extends IndexExtractor {
         reducedSentences.add(sentences.get(sentence));
       }
       annotatedText.set(SentencesAnnotation.class, reducedSentences);
-      Log.finest("Step #1 complete for one document: found " + reducedSentences.size() + " relevant sentences.");
+      if (Log.isFinest()) Log.finest("Step #1 complete for one document: found " + reducedSentences.size() + " relevant sentences.");
       for (CoreMap sent : reducedSentences) {
-        Log.finest("Sentence for step #2: " + Utils.sentenceToString(sent, true, false, false, false, false, false, false));
+        if (Log.isFinest()) Log.finest("Sentence for step #2: " + Utils.sentenceToString(sent, true, false, false, false, false, false, false));
       }
 
       // fill in the rest of the annotations
+      long step2Start = Metrics.start();
       step2Pipeline.annotate(annotatedText);
+      Metrics.stop("annotation.pipeline.step2", step2Start);
 
       // todo: fill in coref antecedents? maybe it's not necessary
       // now that all sentences returned as relevant have the queried
@@ -184,14 +191,14 @@ public class PipelineIndexExtractor extends IndexExtractor {
 
       Log.finest("Step #2 complete for one document.");
       for (Integer sentence : goodSentences) {
-        Log.finest("Adding relevant sentence + " + (relevantSentences.size() + 1));
+        if (Log.isFinest()) Log.finest("Adding relevant sentence + " + (relevantSentences.size() + 1));
         relevantSentences.add(makeRelevantSentence(sentences.get(sentence), doc));
         if (relevantSentences.size() == n) {
           Log.finest("Found enough sentences; returning");
           return relevantSentences;
         }
       }
-      Log.finest("Done with document " + docCount);
+      if (Log.isFinest()) Log.finest("Done with document " + docCount);
       ++docCount;
     }
 
@@ -203,16 +210,20 @@ public class PipelineIndexExtractor extends IndexExtractor {
 
     int docCount = 0;
     for (Document doc : docs) {
-      Log.finest("Starting doc " + docCount);
+      // cancelled, e.g., by a ConcurrentCombinationExtractor that has enough sentences
+      if (Thread.currentThread().isInterrupted()) break;
+      if (Log.isFinest()) Log.finest("Starting doc " + docCount);
 
       String text = extractText(doc);
       if (text == null || text.equals("")) {
-        Log.finest("Doc " + docCount + " was empty; ignoring");
+        if (Log.isFinest()) Log.finest("Doc " + docCount + " was empty; ignoring");
         ++docCount;
         continue;
       }
       Annotation annotatedText = new Annotation(text);
+      long pipelineStart = Metrics.start();
       pipeline.annotate(annotatedText);
+      Metrics.stop("annotation.pipeline", pipelineStart);
 
       // sanity check: make sure all sentences have a parse tree
       for (CoreMap sent : annotatedText.get(SentencesAnnotation.class)) {
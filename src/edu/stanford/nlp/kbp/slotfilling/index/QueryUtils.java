@@ -69,11 +69,11 @@ public class QueryUtils {
   static public Query buildDocidQuery(String name, String slotValue,
                                       String field, Set<String> stopWords) {
     BooleanQuery finalQuery = new BooleanQuery();
-    Log.finest("Using stop words: " + stopWords);
-    Log.finest("Adding to query: " + name);
+    Log.finest("Using stop words: {}", stopWords);
+    Log.finest("Adding to query: {}", name);
     finalQuery.add(buildPhraseQuery(name, field, stopWords),
                    BooleanClause.Occur.MUST);
-    Log.finest("Adding to query: " + slotValue);
+    Log.finest("Adding to query: {}", slotValue);
     finalQuery.add(buildPhraseQuery(slotValue, field, stopWords),
                    BooleanClause.Occur.MUST);
     return finalQuery;
@@ -84,8 +84,7 @@ public class QueryUtils {
                                              Set<String> stopWords,
                                              boolean mustOccur) {
     BooleanQuery finalQuery = new BooleanQuery();
-    Log.finest("Building inexact docid query using stop words: " + 
-               stopWords);
+    Log.finest("Building inexact docid query using stop words: {}", stopWords);
     BooleanClause.Occur occur = 
       ((mustOccur) ? BooleanClause.Occur.MUST : BooleanClause.Occur.SHOULD);
     List<String> words = new ArrayList<String>();
@@ -0,0 +1,286 @@
+package edu.stanford.nlp.kbp.slotfilling.index;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import edu.stanford.nlp.kbp.slotfilling.common.GenericDataSetReader;
+import edu.stanford.nlp.kbp.slotfilling.common.Log;
+import edu.stanford.nlp.kbp.slotfilling.common.Metrics;
+import edu.stanford.nlp.kbp.slotfilling.common.Props;
+import edu.stanford.nlp.ling.CoreAnnotations.BeginIndexAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.SentencesAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.TokensAnnotation;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.pipeline.Annotation;
+import edu.stanford.nlp.trees.Tree;
+import edu.stanford.nlp.trees.TreeCoreAnnotations.TreeAnnotation;
+import edu.stanford.nlp.util.CoreMap;
+import edu.stanford.nlp.util.PropertiesUtils;
+
+/**
+ * Two-level LRU cache of annotations decoded by KBPAnnotationSerializer, shared by all extractors in this JVM.
+ * Keys are strings: the per-entity sentence cache files of IndexAndWebCacheSentenceExtractor use their path,
+ *   the documents of CachedIndexExtractor their index and Lucene docid.
+ * The first level keeps decoded annotations on the heap, up to index.decoded.cache.mb MB. Their sizes are estimates
+ *   from the token counts, so the bound is soft.
+ * The optional second level keeps the serialized bytes of recently loaded annotations in direct buffers, outside the heap,
+ *   up to index.decoded.cache.offheap.mb MB (0, i.e., disabled, by default). A hit there skips the disk, but not the decoding.
+ * Callers own what get returns: the sentence maps, their tokens, and their trees are copies, so setting annotations on
+ *   them, or relabeling and indexing the trees, does not change the cache. The trees are normalized once, before they
+ *   are cached, as GenericDataSetReader and KBPReader expect (CoreLabel labels with index spans), so those readers
+ *   find nothing left to do. Dependency graphs and coref graphs are shared, and must not be modified.
+ * All public methods are thread safe; decoding runs outside the lock.
+ */
+public class SentenceCache {
+  /** Loads the serialized annotation on a miss */
+  public static interface Loader {
+    /** Returns null if there is nothing to load */
+    public byte [] load() throws IOException;
+  }
+
+  static final int DEFAULT_MB = 256;
+  /** Decoded size of one token, with its share of the sentence trees and graphs; a rough estimate */
+  static final int BYTES_PER_TOKEN = 2048;
+  static final int BYTES_PER_SENTENCE = 512;
+
+  private static final long MB = 1024 * 1024;
+
+  private static SentenceCache shared;
+
+  private static class Entry {
+    final Annotation annotation;
+    final long bytes;
+
+    Entry(Annotation annotation, long bytes) {
+      this.annotation = annotation;
+      this.bytes = bytes;
+    }
+  }
+
+  private final long maxBytes;
+  private final long maxOffHeapBytes;
+  /** Access order, so iteration (and eviction) goes from least to most recently used */
+  private final LinkedHashMap<String, Entry> decoded = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  private final LinkedHashMap<String, ByteBuffer> serialized = new LinkedHashMap<String, ByteBuffer>(16, 0.75f, true);
+  private long bytes = 0;
+  private long offHeapBytes = 0;
+  private int hits = 0;
+  private int offHeapHits = 0;
+  private int misses = 0;
+  private int evictions = 0;
+
+  public SentenceCache(long maxBytes, long maxOffHeapBytes) {
+    this.maxBytes = maxBytes;
+    this.maxOffHeapBytes = maxOffHeapBytes;
+  }
+
+  /**
+   * Returns the cache of this JVM, creating it with these properties the first time it is requested
+   * @return null if both levels are disabled
+   */
+  public static synchronized SentenceCache shared(Properties props) {
+    if (shared == null) {
+      long mb = PropertiesUtils.getInt(props, Props.INDEX_DECODED_CACHE_MB, DEFAULT_MB);
+      long offHeapMb = PropertiesUtils.getInt(props, Props.INDEX_DECODED_CACHE_OFFHEAP_MB, 0);
+      if (mb <= 0 && offHeapMb <= 0) return null;
+      shared = new SentenceCache(mb * MB, offHeapMb * MB);
+      Log.severe("Caching decoded sentences in " + mb + " MB of heap and " + offHeapMb + " MB off heap");
+    }
+    return shared;
+  }
+
+  /**
+   * Returns a copy of the annotation cached for this key, loading and decoding it on a miss
+   * @param compressed True if the bytes of the loader are compressed, as in the Lucene annotation field
+   * @return null if the loader returns null
+   */
+  public Annotation get(String key, boolean compressed, Loader loader) throws IOException, ClassNotFoundException {
+    byte [] data = null;
+    synchronized (this) {
+      Entry e = decoded.get(key);
+      if (e != null) {
+        hits ++;
+        Metrics.increment("sentencecache.hits");
+        return copy(e.annotation);
+      }
+      ByteBuffer buffer = serialized.get(key);
+      if (buffer != null) {
+        offHeapHits ++;
+        Metrics.increment("sentencecache.offheap.hits");
+        data = new byte[buffer.capacity()];
+        buffer.duplicate().get(data);
+      } else {
+        misses ++;
+        Metrics.increment("sentencecache.misses");
+      }
+    }
+
+    boolean loaded = false;
+    if (data == null) {
+      data = loader.load();
+      if (data == null) return null;
+      loaded = true;
+    }
+    long start = Metrics.start();
+    Annotation annotation = new KBPAnnotationSerializer(compressed, true).load(new ByteArrayInputStream(data));
+    Metrics.stop("sentencecache.decode", start);
+    if (annotation == null) return null;
+    normalizeTrees(annotation);
+
+    long size = estimateBytes(annotation);
+    synchronized (this) {
+      if (size <= maxBytes) {
+        Entry old = decoded.put(key, new Entry(annotation, size));
+        if (old != null) bytes -= old.bytes;
+        bytes += size;
+        evict();
+      }
+      if (loaded && data.length <= maxOffHeapBytes && ! serialized.containsKey(key)) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data);
+        buffer.flip();
+        serialized.put(key, buffer);
+        offHeapBytes += data.length;
+        evictOffHeap();
+      }
+    }
+    return copy(annotation);
+  }
+
+  /** Drops the entries of this key, e.g., after its file is rewritten */
+  public synchronized void remove(String key) {
+    Entry e = decoded.remove(key);
+    if (e != null) bytes -= e.bytes;
+    ByteBuffer buffer = serialized.remove(key);
+    if (buffer != null) offHeapBytes -= buffer.capacity();
+  }
+
+  /** Loads the whole file, or null if it does not exist */
+  public static Loader fileLoader(final File file) {
+    return new Loader() {
+      public byte [] load() throws IOException {
+        if (! file.exists()) return null;
+        byte [] data = new byte[(int) file.length()];
+        DataInputStream is = new DataInputStream(new FileInputStream(file));
+        try {
+          is.readFully(data);
+        } finally {
+          is.close();
+        }
+        return data;
+      }
+    };
+  }
+
+  private void evict() {
+    Iterator<Entry> it = decoded.values().iterator();
+    while (bytes > maxBytes && it.hasNext()) {
+      bytes -= it.next().bytes;
+      it.remove();
+      evictions ++;
+    }
+  }
+
+  private void evictOffHeap() {
+    // the direct buffers are freed when they are garbage collected
+    Iterator<ByteBuffer> it = serialized.values().iterator();
+    while (offHeapBytes > maxOffHeapBytes && it.hasNext()) {
+      offHeapBytes -= it.next().capacity();
+      it.remove();
+    }
+  }
+
+  static long estimateBytes(Annotation annotation) {
+    long size = 0;
+    List<CoreMap> sentences = annotation.get(SentencesAnnotation.class);
+    if (sentences != null) {
+      for (CoreMap sentence : sentences) {
+        List<CoreLabel> tokens = sentence.get(TokensAnnotation.class);
+        size += BYTES_PER_SENTENCE + (tokens != null ? tokens.size() * (long) BYTES_PER_TOKEN : 0);
+      }
+    }
+    return size;
+  }
+
+  /** Converts the tree labels to CoreLabels and indexes their spans, unless the parser already did */
+  static void normalizeTrees(Annotation annotation) {
+    List<CoreMap> sentences = annotation.get(SentencesAnnotation.class);
+    if (sentences == null) return;
+    for (CoreMap sentence : sentences) {
+      Tree tree = sentence.get(TreeAnnotation.class);
+      if (tree == null) continue;
+      GenericDataSetReader.convertToCoreLabels(tree);
+      if (! ((CoreLabel) tree.label()).containsKey(BeginIndexAnnotation.class)) tree.indexSpans(0);
+    }
+  }
+
+  /**
+   * Copies the annotation, its sentences, their tokens, and their trees, keeping the document tokens (if any)
+   *   the same objects as the sentence tokens
+   */
+  static Annotation copy(Annotation annotation) {
+    Map<CoreLabel, CoreLabel> tokenCopies = new IdentityHashMap<CoreLabel, CoreLabel>();
+    Annotation copy = new Annotation("");
+    copyAll(annotation, copy);
+    List<CoreMap> sentences = annotation.get(SentencesAnnotation.class);
+    if (sentences != null) {
+      List<CoreMap> sentenceCopies = new ArrayList<CoreMap>(sentences.size());
+      for (CoreMap sentence : sentences) {
+        CoreMap sentenceCopy = new Annotation("");
+        copyAll(sentence, sentenceCopy);
+        List<CoreLabel> tokens = sentence.get(TokensAnnotation.class);
+        if (tokens != null) sentenceCopy.set(TokensAnnotation.class, copyTokens(tokens, tokenCopies));
+        // the readers relabel and reindex trees in place; deepCopy also copies the CoreLabels
+        Tree tree = sentence.get(TreeAnnotation.class);
+        if (tree != null) sentenceCopy.set(TreeAnnotation.class, tree.deepCopy());
+        sentenceCopies.add(sentenceCopy);
+      }
+      copy.set(SentencesAnnotation.class, sentenceCopies);
+    }
+    List<CoreLabel> tokens = annotation.get(TokensAnnotation.class);
+    if (tokens != null) copy.set(TokensAnnotation.class, copyTokens(tokens, tokenCopies));
+    return copy;
+  }
+
+  private static List<CoreLabel> copyTokens(List<CoreLabel> tokens, Map<CoreLabel, CoreLabel> tokenCopies) {
+    List<CoreLabel> copies = new ArrayList<CoreLabel>(tokens.size());
+    for (CoreLabel token : tokens) {
+      CoreLabel c = tokenCopies.get(token);
+      if (c == null) {
+        c = new CoreLabel(token);
+        tokenCopies.put(token, c);
+      }
+      copies.add(c);
+    }
+    return copies;
+  }
+
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  private static void copyAll(CoreMap from, CoreMap to) {
+    for (Class key : from.keySet()) {
+      to.set(key, from.get(key));
+    }
+  }
+
+  public synchronized int hits() { return hits; }
+  public synchronized int offHeapHits() { return offHeapHits; }
+  public synchronized int misses() { return misses; }
+
+  @Override
+  public synchronized String toString() {
+    return "SentenceCache: " + decoded.size() + " annotations (~" + (bytes / MB) + " MB), " +
+        serialized.size() + " off heap (" + (offHeapBytes / MB) + " MB); hits: " + hits +
+        ", off-heap hits: " + offHeapHits + ", misses: " + misses + ", evictions: " + evictions;
+  }
+}
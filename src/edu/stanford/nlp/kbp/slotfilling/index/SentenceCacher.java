@@ -105,7 +105,7 @@ public class SentenceCacher {
     Log.info("Found " + allEntities.size() + " known entities in " + path);
     int tupleCount = 0;
     for (KBPEntity key : allEntities) {
-      Log.fine("Found entity: " + key);
+      Log.fine("Found entity: {}", key);
       Collection<KBPSlot> slots = entitySlotValues.get(key);
       tupleCount += slots.size();
     }
@@ -131,11 +131,11 @@ public class SentenceCacher {
                                            // examples
       File cacheFile = new File(makeCacheFileName(cacheDir, entity.name, entity.type, "cache"));
       if (cacheFile.exists()) {
-        Log.fine("Skipping entity already cached: " + entity);
+        Log.fine("Skipping entity already cached: {}", entity);
         continue;
       }
 
-      Log.fine("Searching for entity: " + entity);
+      Log.fine("Searching for entity: {}", entity);
       Collection<KBPSlot> knownSlots = entitySlotValues.get(entity);
 
       List<CoreMap> sentences = kbpIndex.findRelevantSentences(entity.name, entity.type, PipelineIndexExtractor.slotKeywords(knownSlots, false), sentencesPerEntity, null);
@@ -152,20 +152,20 @@ public class SentenceCacher {
       for (CoreMap sentence : sentences) {
         // does this entity exist in this sentence?
         if (Utils.contained(entityTokens, sentence.get(TokensAnnotation.class), true)) {
-          Log.fine("Found valid sentence: " + Utils.sentenceToString(sentence, true, false, false, false, false, false, false));
+          if (Log.isFine()) Log.fine("Found valid sentence: " + Utils.sentenceToString(sentence, true, false, false, false, false, false, false));
           parseSentence(sentence);
           goodSentences.add(sentence);
           sentCount++;
         }
       }
-      Log.fine("Found " + sentCount + " sentences in the index containing entity " + entity);
+      if (Log.isFine()) Log.fine("Found " + sentCount + " sentences in the index containing entity " + entity);
       entToSentHistogram.incrementCount(sentCount);
 
       saveSentences(cacheDir, entity, goodSentences);
 
       count++;
       if (count % 10 == 0)
-        Log.fine("Processed " + count + " out of " + sortedEntities.size() + " entities.");
+        if (Log.isFine()) Log.fine("Processed " + count + " out of " + sortedEntities.size() + " entities.");
     }
 
     //
@@ -7,124 +7,283 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import edu.stanford.nlp.kbp.slotfilling.common.ProcessWrapper;
+import edu.stanford.nlp.kbp.slotfilling.common.Log;
+import edu.stanford.nlp.kbp.slotfilling.common.Metrics;
+import edu.stanford.nlp.pipeline.StanfordCoreNLP;
+import edu.stanford.nlp.util.PropertiesUtils;
+import edu.stanford.nlp.util.StringUtils;
 
 /**
- * Runs and manages multiple LucenePipelineCacher processes.
- * Each job is run in a different process and is managed by a separate thread in this JVM
- * This is useful to parse multiple index shards simultaneously on multi-core machine, e.g., jackfruit 
+ * Runs the LucenePipelineCacher annotation of multiple index shards in this JVM
+ * The models are loaded once per pipeline, and the shards reuse the cacher.pipelines pipelines (one per thread by default).
+ *   Each pipeline annotates one shard at a time, so there are no more threads than pipelines. Only if
+ *   cacher.pipelines.threadsafe is true (all annotators are thread safe) do the threads share fewer pipelines.
+ * Shards run on cacher.threads threads; by default, one per core, as long as each thread has cacher.thread.memory MB
+ *   of the heap left, plus the memory of its own pipeline.
+ * The output of shard N goes to cacher.output/N. A failed shard is run again, from scratch, up to cacher.retries times.
+ * Each shard appends its attempts to cacher.progress/N.progress; shards whose progress file ends with "done" are skipped,
+ *   so an interrupted run is resumed by running it again. The status of all shards is saved in cacher.progress/shards.summary.tsv.
+ * Sample command line:
+ *   java -mx32g edu.stanford.nlp.kbp.slotfilling.index.ShardManager -props kbp.properties
+ *     -cacher.input INDEX -cacher.output SHARDS_DIR -cacher.numshards 100 -cacher.shards shards.txt
  */
 public class ShardManager {
-  private static final String JOB_COMMAND = "/juicy/scr61/scr/nlp/mihais/Wikipedia_shards/nohup_one_shard.sh";
-  private static final String LOG_DIR = "/juicy/scr61/scr/nlp/mihais/Wikipedia_shards/completed_logs";
-  private static final int THREAD_COUNT = 6;
-  
-  static List<Integer> SHARDS = new ArrayList<Integer>();
-  List<Integer> completedShards = new ArrayList<Integer>();
-  
-  private static void loadShards(String fn) throws Exception {
+  /** File with the numbers of the shards to run, one per line */
+  static final String SHARDS_PROPERTY = "cacher.shards";
+  static final String THREADS_PROPERTY = "cacher.threads";
+  static final String THREAD_MEMORY_PROPERTY = "cacher.thread.memory";
+  static final int THREAD_MEMORY_DEFAULT = 2048;
+  static final String PIPELINES_PROPERTY = "cacher.pipelines";
+  static final String PIPELINES_THREADSAFE_PROPERTY = "cacher.pipelines.threadsafe";
+  static final String RETRIES_PROPERTY = "cacher.retries";
+  static final int RETRIES_DEFAULT = 2;
+  static final String PROGRESS_PROPERTY = "cacher.progress";
+
+  static final String SUMMARY_FILE = "shards.summary.tsv";
+  static final String DONE = "done";
+
+  private static final long MB = 1024 * 1024;
+
+  /** Outcome of one shard */
+  static class ShardResult {
+    final int shard;
+    String status;
+    int attempts;
+    int annotated;
+    double seconds;
+    String error = "";
+
+    ShardResult(int shard) {
+      this.shard = shard;
+    }
+  }
+
+  final Properties props;
+  final List<Integer> shards;
+  final String inputDirectory;
+  final String outputDirectory;
+  final int numShards;
+  final boolean isWikipedia;
+  final int retries;
+  final File progressDir;
+
+  Set<Integer> interestingDocuments;
+  Set<Integer> docsToSkip;
+  StanfordCoreNLP [] pipelines;
+
+  public ShardManager(Properties props, List<Integer> shards) {
+    this.props = props;
+    this.shards = shards;
+    inputDirectory = props.getProperty(LucenePipelineCacher.INPUT_PROPERTY);
+    outputDirectory = props.getProperty(LucenePipelineCacher.OUTPUT_PROPERTY);
+    if (inputDirectory == null || outputDirectory == null)
+      throw new RuntimeException("ERROR: both " + LucenePipelineCacher.INPUT_PROPERTY + " and " +
+                                 LucenePipelineCacher.OUTPUT_PROPERTY + " must be set");
+    numShards = Integer.valueOf(props.getProperty(LucenePipelineCacher.NUM_SHARDS_PROPERTY,
+                                                  LucenePipelineCacher.NUM_SHARDS_DEFAULT));
+    isWikipedia = Boolean.valueOf(props.getProperty(LucenePipelineCacher.IS_WIKIPEDIA_PROPERTY,
+                                                    LucenePipelineCacher.IS_WIKIPEDIA_DEFAULT));
+    retries = PropertiesUtils.getInt(props, RETRIES_PROPERTY, RETRIES_DEFAULT);
+    progressDir = new File(props.getProperty(PROGRESS_PROPERTY, outputDirectory + File.separator + "progress"));
+  }
+
+  static List<Integer> loadShards(String fn) throws IOException {
+    List<Integer> shards = new ArrayList<Integer>();
     BufferedReader is = new BufferedReader(new FileReader(fn));
     for(String line; (line = is.readLine()) != null; ){
-      SHARDS.add(Integer.valueOf(line.trim()));
+      if(line.trim().length() > 0) shards.add(Integer.valueOf(line.trim()));
     }
     is.close();
-    System.err.println("Loaded " + SHARDS.size() + " shards.");
+    Log.severe("Loaded " + shards.size() + " shards.");
+    return shards;
   }
-  
-  public synchronized void run() {
-    // start threads
-    List<Runnable> jobs = createJobs();  
-    ExecutorService threadPool = Executors.newFixedThreadPool(THREAD_COUNT);
-    for(Runnable job: jobs){
-      threadPool.execute(job);
+
+  public List<ShardResult> run() throws Exception {
+    long start = Metrics.start();
+    progressDir.mkdirs();
+    new File(outputDirectory).mkdirs();
+
+    List<Integer> pending = new ArrayList<Integer>();
+    List<ShardResult> results = new ArrayList<ShardResult>();
+    for (int shard : shards) {
+      if (isDone(shard)) {
+        ShardResult r = new ShardResult(shard);
+        r.status = "previously done";
+        results.add(r);
+      } else {
+        pending.add(shard);
+      }
     }
-    
-    // wait for all threads to complete
-    this.waitForThreads();
-    threadPool.shutdown();
+    Log.severe("Running " + pending.size() + " of " + shards.size() + " shards; the others were done by previous runs.");
+
+    if (! pending.isEmpty()) {
+      interestingDocuments = LucenePipelineCacher.findInterestingDocuments(props);
+      docsToSkip = LucenePipelineCacher.findDocsToSkip(props);
+
+      // the first pipeline is loaded before the threads are sized, so the memory of its models is known
+      long before = usedMemory();
+      StanfordCoreNLP first = new StanfordCoreNLP(props);
+      long pipelineMemory = Math.max(0, usedMemory() - before) / MB;
+      boolean threadSafe = Boolean.valueOf(props.getProperty(PIPELINES_THREADSAFE_PROPERTY, "false"));
+      int configuredPipelines = PropertiesUtils.getInt(props, PIPELINES_PROPERTY, 0);
+      int threads = Math.min(threadCount(configuredPipelines > 0 ? 0 : pipelineMemory), pending.size());
+      int pipelineCount = (configuredPipelines > 0 ? Math.min(configuredPipelines, threads) : threads);
+      if (! threadSafe) threads = pipelineCount;
+      pipelines = new StanfordCoreNLP[pipelineCount];
+      pipelines[0] = first;
+      for (int i = 1; i < pipelineCount; i++) pipelines[i] = new StanfordCoreNLP(props);
+      Log.severe("Annotating on " + threads + " threads with " + pipelineCount + (threadSafe ? " shared" : "") +
+                 " pipelines of about " + pipelineMemory + " MB each.");
+
+      // pipelines that are not thread safe are lent to one shard at a time
+      final BlockingQueue<StanfordCoreNLP> freePipelines = new ArrayBlockingQueue<StanfordCoreNLP>(pipelineCount);
+      for (StanfordCoreNLP pipeline : pipelines) freePipelines.add(pipeline);
+      ExecutorService threadPool = Executors.newFixedThreadPool(threads);
+      List<Future<ShardResult>> futures = new ArrayList<Future<ShardResult>>();
+      for (int i = 0; i < pending.size(); i++) {
+        final int shard = pending.get(i);
+        final StanfordCoreNLP sharedPipeline = (threadSafe ? pipelines[i % pipelineCount] : null);
+        futures.add(threadPool.submit(new Callable<ShardResult>() {
+          @Override
+          public ShardResult call() throws InterruptedException {
+            if (sharedPipeline != null) return runShard(shard, sharedPipeline);
+            StanfordCoreNLP pipeline = freePipelines.take();
+            try {
+              return runShard(shard, pipeline);
+            } finally {
+              freePipelines.put(pipeline);
+            }
+          }
+        }));
+      }
+      for (Future<ShardResult> f : futures) results.add(f.get());
+      threadPool.shutdown();
+    }
+
+    Metrics.stop("cacher.shards", start);
+    saveSummary(results);
+    return results;
   }
-  
-  private List<Runnable> createJobs() {
-    List<Runnable> jobs = new ArrayList<Runnable>();
-    for(int shard: SHARDS) jobs.add(new ShardManagerThread(this, shard));
-    return jobs;
+
+  /**
+   * One per core, limited by the heap left after the first pipeline is loaded
+   * @param pipelineMemory MB needed by the pipeline of each thread after the first one; 0 if there are no more pipelines
+   */
+  int threadCount(long pipelineMemory) {
+    int threads = PropertiesUtils.getInt(props, THREADS_PROPERTY, 0);
+    if (threads > 0) return threads;
+    Runtime rt = Runtime.getRuntime();
+    long free = (rt.maxMemory() - usedMemory()) / MB;
+    long perThread = PropertiesUtils.getInt(props, THREAD_MEMORY_PROPERTY, THREAD_MEMORY_DEFAULT);
+    // the first thread uses the pipeline that is already loaded
+    return (int) Math.max(1, Math.min(rt.availableProcessors(), (free + pipelineMemory) / (perThread + pipelineMemory)));
   }
-  
-  static class ShardManagerThread implements Runnable {
-    private ShardManager manager;
-    private int shard;
-    
-    public ShardManagerThread(ShardManager m, int s) {
-      this.manager = m;
-      this.shard = s;
-    }
-    
-    @Override
-    public void run() {
-      String cmd = JOB_COMMAND + " " + shard;
-      
-      int exitCode = -1;
-      try {
-        PrintStream log = new PrintStream(new FileOutputStream(LOG_DIR + File.separator + shard + ".log"));
-        exitCode = launch(cmd, log);
-        log.close();
-      } catch(Exception e) {
-        System.err.println("ERROR: Command failed: " + cmd);
-      }
-      
-      manager.reportCompletion(shard, exitCode);
-      manager.threadFinished(shard);
-    }    
+
+  /** Used heap after garbage collection, approximately */
+  private static long usedMemory() {
+    Runtime rt = Runtime.getRuntime();
+    System.gc();
+    return rt.totalMemory() - rt.freeMemory();
   }
-  
-  private static int launch(String cmd, PrintStream os) throws IOException, InterruptedException {
-    System.err.println("Launching command: " + cmd);
-    
-    ProcessWrapper process = ProcessWrapper.create(cmd);
-    process.waitFor();
-    int exitCode = process.exitValue();
-    
-    String err = process.consumeErrorStream();
-    if(err.length() > 0){
-      os.println("Error stream contained:\n" + err);
-    }
-    String stdout = process.consumeReadStream();
-    if(stdout.length() > 0){
-      os.println("Stdout stream contained:\n" + stdout);
-    }
-    
-    return exitCode;
- }
-  
-  private synchronized void waitForThreads() {
-    while(completedShards.size() < SHARDS.size()){
+
+  /** Runs one shard with up to retries retries; never throws */
+  ShardResult runShard(int shard, StanfordCoreNLP pipeline) {
+    ShardResult result = new ShardResult(shard);
+    File output = new File(outputDirectory, Integer.toString(shard));
+    long start = System.currentTimeMillis();
+    for (int attempt = 1; attempt <= retries + 1; attempt++) {
+      result.attempts = attempt;
+      progress(shard, "attempt " + attempt + " started " + new Date());
       try {
-        this.wait();
-      } catch(InterruptedException e) {
-        System.err.println("Main thread interrupted!\n");
+        // a failed attempt may have left a partial index
+        delete(output);
+        LucenePipelineCacher cacher = new LucenePipelineCacher(pipeline);
+        result.annotated = cacher.runPipeline(inputDirectory, output.getPath(),
+                                              interestingDocuments, docsToSkip,
+                                              shard, numShards, isWikipedia);
+        result.status = DONE;
+        result.error = "";
         break;
+      } catch (Throwable e) {
+        result.status = "failed";
+        result.error = e.toString().replaceAll("\\s+", " ");
+        Log.severe("ERROR: shard " + shard + " failed in attempt " + attempt + ": " + e);
+        e.printStackTrace();
+        progress(shard, "attempt " + attempt + " failed: " + result.error);
       }
     }
-    System.err.println("All threads finished.\n");
+    result.seconds = (System.currentTimeMillis() - start) / 1000.0;
+    if (DONE.equals(result.status)) {
+      progress(shard, DONE + ": annotated " + result.annotated + " documents in " + result.seconds + " s");
+    }
+    Log.severe("Shard #" + shard + " " + result.status + " after " + result.attempts + " attempts");
+    return result;
   }
-  
-  public synchronized void threadFinished(int shard) {
-    completedShards.add(shard);
-    this.notify();
+
+  private File progressFile(int shard) {
+    return new File(progressDir, shard + ".progress");
   }
-  
-  public synchronized void reportCompletion(int shard, int exitCode) {
-    System.err.println("Shard #" + shard + " completed with exit code " + exitCode +
-        (exitCode == 0 ? " (SUCCESS)" : " (ERROR)"));
+
+  private void progress(int shard, String line) {
+    try {
+      PrintStream os = new PrintStream(new FileOutputStream(progressFile(shard), true));
+      os.println(line);
+      os.close();
+    } catch (IOException e) {
+      Log.severe("WARNING: cannot write the progress of shard " + shard + ": " + e);
+    }
   }
-  
+
+  private boolean isDone(int shard) throws IOException {
+    File f = progressFile(shard);
+    if (! f.exists()) return false;
+    String last = null;
+    BufferedReader is = new BufferedReader(new FileReader(f));
+    for (String line; (line = is.readLine()) != null; ) last = line;
+    is.close();
+    return last != null && last.startsWith(DONE);
+  }
+
+  private void saveSummary(List<ShardResult> results) throws IOException {
+    File summary = new File(progressDir, SUMMARY_FILE);
+    PrintStream os = new PrintStream(new FileOutputStream(summary));
+    os.println("shard\tstatus\tattempts\tannotated\tseconds\terror");
+    int failed = 0;
+    for (ShardResult r : results) {
+      os.println(r.shard + "\t" + r.status + "\t" + r.attempts + "\t" + r.annotated + "\t" + r.seconds + "\t" + r.error);
+      if ("failed".equals(r.status)) failed++;
+    }
+    os.close();
+    Log.severe("All shards finished: " + (results.size() - failed) + " done, " + failed + " failed. Summary saved in " + summary);
+  }
+
+  private static void delete(File f) {
+    File [] children = f.listFiles();
+    if (children != null) {
+      for (File c : children) delete(c);
+    }
+    f.delete();
+  }
+
   public static void main(String[] args) throws Exception {
-    loadShards(args[0]);
-    ShardManager sm = new ShardManager();
+    Properties props = StringUtils.argsToProperties(args);
+    String shardFile = props.getProperty(SHARDS_PROPERTY);
+    if (shardFile == null) {
+      System.err.println("You must set the shard list property, " + SHARDS_PROPERTY);
+      System.exit(2);
+    }
+    ShardManager sm = new ShardManager(props, loadShards(shardFile));
     sm.run();
   }
 }
@@ -1,100 +1,114 @@
 package edu.stanford.nlp.kbp.slotfilling.multir;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
+import edu.stanford.nlp.kbp.slotfilling.classify.HashedFeatureIndex;
+import edu.stanford.nlp.kbp.slotfilling.common.Log;
+import edu.stanford.nlp.kbp.slotfilling.common.ParallelGZIPOutputStream;
 import edu.stanford.nlp.kbp.slotfilling.multir.DocumentProtos.Relation;
 
 /**
  * Builds cross validation folds from Hoffmann's training corpus
+ * The corpus is streamed: each relation is assigned to the test partition of one fold by a stable hash of its
+ *   entity pair, so the folds are the same across runs and no relation is kept in memory.
+ * All fold files are compressed in parallel (see ParallelGZIPOutputStream).
+ * Usage: BuildFolds trainFile numberOfFolds [threads]
  * @author Mihai
  *
  */
 public class BuildFolds {
+  /** Seed of the entity pair hash; changing it changes the folds */
+  private static final int FOLD_SEED = 1;
+
   public static void main(String[] args) throws Exception {
     String trainFile = args[0];
     int numberOfFolds = Integer.valueOf(args[1]);
-    
+    int threads = (args.length > 2 ? Integer.valueOf(args[2]) : Runtime.getRuntime().availableProcessors());
+    buildFolds(trainFile, numberOfFolds, threads);
+  }
+
+  public static void buildFolds(String trainFile, int numberOfFolds, int threads) throws IOException {
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    OutputStream [] osTrain = new OutputStream[numberOfFolds];
+    OutputStream [] osTest = new OutputStream[numberOfFolds];
+    for(int fold = 0; fold < numberOfFolds; fold ++) {
+      File dir = new File("fold" + fold);
+      dir.mkdir();
+      osTrain[fold] = makeOutputStream(dir + File.separator + "train.pb.gz", executor, threads);
+      osTest[fold] = makeOutputStream(dir + File.separator + "test.pb.gz", executor, threads);
+    }
+
     InputStream is = new GZIPInputStream(
         new BufferedInputStream
         (new FileInputStream(trainFile)));
-    List<Relation> relations = new ArrayList<Relation>();
+    int [] foldSizes = new int[numberOfFolds];
     Relation r = null;
-    while ((r = Relation.parseDelimitedFrom(is)) != null) {
-      relations.add(r);
-    }
-    is.close();
-    relations = randomize(relations, 1);
-    
-    for(int fold = 0; fold < numberOfFolds; fold ++) {
-      saveFold(relations, fold, numberOfFolds);
+    try {
+      while ((r = Relation.parseDelimitedFrom(is)) != null) {
+        int testFold = foldOf(r, numberOfFolds);
+        foldSizes[testFold] ++;
+        // serialize once, copy to all folds
+        byte [] bytes = toDelimitedBytes(r);
+        for(int fold = 0; fold < numberOfFolds; fold ++) {
+          if(fold == testFold) osTest[fold].write(bytes);
+          else osTrain[fold].write(bytes);
+        }
+      }
+    } finally {
+      // the pool threads are not daemons, so the executor must be shut down even if a stream fails to close
+      try {
+        is.close();
+        IOException failure = null;
+        for(int fold = 0; fold < numberOfFolds; fold ++) {
+          failure = close(osTrain[fold], failure);
+          failure = close(osTest[fold], failure);
+        }
+        if(failure != null) throw failure;
+      } finally {
+        executor.shutdown();
+      }
     }
+
+    for(int fold = 0; fold < numberOfFolds; fold ++)
+      Log.severe("Fold #" + fold + " has " + foldSizes[fold] + " test relations.");
   }
-  
-  private static int foldStart(int fold, int numberOfFolds, int size) {
-    int foldSize = size / numberOfFolds;
-    assert(foldSize > 0);
-    int start = fold * foldSize;
-    assert(start < size);
-    return start;
+
+  /** Closes the stream, and returns the first failure, so all streams are closed */
+  private static IOException close(OutputStream os, IOException failure) {
+    try {
+      os.close();
+    } catch(IOException e) {
+      Log.severe("ERROR: cannot close fold file: " + e.getMessage());
+      if(failure == null) failure = e;
+    }
+    return failure;
   }
-  
-  private static int foldEnd(int fold, int numberOfFolds, int size) {
-    // padding if this is the last fold
-    if(fold == numberOfFolds - 1) 
-      return size;
-    
-    int foldSize = size / numberOfFolds;
-    assert(foldSize > 0);
-    int end = (fold + 1) * foldSize;
-    assert(end <= size);
-    return end;
+
+  private static OutputStream makeOutputStream(String fileName, ExecutorService executor, int threads) throws IOException {
+    return new ParallelGZIPOutputStream(new BufferedOutputStream(new FileOutputStream(fileName)),
+        executor, ParallelGZIPOutputStream.DEFAULT_BLOCK_SIZE, threads);
   }
-  
-  private static void saveFold(List<Relation> relations, int fold, int numberOfFolds) throws IOException {
-    int start = foldStart(fold, numberOfFolds, relations.size());
-    int end = foldEnd(fold, numberOfFolds, relations.size());
-    File dir = new File("fold" + fold);
-    dir.mkdir();
-    
-    OutputStream osTrain = new GZIPOutputStream(new FileOutputStream(dir + File.separator + "train.pb.gz"));
-    OutputStream osTest = new GZIPOutputStream(new FileOutputStream(dir + File.separator + "test.pb.gz"));
-    for(int i = start; i < end; i ++){
-      relations.get(i).writeDelimitedTo(osTest);
-    }
-    for(int i = 0; i < start; i ++){
-      relations.get(i).writeDelimitedTo(osTrain);
-    }
-    for(int i = end; i < relations.size(); i ++){
-      relations.get(i).writeDelimitedTo(osTrain);
-    }
-    osTrain.close();
-    osTest.close();
+
+  /** The fold whose test partition contains this relation; depends only on the entity pair */
+  static int foldOf(Relation r, int numberOfFolds) {
+    int h = HashedFeatureIndex.murmur3(r.getSourceGuid() + "\t" + r.getDestGuid(), FOLD_SEED);
+    return (h & Integer.MAX_VALUE) % numberOfFolds;
   }
-  
-  private static List<Relation> randomize(List<Relation> relations, int randomSeed) {
-    Random rand = new Random(randomSeed);
-    Relation [] randomized = new Relation[relations.size()];
-    for(int i = 0; i < relations.size(); i ++)
-      randomized[i] = relations.get(i);
-    for(int j = randomized.length - 1; j > 0; j --){
-      int randIndex = rand.nextInt(j);
-      Relation tmp = randomized[randIndex];
-      randomized[randIndex] = randomized[j];
-      randomized[j] = tmp;
-    }
-    List<Relation> result = new ArrayList<Relation>(Arrays.asList(randomized));
-    return result;
+
+  private static byte [] toDelimitedBytes(Relation r) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(r.getSerializedSize() + 5);
+    r.writeDelimitedTo(bytes);
+    return bytes.toByteArray();
   }
 }
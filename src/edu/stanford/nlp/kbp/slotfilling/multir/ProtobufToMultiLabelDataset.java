@@ -67,8 +67,16 @@ public class ProtobufToMultiLabelDataset {
 	}
 	
 	public static MultiLabelDataset<String, String> toMultiLabelDataset(InputStream is) throws IOException {
+	  return toMultiLabelDataset(is, new HashIndex<String>());
+	}
+	
+	/**
+	 * Same as above, but stores the features in the given index
+	 * For example, a HashedFeatureIndex to keep the feature space bounded
+	 */
+	public static MultiLabelDataset<String, String> toMultiLabelDataset(InputStream is, Index<String> featureIndex) throws IOException {
 	  List<RelationAndMentions> relations = toRelations(is, true);
-	  MultiLabelDataset<String, String> dataset = toDataset(relations);
+	  MultiLabelDataset<String, String> dataset = toDataset(relations, featureIndex);
 	  return dataset;
 	}
 	
@@ -148,7 +156,7 @@ public class ProtobufToMultiLabelDataset {
     for(RelationAndMentions rel: relations) {
       mentionCountHisto.incrementCount(rel.mentions.size());
       if(rel.mentions.size() > 100) 
-        Log.fine("Large relation: " + rel.mentions.size() + "\t" + rel.posLabels);
+        if(Log.isFine()) Log.fine("Large relation: " + rel.mentions.size() + "\t" + rel.posLabels);
     }
     Log.severe("Mention count histogram: " + mentionCountHisto);
     
@@ -166,9 +174,8 @@ public class ProtobufToMultiLabelDataset {
     return relations;
 	}
    
-	private static MultiLabelDataset<String, String> toDataset(List<RelationAndMentions> relations) {
+	private static MultiLabelDataset<String, String> toDataset(List<RelationAndMentions> relations, Index<String> featureIndex) {
     int [][][] data = new int[relations.size()][][];
-    Index<String> featureIndex = new HashIndex<String>();
     Index<String> labelIndex = new HashIndex<String>();
     Set<Integer> [] posLabels = ErasureUtils.<Set<Integer> []>uncheckedCast(new Set[relations.size()]);
     Set<Integer> [] negLabels = ErasureUtils.<Set<Integer> []>uncheckedCast(new Set[relations.size()]);
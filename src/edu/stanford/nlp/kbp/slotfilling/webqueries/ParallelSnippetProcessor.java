@@ -0,0 +1,263 @@
+package edu.stanford.nlp.kbp.slotfilling.webqueries;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.regex.Pattern;
+
+import edu.stanford.nlp.io.IOUtils;
+import edu.stanford.nlp.kbp.slotfilling.common.Log;
+import edu.stanford.nlp.kbp.slotfilling.common.Metrics;
+import edu.stanford.nlp.kbp.slotfilling.webqueries.WebSnippetProcessor.WebSnippetHandler;
+
+/**
+ * Runs WebSnippetHandler chains on several threads
+ * The calling thread splits the snippet files into mentions, i.e., the blank-line-delimited blocks of the V0 and V1 formats,
+ *   or the records of a WebSnippetStore; each worker parses the mentions it takes and pushes them through its own handler chain, so handlers
+ *   (and their CoreNLP pipelines) are never shared between threads.
+ * Mentions of one relation are spread over the workers, so startRelation and finishRelation bracket each mention.
+ * Handlers do not write their output themselves: they emit the writes through their Output, and all writes run one at a time,
+ *   in the order of the input mentions if ordered is set.
+ * The results kept by the handlers (e.g., counts) are merged by the combine step of the HandlerFactory,
+ *   after all mentions are processed. Neither init nor finish is called by this class.
+ */
+public class ParallelSnippetProcessor {
+  /** Mentions read ahead, being processed, or waiting for the writes of earlier mentions, per thread */
+  private static final int IN_FLIGHT_PER_THREAD = 16;
+
+  public static interface HandlerFactory<H extends WebSnippetHandler> {
+    /** Creates and initializes the handler chain of one worker; called in the calling thread, before any mention is read */
+    public H create(int worker, Output output);
+    /** Merges the results of the workers and finishes their handlers; called in the calling thread, after all writes */
+    public void combine(List<H> handlers);
+  }
+
+  /** Collects the writes of the mention its worker is processing */
+  public static class Output {
+    private List<Runnable> writes = new ArrayList<Runnable>();
+
+    public void emit(Runnable write) {
+      writes.add(write);
+    }
+
+    private List<Runnable> take() {
+      List<Runnable> taken = writes;
+      writes = new ArrayList<Runnable>();
+      return taken;
+    }
+  }
+
+  private static class Block {
+    final long seq;
+    final String filename;
+    /** Number of the line before this block */
+    final int lineno;
+    final String text;
+    /** Set instead of text for the records of a store */
+    final WebSnippetStore store;
+    final byte [] record;
+
+    Block(long seq, String filename, int lineno, String text, WebSnippetStore store, byte [] record) {
+      this.seq = seq;
+      this.filename = filename;
+      this.lineno = lineno;
+      this.text = text;
+      this.store = store;
+      this.record = record;
+    }
+  }
+  private static final Block END = new Block(-1, null, 0, null, null, null);
+
+  private final WebSnippetProcessor processor;
+  private final int threads;
+  private final boolean ordered;
+
+  private final Semaphore inFlight;
+  private final BlockingQueue<Block> queue = new LinkedBlockingQueue<Block>();
+  /** Writes of completed mentions waiting for earlier mentions; only if ordered */
+  private final Map<Long, List<Runnable>> waiting = new HashMap<Long, List<Runnable>>();
+  private long nextWrite;
+  private long blockCount;
+  private volatile Throwable error;
+
+  public ParallelSnippetProcessor(WebSnippetProcessor processor, int threads, boolean ordered) {
+    this.processor = processor;
+    this.threads = Math.max(1, threads);
+    this.ordered = ordered;
+    this.inFlight = new Semaphore(this.threads * IN_FLIGHT_PER_THREAD);
+  }
+
+  /** Processes one file, or all files in a directory whose names match filterPattern (if not null) */
+  public <H extends WebSnippetHandler> void process(String filename, Pattern filterPattern, HandlerFactory<H> factory) throws IOException {
+    long start = Metrics.start();
+    final List<H> handlers = new ArrayList<H>();
+    List<Thread> workers = new ArrayList<Thread>();
+    for (int i = 0; i < threads; i++) {
+      final Output output = new Output();
+      final H handler = factory.create(i, output);
+      handlers.add(handler);
+      workers.add(new Thread(new Runnable() {
+        @Override
+        public void run() {
+          work(handler, output);
+        }
+      }, "snippets-" + i));
+    }
+    for (Thread t: workers) t.start();
+
+    try {
+      read(filename, filterPattern);
+    } finally {
+      for (int i = 0; i < threads; i++) queue.add(END);
+      for (Thread t: workers) {
+        try {
+          t.join();
+        } catch (InterruptedException e) {
+          throw new IOException("ERROR: interrupted while waiting for the snippet workers: " + e);
+        }
+      }
+    }
+    if (error != null) {
+      throw new RuntimeException("ERROR: snippet processing failed after " + blockCount + " mentions", error);
+    }
+
+    factory.combine(handlers);
+    Metrics.stop("websnippets.process", start);
+    Metrics.add("websnippets.mentions", blockCount);
+    Log.severe("Processed {} mentions from {} on {} threads", blockCount, filename, threads);
+  }
+
+  private void read(String filename, Pattern filterPattern) throws IOException {
+    File file = new File(filename);
+    if (file.isDirectory()) {
+      for (File f: file.listFiles()) {
+        read(f.getAbsolutePath(), filterPattern);
+      }
+    } else if (filterPattern == null || filterPattern.matcher(filename).matches()) {
+      if (WebSnippetStore.isStore(filename)) {
+        readRecords(filename);
+      } else {
+        readBlocks(filename);
+      }
+    }
+  }
+
+  private void readRecords(String filename) throws IOException {
+    WebSnippetStore store = WebSnippetStore.open(filename);
+    WebSnippetStore.RecordReader records = store.records();
+    for (byte [] record; (record = records.next()) != null; ) {
+      if (! acquire(filename)) break;
+      queue.add(new Block(blockCount++, filename, 0, null, store, record));
+    }
+    records.close();
+    // the workers only decode records, so the store can be closed while they run
+    store.close();
+  }
+
+  private void readBlocks(String filename) throws IOException {
+    BufferedReader br = IOUtils.getBufferedFileReader(filename);
+    StringBuilder block = new StringBuilder();
+    int blockStart = 0;
+    int lineno = 0;
+    for (String line; (line = br.readLine()) != null; ) {
+      lineno++;
+      if (line.trim().length() == 0) {
+        if (block.length() > 0 && ! submit(filename, blockStart, block)) break;
+        block.setLength(0);
+      } else {
+        if (block.length() == 0) blockStart = lineno - 1;
+        block.append(line).append('\n');
+      }
+    }
+    if (block.length() > 0) submit(filename, blockStart, block);
+    br.close();
+  }
+
+  /** Returns false if a worker failed, so reading should stop */
+  private boolean submit(String filename, int lineno, StringBuilder block) throws IOException {
+    if (! acquire(filename)) return false;
+    queue.add(new Block(blockCount++, filename, lineno, block.toString(), null, null));
+    return true;
+  }
+
+  /** Waits for an in-flight slot; returns false if a worker failed */
+  private boolean acquire(String filename) throws IOException {
+    try {
+      inFlight.acquire();
+    } catch (InterruptedException e) {
+      throw new IOException("ERROR: interrupted while reading " + filename + ": " + e);
+    }
+    if (error != null) {
+      inFlight.release();
+      return false;
+    }
+    return true;
+  }
+
+  private void work(WebSnippetHandler handler, Output output) {
+    while (true) {
+      Block block;
+      try {
+        block = queue.take();
+      } catch (InterruptedException e) {
+        fail(e);
+        return;
+      }
+      if (block == END) return;
+      try {
+        if (error == null && block.store != null) {
+          RelationMentionSnippets mention = block.store.decode(block.record);
+          handler.startRelation(mention.getSlotName());
+          block.store.replay(mention, handler, processor.autoCleanSnippets);
+          handler.finishRelation(mention.getSlotName());
+        } else if (error == null) {
+          processor.processSnippets(new BufferedReader(new StringReader(block.text)), block.filename, block.lineno, handler);
+        }
+      } catch (Throwable e) {
+        fail(e);
+        output.take();
+      }
+      complete(block.seq, output.take());
+    }
+  }
+
+  /** Runs the writes of this mention, and of the following ones that were waiting for it if ordered */
+  private void complete(long seq, List<Runnable> writes) {
+    synchronized (waiting) {
+      if (! ordered) {
+        write(writes);
+        inFlight.release();
+        return;
+      }
+      waiting.put(seq, writes);
+      for (List<Runnable> next; (next = waiting.remove(nextWrite)) != null; nextWrite++) {
+        write(next);
+        inFlight.release();
+      }
+    }
+  }
+
+  private void write(List<Runnable> writes) {
+    for (Runnable w: writes) {
+      try {
+        if (error == null) w.run();
+      } catch (Throwable e) {
+        fail(e);
+      }
+    }
+  }
+
+  private synchronized void fail(Throwable e) {
+    if (error == null) error = e;
+    Log.severe("ERROR: snippet worker failed: " + e);
+    e.printStackTrace();
+  }
+}
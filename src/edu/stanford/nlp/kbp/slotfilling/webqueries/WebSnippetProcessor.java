@@ -7,6 +7,7 @@ import edu.stanford.nlp.kbp.slotfilling.common.KBPAnnotations;
 import edu.stanford.nlp.kbp.slotfilling.common.KBPEntity;
 import edu.stanford.nlp.kbp.slotfilling.common.KBPSlot;
 import edu.stanford.nlp.kbp.slotfilling.common.Log;
+import edu.stanford.nlp.kbp.slotfilling.common.Props;
 import edu.stanford.nlp.kbp.slotfilling.common.Utils;
 import edu.stanford.nlp.kbp.slotfilling.distantsupervision.KBPDomReader;
 import edu.stanford.nlp.kbp.slotfilling.distantsupervision.TaskXMLParser;
@@ -56,10 +57,20 @@ public class WebSnippetProcessor {
     cmdMap.put("printSamples", "read samples for classifier");
     cmdMap.put("toCacheTest", "converts web snippets for NEUtral queries to annotations in the KBPReader cache format (include annotation!)");
     cmdMap.put("toCacheTrain", "converts web snippets for POSitive queries to annotations in the KBPReader cache format (include annotation!)");
+    cmdMap.put("toStore", "converts web snippets to a binary snippet store (see WebSnippetStore); all commands read stores as well as text");
+    cmdMap.put("lookupSnippets", "prints the snippets of one entity (and optionally one slot) from a binary snippet store");
   }
 
   protected boolean autoCleanSnippets = true;
   protected int formatVersion = 1;
+  /** If more than one, the snippets are processed by a ParallelSnippetProcessor */
+  protected int threads = 1;
+  /** Keep the output of parallel runs in the order of the input */
+  protected boolean ordered = true;
+
+  private ParallelSnippetProcessor parallel() {
+    return new ParallelSnippetProcessor(this, threads, ordered);
+  }
 
   public WebSnippetsMap readSnippets(String filename) throws IOException {
     WebSnippetReader snippetReader = new WebSnippetReader();
@@ -70,6 +81,10 @@ public class WebSnippetProcessor {
   }
 
   public void cleanSnippets(String filename, Pattern filterPattern, Properties props) throws IOException {
+    if (threads > 1) {
+      parallel().process(filename, filterPattern, new SnippetWriterFactory(true, props));
+      return;
+    }
     WebSnippetWriter snippetWriter = new WebSnippetWriter(System.out);
     WebSnippetCleaner snippetCleaner = new WebSnippetCleaner(snippetWriter);
     WebSnippetFilterer snippetFilterer = new WebSnippetFilterer(snippetCleaner);
@@ -96,6 +111,10 @@ public class WebSnippetProcessor {
   }
 
   public void printSnippets(String filename, Pattern filterPattern, Properties props) throws IOException {
+    if (threads > 1) {
+      parallel().process(filename, filterPattern, new SnippetWriterFactory(false, props));
+      return;
+    }
     WebSnippetWriter snippetWriter = new WebSnippetWriter(System.out);
     WebSnippetFilterer snippetFilterer = new WebSnippetFilterer(snippetWriter);
     snippetWriter.init(props);
@@ -106,30 +125,75 @@ public class WebSnippetProcessor {
   }
   
   public void snippetsToCacheTest(String inputFile, String cacheDir, Map<String, EntityType> entityTypes, Properties props) throws IOException {
-    WebSnippetCacher snippetCacher = new WebSnippetCacher(cacheDir, entityTypes, true, props);
-    processSnippets(inputFile, (Pattern) null, snippetCacher);
-    snippetCacher.finish();
+    snippetsToCache(inputFile, cacheDir, entityTypes, true, props);
   }
   
   public void snippetsToCacheTrain(String inputFile, String cacheDir, Map<String, EntityType> entityTypes, Properties props) throws IOException {
-    WebSnippetCacher snippetCacher = new WebSnippetCacher(cacheDir, entityTypes, false, props);
-    processSnippets(inputFile, (Pattern) null, snippetCacher);
-    snippetCacher.finish();
+    WebSnippetCacher snippetCacher = snippetsToCache(inputFile, cacheDir, entityTypes, false, props);
     System.err.println("Found " + snippetCacher.docCount + " valid documents. Skipped " + snippetCacher.queriesSkipped + "/" + snippetCacher.queriesValid + " queries.");
   }
 
-  public void printStats(String filename, Pattern filterPattern, Properties props) throws IOException {
+  /** Returns the cacher with the counts of all workers */
+  private WebSnippetCacher snippetsToCache(String inputFile, final String cacheDir, final Map<String, EntityType> entityTypes,
+      final boolean testMode, final Properties props) throws IOException {
+    if (threads <= 1) {
+      WebSnippetCacher snippetCacher = new WebSnippetCacher(cacheDir, entityTypes, testMode, props);
+      processSnippets(inputFile, (Pattern) null, snippetCacher);
+      snippetCacher.finish();
+      return snippetCacher;
+    }
+    // the file numbers of an entity are shared by all workers; they are assigned by the (serialized) writes
+    final Counter<String> fileIndex = new ClassicCounter<String>();
+    final List<WebSnippetCacher> total = new ArrayList<WebSnippetCacher>(1);
+    parallel().process(inputFile, null, new ParallelSnippetProcessor.HandlerFactory<WebSnippetCacher>() {
+      public WebSnippetCacher create(int worker, ParallelSnippetProcessor.Output output) {
+        return new WebSnippetCacher(cacheDir, entityTypes, testMode, props, fileIndex, output);
+      }
+
+      public void combine(List<WebSnippetCacher> handlers) {
+        WebSnippetCacher first = handlers.get(0);
+        for (int i = 1; i < handlers.size(); i++) {
+          first.combine(handlers.get(i));
+        }
+        first.finish();
+        total.add(first);
+      }
+    });
+    return total.get(0);
+  }
+
+  public void printStats(String filename, Pattern filterPattern, final Properties props) throws IOException {
+    autoCleanSnippets = false;
+    if (threads > 1) {
+      parallel().process(filename, filterPattern, new ParallelSnippetProcessor.HandlerFactory<WebSnippetFilterer>() {
+        final List<WebSnippetWordCounter> wordCounters = new ArrayList<WebSnippetWordCounter>();
+
+        public WebSnippetFilterer create(int worker, ParallelSnippetProcessor.Output output) {
+          // the workers only count; the stats are printed by the combined counter
+          WebSnippetWordCounter wordCounter = new WebSnippetWordCounter(null, null);
+          wordCounter.textMasker = new WebSnippetMasker(props);
+          wordCounters.add(wordCounter);
+          WebSnippetCleaner snippetCleaner = statsCleaner(wordCounter);
+          WebSnippetFilterer snippetFilterer = new WebSnippetFilterer(snippetCleaner);
+          snippetCleaner.init(props);
+          snippetFilterer.init(props);
+          return snippetFilterer;
+        }
+
+        public void combine(List<WebSnippetFilterer> handlers) {
+          WebSnippetWordCounter total = new WebSnippetWordCounter();
+          total.init(props);
+          for (WebSnippetWordCounter wordCounter: wordCounters) {
+            total.stats.addAll(wordCounter.stats);
+          }
+          total.finish();
+        }
+      });
+      return;
+    }
     WebSnippetWordCounter wordCounter = new WebSnippetWordCounter();
-    WebSnippetCleaner snippetCleaner = new WebSnippetCleaner(wordCounter);
+    WebSnippetCleaner snippetCleaner = statsCleaner(wordCounter);
     WebSnippetFilterer snippetFilterer = new WebSnippetFilterer(snippetCleaner);
-    autoCleanSnippets = false;
-    snippetCleaner.keepBold = true;
-    snippetCleaner.keepEm = true;
-    snippetCleaner.keepEllipsis = false;
-    snippetCleaner.normalize = true;
-    snippetCleaner.unescapeHtml = true;
-    snippetCleaner.discardPunctuation = true;
-    snippetCleaner.lowerCase = true;
     wordCounter.init(props);
     snippetCleaner.init(props);
     snippetFilterer.init(props);
@@ -139,6 +203,47 @@ public class WebSnippetProcessor {
     wordCounter.finish();
   }
 
+  private static WebSnippetCleaner statsCleaner(WebSnippetHandler wordCounter) {
+    WebSnippetCleaner snippetCleaner = new WebSnippetCleaner(wordCounter);
+    snippetCleaner.keepBold = true;
+    snippetCleaner.keepEm = true;
+    snippetCleaner.keepEllipsis = false;
+    snippetCleaner.normalize = true;
+    snippetCleaner.unescapeHtml = true;
+    snippetCleaner.discardPunctuation = true;
+    snippetCleaner.lowerCase = true;
+    return snippetCleaner;
+  }
+
+  /** Handler chains of parallel runs of cleanSnippets (clean is true) and printSnippets */
+  private static class SnippetWriterFactory implements ParallelSnippetProcessor.HandlerFactory<WebSnippetHandler> {
+    final boolean clean;
+    final Properties props;
+
+    SnippetWriterFactory(boolean clean, Properties props) {
+      this.clean = clean;
+      this.props = props;
+    }
+
+    public WebSnippetHandler create(int worker, ParallelSnippetProcessor.Output output) {
+      WebSnippetWriter snippetWriter = new WebSnippetWriter(System.out, output);
+      snippetWriter.init(props);
+      WebSnippetHandler next = snippetWriter;
+      if (clean) {
+        WebSnippetCleaner snippetCleaner = new WebSnippetCleaner(snippetWriter);
+        snippetCleaner.init(props);
+        next = snippetCleaner;
+      }
+      WebSnippetFilterer snippetFilterer = new WebSnippetFilterer(next);
+      snippetFilterer.init(props);
+      return snippetFilterer;
+    }
+
+    public void combine(List<WebSnippetHandler> handlers) {
+      System.out.flush();
+    }
+  }
+
   // Takes input file of snippets and annotates it, storing it to the outputFile
   public void annotateSnippets(StanfordCoreNLP pipeline, String inputFile, String outputFile, String partialCachedFile) throws IOException {
     WebSnippetAnnotator webSnippetAnnotator = new WebSnippetAnnotator(pipeline, outputFile, partialCachedFile);
@@ -147,6 +252,55 @@ public class WebSnippetProcessor {
     webSnippetAnnotator.finish();
   }
 
+  /**
+   * Annotates on the given number of threads, each with its own pipeline (created from props)
+   * Partially cached files are read in sequence, so they are supported only by the single-threaded version above
+   */
+  public void annotateSnippets(final Properties props, String inputFile, String outputFile) throws IOException {
+    final ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(IOUtils.getFileOutputStream(outputFile)));
+    final List<StanfordCoreNLP> pipelines = new ArrayList<StanfordCoreNLP>();
+    parallel().process(inputFile, null, new ParallelSnippetProcessor.HandlerFactory<WebSnippetAnnotator>() {
+      public WebSnippetAnnotator create(int worker, ParallelSnippetProcessor.Output output) {
+        StanfordCoreNLP pipeline = new StanfordCoreNLP(props, false);
+        pipelines.add(pipeline);
+        return new WebSnippetAnnotator(pipeline, oos, output);
+      }
+
+      public void combine(List<WebSnippetAnnotator> handlers) {
+        try {
+          oos.flush();
+          oos.close();
+        } catch (IOException ex) {
+          throw new RuntimeException(ex);
+        }
+        for (StanfordCoreNLP pipeline: pipelines) {
+          System.err.println(pipeline.timingInformation());
+        }
+      }
+    });
+  }
+
+  /** Converts text snippets (in the configured format) to a binary store; the snippet text is stored without cleaning */
+  public void snippetsToStore(String filename, Pattern filterPattern, String storeFile) throws IOException {
+    WebSnippetStore.Writer storeWriter = new WebSnippetStore.Writer(storeFile, formatVersion);
+    boolean clean = autoCleanSnippets;
+    autoCleanSnippets = false;
+    processSnippets(filename, filterPattern, storeWriter);
+    autoCleanSnippets = clean;
+    storeWriter.finish();
+  }
+
+  /** Prints the snippets of this entity (and slot, if not null) found in a binary store */
+  public void printStoredSnippets(String storeFile, String entity, String slot) throws IOException {
+    WebSnippetStore store = WebSnippetStore.open(storeFile);
+    WebSnippetWriter snippetWriter = new WebSnippetWriter(System.out);
+    for (RelationMentionSnippets mention: store.get(entity, slot)) {
+      store.replay(mention, snippetWriter, autoCleanSnippets);
+    }
+    snippetWriter.finish();
+    store.close();
+  }
+
   /* Prints annotated snippets */
   public void printAnnotatedSnippets(String inputFile) throws IOException, ClassNotFoundException {
     PrintStream out = System.out;
@@ -220,7 +374,11 @@ public class WebSnippetProcessor {
 
   public void processSnippets(String filename, WebSnippetHandler handler) throws IOException
   {
-    if (formatVersion == 0) {
+    if (WebSnippetStore.isStore(filename)) {
+      WebSnippetStore store = WebSnippetStore.open(filename);
+      store.process(handler, autoCleanSnippets);
+      store.close();
+    } else if (formatVersion == 0) {
       processSnippetsV0(filename, handler);
     } else {
       processSnippetsV1(filename, handler);
@@ -247,10 +405,16 @@ public class WebSnippetProcessor {
   public void processSnippetsV1(String filename, WebSnippetHandler handler) throws IOException
   {
     BufferedReader br = IOUtils.getBufferedFileReader(filename);
+    processSnippetsV1(br, filename, 0, handler);
+    br.close();
+  }
+
+  /** Processes the lines of br; lineno is the number of the line before them, for the warnings */
+  void processSnippetsV1(BufferedReader br, String filename, int lineno, WebSnippetHandler handler) throws IOException
+  {
     String line;
     String relation = null;
     RelationMentionSnippets snippets = null;
-    int lineno = 0;
     while ((line = br.readLine()) != null) {
       lineno++;
       line = line.trim();
@@ -313,7 +477,6 @@ public class WebSnippetProcessor {
     }
     if (snippets != null) { handler.finishMention(snippets); }
     if (relation != null) { handler.finishRelation(relation); }
-    br.close();
   }
 
   /**
@@ -325,10 +488,15 @@ public class WebSnippetProcessor {
   public void processSnippetsV0(String filename, WebSnippetHandler handler) throws IOException
   {
     BufferedReader br = IOUtils.getBufferedFileReader(filename);
+    processSnippetsV0(br, filename, 0, handler);
+    br.close();
+  }
+
+  void processSnippetsV0(BufferedReader br, String filename, int lineno, WebSnippetHandler handler) throws IOException
+  {
     String line;
     String relation = null;
     RelationMentionSnippets snippets = null;
-    int lineno = 0;
     while ((line = br.readLine()) != null) {
       lineno++;
       line = line.trim();
@@ -379,7 +547,16 @@ public class WebSnippetProcessor {
     }
     if (snippets != null) { handler.finishMention(snippets); }
     if (relation != null) { handler.finishRelation(relation); }
-    br.close();
+  }
+
+  /** Processes the lines of one block (see ParallelSnippetProcessor) in the configured format */
+  void processSnippets(BufferedReader br, String filename, int lineno, WebSnippetHandler handler) throws IOException
+  {
+    if (formatVersion == 0) {
+      processSnippetsV0(br, filename, lineno, handler);
+    } else {
+      processSnippetsV1(br, filename, lineno, handler);
+    }
   }
 
   public static interface WebSnippetHandler
@@ -503,7 +680,7 @@ public class WebSnippetProcessor {
       for (String token:tokens) {
         stats.incrementSlotWordCounts(snippets.getQueryTypeName(), snippets.slotName, token);
       }
-      stats.slotQueryTypeCounts.incrementCount(snippets.slotName, snippets.getQueryTypeName());
+      stats.incrementSlotQueryTypeCounts(snippets.slotName, snippets.getQueryTypeName());
     }
 
     public void finish()
@@ -720,11 +897,19 @@ public class WebSnippetProcessor {
     int docCount;
     int queriesSkipped;
     int queriesValid;
+    /** If not null, the cache files are saved through this (parallel runs) */
+    ParallelSnippetProcessor.Output output;
     
     /** If false, use our own custom serialization */
     public static final boolean USE_GENERIC_SERIALIZATION = false;
     
     public WebSnippetCacher(String cacheDir, Map<String, EntityType> entityTypes, boolean testMode, Properties props) {
+      this(cacheDir, entityTypes, testMode, props, new ClassicCounter<String>(), null);
+    }
+
+    /** Worker of a parallel run; fileIndex is shared by all workers, and only used by the writes of output */
+    public WebSnippetCacher(String cacheDir, Map<String, EntityType> entityTypes, boolean testMode, Properties props,
+        Counter<String> fileIndex, ParallelSnippetProcessor.Output output) {
       this.cacheDir = cacheDir;
       this.entityTypes = entityTypes;
       this.testMode = testMode;
@@ -738,7 +923,15 @@ public class WebSnippetProcessor {
       full = new StanfordCoreNLP(props, false);
       
       minSentenceLength = Integer.parseInt(props.getProperty("kbp.websnippets.minsent", "15"));
-      fileIndex = new ClassicCounter<String>();
+      this.fileIndex = fileIndex;
+      this.output = output;
+    }
+
+    /** Adds the counts of another worker */
+    public void combine(WebSnippetCacher other) {
+      docCount += other.docCount;
+      queriesSkipped += other.queriesSkipped;
+      queriesValid += other.queriesValid;
     }
 
     @Override
@@ -789,8 +982,10 @@ public class WebSnippetProcessor {
       docCount ++;
       
       // full processing, including coref
-      for(CoreMap s: sentences){
-        Log.fine("SENT: " + Utils.sentenceToMinimalString(s));     
+      if(Log.isFine()) {
+        for(CoreMap s: sentences){
+          Log.fine("SENT: " + Utils.sentenceToMinimalString(s));
+        }
       }
       Log.fine("Parsing the above sentences...");
       Annotation corpus = new Annotation("");
@@ -814,38 +1009,54 @@ public class WebSnippetProcessor {
         AntecedentGenerator antGen = new AntecedentGenerator(snippets.entityName, 100); // last param not actually used in this context
         antGen.findAntecedents(corpus);
 
-        String myCacheDir = SentenceCacher.makeCacheDirNameAndCreate(cacheDir, snippets.entityName, myType);
-        Log.fine("Saving cache for entity " + snippets.entityName + " to directory " + myCacheDir);
-        String serFn = SentenceCacher.makeCacheFileName(cacheDir, snippets.entityName, myType, "cache");
-        String debFn = SentenceCacher.makeCacheFileName(cacheDir, snippets.entityName, myType, "debug");
-        String cstFn = SentenceCacher.makeCacheFileName(cacheDir, snippets.entityName, myType, "custom");
-        String fileKey = myType.toString() + ":" + snippets.entityName;
-        int fileCount = (int) fileIndex.getCount(fileKey);
-        Log.fine("FILE COUNT for " + fileKey + " is " + fileCount);
-        serFn = serFn + "." + fileCount;
-        debFn = debFn + "." + fileCount;
-        cstFn = cstFn + "." + fileCount;
-
-        try {
-          if(USE_GENERIC_SERIALIZATION){
-            IOUtils.writeObjectToFile(sentences, new File(serFn));
-            PrintStream os = new PrintStream(new FileOutputStream(debFn));
-            for(CoreMap sent: sentences){
-              SentenceCacher.saveSentenceDebug(os, sent);
+        if (output != null) {
+          final String entityName = snippets.entityName;
+          final EntityType type = myType;
+          final List<CoreMap> annotated = sentences;
+          final Annotation annotatedCorpus = corpus;
+          output.emit(new Runnable() {
+            public void run() {
+              save(entityName, type, annotated, annotatedCorpus);
             }
-            os.close();
-          } else {
-            AnnotationSerializer cas = new KBPAnnotationSerializer(true, true);
-            FileOutputStream os = new FileOutputStream(cstFn);
-            cas.save(corpus, os); // custom serialization
-            os.close();
+          });
+        } else {
+          save(snippets.entityName, myType, sentences, corpus);
+        }
+      }
+    }
+
+    private void save(String entityName, EntityType myType, List<CoreMap> sentences, Annotation corpus) {
+      String myCacheDir = SentenceCacher.makeCacheDirNameAndCreate(cacheDir, entityName, myType);
+      Log.fine("Saving cache for entity {} to directory {}", entityName, myCacheDir);
+      String serFn = SentenceCacher.makeCacheFileName(cacheDir, entityName, myType, "cache");
+      String debFn = SentenceCacher.makeCacheFileName(cacheDir, entityName, myType, "debug");
+      String cstFn = SentenceCacher.makeCacheFileName(cacheDir, entityName, myType, "custom");
+      String fileKey = myType.toString() + ":" + entityName;
+      int fileCount = (int) fileIndex.getCount(fileKey);
+      if(Log.isFine()) Log.fine("FILE COUNT for " + fileKey + " is " + fileCount);
+      serFn = serFn + "." + fileCount;
+      debFn = debFn + "." + fileCount;
+      cstFn = cstFn + "." + fileCount;
+
+      try {
+        if(USE_GENERIC_SERIALIZATION){
+          IOUtils.writeObjectToFile(sentences, new File(serFn));
+          PrintStream os = new PrintStream(new FileOutputStream(debFn));
+          for(CoreMap sent: sentences){
+            SentenceCacher.saveSentenceDebug(os, sent);
           }
-          fileIndex.incrementCount(fileKey);
-        } catch (IOException e) {
-          System.err.println("ERROR: cannot save sentences for entity " + snippets.entityName);
-          e.printStackTrace();
-          throw new RuntimeException(e);
+          os.close();
+        } else {
+          AnnotationSerializer cas = new KBPAnnotationSerializer(true, true);
+          FileOutputStream os = new FileOutputStream(cstFn);
+          cas.save(corpus, os); // custom serialization
+          os.close();
         }
+        fileIndex.incrementCount(fileKey);
+      } catch (IOException e) {
+        System.err.println("ERROR: cannot save sentences for entity " + entityName);
+        e.printStackTrace();
+        throw new RuntimeException(e);
       }
     }
     
@@ -885,11 +1096,18 @@ public class WebSnippetProcessor {
   {
     PrintStream out;
     boolean outputMentionsWithSnippetsOnly = false;  // Option to only output entries for relation mentions with snippets
+    /** If not null, the mentions are printed through this (parallel runs) */
+    ParallelSnippetProcessor.Output output;
 
     public WebSnippetWriter(PrintStream out) {
       this.out = out;
     }
 
+    public WebSnippetWriter(PrintStream out, ParallelSnippetProcessor.Output output) {
+      this.out = out;
+      this.output = output;
+    }
+
     @Override
     public void init(Properties props) {
       super.init(props);
@@ -905,7 +1123,16 @@ public class WebSnippetProcessor {
     public void finishMention(RelationMentionSnippets snippets)
     {
       if (!outputMentionsWithSnippetsOnly || snippets.snippets.size() > 0) {
-        out.println(snippets.toString());
+        final String text = snippets.toString();
+        if (output != null) {
+          output.emit(new Runnable() {
+            public void run() {
+              out.println(text);
+            }
+          });
+          return;
+        }
+        out.println(text);
       }
       out.flush();
     }
@@ -924,6 +1151,8 @@ public class WebSnippetProcessor {
     ObjectInputStream pois;
     int totalCachedRead = 0;
     TokenizerPostProcessorAnnotator tokenizerAnnotator;
+    /** If not null, the annotations are written through this (parallel runs), and the stream is closed by the caller */
+    ParallelSnippetProcessor.Output output;
 
     public WebSnippetAnnotator(StanfordCoreNLP pipeline, String filename) {
       this.pipeline = pipeline;
@@ -947,6 +1176,14 @@ public class WebSnippetProcessor {
       }
     }
 
+    /** Worker of a parallel run; oos is shared by all workers */
+    public WebSnippetAnnotator(StanfordCoreNLP pipeline, ObjectOutputStream oos, ParallelSnippetProcessor.Output output) {
+      this.pipeline = pipeline;
+      this.oos = oos;
+      this.output = output;
+      tokenizerAnnotator = new TokenizerPostProcessorAnnotator();
+    }
+
     private Pair<String,List<Annotation>> getNextCached()
     {
       try {
@@ -1020,6 +1257,21 @@ public class WebSnippetProcessor {
           annotations.add(annotation);
         }
       }
+      if (output != null) {
+        final String h = header;
+        final List<Annotation> a = annotations;
+        output.emit(new Runnable() {
+          public void run() {
+            write(h, a);
+          }
+        });
+      } else {
+        write(header, annotations);
+      }
+    }
+
+    private void write(String header, List<Annotation> annotations)
+    {
       try {
         oos.writeObject(header);
         oos.writeObject(annotations);
@@ -1035,6 +1287,7 @@ public class WebSnippetProcessor {
     }
 
     public void finish() {
+      if (output != null) return;
       try {
         oos.flush();
         oos.close();
@@ -1084,6 +1337,8 @@ public class WebSnippetProcessor {
       int version = Integer.parseInt(snippetFormatVersion);
       processor.formatVersion = version;
     }
+    processor.threads = PropertiesUtils.getInt(properties, Props.KBP_WEBSNIPPETS_THREADS, 1);
+    processor.ordered = PropertiesUtils.getBool(properties, Props.KBP_WEBSNIPPETS_ORDERED, true);
     String directory = properties.getProperty("kbp.websnippets.dir");
     String cacheDir = properties.getProperty("kbp.websnippets.cache");
     String patternStr = properties.getProperty("kbp.websnippets.pattern");
@@ -1098,12 +1353,21 @@ public class WebSnippetProcessor {
       String infile = properties.getProperty("kbp.websnippets.input.file");
       String cachedfile = properties.getProperty("kbp.websnippets.annotation.file.saved");
       String outfile = properties.getProperty("kbp.websnippets.annotation.file");
-      StanfordCoreNLP pipeline = new StanfordCoreNLP(properties, false);
-      processor.annotateSnippets(pipeline, infile, outfile, cachedfile);
-      System.err.println(pipeline.timingInformation());
+      if (processor.threads > 1 && cachedfile == null) {
+        processor.annotateSnippets(properties, infile, outfile);
+      } else {
+        StanfordCoreNLP pipeline = new StanfordCoreNLP(properties, false);
+        processor.annotateSnippets(pipeline, infile, outfile, cachedfile);
+        System.err.println(pipeline.timingInformation());
+      }
     } else if ("printAnnotations".equals(cmd)) {
       String file = properties.getProperty("kbp.websnippets.annotation.file");
       processor.printAnnotatedSnippets(file);
+    } else if ("toStore".equals(cmd)) {
+      processor.snippetsToStore(directory, pattern, properties.getProperty(Props.KBP_WEBSNIPPETS_STORE));
+    } else if ("lookupSnippets".equals(cmd)) {
+      processor.printStoredSnippets(properties.getProperty(Props.KBP_WEBSNIPPETS_STORE),
+          properties.getProperty("kbp.websnippets.entity"), properties.getProperty("kbp.websnippets.slot"));
     } else if ("printSamples".equals(cmd)) {
       processor.printSamples(directory, pattern, properties);
     } else if("toCacheTest".equals(cmd)){
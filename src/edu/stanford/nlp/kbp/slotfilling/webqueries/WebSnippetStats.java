@@ -1,13 +1,16 @@
 package edu.stanford.nlp.kbp.slotfilling.webqueries;
 
 import edu.stanford.nlp.io.IOUtils;
-import edu.stanford.nlp.stats.Counter;
-import edu.stanford.nlp.stats.Counters;
-import edu.stanford.nlp.stats.TwoDimensionalCounter;
+import edu.stanford.nlp.util.TwoDimensionalDoubleMap;
+import it.unimi.dsi.fastutil.objects.Object2DoubleMap;
+import it.unimi.dsi.fastutil.objects.Object2DoubleOpenHashMap;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -15,12 +18,15 @@ import java.util.Set;
 import java.util.regex.Pattern;
 
 /**
+ * Slot and word counts of web snippets
+ * The counts are TwoDimensionalDoubleMaps: incrementSlotWordCounts runs once per snippet token,
+ *   and these maps neither box the counts nor allocate on lookups.
  * @author Angel Chang
  */
 public class WebSnippetStats {
-  TwoDimensionalCounter<String,String> totalSlotWordCounts;
-  Map<String,TwoDimensionalCounter<String,String>> slotWordCounts;
-  TwoDimensionalCounter<String,String> slotQueryTypeCounts;
+  TwoDimensionalDoubleMap<String,String> totalSlotWordCounts;
+  Map<String,TwoDimensionalDoubleMap<String,String>> slotWordCounts;
+  TwoDimensionalDoubleMap<String,String> slotQueryTypeCounts;
 
   @SuppressWarnings("unused")
   private static final String TOTAL_KEY = "TOTAL";
@@ -34,19 +40,48 @@ public class WebSnippetStats {
 
   public WebSnippetStats()
   {
-    slotWordCounts = new HashMap<String,TwoDimensionalCounter<String,String>>();
-    totalSlotWordCounts = new TwoDimensionalCounter<String, String>();
-    slotQueryTypeCounts = new TwoDimensionalCounter<String, String>();
+    slotWordCounts = new HashMap<String,TwoDimensionalDoubleMap<String,String>>();
+    totalSlotWordCounts = new TwoDimensionalDoubleMap<String, String>();
+    slotQueryTypeCounts = new TwoDimensionalDoubleMap<String, String>();
   }
 
   public void incrementSlotWordCounts(String queryType, String slot, String word)
   {
-    TwoDimensionalCounter<String,String> counter = slotWordCounts.get(queryType);
+    TwoDimensionalDoubleMap<String,String> counter = slotWordCounts.get(queryType);
     if (counter == null) {
-      slotWordCounts.put(queryType, counter = new TwoDimensionalCounter<String, String>());
+      slotWordCounts.put(queryType, counter = new TwoDimensionalDoubleMap<String, String>());
+    }
+    counter.incrementCount(slot, word, 1.0);
+    totalSlotWordCounts.incrementCount(slot, word, 1.0);
+  }
+
+  public void incrementSlotQueryTypeCounts(String slot, String queryType)
+  {
+    slotQueryTypeCounts.incrementCount(slot, queryType, 1.0);
+  }
+
+  /** Adds the counts of other, e.g., of another thread */
+  public void addAll(WebSnippetStats other)
+  {
+    for (Map.Entry<String,TwoDimensionalDoubleMap<String,String>> e:other.slotWordCounts.entrySet()) {
+      TwoDimensionalDoubleMap<String,String> counter = slotWordCounts.get(e.getKey());
+      if (counter == null) {
+        slotWordCounts.put(e.getKey(), counter = new TwoDimensionalDoubleMap<String, String>());
+      }
+      addAll(counter, e.getValue());
+    }
+    addAll(totalSlotWordCounts, other.totalSlotWordCounts);
+    addAll(slotQueryTypeCounts, other.slotQueryTypeCounts);
+  }
+
+  private static void addAll(TwoDimensionalDoubleMap<String,String> to, TwoDimensionalDoubleMap<String,String> from)
+  {
+    for (Map.Entry<String,Object2DoubleOpenHashMap<String>> e:from.entrySet()) {
+      Object2DoubleMap<String> toCounter = to.getMap(e.getKey());
+      for (Object2DoubleMap.Entry<String> count:e.getValue().object2DoubleEntrySet()) {
+        toCounter.put(count.getKey(), toCounter.getDouble(count.getKey()) + count.getDoubleValue());
+      }
     }
-    counter.incrementCount(slot, word);
-    totalSlotWordCounts.incrementCount(slot, word);
   }
 
   public void printSlotWordStats(PrintWriter pw) throws IOException
@@ -64,23 +99,29 @@ public class WebSnippetStats {
     printSlotCounts(slotQueryTypeCounts, pw);
   }
 
-  public void printSlotCounts(TwoDimensionalCounter<String, String> slotCounts, PrintWriter pw) throws IOException
+  public void printSlotCounts(TwoDimensionalDoubleMap<String, String> slotCounts, PrintWriter pw) throws IOException
   {
     Set<String> slots = slotCounts.firstKeySet();
     for (String slot:slots) {
-      Counter<String> counter = slotCounts.getCounter(slot);
-      List<String> sortedWords = Counters.toSortedList(counter);
+      final Object2DoubleMap<String> counter = slotCounts.get(slot);
+      // highest counts first
+      List<String> sortedWords = new ArrayList<String>(counter.keySet());
+      Collections.sort(sortedWords, new Comparator<String>() {
+        public int compare(String w1, String w2) {
+          return Double.compare(counter.getDouble(w2), counter.getDouble(w1));
+        }
+      });
       int i = 0;
       for (String word:sortedWords) {
         i++;
-        pw.println(slot + "\t" + i + "\t" + word + "\t" + ((int) counter.getCount(word)));
+        pw.println(slot + "\t" + i + "\t" + word + "\t" + ((int) counter.getDouble(word)));
       }
     }
   }
 
-  public TwoDimensionalCounter<String, String> readSlotStats(String filename) throws IOException
+  public TwoDimensionalDoubleMap<String, String> readSlotStats(String filename) throws IOException
   {
-    TwoDimensionalCounter<String,String> counter = new TwoDimensionalCounter<String,String>();
+    TwoDimensionalDoubleMap<String,String> counter = new TwoDimensionalDoubleMap<String,String>();
     BufferedReader br = IOUtils.getBufferedFileReader(filename);
     String line;
     int lineno = 0;
@@ -93,7 +134,7 @@ public class WebSnippetStats {
         @SuppressWarnings("unused")
         int rank = Integer.valueOf(fields[FIELD_RANK]);
         int count = Integer.valueOf(fields[FIELD_COUNT]);
-        counter.setCount(slot,word,count);
+        counter.put(slot,word,count);
       } else {
         System.err.println("WARNING: Invalid line: Unexpected number of fields "
                 + fields.length + ", expected " + FIELD_MAX
@@ -0,0 +1,171 @@
+package edu.stanford.nlp.kbp.slotfilling.webqueries;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import edu.stanford.nlp.kbp.slotfilling.common.BenchmarkRunner;
+import edu.stanford.nlp.kbp.slotfilling.common.BenchmarkRunner.Benchmark;
+import edu.stanford.nlp.kbp.slotfilling.common.Log;
+import edu.stanford.nlp.kbp.slotfilling.common.Props;
+import edu.stanford.nlp.stats.TwoDimensionalCounter;
+import edu.stanford.nlp.util.PropertiesUtils;
+import edu.stanford.nlp.util.StringUtils;
+import edu.stanford.nlp.util.TwoDimensionalDoubleMap;
+import edu.stanford.nlp.util.TwoDimensionalMap;
+
+/**
+ * Micro benchmarks for the (slot, word) counts of WebSnippetStats: TwoDimensionalDoubleMap, which it uses,
+ *   against TwoDimensionalCounter, which it used before, and a TwoDimensionalMap with boxed values.
+ * The keys are synthetic: bench.tokens (default 1000000) snippet tokens, with Zipf-distributed words from a vocabulary
+ *   of bench.vocabulary (default 50000) words, and uniformly distributed slots. Half of the gets miss, with (word, slot) keys.
+ * The heap retained by each map is logged in setup.
+ * Usage:
+ *   java edu.stanford.nlp.kbp.slotfilling.webqueries.WebSnippetStatsBenchmark -bench.filter get
+ * See BenchmarkRunner for the other options.
+ */
+public class WebSnippetStatsBenchmark {
+  /** Results are stored here, so the JIT cannot eliminate the benchmarked code */
+  static volatile Object sink;
+
+  static final int SLOTS = 42;
+
+  final String [] slots;
+  final String [] words;
+
+  public WebSnippetStatsBenchmark(Properties props) {
+    int tokens = PropertiesUtils.getInt(props, "bench.tokens", 1000000);
+    int vocabulary = PropertiesUtils.getInt(props, "bench.vocabulary", 50000);
+    Random random = new Random(1);
+    // cumulative Zipf distribution of the words, for inverse sampling
+    double [] cdf = new double[vocabulary];
+    double total = 0;
+    for(int i = 0; i < vocabulary; i ++) cdf[i] = (total += 1.0 / (i + 1));
+    slots = new String[tokens];
+    words = new String[tokens];
+    for(int i = 0; i < tokens; i ++) {
+      slots[i] = "slot" + random.nextInt(SLOTS);
+      int w = Arrays.binarySearch(cdf, random.nextDouble() * total);
+      words[i] = "word" + (w < 0 ? -w - 1 : w);
+    }
+    Log.severe("Benchmark keys: " + tokens + " tokens, " + vocabulary + " words, " + SLOTS + " slots.");
+  }
+
+  List<Benchmark> benchmarks() {
+    List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+    benchmarks.add(new Benchmark("maps.counter.increment") {
+      TwoDimensionalCounter<String, String> map;
+      @Override
+      public void prepareBatch() { map = new TwoDimensionalCounter<String, String>(); }
+      @Override
+      public int runBatch() {
+        for(int i = 0; i < slots.length; i ++) map.incrementCount(slots[i], words[i]);
+        sink = map;
+        return slots.length;
+      }
+    });
+
+    benchmarks.add(new Benchmark("maps.nested.increment") {
+      TwoDimensionalMap<String, String, Double> map;
+      @Override
+      public void prepareBatch() { map = new TwoDimensionalMap<String, String, Double>(); }
+      @Override
+      public int runBatch() {
+        for(int i = 0; i < slots.length; i ++) {
+          Double v = map.get(slots[i], words[i]);
+          map.put(slots[i], words[i], (v == null ? 1.0 : v + 1.0));
+        }
+        sink = map;
+        return slots.length;
+      }
+    });
+
+    benchmarks.add(new Benchmark("maps.double.increment") {
+      TwoDimensionalDoubleMap<String, String> map;
+      @Override
+      public void prepareBatch() { map = new TwoDimensionalDoubleMap<String, String>(); }
+      @Override
+      public int runBatch() {
+        for(int i = 0; i < slots.length; i ++) map.incrementCount(slots[i], words[i], 1.0);
+        sink = map;
+        return slots.length;
+      }
+    });
+
+    benchmarks.add(new Benchmark("maps.counter.get") {
+      TwoDimensionalCounter<String, String> map;
+      @Override
+      public void setup() {
+        long before = BenchmarkRunner.usedHeap();
+        map = new TwoDimensionalCounter<String, String>();
+        for(int i = 0; i < slots.length; i ++) map.incrementCount(slots[i], words[i]);
+        Log.severe(name + ": the map retains about " + (BenchmarkRunner.usedHeap() - before) + " bytes");
+      }
+      @Override
+      public int runBatch() {
+        double sum = 0;
+        for(int i = 0; i < slots.length; i ++) {
+          sum += map.getCount(slots[i], words[i]);
+          sum += map.getCount(words[i], slots[i]);
+        }
+        sink = sum;
+        return 2 * slots.length;
+      }
+    });
+
+    benchmarks.add(new Benchmark("maps.nested.get") {
+      TwoDimensionalMap<String, String, Double> map;
+      @Override
+      public void setup() {
+        long before = BenchmarkRunner.usedHeap();
+        map = new TwoDimensionalMap<String, String, Double>();
+        for(int i = 0; i < slots.length; i ++) map.put(slots[i], words[i], (double) i);
+        Log.severe(name + ": the map retains about " + (BenchmarkRunner.usedHeap() - before) + " bytes");
+      }
+      @Override
+      public int runBatch() {
+        double sum = 0;
+        for(int i = 0; i < slots.length; i ++) {
+          Double v = map.get(slots[i], words[i]);
+          if(v != null) sum += v;
+          v = map.get(words[i], slots[i]);
+          if(v != null) sum += v;
+        }
+        sink = sum;
+        return 2 * slots.length;
+      }
+    });
+
+    benchmarks.add(new Benchmark("maps.double.get") {
+      TwoDimensionalDoubleMap<String, String> map;
+      @Override
+      public void setup() {
+        long before = BenchmarkRunner.usedHeap();
+        map = new TwoDimensionalDoubleMap<String, String>();
+        for(int i = 0; i < slots.length; i ++) map.put(slots[i], words[i], i);
+        Log.severe(name + ": the map retains about " + (BenchmarkRunner.usedHeap() - before) + " bytes");
+      }
+      @Override
+      public int runBatch() {
+        double sum = 0;
+        for(int i = 0; i < slots.length; i ++) {
+          sum += map.get(slots[i], words[i]);
+          sum += map.get(words[i], slots[i]);
+        }
+        sink = sum;
+        return 2 * slots.length;
+      }
+    });
+
+    return benchmarks;
+  }
+
+  public static void main(String[] args) throws Exception {
+    Properties props = StringUtils.argsToProperties(args);
+    Log.setLevel(Log.stringToLevel(props.getProperty(Props.LOG_LEVEL, "SEVERE")));
+    new BenchmarkRunner(props).runAll(new WebSnippetStatsBenchmark(props).benchmarks());
+  }
+}
@@ -0,0 +1,396 @@
+package edu.stanford.nlp.kbp.slotfilling.webqueries;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.stanford.nlp.kbp.slotfilling.webqueries.WebSnippetProcessor.WebSnippetHandler;
+
+/**
+ * Binary store of web snippets, converted from the V0 or V1 text formats
+ * Layout (big endian):
+ *   header: magic, version, format of the source text, offset of the directory;
+ *   one length-prefixed record per mention: ids of the slot name, entity name and query type, the other header fields,
+ *     and the snippets (rank, id of the URL, length-prefixed UTF-8 text);
+ *   directory: the slot, entity, query type and URL dictionaries, and the offsets of all records sorted by (entity, slot).
+ * Mentions of one entity are found through the index with one seek per mention, without scanning the file;
+ *   process streams all records through a WebSnippetHandler, in file order.
+ * Snippet text is stored as read, i.e., before the markup cleaning of the V1 reader (see process).
+ */
+public class WebSnippetStore {
+  /** "KBPW" */
+  public static final int MAGIC = 0x4b425057;
+  public static final int VERSION = 1;
+  public static final String EXTENSION = ".wss";
+
+  private static final int HEADER_SIZE = 20;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final String path;
+  private final RandomAccessFile file;
+  private final int sourceFormat;
+  private final long directory;
+
+  private final String [] slots;
+  private final String [] entities;
+  private final String [] queryTypes;
+  private final String [] links;
+  private final Map<String, Integer> entityIds;
+  private final Map<String, Integer> slotIds;
+
+  /** The index, sorted by (entity, slot, offset) */
+  private final int [] indexEntities;
+  private final int [] indexSlots;
+  private final long [] indexOffsets;
+
+  private WebSnippetStore(String path) throws IOException {
+    this.path = path;
+    this.file = new RandomAccessFile(path, "r");
+    if(file.readInt() != MAGIC)
+      throw new RuntimeException("ERROR: not a web snippet store: " + path);
+    int version = file.readInt();
+    if(version > VERSION)
+      throw new RuntimeException("ERROR: web snippet store " + path + " has version " + version + "; this code supports up to version " + VERSION);
+    sourceFormat = file.readInt();
+    directory = file.readLong();
+
+    DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(path), 1 << 16));
+    skipFully(is, directory);
+    slots = readStrings(is);
+    entities = readStrings(is);
+    queryTypes = readStrings(is);
+    links = readStrings(is);
+    int size = is.readInt();
+    indexEntities = new int[size];
+    indexSlots = new int[size];
+    indexOffsets = new long[size];
+    for(int i = 0; i < size; i ++) {
+      indexEntities[i] = is.readInt();
+      indexSlots[i] = is.readInt();
+      indexOffsets[i] = is.readLong();
+    }
+    is.close();
+
+    entityIds = ids(entities);
+    slotIds = ids(slots);
+  }
+
+  public static WebSnippetStore open(String path) throws IOException {
+    return new WebSnippetStore(path);
+  }
+
+  /** True if this file starts with the snippet store magic */
+  public static boolean isStore(String path) throws IOException {
+    File f = new File(path);
+    if(! f.isFile() || f.length() < HEADER_SIZE) return false;
+    DataInputStream is = new DataInputStream(new FileInputStream(f));
+    int magic = is.readInt();
+    is.close();
+    return magic == MAGIC;
+  }
+
+  public String path() { return path; }
+
+  /** 0 or 1, the format version of the text this store was converted from */
+  public int sourceFormat() { return sourceFormat; }
+
+  public int size() { return indexOffsets.length; }
+
+  public void close() throws IOException {
+    file.close();
+  }
+
+  /** All mentions of this entity, in file order */
+  public List<RelationMentionSnippets> get(String entity) throws IOException {
+    return get(entity, null);
+  }
+
+  /** All mentions of this entity and slot (any slot if null), in file order */
+  public List<RelationMentionSnippets> get(String entity, String slot) throws IOException {
+    Integer entityId = entityIds.get(entity);
+    Integer slotId = (slot != null ? slotIds.get(slot) : null);
+    if(entityId == null || (slot != null && slotId == null)) return Collections.emptyList();
+
+    List<RelationMentionSnippets> mentions = new ArrayList<RelationMentionSnippets>();
+    for(int i = firstIndexEntry(entityId); i < indexEntities.length && indexEntities[i] == entityId; i ++) {
+      if(slotId != null && indexSlots[i] != slotId) continue;
+      mentions.add(decode(readRecord(indexOffsets[i])));
+    }
+    return mentions;
+  }
+
+  private int firstIndexEntry(int entityId) {
+    int lo = 0, hi = indexEntities.length;
+    while(lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if(indexEntities[mid] < entityId) lo = mid + 1;
+      else hi = mid;
+    }
+    return lo;
+  }
+
+  private synchronized byte [] readRecord(long offset) throws IOException {
+    file.seek(offset);
+    byte [] record = new byte[file.readInt()];
+    file.readFully(record);
+    return record;
+  }
+
+  /**
+   * Streams all records through handler, with the callbacks of WebSnippetProcessor.processSnippetsV1
+   * @param clean If true, the markup of snippets converted from V1 text is cleaned as the V1 reader does (autoCleanSnippets)
+   */
+  public void process(WebSnippetHandler handler, boolean clean) throws IOException {
+    RecordReader records = records();
+    String relation = null;
+    for(byte [] record; (record = records.next()) != null; ) {
+      RelationMentionSnippets mention = decode(record);
+      if(relation == null || ! relation.equals(mention.slotName)) {
+        if(relation != null) handler.finishRelation(relation);
+        relation = mention.slotName;
+        handler.startRelation(relation);
+      }
+      replay(mention, handler, clean);
+    }
+    if(relation != null) handler.finishRelation(relation);
+    records.close();
+  }
+
+  /** Pushes one decoded mention through handler; its snippets are passed to processSnippet, not kept in mention */
+  public void replay(RelationMentionSnippets mention, WebSnippetHandler handler, boolean clean) {
+    List<WebSnippet> snippets = mention.snippets;
+    mention.snippets = new ArrayList<WebSnippet>(snippets.size());
+    handler.startMention(mention);
+    for(WebSnippet snippet: snippets) {
+      if(clean && sourceFormat == 1) snippet.text = WebSnippetProcessor.WebSnippetCleaner.cleanMarkup(snippet.text, true);
+      handler.processSnippet(mention, snippet);
+    }
+    handler.finishMention(mention);
+  }
+
+  /** Sequential reader of the raw records, which can be decoded on any thread */
+  public RecordReader records() throws IOException {
+    return new RecordReader();
+  }
+
+  public class RecordReader {
+    private final DataInputStream is;
+    private long position;
+
+    private RecordReader() throws IOException {
+      is = new DataInputStream(new BufferedInputStream(new FileInputStream(path), 1 << 16));
+      skipFully(is, HEADER_SIZE);
+      position = HEADER_SIZE;
+    }
+
+    /** Returns null after the last record */
+    public byte [] next() throws IOException {
+      if(position >= directory) return null;
+      byte [] record = new byte[is.readInt()];
+      is.readFully(record);
+      position += 4 + record.length;
+      return record;
+    }
+
+    public void close() throws IOException {
+      is.close();
+    }
+  }
+
+  /** Thread safe; the dictionaries are read-only */
+  public RelationMentionSnippets decode(byte [] record) throws IOException {
+    DataInputStream is = new DataInputStream(new ByteArrayInputStream(record));
+    String slot = slots[is.readInt()];
+    String entity = entities[is.readInt()];
+    String queryType = queryTypes[is.readInt()];
+    RelationMentionSnippets mention = new RelationMentionSnippets(queryType, entity, slot, readString(is));
+    mention.keyword = readString(is);
+    mention.queryString = readString(is);
+    mention.resultsInfo = readString(is);
+    mention.totalResultsCount = is.readLong();
+    int count = is.readInt();
+    for(int i = 0; i < count; i ++) {
+      int rank = is.readInt();
+      int link = is.readInt();
+      mention.snippets.add(new WebSnippet(rank, (link >= 0 ? links[link] : null), readString(is)));
+    }
+    return mention;
+  }
+
+  private static Map<String, Integer> ids(String [] dictionary) {
+    Map<String, Integer> ids = new HashMap<String, Integer>(dictionary.length * 2);
+    for(int i = 0; i < dictionary.length; i ++) ids.put(dictionary[i], i);
+    return ids;
+  }
+
+  private static String [] readStrings(DataInputStream is) throws IOException {
+    String [] strings = new String[is.readInt()];
+    for(int i = 0; i < strings.length; i ++) strings[i] = readString(is);
+    return strings;
+  }
+
+  private static String readString(DataInputStream is) throws IOException {
+    int length = is.readInt();
+    if(length < 0) return null;
+    byte [] bytes = new byte[length];
+    is.readFully(bytes);
+    return new String(bytes, UTF8);
+  }
+
+  private static void skipFully(InputStream is, long n) throws IOException {
+    while(n > 0) {
+      long skipped = is.skip(n);
+      if(skipped <= 0) throw new EOFException("ERROR: unexpected end of web snippet store");
+      n -= skipped;
+    }
+  }
+
+  /**
+   * Converts the mentions it receives into a store; use it as the handler of WebSnippetProcessor.processSnippets
+   * The directory is written by finish
+   */
+  public static class Writer extends WebSnippetProcessor.AbstractWebSnippetHandler {
+    private final String path;
+    private final DataOutputStream os;
+    private long position;
+
+    private final Map<String, Integer> slots = new HashMap<String, Integer>();
+    private final Map<String, Integer> entities = new HashMap<String, Integer>();
+    private final Map<String, Integer> queryTypes = new HashMap<String, Integer>();
+    private final Map<String, Integer> links = new HashMap<String, Integer>();
+    private final List<IndexEntry> index = new ArrayList<IndexEntry>();
+
+    private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+    private final DataOutputStream record = new DataOutputStream(recordBytes);
+
+    /** @param sourceFormat Format version of the text being converted */
+    public Writer(String path, int sourceFormat) throws IOException {
+      this.path = path;
+      os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 1 << 20));
+      os.writeInt(MAGIC);
+      os.writeInt(VERSION);
+      os.writeInt(sourceFormat);
+      os.writeLong(0); // directory offset, set in finish()
+      position = HEADER_SIZE;
+    }
+
+    public void processSnippet(RelationMentionSnippets snippets, WebSnippet snippet) {
+      snippets.add(snippet);
+    }
+
+    @Override
+    public void finishMention(RelationMentionSnippets snippets) {
+      try {
+        recordBytes.reset();
+        int entity = id(entities, snippets.entityName);
+        int slot = id(slots, snippets.slotName);
+        record.writeInt(slot);
+        record.writeInt(entity);
+        record.writeInt(id(queryTypes, snippets.queryTypeName));
+        writeString(record, snippets.slotValue);
+        writeString(record, snippets.keyword);
+        writeString(record, snippets.queryString);
+        writeString(record, snippets.resultsInfo);
+        record.writeLong(snippets.totalResultsCount);
+        record.writeInt(snippets.snippets.size());
+        for(WebSnippet snippet: snippets.snippets) {
+          record.writeInt(snippet.rank);
+          record.writeInt(snippet.link != null ? id(links, snippet.link) : -1);
+          writeString(record, snippet.text);
+        }
+        record.flush();
+
+        index.add(new IndexEntry(entity, slot, position));
+        os.writeInt(recordBytes.size());
+        recordBytes.writeTo(os);
+        position += 4 + recordBytes.size();
+      } catch(IOException e) {
+        throw new RuntimeException("ERROR: cannot write web snippet store " + path, e);
+      }
+    }
+
+    @Override
+    public void finish() {
+      try {
+        long directory = position;
+        writeStrings(slots);
+        writeStrings(entities);
+        writeStrings(queryTypes);
+        writeStrings(links);
+        Collections.sort(index);
+        os.writeInt(index.size());
+        for(IndexEntry e: index) {
+          os.writeInt(e.entity);
+          os.writeInt(e.slot);
+          os.writeLong(e.offset);
+        }
+        os.close();
+
+        RandomAccessFile f = new RandomAccessFile(path, "rw");
+        f.seek(12);
+        f.writeLong(directory);
+        f.close();
+      } catch(IOException e) {
+        throw new RuntimeException("ERROR: cannot write web snippet store " + path, e);
+      }
+    }
+
+    private static int id(Map<String, Integer> dictionary, String s) {
+      Integer id = dictionary.get(s);
+      if(id == null) dictionary.put(s, id = dictionary.size());
+      return id;
+    }
+
+    private void writeStrings(Map<String, Integer> dictionary) throws IOException {
+      String [] strings = new String[dictionary.size()];
+      for(Map.Entry<String, Integer> e: dictionary.entrySet()) strings[e.getValue()] = e.getKey();
+      os.writeInt(strings.length);
+      for(String s: strings) writeString(os, s);
+    }
+
+    private static void writeString(DataOutputStream os, String s) throws IOException {
+      if(s == null) {
+        os.writeInt(-1);
+        return;
+      }
+      byte [] bytes = s.getBytes(UTF8);
+      os.writeInt(bytes.length);
+      os.write(bytes);
+    }
+  }
+
+  private static class IndexEntry implements Comparable<IndexEntry> {
+    final int entity;
+    final int slot;
+    final long offset;
+
+    IndexEntry(int entity, int slot, long offset) {
+      this.entity = entity;
+      this.slot = slot;
+      this.offset = offset;
+    }
+
+    @Override
+    public int compareTo(IndexEntry o) {
+      if(entity != o.entity) return (entity < o.entity ? -1 : 1);
+      if(slot != o.slot) return (slot < o.slot ? -1 : 1);
+      return (offset < o.offset ? -1 : (offset == o.offset ? 0 : 1));
+    }
+  }
+}
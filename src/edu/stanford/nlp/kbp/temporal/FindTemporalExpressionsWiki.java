@@ -1,5 +1,6 @@
 package edu.stanford.nlp.kbp.temporal;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -43,6 +44,7 @@ import edu.stanford.nlp.kbp.slotfilling.common.KBPSlot;
 import edu.stanford.nlp.kbp.slotfilling.common.Log;
 import edu.stanford.nlp.kbp.slotfilling.common.MinimalDatum;
 import edu.stanford.nlp.kbp.slotfilling.common.Props;
+import edu.stanford.nlp.kbp.slotfilling.common.RandomStreams;
 import edu.stanford.nlp.kbp.slotfilling.common.TemporalRelationMention;
 import edu.stanford.nlp.kbp.slotfilling.common.Utils;
 
@@ -316,25 +318,43 @@ public class FindTemporalExpressionsWiki implements Serializable {
 
   }
 
-  public static List<String> normalizeDateTokens(List<CoreLabel> tokens, int beginToken, int endToken, String dateVal) {
-    List<String> dateNormalizedTokens = new ArrayList<String>();
+  public static List<String> normalizeDateTokens(final List<CoreLabel> tokens, int beginToken, int endToken, String dateVal) {
+    // a view of the words, so there is one implementation
+    List<String> words = new AbstractList<String>() {
+      @Override
+      public String get(int i) { return tokens.get(i).word(); }
+      @Override
+      public int size() { return tokens.size(); }
+    };
+    return normalizeDateWords(words, beginToken, endToken, dateVal);
+  }
+
+  /**
+   * Same as normalizeDateTokens, for the words of the tokens, e.g., when they are extracted once per document
+   * (the name differs because the two methods have the same erasure)
+   */
+  public static List<String> normalizeDateWords(List<String> words, int beginToken, int endToken, String dateVal) {
+    List<String> dateNormalizedTokens = new ArrayList<String>(words.size());
 
-    for (int i = 0; i < tokens.size(); i++) {
+    for (int i = 0; i < words.size(); i++) {
       if (i == beginToken)
         dateNormalizedTokens.add(dateVal);
       else if (i > beginToken && i <= endToken)
         continue;
       else
-        dateNormalizedTokens.add(tokens.get(i).word());
+        dateNormalizedTokens.add(words.get(i));
     }
     return dateNormalizedTokens;
   }
 
   static int k = 3;
-  static List<String> stopWords = Arrays.asList("a", "an", ",", "-lrb-", "-rrb-", ":", ".", "the", "\"", "'", "january", "february", "march", "april", "may", "june", "july",
+  static Set<String> stopWords = new HashSet<String>(Arrays.asList("a", "an", ",", "-lrb-", "-rrb-", ":", ".", "the", "\"", "'", "january", "february", "march", "april", "may", "june", "july",
       "august", "september", "october", "november", "december", "-", "--", "``", "`", "-lcb-", "-rcb-", "=", ";", "and", "or", "has", "had", "have", "there", "where", "he",
-      "their", "she", "it");
-  static List<String> wholeStopWords = Arrays.asList("was", "is", "in", "on", "of");
+      "their", "she", "it"));
+  static Set<String> wholeStopWords = new HashSet<String>(Arrays.asList("was", "is", "in", "on", "of"));
+  // compiled once; getNGrams runs for every date mention
+  private static final Pattern NON_WORD = Pattern.compile("\\W\\W*");
+  private static final Pattern DIGITS_OR_SPACES = Pattern.compile("[\\s\\d-][\\s\\d-]*");
 
   static public List<String> getNGrams(List<String> str) {
     List<String> lowerCaseStr = new ArrayList<String>();
@@ -342,7 +362,7 @@ public class FindTemporalExpressionsWiki implements Serializable {
       if (s == null)
         continue;
       s = s.toLowerCase();
-      if (s.matches("\\W\\W*") || s.matches("[\\s\\d-][\\s\\d-]*") || stopWords.contains(s) || s.length() <= 1)
+      if (NON_WORD.matcher(s).matches() || DIGITS_OR_SPACES.matcher(s).matches() || stopWords.contains(s) || s.length() <= 1)
         continue;
       lowerCaseStr.add(s);
     }
@@ -546,7 +566,7 @@ public class FindTemporalExpressionsWiki implements Serializable {
         negFile = new File(trainDir + File.separator +
             "datums_" + (int) (100.0 * samplingRatio) + ".negatives");
         if(! negFile.exists()) {
-          KBPTrainer.subsampleNegatives(trainDatumFiles, negFile, samplingRatio);
+          KBPTrainer.subsampleNegatives(trainDatumFiles, negFile, samplingRatio, RandomStreams.fromProperties(props));
         }
       }
 
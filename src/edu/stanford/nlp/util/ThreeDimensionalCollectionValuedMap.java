@@ -37,8 +37,17 @@ public class ThreeDimensionalCollectionValuedMap<K1, K2, K3, V> implements Seria
     return cvm;
   }
 
+  /**
+   * @return the Collection mapped to by the keys, never null, but may be empty.
+   * Does not create the inner maps of key1 and key2 if they are missing, and does not allocate:
+   * a missing key1 maps to the immutable empty set, as in TwoDimensionalCollectionValuedMap.
+   */
   public Collection<V> get(K1 key1, K2 key2, K3 key3) {
-    return getTwoDimensionalCollectionValuedMap(key1).getCollectionValuedMap(key2).get(key3);
+    TwoDimensionalCollectionValuedMap<K2,K3,V> cvm = map.get(key1);
+    if (cvm == null) {
+      return Collections.emptySet();
+    }
+    return cvm.get(key2, key3);
   }
   
   /**
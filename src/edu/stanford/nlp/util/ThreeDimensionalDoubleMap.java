@@ -0,0 +1,124 @@
+package edu.stanford.nlp.util;
+
+import it.unimi.dsi.fastutil.doubles.DoubleOpenHashSet;
+import it.unimi.dsi.fastutil.doubles.DoubleSet;
+import it.unimi.dsi.fastutil.objects.Object2DoubleMap;
+import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
+
+import java.io.Serializable;
+import java.util.Set;
+
+/**
+ * A {@link ThreeDimensionalMap} with double values; see {@link TwoDimensionalDoubleMap}.
+ * Neither get nor contains allocate.
+ */
+public class ThreeDimensionalDoubleMap<K1, K2, K3> implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+  Object2ObjectOpenHashMap<K1, TwoDimensionalDoubleMap<K2, K3>> map;
+  private double defaultReturnValue;
+
+  public ThreeDimensionalDoubleMap() {
+    this.map = new Object2ObjectOpenHashMap<K1, TwoDimensionalDoubleMap<K2, K3>>();
+  }
+
+  public void defaultReturnValue(double rv) {
+    defaultReturnValue = rv;
+    for (TwoDimensionalDoubleMap<K2, K3> m : map.values()) {
+      m.defaultReturnValue(rv);
+    }
+  }
+
+  public double defaultReturnValue() {
+    return defaultReturnValue;
+  }
+
+  public int size() {
+    return map.size();
+  }
+
+  public double put(K1 key1, K2 key2, K3 key3, double value) {
+    return getTwoDimensionalMap(key1).put(key2, key3, value);
+  }
+
+  /** Adds value to the value of (key1, key2, key3), and returns the new value */
+  public double incrementCount(K1 key1, K2 key2, K3 key3, double value) {
+    return getTwoDimensionalMap(key1).incrementCount(key2, key3, value);
+  }
+
+  public double get(K1 key1, K2 key2, K3 key3) {
+    TwoDimensionalDoubleMap<K2, K3> m = map.get(key1);
+    return (m == null ? defaultReturnValue : m.get(key2, key3));
+  }
+
+  public boolean contains(K1 key1, K2 key2, K3 key3) {
+    TwoDimensionalDoubleMap<K2, K3> m = map.get(key1);
+    return (m != null && m.containsKey(key2, key3));
+  }
+
+  public void remove(K1 key1, K2 key2, K3 key3) {
+    TwoDimensionalDoubleMap<K2, K3> m = map.get(key1);
+    if (m != null) m.remove(key2, key3);
+  }
+
+  public void clear() {
+    map.clear();
+  }
+
+  public boolean containsKey(K1 key1) {
+    return map.containsKey(key1);
+  }
+
+  public Object2DoubleMap<K3> get(K1 key1, K2 key2) {
+    return get(key1).get(key2);
+  }
+
+  public TwoDimensionalDoubleMap<K2, K3> get(K1 key1) {
+    return getTwoDimensionalMap(key1);
+  }
+
+  public TwoDimensionalDoubleMap<K2, K3> getTwoDimensionalMap(K1 key1) {
+    TwoDimensionalDoubleMap<K2, K3> m = map.get(key1);
+    if (m == null) {
+      m = new TwoDimensionalDoubleMap<K2, K3>();
+      m.defaultReturnValue(defaultReturnValue);
+      map.put(key1, m);
+    }
+    return m;
+  }
+
+  /** The distinct values, as in ThreeDimensionalMap */
+  public DoubleSet values() {
+    DoubleSet s = new DoubleOpenHashSet();
+    for (TwoDimensionalDoubleMap<K2, K3> m : map.values()) {
+      s.addAll(m.values());
+    }
+    return s;
+  }
+
+  public Set<K1> firstKeySet() {
+    return map.keySet();
+  }
+
+  public Set<K2> secondKeySet() {
+    Set<K2> keys = Generics.newHashSet();
+    for (TwoDimensionalDoubleMap<K2, K3> m : map.values()) {
+      keys.addAll(m.firstKeySet());
+    }
+    return keys;
+  }
+
+  public Set<K3> thirdKeySet() {
+    Set<K3> keys = Generics.newHashSet();
+    for (TwoDimensionalDoubleMap<K2, K3> m : map.values()) {
+      keys.addAll(m.secondKeySet());
+    }
+    return keys;
+  }
+
+  @Override
+  public String toString() {
+    return map.toString();
+  }
+
+}
@@ -20,23 +20,20 @@ public class ThreeDimensionalMap<K1, K2, K3, V> implements Serializable {
     return m.put(key2, key3, value);
   }
 
+  // does not create the inner maps of key1 and key2 if they are missing
   public V get(K1 key1, K2 key2, K3 key3) {
-    return getTwoDimensionalMap(key1).get(key2, key3);
+    TwoDimensionalMap<K2, K3, V> m = map.get(key1);
+    return (m == null ? null : m.get(key2, key3));
   }
 
   public boolean contains(K1 key1, K2 key2, K3 key3) {
-    if (!map.containsKey(key1))
-      return false;
-    if (!map.get(key1).containsKey(key2))
-      return false;
-    if (!map.get(key1).get(key2).containsKey(key3))
-      return false;
-    else
-      return true;
+    TwoDimensionalMap<K2, K3, V> m = map.get(key1);
+    return (m != null && m.containsKey(key2, key3));
   }
 
   public void remove(K1 key1, K2 key2, K3 key3) {
-    get(key1, key2).remove(key3);
+    TwoDimensionalMap<K2, K3, V> m = map.get(key1);
+    if (m != null) m.remove(key2, key3);
   }
 
   public Map<K3, V> get(K1 key1, K2 key2) {
@@ -70,19 +67,16 @@ public class ThreeDimensionalMap<K1, K2, K3, V> implements Serializable {
 
   public Set<K2> secondKeySet() {
     Set<K2> keys = Generics.newHashSet();
-    for (K1 k1 : map.keySet()) {
-      keys.addAll(get(k1).firstKeySet());
+    for (TwoDimensionalMap<K2, K3, V> m : map.values()) {
+      keys.addAll(m.firstKeySet());
     }
     return keys;
   }
 
   public Set<K3> thirdKeySet() {
     Set<K3> keys = Generics.newHashSet();
-    for (K1 k1 : map.keySet()) {
-      TwoDimensionalMap<K2, K3, V> m = map.get(k1);
-      for (K2 k2 : m.firstKeySet()) {
-        keys.addAll(m.get(k2).keySet());
-      }
+    for (TwoDimensionalMap<K2, K3, V> m : map.values()) {
+      keys.addAll(m.secondKeySet());
     }
     return keys;
   }
@@ -85,8 +85,17 @@ public class TwoDimensionalCollectionValuedMap<K1, K2, V> implements Serializabl
     return cvm;
   }
 
+  /**
+   * @return the Collection mapped to by the keys, never null, but may be empty.
+   * Does not create the CollectionValuedMap of key1 if it is missing, and does not allocate:
+   * a missing key1 maps to the immutable empty set, as in ThreeDimensionalCollectionValuedMap.
+   */
   public Collection<V> get(K1 key1, K2 key2) {
-    return getCollectionValuedMap(key1).get(key2);
+    CollectionValuedMap<K2,V> cvm = map.get(key1);
+    if (cvm == null) {
+      return Collections.emptySet();
+    }
+    return cvm.get(key2);
   }
   
   /**
@@ -161,16 +170,16 @@ public class TwoDimensionalCollectionValuedMap<K1, K2, V> implements Serializabl
 
   public Set<K2> secondKeySet() {
     Set<K2> keys = Generics.newHashSet();
-    for (K1 k1 : map.keySet()) {
-      keys.addAll(getCollectionValuedMap(k1).keySet());
+    for (CollectionValuedMap<K2,V> cvm : map.values()) {
+      keys.addAll(cvm.keySet());
     }
     return keys;
   }
 
   public Collection<V> values() {
     Collection<V> allValues = Generics.newHashSet();
-    for (K1 k1 : map.keySet()) {
-      Collection<Collection<V>> collectionOfValues = getCollectionValuedMap(k1).values();
+    for (CollectionValuedMap<K2,V> cvm : map.values()) {
+      Collection<Collection<V>> collectionOfValues = cvm.values();
       for (Collection<V> values : collectionOfValues) {
         allValues.addAll(values);
       }
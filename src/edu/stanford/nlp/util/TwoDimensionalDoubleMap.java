@@ -0,0 +1,154 @@
+package edu.stanford.nlp.util;
+
+import it.unimi.dsi.fastutil.doubles.DoubleOpenHashSet;
+import it.unimi.dsi.fastutil.doubles.DoubleSet;
+import it.unimi.dsi.fastutil.objects.Object2DoubleMap;
+import it.unimi.dsi.fastutil.objects.Object2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A {@link TwoDimensionalMap} with double values, e.g., for feature and slot statistics.
+ * Backed by fastutil open-address maps, so values are never boxed, and neither get nor contains allocate.
+ * The methods are those of TwoDimensionalMap, with double values; but missing keys map to defaultReturnValue
+ *   (0 unless set), as in a Counter, instead of null, and entrySet() goes over the fastutil inner maps.
+ */
+public class TwoDimensionalDoubleMap<K1, K2> implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+  Object2ObjectOpenHashMap<K1, Object2DoubleOpenHashMap<K2>> map;
+  private double defaultReturnValue;
+
+  public TwoDimensionalDoubleMap() {
+    this.map = new Object2ObjectOpenHashMap<K1, Object2DoubleOpenHashMap<K2>>();
+  }
+
+  public TwoDimensionalDoubleMap(TwoDimensionalDoubleMap<K1, K2> tdm) {
+    this.map = new Object2ObjectOpenHashMap<K1, Object2DoubleOpenHashMap<K2>>(tdm.map.size());
+    this.defaultReturnValue = tdm.defaultReturnValue;
+    for (Map.Entry<K1, Object2DoubleOpenHashMap<K2>> e : tdm.map.entrySet()) {
+      Object2DoubleOpenHashMap<K2> m = new Object2DoubleOpenHashMap<K2>(e.getValue());
+      m.defaultReturnValue(defaultReturnValue);
+      this.map.put(e.getKey(), m);
+    }
+  }
+
+  public void defaultReturnValue(double rv) {
+    defaultReturnValue = rv;
+    for (Object2DoubleOpenHashMap<K2> m : map.values()) {
+      m.defaultReturnValue(rv);
+    }
+  }
+
+  public double defaultReturnValue() {
+    return defaultReturnValue;
+  }
+
+  public int size() {
+    return map.size();
+  }
+
+  public double put(K1 key1, K2 key2, double value) {
+    return getMap(key1).put(key2, value);
+  }
+
+  // adds empty map for key key1
+  public void put(K1 key1) {
+    Object2DoubleOpenHashMap<K2> m = new Object2DoubleOpenHashMap<K2>();
+    m.defaultReturnValue(defaultReturnValue);
+    map.put(key1, m);
+  }
+
+  /** Adds value to the value of (key1, key2), and returns the new value */
+  public double incrementCount(K1 key1, K2 key2, double value) {
+    Object2DoubleOpenHashMap<K2> m = getMap(key1);
+    double v = m.getDouble(key2) + value;
+    m.put(key2, v);
+    return v;
+  }
+
+  public double get(K1 key1, K2 key2) {
+    Object2DoubleOpenHashMap<K2> m = map.get(key1);
+    return (m == null ? defaultReturnValue : m.getDouble(key2));
+  }
+
+  public void remove(K1 key1, K2 key2) {
+    Object2DoubleOpenHashMap<K2> m = map.get(key1);
+    if (m != null) m.removeDouble(key2);
+  }
+
+  public void remove(K1 key1) {
+    map.remove(key1);
+  }
+
+  public void clear() {
+    map.clear();
+  }
+
+  public boolean containsKey(K1 key1) {
+    return map.containsKey(key1);
+  }
+
+  public boolean containsKey(K1 key1, K2 key2) {
+    Object2DoubleOpenHashMap<K2> m = map.get(key1);
+    return (m != null && m.containsKey(key2));
+  }
+
+  /** Never null: creates the inner map of key1 if it is missing, so the caller can write to it */
+  public Object2DoubleMap<K2> get(K1 key1) {
+    return getMap(key1);
+  }
+
+  public Object2DoubleOpenHashMap<K2> getMap(K1 key1) {
+    Object2DoubleOpenHashMap<K2> m = map.get(key1);
+    if (m == null) {
+      m = new Object2DoubleOpenHashMap<K2>();
+      m.defaultReturnValue(defaultReturnValue);
+      map.put(key1, m);
+    }
+    return m;
+  }
+
+  /** The distinct values, as in TwoDimensionalMap */
+  public DoubleSet values() {
+    DoubleSet s = new DoubleOpenHashSet();
+    for (Object2DoubleOpenHashMap<K2> m : map.values()) {
+      s.addAll(m.values());
+    }
+    return s;
+  }
+
+  /** Sum of all values */
+  public double totalCount() {
+    double total = 0;
+    for (Object2DoubleOpenHashMap<K2> m : map.values()) {
+      for (double v : m.values()) total += v;
+    }
+    return total;
+  }
+
+  public Set<K1> firstKeySet() {
+    return map.keySet();
+  }
+
+  public Set<K2> secondKeySet() {
+    Set<K2> keys = Generics.newHashSet();
+    for (Object2DoubleOpenHashMap<K2> m : map.values()) {
+      keys.addAll(m.keySet());
+    }
+    return keys;
+  }
+
+  public Set<Map.Entry<K1, Object2DoubleOpenHashMap<K2>>> entrySet() {
+    return map.entrySet();
+  }
+
+  @Override
+  public String toString() {
+    return map.toString();
+  }
+
+}
@@ -0,0 +1,116 @@
+package edu.stanford.nlp.util;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * A {@link TwoDimensionalMap} for int keys, e.g., label and feature indices.
+ * Backed by fastutil open-address maps, so keys are never boxed, and neither get nor contains allocate.
+ * The methods are those of TwoDimensionalMap, with int keys.
+ */
+public class TwoDimensionalIntKeyMap<V> implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+  Int2ObjectOpenHashMap<Int2ObjectOpenHashMap<V>> map;
+
+  public TwoDimensionalIntKeyMap() {
+    this.map = new Int2ObjectOpenHashMap<Int2ObjectOpenHashMap<V>>();
+  }
+
+  public TwoDimensionalIntKeyMap(TwoDimensionalIntKeyMap<V> tdm) {
+    this.map = new Int2ObjectOpenHashMap<Int2ObjectOpenHashMap<V>>(tdm.map.size());
+    for (Int2ObjectMap.Entry<Int2ObjectOpenHashMap<V>> e : tdm.map.int2ObjectEntrySet()) {
+      this.map.put(e.getIntKey(), new Int2ObjectOpenHashMap<V>(e.getValue()));
+    }
+  }
+
+  public int size() {
+    return map.size();
+  }
+
+  public V put(int key1, int key2, V value) {
+    return getMap(key1).put(key2, value);
+  }
+
+  // adds empty map for key key1
+  public void put(int key1) {
+    map.put(key1, new Int2ObjectOpenHashMap<V>());
+  }
+
+  public V get(int key1, int key2) {
+    Int2ObjectOpenHashMap<V> m = map.get(key1);
+    return (m == null ? null : m.get(key2));
+  }
+
+  public void remove(int key1, int key2) {
+    Int2ObjectOpenHashMap<V> m = map.get(key1);
+    if (m != null) m.remove(key2);
+  }
+
+  public void remove(int key1) {
+    map.remove(key1);
+  }
+
+  public void clear() {
+    map.clear();
+  }
+
+  public boolean containsKey(int key1) {
+    return map.containsKey(key1);
+  }
+
+  public boolean containsKey(int key1, int key2) {
+    Int2ObjectOpenHashMap<V> m = map.get(key1);
+    return (m != null && m.containsKey(key2));
+  }
+
+  /** Never null: creates the inner map of key1 if it is missing, so the caller can write to it */
+  public Int2ObjectMap<V> get(int key1) {
+    return getMap(key1);
+  }
+
+  public Int2ObjectMap<V> getMap(int key1) {
+    Int2ObjectOpenHashMap<V> m = map.get(key1);
+    if (m == null) {
+      m = new Int2ObjectOpenHashMap<V>();
+      map.put(key1, m);
+    }
+    return m;
+  }
+
+  public Collection<V> values() {
+    Set<V> s = Generics.newHashSet();
+    for (Int2ObjectOpenHashMap<V> innerMap : map.values()) {
+      s.addAll(innerMap.values());
+    }
+    return s;
+  }
+
+  public IntSet firstKeySet() {
+    return map.keySet();
+  }
+
+  public IntSet secondKeySet() {
+    IntSet keys = new IntOpenHashSet();
+    for (Int2ObjectOpenHashMap<V> innerMap : map.values()) {
+      keys.addAll(innerMap.keySet());
+    }
+    return keys;
+  }
+
+  public Set<Int2ObjectMap.Entry<Int2ObjectOpenHashMap<V>>> entrySet() {
+    return map.int2ObjectEntrySet();
+  }
+
+  @Override
+  public String toString() {
+    return map.toString();
+  }
+
+}
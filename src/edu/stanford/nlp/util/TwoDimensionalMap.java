@@ -27,13 +27,15 @@ public class TwoDimensionalMap<K1, K2, V> implements Serializable {
     map.put(key1, new HashMap<K2, V>());
   }
 
+  // does not create the inner map of key1 if it is missing
   public V get(K1 key1, K2 key2) {
-    Map<K2, V> m = getMap(key1);
-    return m.get(key2);
+    Map<K2, V> m = map.get(key1);
+    return (m == null ? null : m.get(key2));
   }
 
   public void remove(K1 key1, K2 key2) {
-    get(key1).remove(key2);
+    Map<K2, V> m = map.get(key1);
+    if (m != null) m.remove(key2);
   }
 
   // removes almost the associated data with the key in the first map
@@ -49,6 +51,12 @@ public class TwoDimensionalMap<K1, K2, V> implements Serializable {
     return map.containsKey(key1);
   }
 
+  public boolean containsKey(K1 key1, K2 key2) {
+    Map<K2, V> m = map.get(key1);
+    return (m != null && m.containsKey(key2));
+  }
+
+  /** Never null: creates the inner map of key1 if it is missing, so the caller can write to it */
   public Map<K2, V> get(K1 key1) {
     return getMap(key1);
   }
@@ -76,8 +84,8 @@ public class TwoDimensionalMap<K1, K2, V> implements Serializable {
 
   public Set<K2> secondKeySet() {
     Set<K2> keys = Generics.newHashSet();
-    for (K1 k1 : map.keySet()) {
-      keys.addAll(get(k1).keySet());
+    for (HashMap<K2, V> innerMap : map.values()) {
+      keys.addAll(innerMap.keySet());
     }
     return keys;
   }